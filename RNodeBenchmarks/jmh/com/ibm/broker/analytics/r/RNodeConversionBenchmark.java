@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rosuda.REngine.REXP;
+
+import com.ibm.broker.plugin.MbMessage;
+import com.ibm.broker.plugin.MbXPathVariables;
+
+/**
+ * A benchmark for converting a message tree into R values and back, with RNodeVariable and RNodeDataFrame,
+ * across numbers of rows, numbers of columns and column types. The message tree is the in-memory stand-in
+ * for com.ibm.broker.plugin, so the benchmark measures the R node's conversion code and the cost of walking
+ * a simple tree, rather than the broker's message tree.
+ *
+ * The vector benchmarks convert one variable for each column, each of which evaluates its own XPath
+ * expression over every row, in the same way as a node configured with vector variables rather than a
+ * data frame. The fromR benchmarks write into a message that already has every row and column, so they
+ * measure setting values rather than growing the tree.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RNodeConversionBenchmark {
+	
+	/**
+	 * The number of rows in the message.
+	 */
+	@Param({ "1", "100", "10000" })
+	public int rows;
+	
+	/**
+	 * The number of columns in each row.
+	 */
+	@Param({ "1", "10" })
+	public int columns;
+	
+	/**
+	 * The type of the columns.
+	 */
+	@Param({ "LOGICAL", "INTEGER", "DOUBLE", "CHARACTER" })
+	public RNodeType type;
+	
+	/**
+	 * The input message.
+	 */
+	private MbMessage iMessage;
+	
+	/**
+	 * The XPath variable bindings for the input message.
+	 */
+	private MbXPathVariables iXPathVariables;
+	
+	/**
+	 * The data frame being converted.
+	 */
+	private RNodeDataFrame iDataFrame;
+	
+	/**
+	 * The variables being converted, one for each column.
+	 */
+	private RNodeVariable[] iVariables;
+	
+	/**
+	 * The R data frame converted from the input message.
+	 */
+	private REXP iDataFrameValue;
+	
+	/**
+	 * The R vectors converted from the input message, one for each column.
+	 */
+	private REXP[] iVariableValues;
+	
+	/**
+	 * The disabled user trace.
+	 */
+	private RNodeTrace iTrace = RNodeTrace.forMessage(RNodeTraceLevel.NONE, 1, null);
+	
+	/**
+	 * Build the message, the data frame and the variables, and convert them once to provide the values for the fromR benchmarks.
+	 * @throws Exception if a problem occurs building or converting the message.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		RNode owner = new RNode();
+		iMessage = RNodeSyntheticMessages.createMessage(0, rows, columns, type);
+		iXPathVariables = RNodeSyntheticMessages.createXPathVariables(iMessage);
+		iDataFrame = RNodeSyntheticMessages.createDataFrame(owner, columns, type, RNodeDirection.INOUT);
+		iVariables = new RNodeVariable[columns];
+		iVariableValues = new REXP[columns];
+		for (int i = 0; i < columns; i++) {
+			iVariables[i] = RNodeSyntheticMessages.createVectorVariable(owner, i + 1, type, RNodeDirection.INOUT);
+			iVariableValues[i] = iVariables[i].toR(iMessage, iXPathVariables, iTrace);
+		}
+		iDataFrameValue = iDataFrame.toR(iMessage, iXPathVariables, iTrace);
+	}
+	
+	/**
+	 * Convert the rows of the message into an R data frame.
+	 * @return the R data frame.
+	 * @throws Exception if a problem occurs converting the message.
+	 */
+	@Benchmark
+	public REXP dataFrameToR() throws Exception {
+		return iDataFrame.toR(iMessage, iXPathVariables, iTrace);
+	}
+	
+	/**
+	 * Set the rows of the message from an R data frame.
+	 * @return the message.
+	 * @throws Exception if a problem occurs converting the data frame.
+	 */
+	@Benchmark
+	public MbMessage dataFrameFromR() throws Exception {
+		iDataFrame.fromR(iDataFrameValue, iMessage, iXPathVariables, iTrace);
+		return iMessage;
+	}
+	
+	/**
+	 * Convert each column of the message into an R vector.
+	 * @return the R vectors.
+	 * @throws Exception if a problem occurs converting the message.
+	 */
+	@Benchmark
+	public REXP[] variableToR() throws Exception {
+		REXP[] values = new REXP[iVariables.length];
+		for (int i = 0; i < iVariables.length; i++) {
+			values[i] = iVariables[i].toR(iMessage, iXPathVariables, iTrace);
+		}
+		return values;
+	}
+	
+	/**
+	 * Set each column of the message from an R vector.
+	 * @return the message.
+	 * @throws Exception if a problem occurs converting the vectors.
+	 */
+	@Benchmark
+	public MbMessage variableFromR() throws Exception {
+		for (int i = 0; i < iVariables.length; i++) {
+			iVariables[i].fromR(iVariableValues[i], iMessage, iXPathVariables, iTrace);
+		}
+		return iMessage;
+	}
+	
+}
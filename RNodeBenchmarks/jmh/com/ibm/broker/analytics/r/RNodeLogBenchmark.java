@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.broker.plugin.MbElement;
+import com.ibm.broker.plugin.MbMessage;
+import com.ibm.broker.plugin.MbService;
+import com.ibm.broker.plugin.MbXPath;
+
+/**
+ * A benchmark for formatting the inserts of a user trace message with RNodeLog. An MbElement insert is
+ * formatted as the path of the element, which walks the previous siblings of the element and each of its
+ * ancestors, so the cost grows with the position of the element among its siblings. The element used is
+ * the first column of the last row of a message with the specified number of rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RNodeLogBenchmark {
+	
+	/**
+	 * The number of rows in the message, which is the number of siblings of the row that contains the element insert.
+	 */
+	@Param({ "1", "100", "10000" })
+	public int siblings;
+	
+	/**
+	 * The element insert.
+	 */
+	private MbElement iElement;
+	
+	/**
+	 * Build the message, and find the element insert.
+	 * @throws Exception if a problem occurs building the message.
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		MbMessage message = RNodeSyntheticMessages.createMessage(0, siblings, 1, RNodeType.CHARACTER);
+		List<?> columns = (List<?>) message.evaluateXPath(new MbXPath(RNodeSyntheticMessages.ROWS + "/C1"),
+			RNodeSyntheticMessages.createXPathVariables(message));
+		iElement = (MbElement) columns.get(columns.size() - 1);
+	}
+	
+	/**
+	 * Log a user trace message with string and number inserts only.
+	 * @return the number of user trace messages logged.
+	 * @throws Exception if a problem occurs logging the message.
+	 */
+	@Benchmark
+	public long stringInserts() throws Exception {
+		RNodeLog.logUserTrace(this, "stringInserts", 7820, "Converted value", "RNode", "value-1", "df", 1, siblings);
+		return MbService.getUserTraceCount();
+	}
+	
+	/**
+	 * Log a user trace message with an MbElement insert, as logged when a value in the message cannot be converted.
+	 * @return the number of user trace messages logged.
+	 * @throws Exception if a problem occurs logging the message.
+	 */
+	@Benchmark
+	public long elementInsert() throws Exception {
+		RNodeLog.logUserTrace(this, "elementInsert", 7820, "Converted value", "RNode", iElement, "df", 1, siblings);
+		return MbService.getUserTraceCount();
+	}
+	
+}
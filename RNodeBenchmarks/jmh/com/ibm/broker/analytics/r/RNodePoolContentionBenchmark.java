@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A benchmark for borrowing and returning a connection from RNodeConnectionPool under contention, with
+ * eight threads sharing one pool. The connections are plain objects, so the benchmark measures only the
+ * overhead of the pool. When there are fewer connections than threads, the time includes waiting for a
+ * connection to be returned; the work done while holding a connection controls how long that is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class RNodePoolContentionBenchmark {
+	
+	/**
+	 * The maximum number of connections in the pool.
+	 */
+	@Param({ "2", "8", "32" })
+	public int maximumConnections;
+	
+	/**
+	 * The number of units of work done while holding a connection.
+	 */
+	@Param({ "0", "100" })
+	public int work;
+	
+	/**
+	 * The pool.
+	 */
+	private RNodeConnectionPool<Object> iPool;
+	
+	/**
+	 * Create the pool, with the same idle timeout and validation interval as the R node's defaults.
+	 */
+	@Setup
+	public void setUp() {
+		iPool = new RNodeConnectionPool<>(new RNodeConnectionPool.Factory<Object>() {
+			
+			@Override
+			public Object create() {
+				return new Object();
+			}
+			
+			@Override
+			public void destroy(Object connection) {
+				// Nothing to close.
+			}
+			
+			@Override
+			public boolean validate(Object connection) {
+				return true;
+			}
+			
+		}, maximumConnections, 0, 10, 5);
+	}
+	
+	/**
+	 * Close the pool.
+	 */
+	@TearDown
+	public void tearDown() {
+		iPool.close();
+	}
+	
+	/**
+	 * Borrow a connection, do some work while holding it, and return it.
+	 * @return the connection.
+	 * @throws Exception if a problem occurs borrowing the connection.
+	 */
+	@Benchmark
+	public Object borrowAndRelease() throws Exception {
+		RNodeConnectionPool.Entry<Object> entry = iPool.borrow();
+		try {
+			Blackhole.consumeCPU(work);
+			return entry.getConnection();
+		} finally {
+			iPool.release(entry);
+		}
+	}
+	
+}
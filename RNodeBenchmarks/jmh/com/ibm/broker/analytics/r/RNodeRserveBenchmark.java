@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.Rserve.RConnection;
+
+import com.ibm.broker.plugin.MbMessage;
+import com.ibm.broker.plugin.MbXPathVariables;
+
+/**
+ * A benchmark for the round trip the R node makes to Rserve for each message: the input data frame is
+ * assigned to .iib_r_in in one request, and the resident evaluate function is called to collect the
+ * output data frame in a second request. The server is RNodeRserveStub on the loopback interface, which
+ * echoes the inputs back without evaluating R, so the benchmark measures the QAP1 encoding and decoding
+ * in the client and the socket round trips.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RNodeRserveBenchmark {
+	
+	/**
+	 * The name of the resident evaluate function.
+	 */
+	private static final String FUNCTION = ".iib_r_evaluate_benchmark";
+	
+	/**
+	 * The number of rows in the data frame.
+	 */
+	@Param({ "1", "100", "10000" })
+	public int rows;
+	
+	/**
+	 * The number of columns in the data frame.
+	 */
+	@Param({ "1", "10" })
+	public int columns;
+	
+	/**
+	 * The stand-in Rserve server.
+	 */
+	private RNodeRserveStub iServer;
+	
+	/**
+	 * The connection to the stand-in server.
+	 */
+	private RConnection iConnection;
+	
+	/**
+	 * The named list of input values.
+	 */
+	private REXP iInputs;
+	
+	/**
+	 * Start the server, connect to it, install the resident evaluate function, and convert the input data frame.
+	 * @throws Exception if a problem occurs starting or connecting to the server.
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		iServer = new RNodeRserveStub(0);
+		iConnection = new RConnection("127.0.0.1", iServer.getPort());
+		iConnection.voidEval(FUNCTION + " <- local({f <- function(.iib_r_in) try({list2env(.iib_r_in,envir=.GlobalEnv);" +
+			"mget(c(\"df\"),envir=.GlobalEnv,ifnotfound=list(NULL))},silent=TRUE);f})");
+		MbMessage message = RNodeSyntheticMessages.createMessage(0, rows, columns, RNodeType.DOUBLE);
+		MbXPathVariables xpathVariables = RNodeSyntheticMessages.createXPathVariables(message);
+		RNodeDataFrame dataFrame = RNodeSyntheticMessages.createDataFrame(new RNode(), columns, RNodeType.DOUBLE, RNodeDirection.INOUT);
+		REXP value = dataFrame.toR(message, xpathVariables, RNodeTrace.forMessage(RNodeTraceLevel.NONE, 1, null));
+		iInputs = RNode.createList(new String[] { "df" }, new REXP[] { value });
+	}
+	
+	/**
+	 * Close the connection, and stop the server.
+	 */
+	@TearDown
+	public void tearDown() {
+		iConnection.close();
+		iServer.close();
+	}
+	
+	/**
+	 * Assign the input values, and call the resident evaluate function to collect the output values.
+	 * @return the output values.
+	 * @throws Exception if a problem occurs communicating with the server.
+	 */
+	@Benchmark
+	public REXP assignAndEvaluate() throws Exception {
+		iConnection.assign(".iib_r_in", iInputs);
+		return iConnection.parseAndEval(FUNCTION + "(.iib_r_in)");
+	}
+	
+}
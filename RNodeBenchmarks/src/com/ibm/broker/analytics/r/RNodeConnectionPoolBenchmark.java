@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+
+/**
+ * A benchmark that compares the cost of borrowing and returning a connection with RNodeConnectionPool
+ * against the commons-pool2 GenericObjectPool that the R node used previously, configured in the same
+ * way (including its evictor running every 100 milliseconds). The connections are plain objects, so the
+ * benchmark measures only the overhead of the pools themselves.
+ *
+ * Usage: RNodeConnectionPoolBenchmark [maximumConnections [seconds [threads...]]]
+ */
+public class RNodeConnectionPoolBenchmark {
+	
+	/**
+	 * An interface for borrowing and returning a connection from one of the pools under test.
+	 */
+	private interface Pool {
+		
+		/**
+		 * Borrow a connection, do some work with it, and return it.
+		 * @param work the number of iterations of work to do with the connection.
+		 * @return a value derived from the work, so it cannot be optimised away.
+		 * @throws Exception if a problem occurs borrowing the connection.
+		 */
+		public long borrowAndReturn(int work) throws Exception;
+		
+		/**
+		 * Close the pool.
+		 */
+		public void close();
+		
+	}
+	
+	/**
+	 * Run the benchmark.
+	 * @param args the maximum number of connections, the number of seconds to measure each run for, and the numbers of threads to run.
+	 * @throws Exception if a problem occurs running the benchmark.
+	 */
+	public static void main(String[] args) throws Exception {
+		int maximumConnections = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int[] threadCounts = { 1, 2, 4, 8, 16, 32, 64 };
+		if (args.length > 2) {
+			threadCounts = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				threadCounts[i - 2] = Integer.parseInt(args[i]);
+			}
+		}
+		
+		System.out.println("maximumConnections=" + maximumConnections + " seconds=" + seconds);
+		System.out.printf("%-8s %-6s %20s %20s %8s%n", "threads", "work", "GenericObjectPool", "RNodeConnectionPool", "speedup");
+		for (int work : new int[] { 0, 100 }) {
+			for (int threads : threadCounts) {
+				
+				// Run each pool once to warm up, then measure it.
+				double[] results = new double[2];
+				for (int i = 0; i < 2; i++) {
+					run(i == 0 ? newGenericObjectPool(maximumConnections) : newConnectionPool(maximumConnections), threads, work, 1);
+					results[i] = run(i == 0 ? newGenericObjectPool(maximumConnections) : newConnectionPool(maximumConnections), threads, work, seconds);
+				}
+				System.out.printf("%-8d %-6d %14.0f ops/s %14.0f ops/s %7.2fx%n", threads, work, results[0], results[1], results[1] / results[0]);
+				
+			}
+		}
+		
+	}
+	
+	/**
+	 * Measure the throughput of a pool with the specified number of threads, and then close it.
+	 * @param pool the pool.
+	 * @param threads the number of threads.
+	 * @param work the number of iterations of work to do with each connection.
+	 * @param seconds the number of seconds to measure for.
+	 * @return the number of borrow and return operations per second.
+	 * @throws Exception if a problem occurs running the threads.
+	 */
+	private static double run(final Pool pool, int threads, final int work, int seconds) throws Exception {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong operations = new AtomicLong();
+		final AtomicLong sink = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					long count = 0;
+					long value = 0;
+					try {
+						start.await();
+						while (running.get()) {
+							value += pool.borrowAndReturn(work);
+							count++;
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					operations.addAndGet(count);
+					sink.addAndGet(value);
+				}
+				
+			});
+			workers[i].start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		running.set(false);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - startTime;
+		pool.close();
+		if (sink.get() == 42) {
+			System.out.print("");
+		}
+		return operations.get() * 1e9 / elapsed;
+	}
+	
+	/**
+	 * Do some work with a connection.
+	 * @param connection the connection.
+	 * @param work the number of iterations of work to do.
+	 * @return a value derived from the work.
+	 */
+	private static long work(Object connection, int work) {
+		long value = connection.hashCode();
+		for (int i = 0; i < work; i++) {
+			value = value * 6364136223846793005L + 1442695040888963407L;
+		}
+		return value;
+	}
+	
+	/**
+	 * Create a GenericObjectPool configured in the same way as the R node configured it.
+	 * @param maximumConnections the maximum number of connections.
+	 * @return the pool.
+	 */
+	private static Pool newGenericObjectPool(int maximumConnections) {
+		final GenericObjectPool<Object> pool = new GenericObjectPool<Object>(new BasePooledObjectFactory<Object>() {
+			
+			@Override
+			public Object create() {
+				return new Object();
+			}
+			
+			@Override
+			public PooledObject<Object> wrap(Object connection) {
+				return new DefaultPooledObject<Object>(connection);
+			}
+			
+		});
+		pool.setMaxTotal(maximumConnections);
+		pool.setMaxIdle(Integer.MAX_VALUE);
+		pool.setMinIdle(1);
+		pool.setMinEvictableIdleTimeMillis(Long.MAX_VALUE);
+		pool.setSoftMinEvictableIdleTimeMillis(10 * 1000);
+		pool.setNumTestsPerEvictionRun(maximumConnections);
+		pool.setTimeBetweenEvictionRunsMillis(100);
+		return new Pool() {
+			
+			@Override
+			public long borrowAndReturn(int work) throws Exception {
+				Object connection = pool.borrowObject();
+				try {
+					return work(connection, work);
+				} finally {
+					pool.returnObject(connection);
+				}
+			}
+			
+			@Override
+			public void close() {
+				pool.close();
+			}
+			
+		};
+	}
+	
+	/**
+	 * Create an RNodeConnectionPool configured in the same way as the R node configures it.
+	 * @param maximumConnections the maximum number of connections.
+	 * @return the pool.
+	 */
+	private static Pool newConnectionPool(int maximumConnections) {
+		final RNodeConnectionPool<Object> pool = new RNodeConnectionPool<Object>(new RNodeConnectionPool.Factory<Object>() {
+			
+			@Override
+			public Object create() {
+				return new Object();
+			}
+			
+			@Override
+			public void destroy(Object connection) {
+			}
+			
+			@Override
+			public boolean validate(Object connection) {
+				return true;
+			}
+			
+		}, maximumConnections, 1, 10, 5);
+		return new Pool() {
+			
+			@Override
+			public long borrowAndReturn(int work) throws Exception {
+				RNodeConnectionPool.Entry<Object> entry = pool.borrow();
+				try {
+					return work(entry.getConnection(), work);
+				} finally {
+					pool.release(entry);
+				}
+			}
+			
+			@Override
+			public void close() {
+				pool.close();
+			}
+			
+		};
+	}
+	
+}
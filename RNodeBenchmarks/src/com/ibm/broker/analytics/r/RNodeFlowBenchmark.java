@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.ibm.broker.plugin.MbMessage;
+import com.ibm.broker.plugin.MbMessageAssembly;
+import com.ibm.broker.plugin.MbOutputTerminal;
+
+/**
+ * A load generator that drives RNode.evaluate() directly from many threads with synthetic messages, and
+ * reports the throughput and the end-to-end latency of each message, along with the latency of each phase
+ * of processing (borrowWait, toR, evaluate, fromR and propagate) published by the node's metrics. It runs
+ * in a plain JVM against the in-memory stand-ins for com.ibm.broker.plugin, so it can be used as a
+ * regression gate for new builds of the runtime.
+ *
+ * Each shape of message is run in turn with a new node. The first node for a shape warms up the JVM and is
+ * then deleted; the node that is measured opens all of its connections before the measurement starts. Each
+ * thread reuses a single input message, as the node copies the input message before it changes it. Unless
+ * a server is provided, an RNodeRserveStub is started in this JVM (optionally configured with a script). Most
+ * shapes make every value INOUT, so the stand-in echoes them back and they are converted in both directions;
+ * the inOnly and outOnly shapes cover nodes that only send values to R or only receive them.
+ *
+ * The shapes are:
+ *
+ * <pre>
+ * scalar  - 10 scalar values
+ * rows100 - a data frame of 100 rows and 10 columns
+ * rows10k - a data frame of 10000 rows and 10 columns
+ * wide    - a data frame of 10 rows and 250 columns
+ * inOnly  - 10 IN scalar values and an IN data frame of 100 rows and 10 columns
+ * outOnly - 10 OUT scalar values, which are NULL unless the evaluate script sets them
+ * </pre>
+ *
+ * Usage: RNodeFlowBenchmark [-shapes scalar,rows100,rows10k,wide,inOnly,outOnly] [-type double] [-threads threads]
+ *                           [-seconds seconds] [-warmup seconds] [-server host:port] [-stub stubScript]
+ *                           [-script evaluateScript] [-connections connections] [-batch batchSize]
+ *                           [-engine engine] [-trace none|sampled|all] [-minThroughput msgsPerSecond] [-maxP99 milliseconds]
+ *                           [-maxErrors errors]
+ *
+ * The engine option sets the engine property of each node, so that R engines can be compared on the same
+ * shapes of message. Conversion trace is off unless -trace is provided, as it dominates the cost of converting
+ * large data frames. The process exits with status 1 if any shape fails more messages than -maxErrors (0 by default), or
+ * does not meet -minThroughput or -maxP99 if they are provided. Only successful messages count towards the throughput and latency.
+ */
+public class RNodeFlowBenchmark {
+	
+	/**
+	 * The names of the shapes of message.
+	 */
+	private static final String[] SHAPES = { "scalar", "rows100", "rows10k", "wide", "inOnly", "outOnly" };
+	
+	/**
+	 * The number of scalar values, rows and columns in each shape of message.
+	 */
+	private static final int[][] SHAPE_SIZES = { { 10, 0, 0 }, { 0, 100, 10 }, { 0, 10000, 10 }, { 0, 10, 250 }, { 10, 100, 10 }, { 10, 0, 0 } };
+	
+	/**
+	 * The direction of the values in each shape of message.
+	 */
+	private static final RNodeDirection[] SHAPE_DIRECTIONS = { RNodeDirection.INOUT, RNodeDirection.INOUT, RNodeDirection.INOUT,
+		RNodeDirection.INOUT, RNodeDirection.IN, RNodeDirection.OUT };
+	
+	/**
+	 * The names of the phases published by the node's metrics.
+	 */
+	private static final String[] PHASES = { "BorrowWait", "ToR", "Evaluate", "FromR", "Propagate" };
+	
+	/**
+	 * The server the nodes connect to, in the format of the R node's server property.
+	 */
+	private String iServer = null;
+	
+	/**
+	 * The evaluate script run for each message.
+	 */
+	private String iEvaluateScript = null;
+	
+	/**
+	 * The type of the values in each message.
+	 */
+	private RNodeType iType = RNodeType.DOUBLE;
+	
+	/**
+	 * The number of threads calling the node.
+	 */
+	private int iThreads = 8;
+	
+	/**
+	 * The maximum number of connections each node opens.
+	 */
+	private int iConnections = 8;
+	
+	/**
+	 * The maximum batch size of each node, or 1 to disable batching.
+	 */
+	private int iBatchSize = 1;
+	
+	/**
+	 * The R engine used by each node.
+	 */
+	private String iEngine = RNodeEngine.RSERVE;
+	
+	/**
+	 * The level of user trace written while converting values.
+	 */
+	private String iTraceLevel = "none";
+	
+	/**
+	 * Run the load generator.
+	 * @param args the options.
+	 * @throws Exception if a problem occurs running the load generator.
+	 */
+	public static void main(String[] args) throws Exception {
+		RNodeFlowBenchmark benchmark = new RNodeFlowBenchmark();
+		String[] shapes = SHAPES;
+		int seconds = 10;
+		int warmUpSeconds = 5;
+		String stubScript = null;
+		double minimumThroughput = 0;
+		double maximumP99 = 0;
+		long maximumErrors = 0;
+		for (int i = 0; i < args.length; i += 2) {
+			String option = args[i];
+			String value = i + 1 < args.length ? args[i + 1] : "";
+			if (option.equals("-shapes")) {
+				shapes = value.split(",");
+			} else if (option.equals("-type")) {
+				benchmark.iType = RNodeType.fromString("R_" + value.toUpperCase());
+			} else if (option.equals("-threads")) {
+				benchmark.iThreads = Integer.parseInt(value);
+			} else if (option.equals("-seconds")) {
+				seconds = Integer.parseInt(value);
+			} else if (option.equals("-warmup")) {
+				warmUpSeconds = Integer.parseInt(value);
+			} else if (option.equals("-server")) {
+				benchmark.iServer = value;
+			} else if (option.equals("-stub")) {
+				stubScript = value;
+			} else if (option.equals("-script")) {
+				benchmark.iEvaluateScript = value;
+			} else if (option.equals("-connections")) {
+				benchmark.iConnections = Integer.parseInt(value);
+			} else if (option.equals("-batch")) {
+				benchmark.iBatchSize = Integer.parseInt(value);
+			} else if (option.equals("-engine")) {
+				benchmark.iEngine = value;
+			} else if (option.equals("-trace")) {
+				benchmark.iTraceLevel = RNodeTraceLevel.fromString(value).toString();
+			} else if (option.equals("-minThroughput")) {
+				minimumThroughput = Double.parseDouble(value);
+			} else if (option.equals("-maxP99")) {
+				maximumP99 = Double.parseDouble(value);
+			} else if (option.equals("-maxErrors")) {
+				maximumErrors = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+		
+		// Start the stand-in server if no server has been provided, and write an evaluate script that leaves the values unchanged if none has been provided.
+		// The script creates any scalar values that were not sent to it, so that the OUT values of the outOnly shape exist,
+		// and names them as batch wide, so that they are returned to every message in a batch.
+		RNodeRserveStub stub = null;
+		if (benchmark.iServer == null) {
+			stub = new RNodeRserveStub(0);
+			if (stubScript != null) {
+				stub.configure(Paths.get(stubScript));
+			}
+			benchmark.iServer = "127.0.0.1:" + stub.getPort();
+		}
+		Path temporaryScript = null;
+		if (benchmark.iEvaluateScript == null) {
+			temporaryScript = Files.createTempFile("RNodeFlowBenchmark", ".R");
+			int scalars = 0;
+			for (int[] sizes : SHAPE_SIZES) {
+				scalars = Math.max(scalars, sizes[0]);
+			}
+			String script = "for (.n in paste0(\"s\", seq_len(" + scalars + "))) if (!exists(.n)) assign(.n, vector(\"" + benchmark.getRType() + "\", 1))\n" +
+				RNodeBatcher.BATCH_WIDE_VARIABLE + " <- paste0(\"s\", seq_len(" + scalars + "))\n" +
+				"invisible(NULL)\n";
+			Files.write(temporaryScript, script.getBytes(StandardCharsets.UTF_8));
+			benchmark.iEvaluateScript = temporaryScript.toString();
+		}
+		
+		// Run each shape in turn, and check it against the thresholds.
+		System.out.println("server=" + benchmark.iServer + (stub != null ? " (stand-in)" : "") + " engine=" + benchmark.iEngine + " type=" + benchmark.iType + " threads=" + benchmark.iThreads +
+			" connections=" + benchmark.iConnections + " batch=" + benchmark.iBatchSize + " trace=" + benchmark.iTraceLevel + " seconds=" + seconds + " warmup=" + warmUpSeconds);
+		boolean passed = true;
+		try {
+			for (String shape : shapes) {
+				int index = -1;
+				for (int i = 0; i < SHAPES.length; i++) {
+					if (SHAPES[i].equals(shape)) {
+						index = i;
+					}
+				}
+				if (index < 0) {
+					throw new IllegalArgumentException("Unknown shape " + shape);
+				}
+				int[] sizes = SHAPE_SIZES[index];
+				RNodeDirection direction = SHAPE_DIRECTIONS[index];
+				
+				// The stand-in does not run the evaluate script, so it is given a value to return for each OUT value.
+				if (stub != null && direction == RNodeDirection.OUT) {
+					for (int i = 1; i <= sizes[0]; i++) {
+						stub.configure("result s" + i + " " + benchmark.getRType() + " 1");
+					}
+				}
+				if (warmUpSeconds > 0) {
+					benchmark.run(shape + "-warmup", sizes[0], sizes[1], sizes[2], direction, warmUpSeconds, false);
+				}
+				double[] result = benchmark.run(shape, sizes[0], sizes[1], sizes[2], direction, seconds, true);
+				if (stub != null && direction == RNodeDirection.OUT) {
+					for (int i = 1; i <= sizes[0]; i++) {
+						stub.setResult("s" + i, null);
+					}
+				}
+				if (result[2] > maximumErrors || (minimumThroughput > 0 && result[0] < minimumThroughput) || (maximumP99 > 0 && result[1] > maximumP99)) {
+					System.out.println("FAILED " + shape + ": " + String.format("%.1f", result[0]) + " msgs/sec, p99 " + String.format("%.3f", result[1]) + " ms, " +
+						(long) result[2] + " errors");
+					passed = false;
+				}
+			}
+		} finally {
+			if (stub != null) {
+				stub.close();
+			}
+			if (temporaryScript != null) {
+				Files.deleteIfExists(temporaryScript);
+			}
+		}
+		System.exit(passed ? 0 : 1);
+		
+	}
+	
+	/**
+	 * Get the name of the R type of the values in each message, as used by vector() in R.
+	 * @return the name of the R type: logical, integer, double or character.
+	 */
+	private String getRType() {
+		return iType.name().toLowerCase();
+	}
+	
+	/**
+	 * Run one shape of message through a new node for a period of time.
+	 * @param name the name of the run, which names the node.
+	 * @param scalars the number of scalar values in each message.
+	 * @param rows the number of rows in each message.
+	 * @param columns the number of columns in each row.
+	 * @param direction the direction of the values.
+	 * @param seconds the number of seconds to run for.
+	 * @param report whether to print the results.
+	 * @return the throughput (in successful messages per second), the 99th percentile end-to-end latency of the
+	 * successful messages (in milliseconds), and the number of messages that failed.
+	 * @throws Exception if a problem occurs creating or deleting the node.
+	 */
+	private double[] run(String name, int scalars, final int rows, int columns, RNodeDirection direction, int seconds, boolean report) throws Exception {
+		
+		// Create and initialize the node, which blocks the first message until every connection has been opened.
+		final RNode node = new RNode();
+		node.setName(name);
+		node.setServer(iServer);
+		node.setEngine(iEngine);
+		node.setEvaluateScript(iEvaluateScript);
+		node.setMaximumConnections(String.valueOf(iConnections));
+		node.setReadyConnections(String.valueOf(iConnections));
+		node.setMaximumBatchSize(String.valueOf(iBatchSize));
+		node.setConversionTraceLevel(iTraceLevel);
+		node.setUserDefinedAttribute("parameterTable", RNodeSyntheticMessages.createParameterTable(scalars, columns, iType, direction));
+		final AtomicLong outputs = new AtomicLong();
+		node.getOutputTerminal("out").setListener(new MbOutputTerminal.Listener() {
+			
+			@Override
+			public void propagated(MbOutputTerminal terminal, MbMessageAssembly assembly) {
+				outputs.incrementAndGet();
+			}
+			
+		});
+		node.onInitialize();
+		
+		// Call the node from each thread until the end of the run.
+		final RNodeHistogram latencies = new RNodeHistogram();
+		final AtomicLong errors = new AtomicLong();
+		final MbMessage[] messages = new MbMessage[iThreads];
+		for (int i = 0; i < iThreads; i++) {
+			messages[i] = RNodeSyntheticMessages.createMessage(scalars, rows, columns, iType);
+		}
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		Thread[] threads = new Thread[iThreads];
+		long startTime = System.nanoTime();
+		for (int i = 0; i < iThreads; i++) {
+			final MbMessage message = messages[i];
+			threads[i] = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					while (System.nanoTime() < deadline) {
+						long messageStart = System.nanoTime();
+						try {
+							node.evaluate(new MbMessageAssembly(message), node.getInputTerminal("in"));
+							latencies.record(System.nanoTime() - messageStart);
+						} catch (Exception e) {
+							if (errors.incrementAndGet() == 1) {
+								System.err.println("First failure in " + node.getName() + ": " + e);
+							}
+						}
+					}
+				}
+				
+			}, name + "-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - startTime;
+		double throughput = latencies.getCount() * 1e9 / elapsed;
+		
+		// Print the end-to-end latency and the latency of each phase, then delete the node.
+		if (report) {
+			System.out.println();
+			System.out.printf("%s: scalars=%d rows=%d columns=%d messages=%d outputs=%d errors=%d msgs/sec=%.1f%n",
+				name, scalars, rows, columns, latencies.getCount(), outputs.get(), errors.get(), throughput);
+			System.out.printf("%-12s %10s %10s %10s %10s %10s %10s%n", "phase", "count", "mean ms", "p50 ms", "p99 ms", "p999 ms", "max ms");
+			long[] quantiles = latencies.getQuantiles(0.5, 0.99, 0.999);
+			System.out.printf("%-12s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n", "total", latencies.getCount(), latencies.getMean() / 1e6,
+				quantiles[0] / 1e6, quantiles[1] / 1e6, quantiles[2] / 1e6, latencies.getMax() / 1e6);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Set<ObjectName> objectNames = server.queryNames(new ObjectName("com.ibm.broker.analytics.r:type=RNode,name=" + ObjectName.quote(name) + ",*"), null);
+			for (ObjectName objectName : objectNames) {
+				for (String phase : PHASES) {
+					System.out.printf("%-12s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n", Character.toLowerCase(phase.charAt(0)) + phase.substring(1),
+						((Number) server.getAttribute(objectName, phase + "Count")).longValue(),
+						((Number) server.getAttribute(objectName, phase + "Mean")).doubleValue(),
+						((Number) server.getAttribute(objectName, phase + "P50")).doubleValue(),
+						((Number) server.getAttribute(objectName, phase + "P99")).doubleValue(),
+						((Number) server.getAttribute(objectName, phase + "P999")).doubleValue(),
+						((Number) server.getAttribute(objectName, phase + "Max")).doubleValue());
+				}
+			}
+		}
+		node.onDelete();
+		return new double[] { throughput, latencies.getQuantiles(0.99)[0] / 1e6, errors.get() };
+		
+	}
+	
+}
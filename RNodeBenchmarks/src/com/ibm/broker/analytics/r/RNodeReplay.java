@@ -0,0 +1,388 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPRaw;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+
+/**
+ * A tool that replays the messages captured by the R node in a capture file (see RNodeCapture) against an
+ * Rserve server, and reports the throughput and latency. Each message is replayed in the same way that the
+ * R node processes it: the input values are assigned in one request, and the evaluate script is run and the
+ * output values collected in a second request. The evaluate script captured with each message is used,
+ * unless a replacement script is provided, so that changes to a script or model can be compared against
+ * real traffic.
+ *
+ * Each thread opens its own connection, loads the RData file and runs the connect script if they are provided,
+ * and then replays the captured messages in turn. The messages are replayed once to warm up before they are
+ * measured.
+ *
+ * Usage: RNodeReplay captureFile [-host host] [-port port] [-threads threads] [-iterations iterations]
+ *                    [-warmup iterations] [-script evaluateScript] [-rdata rdataFile] [-connect connectScript]
+ */
+public class RNodeReplay {
+	
+	/**
+	 * A version of an evaluate script read from a capture file.
+	 */
+	private static class Script {
+		
+		/**
+		 * The index of this script, which names the R variable that holds it once it has been parsed.
+		 */
+		private int iIndex;
+		
+		/**
+		 * The file name of this script.
+		 */
+		private String iFileName;
+		
+		/**
+		 * The contents of this script.
+		 */
+		private String iContent;
+		
+		/**
+		 * The R expression that collects the output values after this script has been run.
+		 */
+		private String iOutExpression;
+		
+	}
+	
+	/**
+	 * A message read from a capture file.
+	 */
+	private static class Message {
+		
+		/**
+		 * The evaluate script that processed this message.
+		 */
+		private Script iScript;
+		
+		/**
+		 * The time (in nanoseconds) the R node spent processing this message when it was captured.
+		 */
+		private long iDuration;
+		
+		/**
+		 * The named list of input values.
+		 */
+		private REXP iInputs;
+		
+	}
+	
+	/**
+	 * The Rserve server hostname.
+	 */
+	private String iHostName = "localhost";
+	
+	/**
+	 * The Rserve server port.
+	 */
+	private int iPort = 6311;
+	
+	/**
+	 * The contents of the RData file to load on each connection, or null.
+	 */
+	private byte[] iRData = null;
+	
+	/**
+	 * The contents of the connect script to run on each connection, or null.
+	 */
+	private String iConnectScript = null;
+	
+	/**
+	 * The captured messages.
+	 */
+	private List<Message> iMessages = new ArrayList<>();
+	
+	/**
+	 * Run the tool.
+	 * @param args the capture file, followed by any options.
+	 * @throws Exception if a problem occurs reading the capture file or replaying the messages.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: RNodeReplay captureFile [-host host] [-port port] [-threads threads] [-iterations iterations] " +
+				"[-warmup iterations] [-script evaluateScript] [-rdata rdataFile] [-connect connectScript]");
+			System.exit(1);
+		}
+		RNodeReplay replay = new RNodeReplay();
+		int threads = 1;
+		int iterations = 10;
+		int warmUpIterations = 1;
+		String script = null;
+		for (int i = 1; i < args.length; i += 2) {
+			String option = args[i];
+			String value = i + 1 < args.length ? args[i + 1] : "";
+			if (option.equals("-host")) {
+				replay.iHostName = value;
+			} else if (option.equals("-port")) {
+				replay.iPort = Integer.parseInt(value);
+			} else if (option.equals("-threads")) {
+				threads = Integer.parseInt(value);
+			} else if (option.equals("-iterations")) {
+				iterations = Integer.parseInt(value);
+			} else if (option.equals("-warmup")) {
+				warmUpIterations = Integer.parseInt(value);
+			} else if (option.equals("-script")) {
+				script = new String(Files.readAllBytes(Paths.get(value)), StandardCharsets.UTF_8);
+			} else if (option.equals("-rdata")) {
+				replay.iRData = Files.readAllBytes(Paths.get(value));
+			} else if (option.equals("-connect")) {
+				replay.iConnectScript = new String(Files.readAllBytes(Paths.get(value)), StandardCharsets.UTF_8);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+		
+		// Read the captured messages, and summarise how long the R node spent processing them.
+		List<Script> scripts = replay.read(Paths.get(args[0]));
+		if (replay.iMessages.isEmpty()) {
+			System.out.println("No messages captured in " + args[0]);
+			return;
+		}
+		if (script != null) {
+			for (Script captured : scripts) {
+				captured.iContent = script;
+			}
+		}
+		RNodeHistogram captured = new RNodeHistogram();
+		for (Message message : replay.iMessages) {
+			captured.record(message.iDuration);
+		}
+		System.out.println("messages=" + replay.iMessages.size() + " scripts=" + scripts.size() + " server=" + replay.iHostName + ":" + replay.iPort +
+			" threads=" + threads + " iterations=" + iterations);
+		printHeader();
+		print("captured", captured, 0, 0, 0);
+		
+		// Open a connection for each thread, and replay the messages to warm up before measuring them.
+		RConnection[] connections = new RConnection[threads];
+		for (int i = 0; i < threads; i++) {
+			connections[i] = replay.connect();
+		}
+		if (warmUpIterations > 0) {
+			replay.run(connections, warmUpIterations, new RNodeHistogram(), new AtomicLong());
+		}
+		RNodeHistogram replayed = new RNodeHistogram();
+		AtomicLong errors = new AtomicLong();
+		long startTime = System.nanoTime();
+		replay.run(connections, iterations, replayed, errors);
+		long elapsed = System.nanoTime() - startTime;
+		print("replayed", replayed, errors.get(), elapsed, replayed.getCount() * 1e9 / elapsed);
+		for (RConnection connection : connections) {
+			connection.close();
+		}
+		
+	}
+	
+	/**
+	 * Read the scripts and messages from a capture file.
+	 * @param file the capture file.
+	 * @return the scripts.
+	 * @throws Exception if a problem occurs reading the capture file.
+	 */
+	private List<Script> read(Path file) throws Exception {
+		Map<String, Script> scripts = new LinkedHashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != RNodeCapture.CAPTURE_MAGIC || in.readInt() != RNodeCapture.CAPTURE_VERSION) {
+				throw new IOException("Not a capture file: " + file);
+			}
+			while (true) {
+				int type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				if (type == RNodeCapture.SCRIPT_RECORD) {
+					String key = in.readUTF() + "/" + in.readLong();
+					Script script = new Script();
+					script.iIndex = scripts.containsKey(key) ? scripts.get(key).iIndex : scripts.size();
+					script.iFileName = in.readUTF();
+					script.iOutExpression = in.readUTF();
+					byte[] content = new byte[in.readInt()];
+					in.readFully(content);
+					script.iContent = new String(content, StandardCharsets.UTF_8);
+					scripts.put(key, script);
+				} else if (type == RNodeCapture.MESSAGE_RECORD) {
+					in.readLong();
+					Message message = new Message();
+					message.iDuration = in.readLong();
+					String key = in.readUTF() + "/" + in.readLong();
+					message.iScript = scripts.get(key);
+					byte[] encoded = new byte[in.readInt()];
+					in.readFully(encoded);
+					REXPFactory factory = new REXPFactory();
+					factory.parseREXP(encoded, 0);
+					message.iInputs = factory.getREXP();
+					if (message.iScript == null) {
+						throw new IOException("Message captured without script " + key);
+					}
+					iMessages.add(message);
+				} else {
+					throw new IOException("Unknown record type " + type + " in capture file: " + file);
+				}
+			}
+		}
+		return new ArrayList<>(scripts.values());
+	}
+	
+	/**
+	 * Open a connection to the Rserve server, and load the RData file and run the connect script if they have been provided.
+	 * @return the connection.
+	 * @throws Exception if a problem occurs opening or preparing the connection.
+	 */
+	private RConnection connect() throws Exception {
+		RConnection connection = new RConnection(iHostName, iPort);
+		if (iRData != null) {
+			connection.assign(".iib_r_data", new REXPRaw(iRData));
+			check(connection.parseAndEval("try(load(rawConnection(.iib_r_data)),silent=TRUE)"), "RData file");
+		}
+		if (iConnectScript != null) {
+			connection.assign(".iib_r_script", new REXPString(iConnectScript));
+			check(connection.parseAndEval("try(eval(parse(text=.iib_r_script),envir=.GlobalEnv),silent=TRUE)"), "connect script");
+		}
+		return connection;
+	}
+	
+	/**
+	 * Check the result of evaluating an R expression for an error.
+	 * @param result the result.
+	 * @param description what was being evaluated.
+	 * @throws Exception if the result is an error.
+	 */
+	private static void check(REXP result, String description) throws Exception {
+		if (result.inherits("try-error")) {
+			throw new Exception("Failed to evaluate " + description + ": " + result.asString());
+		}
+	}
+	
+	/**
+	 * Replay the captured messages the specified number of times, with a thread for each connection.
+	 * @param connections the connections to replay the messages on.
+	 * @param iterations the number of times to replay each message.
+	 * @param latencies the histogram to record the latency of each message in.
+	 * @param errors the count of messages that failed.
+	 * @throws Exception if a problem occurs running the threads.
+	 */
+	private void run(final RConnection[] connections, int iterations, final RNodeHistogram latencies, final AtomicLong errors) throws Exception {
+		final long total = (long) iterations * iMessages.size();
+		final AtomicLong next = new AtomicLong();
+		Thread[] workers = new Thread[connections.length];
+		for (int i = 0; i < connections.length; i++) {
+			final int worker = i;
+			workers[i] = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					Set<Integer> parsed = new HashSet<>();
+					for (long index = next.getAndIncrement(); index < total; index = next.getAndIncrement()) {
+						Message message = iMessages.get((int) (index % iMessages.size()));
+						long startTime = System.nanoTime();
+						try {
+							replay(connections[worker], message, parsed);
+							latencies.record(System.nanoTime() - startTime);
+						} catch (Exception e) {
+							
+							// Count the failure, and open a new connection if the connection has been lost.
+							errors.incrementAndGet();
+							if (e instanceof RserveException && ((RserveException) e).getRequestReturnCode() == -1) {
+								try {
+									connections[worker].close();
+									connections[worker] = connect();
+									parsed.clear();
+								} catch (Exception ce) {
+									System.err.println("Failed to reconnect: " + ce);
+									return;
+								}
+							}
+							
+						}
+					}
+				}
+				
+			});
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+	
+	/**
+	 * Replay a message on a connection, parsing and byte-compiling its evaluate script first if it has not been
+	 * parsed on the connection yet.
+	 * @param connection the connection.
+	 * @param message the message.
+	 * @param parsed the indexes of the scripts that have been parsed on the connection.
+	 * @throws Exception if a problem occurs replaying the message.
+	 */
+	private static void replay(RConnection connection, Message message, Set<Integer> parsed) throws Exception {
+		Script script = message.iScript;
+		String compiledScriptVariable = ".iib_r_compiled_script_" + script.iIndex;
+		if (!parsed.contains(script.iIndex)) {
+			connection.assign(".iib_r_script", new REXPString(script.iContent));
+			check(connection.parseAndEval("try({.iib_r_parsed_script <- parse(text=.iib_r_script);" +
+				compiledScriptVariable + " <- tryCatch(compiler::compile(as.call(c(as.name(\"{\"),as.list(.iib_r_parsed_script))),options=list(suppressAll=TRUE))," +
+				"error=function(e) .iib_r_parsed_script);NULL},silent=TRUE)"), script.iFileName);
+			parsed.add(script.iIndex);
+		}
+		connection.assign(".iib_r_in", message.iInputs);
+		check(connection.parseAndEval("try({list2env(.iib_r_in,envir=.GlobalEnv);eval(" + compiledScriptVariable + ",envir=.GlobalEnv);" +
+			script.iOutExpression + "},silent=TRUE)"), script.iFileName);
+	}
+	
+	/**
+	 * Print the header of the results table.
+	 */
+	private static void printHeader() {
+		System.out.printf("%-10s %10s %8s %10s %10s %10s %10s %10s %10s %10s %10s%n",
+			"", "messages", "errors", "msgs/sec", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p999 ms", "max ms", "seconds");
+	}
+	
+	/**
+	 * Print a row of the results table.
+	 * @param name the name of the row.
+	 * @param latencies the latencies of the messages.
+	 * @param errors the number of messages that failed.
+	 * @param elapsed the time (in nanoseconds) taken to replay the messages, or 0 if they were not replayed.
+	 * @param throughput the number of messages replayed per second, or 0 if they were not replayed.
+	 */
+	private static void print(String name, RNodeHistogram latencies, long errors, long elapsed, double throughput) {
+		long[] quantiles = latencies.getQuantiles(0.5, 0.9, 0.99, 0.999);
+		System.out.printf("%-10s %10d %8d %10.1f %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f %10.2f%n", name, latencies.getCount(), errors, throughput,
+			latencies.getMean() / 1e6, quantiles[0] / 1e6, quantiles[1] / 1e6, quantiles[2] / 1e6, quantiles[3] / 1e6, latencies.getMax() / 1e6, elapsed / 1e9);
+	}
+	
+}
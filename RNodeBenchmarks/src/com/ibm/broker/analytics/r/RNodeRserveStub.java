@@ -0,0 +1,1276 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPGenericVector;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPList;
+import org.rosuda.REngine.REXPLogical;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPNull;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.RList;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+
+/**
+ * A stand-in for an Rserve server, which speaks the subset of the QAP1 protocol used by the R node over
+ * a local socket, so that the R node can be benchmarked and load tested without an R installation. Each
+ * connection has its own session, in the same way that Rserve forks an R process for each connection.
+ *
+ * The stand-in does not evaluate R. It stores the values assigned to each session, and answers the
+ * expressions the R node sends: Sys.getpid() returns a unique session number, the name of an assigned
+ * variable returns its value, a call to the resident evaluate function installed by the R node returns
+ * the input values with the same names as the INOUT and OUT values the function collects (or a configured
+ * result, or NULL), and anything else returns NULL. As in R, a call fails with a try-error if no input
+ * values have been assigned, or if the function names the values it collects with an empty c(). If the
+ * resident evaluate function splits a batch, the values it returns are split by message in the same way
+ * as RNodeBatcher's split function.
+ *
+ * The time taken by each command, the cost of each call to the resident evaluate function, the values it
+ * returns and any faults can be configured with a script, one setting per line:
+ *
+ * <pre>
+ * # Comments and blank lines are ignored. Durations are a number followed by ns, us, ms or s.
+ * latency &lt;command&gt; &lt;duration&gt;            - delay every response to a command.
+ * cost &lt;duration&gt; [&lt;duration&gt;]              - the time taken by each call, plus the time taken for each input row.
+ * result &lt;name&gt; &lt;type&gt; &lt;length&gt;             - return a vector (logical, integer, double or character) for an output value.
+ * result &lt;name&gt; data.frame &lt;rows&gt; &lt;columns&gt; - return a data frame of doubles for an output value.
+ * fault &lt;type&gt; &lt;command&gt; at &lt;n&gt; [every &lt;m&gt;] [for &lt;duration&gt;]
+ * fault &lt;type&gt; &lt;command&gt; random &lt;probability&gt; [for &lt;duration&gt;]
+ * seed &lt;n&gt;                                  - the seed for random faults.
+ * </pre>
+ *
+ * The commands are connect, assign, eval, voidEval, call (a call to the resident evaluate function) and any.
+ * Commands are counted across all connections, starting from 1. The types of fault are slow (delay the
+ * response for the duration), hang (never respond, and discard requests until the client closes the
+ * connection), disconnect (close the connection without responding) and error (return an R error).
+ *
+ * Usage: RNodeRserveStub [port [scriptFile]]
+ */
+public class RNodeRserveStub {
+	
+	/**
+	 * The types of fault that can be injected.
+	 */
+	public enum FaultType {
+		
+		/**
+		 * Delay the response for the duration of the fault.
+		 */
+		SLOW,
+		
+		/**
+		 * Never respond, and discard requests until the client closes the connection.
+		 */
+		HANG,
+		
+		/**
+		 * Close the connection without responding.
+		 */
+		DISCONNECT,
+		
+		/**
+		 * Return an R error - a try-error value from a call to the resident evaluate function, and an error response otherwise.
+		 */
+		ERROR
+		
+	}
+	
+	/**
+	 * The name of the connect command, which covers sending the identification string when a connection is opened.
+	 */
+	public static final String CONNECT = "connect";
+	
+	/**
+	 * The name of the assign command.
+	 */
+	public static final String ASSIGN = "assign";
+	
+	/**
+	 * The name of the eval command, other than a call to the resident evaluate function.
+	 */
+	public static final String EVAL = "eval";
+	
+	/**
+	 * The name of the voidEval command.
+	 */
+	public static final String VOID_EVAL = "voidEval";
+	
+	/**
+	 * The name of an eval command that calls the resident evaluate function.
+	 */
+	public static final String CALL = "call";
+	
+	/**
+	 * The name that matches every command.
+	 */
+	public static final String ANY = "any";
+	
+	/**
+	 * The identification string sent by Rserve when a connection is opened: version 0103 of the QAP1 protocol, with no authentication.
+	 */
+	private static final byte[] ID_STRING = "Rsrv0103QAP1\r\n\r\n--------------\r\n".getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * The command that evaluates an expression without returning the result.
+	 */
+	private static final int CMD_VOID_EVAL = 0x002;
+	
+	/**
+	 * The command that evaluates an expression and returns the result.
+	 */
+	private static final int CMD_EVAL = 0x003;
+	
+	/**
+	 * The command that shuts the server down.
+	 */
+	private static final int CMD_SHUTDOWN = 0x004;
+	
+	/**
+	 * The command that assigns a value to a variable.
+	 */
+	private static final int CMD_SET_SEXP = 0x020;
+	
+	/**
+	 * The command that assigns a value to a variable, without checking the variable name.
+	 */
+	private static final int CMD_ASSIGN_SEXP = 0x021;
+	
+	/**
+	 * The response to a command that succeeded.
+	 */
+	private static final int RESP_OK = 0x10001;
+	
+	/**
+	 * The response to a command that failed, combined with the error code in the top byte.
+	 */
+	private static final int RESP_ERR = 0x10002;
+	
+	/**
+	 * The error code for an unsupported command.
+	 */
+	private static final int ERR_INV_CMD = 0x43;
+	
+	/**
+	 * The error code for a request with invalid parameters.
+	 */
+	private static final int ERR_INV_PAR = 0x44;
+	
+	/**
+	 * The error code for an expression that failed to parse or evaluate.
+	 */
+	private static final int ERR_EVAL = 0x7f;
+	
+	/**
+	 * The type of a parameter containing a string.
+	 */
+	private static final int DT_STRING = 4;
+	
+	/**
+	 * The type of a parameter containing an encoded R value.
+	 */
+	private static final int DT_SEXP = 10;
+	
+	/**
+	 * The flag set in the type of a parameter whose length does not fit in 24 bits.
+	 */
+	private static final int DT_LARGE = 0x40;
+	
+	/**
+	 * The pattern of the definition of the resident evaluate function installed by the R node.
+	 */
+	private static final Pattern FUNCTION_DEFINITION = Pattern.compile("^(\\.iib_r_evaluate_\\w+) <- .*?mget\\((?:c\\(([^)]*)\\)|character\\(0\\))", Pattern.DOTALL);
+	
+	/**
+	 * The pattern of a call to the resident evaluate function installed by the R node.
+	 */
+	private static final Pattern FUNCTION_CALL = Pattern.compile("^(\\.iib_r_evaluate_\\w+)\\((\\.iib_r_in)\\)$");
+	
+	/**
+	 * The pattern of a quoted name.
+	 */
+	private static final Pattern QUOTED_NAME = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+	
+	/**
+	 * The pattern of a variable name.
+	 */
+	private static final Pattern VARIABLE_NAME = Pattern.compile("^[.A-Za-z][.\\w]*$");
+	
+	/**
+	 * The pattern of a duration.
+	 */
+	private static final Pattern DURATION = Pattern.compile("^(\\d+(?:\\.\\d+)?)(ns|us|ms|s)$");
+	
+	/**
+	 * The socket that accepts connections.
+	 */
+	private ServerSocket iServerSocket;
+	
+	/**
+	 * The sockets of the open connections.
+	 */
+	private List<Socket> iSockets = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * The number of sessions opened, which provides the process ID of each session.
+	 */
+	private AtomicInteger iSessions = new AtomicInteger();
+	
+	/**
+	 * The delay (in nanoseconds) added to the response to each command, by command name.
+	 */
+	private Map<String, Long> iLatencies = new ConcurrentHashMap<>();
+	
+	/**
+	 * The time (in nanoseconds) taken by each call to the resident evaluate function.
+	 */
+	private volatile long iCallCost = 0;
+	
+	/**
+	 * The additional time (in nanoseconds) taken by each call to the resident evaluate function for each input row.
+	 */
+	private volatile long iRowCost = 0;
+	
+	/**
+	 * The values returned by the resident evaluate function instead of the input values, by output name.
+	 */
+	private Map<String, REXP> iResults = new ConcurrentHashMap<>();
+	
+	/**
+	 * The faults to inject.
+	 */
+	private List<Fault> iFaults = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * The number of commands received, by command name.
+	 */
+	private Map<String, AtomicLong> iCommandCounts = new ConcurrentHashMap<>();
+	
+	/**
+	 * The random number generator for random faults.
+	 */
+	private Random iRandom = new Random(0);
+	
+	/**
+	 * The state of a session - the values assigned to it and the functions installed in it.
+	 */
+	private static class Session {
+		
+		/**
+		 * The process ID reported by this session.
+		 */
+		private int iPid;
+		
+		/**
+		 * The values assigned to this session, by variable name.
+		 */
+		private Map<String, REXP> iVariables = new HashMap<>();
+		
+		/**
+		 * The names of the values collected by each resident evaluate function, by function name, or null if
+		 * the function names them with an empty c(), which is NULL in R and so fails when it is called.
+		 */
+		private Map<String, String[]> iFunctions = new HashMap<>();
+		
+		/**
+		 * The names of the resident evaluate functions that split the values they collect by message.
+		 */
+		private Map<String, Boolean> iBatchFunctions = new HashMap<>();
+		
+	}
+	
+	/**
+	 * A fault to inject into the responses to a command.
+	 */
+	private static class Fault {
+		
+		/**
+		 * The type of this fault.
+		 */
+		private FaultType iType;
+		
+		/**
+		 * The name of the command this fault applies to.
+		 */
+		private String iCommand;
+		
+		/**
+		 * The number of the first command that this fault applies to, or 0 if it applies at random.
+		 */
+		private long iFirst;
+		
+		/**
+		 * The number of commands between each command this fault applies to after the first, or 0 if it only applies once.
+		 */
+		private long iEvery;
+		
+		/**
+		 * The probability that this fault applies to each command, if it applies at random.
+		 */
+		private double iProbability;
+		
+		/**
+		 * The delay (in nanoseconds) of a slow response.
+		 */
+		private long iDelay;
+		
+	}
+	
+	/**
+	 * Run the stand-in server until the process is killed.
+	 * @param args the port to listen on (default 6311), and the script to configure the server with.
+	 * @throws Exception if a problem occurs opening the port or reading the script.
+	 */
+	public static void main(String[] args) throws Exception {
+		RNodeRserveStub stub = new RNodeRserveStub(args.length > 0 ? Integer.parseInt(args[0]) : 6311);
+		if (args.length > 1) {
+			stub.configure(Paths.get(args[1]));
+		}
+		System.out.println("Listening on port " + stub.getPort());
+		Thread.sleep(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Constructor - start listening for connections on the loopback interface.
+	 * @param port the port to listen on, or 0 to use any free port.
+	 * @throws IOException if the port cannot be opened.
+	 */
+	public RNodeRserveStub(int port) throws IOException {
+		iServerSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				accept();
+			}
+			
+		}, "RNodeRserveStub-" + iServerSocket.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	/**
+	 * Get the port this server is listening on.
+	 * @return the port.
+	 */
+	public int getPort() {
+		return iServerSocket.getLocalPort();
+	}
+	
+	/**
+	 * Set the delay added to the response to a command.
+	 * @param command the name of the command, or ANY.
+	 * @param latency the delay (in nanoseconds).
+	 */
+	public void setLatency(String command, long latency) {
+		iLatencies.put(checkCommand(command), latency);
+	}
+	
+	/**
+	 * Set the time taken by each call to the resident evaluate function.
+	 * @param callCost the time (in nanoseconds) taken by each call.
+	 * @param rowCost the additional time (in nanoseconds) taken for each input row - the length of the longest input vector, or the number of rows of the largest input data frame.
+	 */
+	public void setEvaluationCost(long callCost, long rowCost) {
+		iCallCost = callCost;
+		iRowCost = rowCost;
+	}
+	
+	/**
+	 * Set the value returned by the resident evaluate function for an output value, instead of the input value with the same name.
+	 * @param name the name of the output value.
+	 * @param value the value to return, or null to return the input value.
+	 */
+	public void setResult(String name, REXP value) {
+		if (value != null) {
+			iResults.put(name, value);
+		} else {
+			iResults.remove(name);
+		}
+	}
+	
+	/**
+	 * Inject a fault into the responses to a command, starting from a particular command.
+	 * @param type the type of fault.
+	 * @param command the name of the command, or ANY.
+	 * @param first the number of the first command the fault applies to, starting from 1.
+	 * @param every the number of commands between each command the fault applies to after the first, or 0 to apply it once.
+	 * @param delay the delay (in nanoseconds) of a slow response.
+	 */
+	public void addFault(FaultType type, String command, long first, long every, long delay) {
+		if (first < 1 || every < 0) {
+			throw new IllegalArgumentException("Invalid fault command numbers " + first + " and " + every);
+		}
+		Fault fault = new Fault();
+		fault.iType = type;
+		fault.iCommand = checkCommand(command);
+		fault.iFirst = first;
+		fault.iEvery = every;
+		fault.iDelay = delay;
+		iFaults.add(fault);
+	}
+	
+	/**
+	 * Inject a fault into the responses to a command at random.
+	 * @param type the type of fault.
+	 * @param command the name of the command, or ANY.
+	 * @param probability the probability that the fault applies to each command.
+	 * @param delay the delay (in nanoseconds) of a slow response.
+	 */
+	public void addRandomFault(FaultType type, String command, double probability, long delay) {
+		if (probability < 0 || probability > 1) {
+			throw new IllegalArgumentException("Invalid fault probability " + probability);
+		}
+		Fault fault = new Fault();
+		fault.iType = type;
+		fault.iCommand = checkCommand(command);
+		fault.iProbability = probability;
+		fault.iDelay = delay;
+		iFaults.add(fault);
+	}
+	
+	/**
+	 * Set the seed for random faults, so that they are injected into the same commands on every run.
+	 * @param seed the seed.
+	 */
+	public void setSeed(long seed) {
+		synchronized (iRandom) {
+			iRandom.setSeed(seed);
+		}
+	}
+	
+	/**
+	 * Remove all of the latencies, evaluation costs, results and faults, and reset the command counts.
+	 */
+	public void reset() {
+		iLatencies.clear();
+		iCallCost = 0;
+		iRowCost = 0;
+		iResults.clear();
+		iFaults.clear();
+		iCommandCounts.clear();
+	}
+	
+	/**
+	 * Get the number of commands received.
+	 * @param command the name of the command, or ANY.
+	 * @return the number of commands received.
+	 */
+	public long getCommandCount(String command) {
+		AtomicLong count = iCommandCounts.get(checkCommand(command));
+		return count != null ? count.get() : 0;
+	}
+	
+	/**
+	 * Configure this server with a script file.
+	 * @param file the script file.
+	 * @throws IOException if a problem occurs reading the script file.
+	 */
+	public void configure(Path file) throws IOException {
+		configure(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Configure this server with a script, in the format described above.
+	 * @param script the script.
+	 */
+	public void configure(String script) {
+		int lineNumber = 0;
+		for (String line : script.split("\r?\n")) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] words = line.split("\\s+");
+			try {
+				switch (words[0]) {
+				case "latency":
+					checkWords(words, 3, 3);
+					setLatency(words[1], parseDuration(words[2]));
+					break;
+				case "cost":
+					checkWords(words, 2, 3);
+					setEvaluationCost(parseDuration(words[1]), words.length > 2 ? parseDuration(words[2]) : 0);
+					break;
+				case "result":
+					checkWords(words, 4, 5);
+					setResult(words[1], createResult(words));
+					break;
+				case "fault":
+					addFault(words);
+					break;
+				case "seed":
+					checkWords(words, 2, 2);
+					setSeed(Long.parseLong(words[1]));
+					break;
+				default:
+					throw new IllegalArgumentException("unknown setting " + words[0]);
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid line " + lineNumber + " of script: " + line + " (" + e.getMessage() + ")", e);
+			}
+		}
+	}
+	
+	/**
+	 * Stop listening for connections, and close all of the open connections.
+	 */
+	public void close() {
+		try {
+			iServerSocket.close();
+		} catch (IOException e) {
+			// Ignore - the server is closed.
+		}
+		for (Socket socket : iSockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignore - the connection is closed.
+			}
+		}
+	}
+	
+	/**
+	 * Check that the number of words in a line of a script is within the expected range.
+	 * @param words the words of the line.
+	 * @param minimum the minimum number of words.
+	 * @param maximum the maximum number of words.
+	 */
+	private static void checkWords(String[] words, int minimum, int maximum) {
+		if (words.length < minimum || words.length > maximum) {
+			throw new IllegalArgumentException("expected between " + minimum + " and " + maximum + " words");
+		}
+	}
+	
+	/**
+	 * Check that a command name is valid.
+	 * @param command the command name.
+	 * @return the command name.
+	 */
+	private static String checkCommand(String command) {
+		switch (command) {
+		case CONNECT:
+		case ASSIGN:
+		case EVAL:
+		case VOID_EVAL:
+		case CALL:
+		case ANY:
+			return command;
+		default:
+			throw new IllegalArgumentException("unknown command " + command);
+		}
+	}
+	
+	/**
+	 * Parse a duration, such as 250us or 1.5ms.
+	 * @param duration the duration.
+	 * @return the duration (in nanoseconds).
+	 */
+	private static long parseDuration(String duration) {
+		Matcher matcher = DURATION.matcher(duration);
+		if (!matcher.matches()) {
+			throw new IllegalArgumentException("invalid duration " + duration);
+		}
+		double value = Double.parseDouble(matcher.group(1));
+		switch (matcher.group(2)) {
+		case "us":
+			return (long) (value * TimeUnit.MICROSECONDS.toNanos(1));
+		case "ms":
+			return (long) (value * TimeUnit.MILLISECONDS.toNanos(1));
+		case "s":
+			return (long) (value * TimeUnit.SECONDS.toNanos(1));
+		default:
+			return (long) value;
+		}
+	}
+	
+	/**
+	 * Create the value for a result line of a script.
+	 * @param words the words of the line: result, the name, then the type and length, or data.frame with the rows and columns.
+	 * @return the value.
+	 */
+	private static REXP createResult(String[] words) {
+		if (words[2].equals("data.frame")) {
+			checkWords(words, 5, 5);
+			int rows = Integer.parseInt(words[3]);
+			int columns = Integer.parseInt(words[4]);
+			REXP[] values = new REXP[columns];
+			String[] names = new String[columns];
+			for (int i = 0; i < columns; i++) {
+				values[i] = createVector("double", rows);
+				names[i] = "C" + (i + 1);
+			}
+			try {
+				return REXP.createDataFrame(new RList(values, names));
+			} catch (REXPMismatchException e) {
+				throw new IllegalArgumentException("invalid data frame", e);
+			}
+		}
+		checkWords(words, 4, 4);
+		return createVector(words[2], Integer.parseInt(words[3]));
+	}
+	
+	/**
+	 * Create a vector of a particular type and length.
+	 * @param type the type of the vector: logical, integer, double or character.
+	 * @param length the length of the vector.
+	 * @return the vector.
+	 */
+	private static REXP createVector(String type, int length) {
+		switch (type) {
+		case "logical":
+			boolean[] logicals = new boolean[length];
+			for (int i = 0; i < length; i++) {
+				logicals[i] = i % 2 == 0;
+			}
+			return new REXPLogical(logicals);
+		case "integer":
+			int[] integers = new int[length];
+			for (int i = 0; i < length; i++) {
+				integers[i] = i;
+			}
+			return new REXPInteger(integers);
+		case "double":
+			double[] doubles = new double[length];
+			for (int i = 0; i < length; i++) {
+				doubles[i] = i * 0.5;
+			}
+			return new REXPDouble(doubles);
+		case "character":
+			String[] strings = new String[length];
+			for (int i = 0; i < length; i++) {
+				strings[i] = "value-" + i;
+			}
+			return new REXPString(strings);
+		default:
+			throw new IllegalArgumentException("unknown type " + type);
+		}
+	}
+	
+	/**
+	 * Add the fault for a fault line of a script.
+	 * @param words the words of the line.
+	 */
+	private void addFault(String[] words) {
+		checkWords(words, 5, 9);
+		FaultType type;
+		try {
+			type = FaultType.valueOf(words[1].toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("unknown fault type " + words[1]);
+		}
+		long delay = 0;
+		int end = words.length;
+		if (end >= 7 && words[end - 2].equals("for")) {
+			delay = parseDuration(words[end - 1]);
+			end -= 2;
+		}
+		if (words[3].equals("random") && end == 5) {
+			addRandomFault(type, words[2], Double.parseDouble(words[4]), delay);
+		} else if (words[3].equals("at") && end == 5) {
+			addFault(type, words[2], Long.parseLong(words[4]), 0, delay);
+		} else if (words[3].equals("at") && end == 7 && words[5].equals("every")) {
+			addFault(type, words[2], Long.parseLong(words[4]), Long.parseLong(words[6]), delay);
+		} else {
+			throw new IllegalArgumentException("expected at <n> [every <m>] or random <probability>");
+		}
+	}
+	
+	/**
+	 * Accept connections until the server is closed, serving each on its own thread.
+	 */
+	private void accept() {
+		while (!iServerSocket.isClosed()) {
+			try {
+				final Socket socket = iServerSocket.accept();
+				socket.setTcpNoDelay(true);
+				iSockets.add(socket);
+				Thread thread = new Thread(new Runnable() {
+					
+					@Override
+					public void run() {
+						try {
+							serve(socket);
+						} catch (IOException e) {
+							// Ignore - the connection has been closed.
+						} finally {
+							iSockets.remove(socket);
+							try {
+								socket.close();
+							} catch (IOException e) {
+								// Ignore - the connection is closed.
+							}
+						}
+					}
+					
+				}, "RNodeRserveStub-session");
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				// Ignore - the server has been closed.
+			}
+		}
+	}
+	
+	/**
+	 * Serve the requests on a connection until it is closed.
+	 * @param socket the socket of the connection.
+	 * @throws IOException if a problem occurs reading or writing the socket.
+	 */
+	private void serve(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		OutputStream out = socket.getOutputStream();
+		Session session = new Session();
+		session.iPid = 10000 + iSessions.incrementAndGet();
+		if (!delay(CONNECT, findFault(CONNECT), in)) {
+			return;
+		}
+		out.write(ID_STRING);
+		out.flush();
+		byte[] header = new byte[16];
+		while (true) {
+			try {
+				in.readFully(header);
+			} catch (IOException e) {
+				return;
+			}
+			int command = getInt(header, 0);
+			byte[] payload = new byte[getInt(header, 4)];
+			in.readFully(payload);
+			if (command == CMD_SHUTDOWN) {
+				respond(out, RESP_OK, null);
+				return;
+			}
+			if (!handle(session, command, payload, in, out)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Handle a request, and send the response.
+	 * @param session the session of the connection.
+	 * @param command the command of the request.
+	 * @param payload the parameters of the request.
+	 * @param in the stream requests are read from.
+	 * @param out the stream to send the response to.
+	 * @return false if the connection must be closed.
+	 * @throws IOException if a problem occurs sending the response.
+	 */
+	private boolean handle(Session session, int command, byte[] payload, InputStream in, OutputStream out) throws IOException {
+		List<Object> parameters;
+		try {
+			parameters = decodeParameters(payload);
+		} catch (REXPMismatchException | RuntimeException e) {
+			respond(out, RESP_ERR | (ERR_INV_PAR << 24), null);
+			return true;
+		}
+		
+		// Work out which command this is, so that the latency and any fault for it can be applied.
+		String name;
+		String expression = null;
+		if (command == CMD_VOID_EVAL || command == CMD_EVAL) {
+			expression = parameters.isEmpty() || !(parameters.get(0) instanceof String) ? "" : ((String) parameters.get(0)).trim();
+			name = command == CMD_VOID_EVAL ? VOID_EVAL : FUNCTION_CALL.matcher(expression).matches() ? CALL : EVAL;
+		} else if (command == CMD_SET_SEXP || command == CMD_ASSIGN_SEXP) {
+			name = ASSIGN;
+		} else {
+			respond(out, RESP_ERR | (ERR_INV_CMD << 24), null);
+			return true;
+		}
+		Fault fault = findFault(name);
+		
+		// Process the command, unless the fault replaces its response.
+		int response = RESP_OK;
+		byte[] parameter = null;
+		try {
+			if (fault != null && fault.iType == FaultType.ERROR) {
+				if (name.equals(CALL)) {
+					parameter = encode(createTryError("Error : injected fault\n"));
+				} else {
+					response = RESP_ERR | (ERR_EVAL << 24);
+				}
+			} else if (name.equals(ASSIGN)) {
+				Object value = parameters.get(1);
+				session.iVariables.put((String) parameters.get(0), value instanceof REXP ? (REXP) value : new REXPString((String) value));
+			} else {
+				REXP result = evaluate(session, expression);
+				if (command == CMD_EVAL) {
+					parameter = encode(result);
+				}
+			}
+		} catch (REXPMismatchException | RuntimeException e) {
+			response = RESP_ERR | (ERR_INV_PAR << 24);
+			parameter = null;
+		}
+		if (!delay(name, fault, in)) {
+			return false;
+		}
+		respond(out, response, parameter);
+		return true;
+	}
+	
+	/**
+	 * Count a command, and find the first fault that applies to it.
+	 * @param command the name of the command.
+	 * @return the fault, or null if no fault applies.
+	 */
+	private Fault findFault(String command) {
+		long count = incrementCount(command);
+		long anyCount = incrementCount(ANY);
+		for (Fault fault : iFaults) {
+			if (!fault.iCommand.equals(command) && !fault.iCommand.equals(ANY)) {
+				continue;
+			}
+			long number = fault.iCommand.equals(ANY) ? anyCount : count;
+			boolean applies;
+			if (fault.iFirst == 0) {
+				synchronized (iRandom) {
+					applies = iRandom.nextDouble() < fault.iProbability;
+				}
+			} else if (fault.iEvery == 0) {
+				applies = number == fault.iFirst;
+			} else {
+				applies = number >= fault.iFirst && (number - fault.iFirst) % fault.iEvery == 0;
+			}
+			if (applies) {
+				return fault;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Increment the number of commands received.
+	 * @param command the name of the command.
+	 * @return the new number of commands received.
+	 */
+	private long incrementCount(String command) {
+		AtomicLong count = iCommandCounts.get(command);
+		if (count == null) {
+			iCommandCounts.putIfAbsent(command, new AtomicLong());
+			count = iCommandCounts.get(command);
+		}
+		return count.incrementAndGet();
+	}
+	
+	/**
+	 * Wait for the latency of a command and any slow fault, or apply a hang or disconnect fault.
+	 * @param command the name of the command.
+	 * @param fault the fault that applies to the command, or null.
+	 * @param in the stream requests are read from, which is drained until the client closes the connection if the fault is a hang.
+	 * @return false if the connection must be closed without responding.
+	 */
+	private boolean delay(String command, Fault fault, InputStream in) {
+		Long latency = iLatencies.get(command);
+		long nanos = latency != null ? latency : 0;
+		if (latency == null && iLatencies.containsKey(ANY)) {
+			nanos = iLatencies.get(ANY);
+		}
+		if (fault != null && fault.iType == FaultType.SLOW) {
+			nanos += fault.iDelay;
+		}
+		sleep(nanos);
+		if (fault != null && fault.iType == FaultType.HANG) {
+			try {
+				while (in.read() != -1) {
+					// Discard any requests until the client gives up and closes the connection.
+				}
+			} catch (IOException e) {
+				// Ignore - the connection has been closed.
+			}
+			return false;
+		}
+		return fault == null || fault.iType != FaultType.DISCONNECT;
+	}
+	
+	/**
+	 * Sleep for a period of time, which may be shorter than a millisecond.
+	 * @param nanos the period of time (in nanoseconds).
+	 */
+	private static void sleep(long nanos) {
+		long deadline = System.nanoTime() + nanos;
+		while (nanos > 0) {
+			LockSupport.parkNanos(nanos);
+			nanos = deadline - System.nanoTime();
+		}
+	}
+	
+	/**
+	 * Evaluate an expression sent by the R node.
+	 * @param session the session of the connection.
+	 * @param expression the expression.
+	 * @return the result of the expression.
+	 * @throws REXPMismatchException if the input values of a call to the resident evaluate function are not a list.
+	 */
+	private REXP evaluate(Session session, String expression) throws REXPMismatchException {
+		
+		// Report the process ID of the session.
+		if (expression.equals("Sys.getpid()")) {
+			return new REXPInteger(session.iPid);
+		}
+		
+		// Return the value of an assigned variable.
+		if (VARIABLE_NAME.matcher(expression).matches()) {
+			REXP value = session.iVariables.get(expression);
+			return value != null ? value : new REXPNull();
+		}
+		
+		// Record the names of the values collected by a resident evaluate function when it is installed.
+		Matcher matcher = FUNCTION_DEFINITION.matcher(expression);
+		if (matcher.find()) {
+			List<String> names = new ArrayList<>();
+			Matcher name = QUOTED_NAME.matcher(matcher.group(2) != null ? matcher.group(2) : "");
+			while (name.find()) {
+				names.add(name.group(1).replace("\\\"", "\"").replace("\\\\", "\\"));
+			}
+			session.iFunctions.put(matcher.group(1), matcher.group(2) != null && names.isEmpty() ? null : names.toArray(new String[0]));
+			session.iBatchFunctions.put(matcher.group(1), expression.contains(RNodeBatcher.MESSAGES_VARIABLE));
+			return new REXPNull();
+		}
+		
+		// Return the input values (or configured results) with the names of the values collected by a call to a
+		// resident evaluate function, after taking the configured time to evaluate them.
+		matcher = FUNCTION_CALL.matcher(expression);
+		if (matcher.matches() && session.iFunctions.containsKey(matcher.group(1))) {
+			String[] names = session.iFunctions.get(matcher.group(1));
+			
+			// As in R, the call fails if its input values have never been assigned, or it collects a NULL list of names.
+			REXP inputs = session.iVariables.get(matcher.group(2));
+			if (inputs == null) {
+				return createTryError("Error : object '" + matcher.group(2) + "' not found\n");
+			} else if (names == null) {
+				return createTryError("Error in mget(NULL, envir = .GlobalEnv, ifnotfound = list(NULL)) : invalid first argument\n");
+			}
+			RList inputList = inputs.asList();
+			sleep(iCallCost + iRowCost * countRows(inputList));
+			REXP[] values = new REXP[names.length];
+			for (int i = 0; i < names.length; i++) {
+				REXP value = iResults.containsKey(names[i]) ? iResults.get(names[i]) : inputList.at(names[i]);
+				values[i] = value != null ? value : new REXPNull();
+			}
+			if (session.iBatchFunctions.get(matcher.group(1))) {
+				return split(names, values, inputList, iResults.keySet());
+			}
+			return createList(names, values);
+		}
+		return new REXPNull();
+	}
+	
+	/**
+	 * Create the try-error value that R returns from try() when an expression fails.
+	 * @param message the error message.
+	 * @return the try-error value.
+	 */
+	private static REXP createTryError(String message) {
+		return new REXPString(new String[] { message }, new REXPList(new RList(new REXP[] { new REXPString("try-error") }, new String[] { "class" })));
+	}
+	
+	/**
+	 * Count the input rows of a call to the resident evaluate function.
+	 * @param inputs the input values.
+	 * @return the length of the longest input vector, or the number of rows in the largest input data frame.
+	 * @throws REXPMismatchException if an input value has no length.
+	 */
+	private static int countRows(RList inputs) throws REXPMismatchException {
+		int rows = 0;
+		for (int i = 0; i < inputs.size(); i++) {
+			REXP value = inputs.at(i);
+			int length = value.isList() && value.inherits("data.frame") ? value.asList().at(0).length() : value.isList() ? 0 : value.length();
+			rows = Math.max(rows, length);
+		}
+		return rows;
+	}
+	
+	/**
+	 * Split the values collected by a resident evaluate function for a batch into a named list for each message,
+	 * in the same way as the split function in RNodeBatcher. As the stand-in does not run the evaluate script,
+	 * which would name the values that apply to the whole batch, configured results are treated as batch wide
+	 * unless they can be split.
+	 * @param names the names of the values.
+	 * @param values the values.
+	 * @param inputs the input values, which include the message index variables.
+	 * @param configured the names of the values that have configured results.
+	 * @return a list containing a named list of values for each message, or a try-error if a value cannot be split.
+	 * @throws REXPMismatchException if a value cannot be split.
+	 */
+	private static REXP split(String[] names, REXP[] values, RList inputs, Set<String> configured) throws REXPMismatchException {
+		int messages = inputs.at(RNodeBatcher.MESSAGES_VARIABLE).asInteger();
+		REXP indexes = inputs.at(RNodeBatcher.INDEX_VARIABLE);
+		RList indexList = indexes != null && indexes.isList() ? indexes.asList() : new RList();
+		REXP batchWide = inputs.at(RNodeBatcher.BATCH_WIDE_VARIABLE);
+		List<String> batchWideNames = batchWide != null && batchWide.isString() ? Arrays.asList(batchWide.asStrings()) : new ArrayList<String>();
+		
+		// Find the message numbers of each value, or null if it is returned whole, failing if there are none.
+		int[][] valueIndexes = new int[names.length][];
+		for (int i = 0; i < names.length; i++) {
+			REXP value = values[i];
+			REXP index = indexList.at(names[i]);
+			if (value.isNull()) {
+				continue;
+			} else if (value.isList() && value.inherits("data.frame") && value.asList().at(RNodeBatcher.MESSAGE_COLUMN) != null) {
+				valueIndexes[i] = value.asList().at(RNodeBatcher.MESSAGE_COLUMN).asIntegers();
+			} else if (!value.inherits("data.frame") && index != null && !index.isNull() && value.length() == index.length()) {
+				valueIndexes[i] = index.asIntegers();
+			} else if (!batchWideNames.contains(names[i]) && !configured.contains(names[i])) {
+				return createTryError("Error : cannot split output value " + names[i] + " by message - it has no " + RNodeBatcher.MESSAGE_COLUMN +
+					" column or matching " + RNodeBatcher.INDEX_VARIABLE + " entry, and is not named in " + RNodeBatcher.BATCH_WIDE_VARIABLE + "\n");
+			}
+		}
+		
+		REXP[] results = new REXP[messages];
+		for (int m = 1; m <= messages; m++) {
+			REXP[] messageValues = new REXP[names.length];
+			for (int i = 0; i < names.length; i++) {
+				REXP value = values[i];
+				if (valueIndexes[i] == null) {
+					messageValues[i] = value;
+				} else if (value.isList() && value.inherits("data.frame")) {
+					messageValues[i] = selectRows(value.asList(), matches(valueIndexes[i], m));
+				} else {
+					messageValues[i] = select(value, matches(valueIndexes[i], m));
+				}
+			}
+			results[m - 1] = createList(names, messageValues);
+		}
+		return new REXPGenericVector(new RList(results));
+	}
+	
+	/**
+	 * Find the elements of a message index that belong to a message.
+	 * @param index the message number of each element.
+	 * @param message the message number.
+	 * @return whether each element belongs to the message.
+	 */
+	private static boolean[] matches(int[] index, int message) {
+		boolean[] select = new boolean[index.length];
+		for (int i = 0; i < index.length; i++) {
+			select[i] = index[i] == message;
+		}
+		return select;
+	}
+	
+	/**
+	 * Select rows of a data frame, dropping the message column.
+	 * @param columns the columns of the data frame.
+	 * @param select whether to select each row.
+	 * @return the data frame with the selected rows.
+	 * @throws REXPMismatchException if a column is not a logical, integer, double or character vector.
+	 */
+	private static REXP selectRows(RList columns, boolean[] select) throws REXPMismatchException {
+		List<REXP> values = new ArrayList<>();
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < columns.size(); i++) {
+			if (!RNodeBatcher.MESSAGE_COLUMN.equals(columns.keyAt(i))) {
+				values.add(select(columns.at(i), select));
+				names.add(columns.keyAt(i));
+			}
+		}
+		return REXP.createDataFrame(new RList(values, names));
+	}
+	
+	/**
+	 * Select elements of a vector.
+	 * @param vector the vector.
+	 * @param select whether to select each element.
+	 * @return the vector of selected elements.
+	 * @throws REXPMismatchException if the vector is not a logical, integer, double or character vector.
+	 */
+	private static REXP select(REXP vector, boolean[] select) throws REXPMismatchException {
+		int length = 0;
+		for (boolean selected : select) {
+			length += selected ? 1 : 0;
+		}
+		int offset = 0;
+		if (vector instanceof REXPLogical) {
+			byte[] values = vector.asBytes();
+			byte[] selectedValues = new byte[length];
+			for (int i = 0; i < select.length; i++) {
+				if (select[i]) {
+					selectedValues[offset++] = values[i];
+				}
+			}
+			return new REXPLogical(selectedValues);
+		} else if (vector instanceof REXPInteger) {
+			int[] values = vector.asIntegers();
+			int[] selectedValues = new int[length];
+			for (int i = 0; i < select.length; i++) {
+				if (select[i]) {
+					selectedValues[offset++] = values[i];
+				}
+			}
+			return new REXPInteger(selectedValues);
+		} else if (vector instanceof REXPDouble) {
+			double[] values = vector.asDoubles();
+			double[] selectedValues = new double[length];
+			for (int i = 0; i < select.length; i++) {
+				if (select[i]) {
+					selectedValues[offset++] = values[i];
+				}
+			}
+			return new REXPDouble(selectedValues);
+		} else if (vector instanceof REXPString) {
+			String[] values = vector.asStrings();
+			String[] selectedValues = new String[length];
+			for (int i = 0; i < select.length; i++) {
+				if (select[i]) {
+					selectedValues[offset++] = values[i];
+				}
+			}
+			return new REXPString(selectedValues);
+		}
+		throw new REXPMismatchException(vector, "vector");
+	}
+	
+	/**
+	 * Create a named R list.
+	 * @param names the names of the list elements.
+	 * @param values the values of the list elements.
+	 * @return the named R list.
+	 */
+	private static REXP createList(String[] names, REXP[] values) {
+		REXPList attributes = new REXPList(new RList(new REXP[] { new REXPString(names) }, new String[] { "names" }));
+		return new REXPGenericVector(new RList(values, names), attributes);
+	}
+	
+	/**
+	 * Decode the parameters of a request.
+	 * @param payload the parameters of the request.
+	 * @return the parameters - a String for each string parameter, and an REXP for each encoded R value.
+	 * @throws REXPMismatchException if an encoded R value cannot be decoded.
+	 */
+	private static List<Object> decodeParameters(byte[] payload) throws REXPMismatchException {
+		List<Object> parameters = new ArrayList<>();
+		int offset = 0;
+		while (offset + 4 <= payload.length) {
+			int header = getInt(payload, offset);
+			int type = header & 0xff;
+			int length = header >>> 8;
+			offset += 4;
+			if ((type & DT_LARGE) != 0) {
+				type &= ~DT_LARGE;
+				length |= getInt(payload, offset) << 24;
+				offset += 4;
+			}
+			if (type == DT_STRING) {
+				int end = offset;
+				while (end < offset + length && payload[end] != 0) {
+					end++;
+				}
+				parameters.add(new String(payload, offset, end - offset, StandardCharsets.UTF_8));
+			} else if (type == DT_SEXP) {
+				REXPFactory factory = new REXPFactory();
+				factory.parseREXP(payload, offset);
+				parameters.add(factory.getREXP());
+			} else {
+				parameters.add(null);
+			}
+			offset += length;
+		}
+		return parameters;
+	}
+	
+	/**
+	 * Encode an R value as the parameter of a response.
+	 * @param value the R value.
+	 * @return the parameter.
+	 * @throws REXPMismatchException if the R value cannot be encoded.
+	 */
+	private static byte[] encode(REXP value) throws REXPMismatchException {
+		REXPFactory factory = new REXPFactory(value);
+		int length = factory.getBinaryLength();
+		boolean large = length > 0xfffff0;
+		int headerLength = large ? 8 : 4;
+		byte[] parameter = new byte[headerLength + length];
+		setInt((DT_SEXP | (large ? DT_LARGE : 0)) | (length << 8), parameter, 0);
+		if (large) {
+			setInt(length >>> 24, parameter, 4);
+		}
+		factory.getBinaryRepresentation(parameter, headerLength);
+		return parameter;
+	}
+	
+	/**
+	 * Send a response. The header and any parameter are sent in a single write.
+	 * @param out the stream to send the response to.
+	 * @param response the response code.
+	 * @param parameter the parameter of the response, or null.
+	 * @throws IOException if a problem occurs sending the response.
+	 */
+	private static void respond(OutputStream out, int response, byte[] parameter) throws IOException {
+		int length = parameter != null ? parameter.length : 0;
+		byte[] message = new byte[16 + length];
+		setInt(response, message, 0);
+		setInt(length, message, 4);
+		if (parameter != null) {
+			System.arraycopy(parameter, 0, message, 16, length);
+		}
+		out.write(message);
+		out.flush();
+	}
+	
+	/**
+	 * Read a little-endian integer.
+	 * @param buffer the buffer.
+	 * @param offset the offset of the integer.
+	 * @return the integer.
+	 */
+	private static int getInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8) | ((buffer[offset + 2] & 0xff) << 16) | ((buffer[offset + 3] & 0xff) << 24);
+	}
+	
+	/**
+	 * Write a little-endian integer.
+	 * @param value the integer.
+	 * @param buffer the buffer.
+	 * @param offset the offset of the integer.
+	 */
+	private static void setInt(int value, byte[] buffer, int offset) {
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >>> 8);
+		buffer[offset + 2] = (byte) (value >>> 16);
+		buffer[offset + 3] = (byte) (value >>> 24);
+	}
+	
+}
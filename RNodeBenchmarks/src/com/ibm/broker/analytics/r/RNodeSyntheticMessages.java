@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import com.ibm.broker.plugin.MbElement;
+import com.ibm.broker.plugin.MbException;
+import com.ibm.broker.plugin.MbMessage;
+import com.ibm.broker.plugin.MbTable;
+import com.ibm.broker.plugin.MbXPath;
+import com.ibm.broker.plugin.MbXPathVariables;
+
+/**
+ * A class that builds synthetic message trees, and the R node variables and data frames that convert
+ * them, for the benchmarks. A message has the shape:
+ *
+ * <pre>
+ * Root
+ *   Data
+ *     Scalar1 ... ScalarN     (one value of each scalar variable)
+ *     Row                     (repeated for each row)
+ *       C1 ... CN             (one value for each column)
+ * </pre>
+ *
+ * All values are strings, as they are in a message tree built by a parser such as XMLNSC, so the
+ * benchmarks include the cost of parsing them into R values.
+ */
+public class RNodeSyntheticMessages {
+	
+	/**
+	 * The XPath expression for the rows of the data frame.
+	 */
+	public static final String ROWS = "$InputRoot/Data/Row";
+	
+	/**
+	 * Create a synthetic message.
+	 * @param scalars the number of scalar values.
+	 * @param rows the number of rows.
+	 * @param columns the number of columns in each row.
+	 * @param type the type of the values.
+	 * @return the message.
+	 * @throws MbException if a problem occurs building the message.
+	 */
+	public static MbMessage createMessage(int scalars, int rows, int columns, RNodeType type) throws MbException {
+		MbMessage message = new MbMessage();
+		MbElement data = message.getRootElement().createElementAsLastChild(MbElement.TYPE_NAME, "Data", null);
+		for (int i = 1; i <= scalars; i++) {
+			data.createElementAsLastChild(MbElement.TYPE_NAME_VALUE, "Scalar" + i, value(type, 0, i));
+		}
+		for (int j = 0; j < rows; j++) {
+			MbElement row = data.createElementAsLastChild(MbElement.TYPE_NAME, "Row", null);
+			for (int i = 1; i <= columns; i++) {
+				row.createElementAsLastChild(MbElement.TYPE_NAME_VALUE, "C" + i, value(type, j, i));
+			}
+		}
+		return message;
+	}
+	
+	/**
+	 * Create the XPath variable bindings for a message, in the same way as the R node.
+	 * @param message the message.
+	 * @return the XPath variable bindings.
+	 * @throws MbException if a problem occurs accessing the message.
+	 */
+	public static MbXPathVariables createXPathVariables(MbMessage message) throws MbException {
+		MbXPathVariables xpathVariables = new MbXPathVariables();
+		xpathVariables.assign("InputRoot", message.getRootElement());
+		xpathVariables.assign("Root", message.getRootElement());
+		xpathVariables.assign("OutputRoot", message.getRootElement());
+		return xpathVariables;
+	}
+	
+	/**
+	 * Create a variable for a scalar value.
+	 * @param owner the R node that owns the variable.
+	 * @param index the number of the scalar value, starting from 1.
+	 * @param type the type of the variable.
+	 * @param direction the direction of the variable.
+	 * @return the variable.
+	 * @throws MbException if the XPath expression cannot be compiled.
+	 */
+	public static RNodeVariable createScalarVariable(RNode owner, int index, RNodeType type, RNodeDirection direction) throws MbException {
+		String xpathExpression = "$InputRoot/Data/Scalar" + index;
+		return new RNodeVariable(owner, "s" + index, type, direction, xpathExpression, new MbXPath(xpathExpression));
+	}
+	
+	/**
+	 * Create a variable for a column of the rows, as a vector with one element for each row.
+	 * @param owner the R node that owns the variable.
+	 * @param column the number of the column, starting from 1.
+	 * @param type the type of the variable.
+	 * @param direction the direction of the variable.
+	 * @return the variable.
+	 * @throws MbException if the XPath expression cannot be compiled.
+	 */
+	public static RNodeVariable createVectorVariable(RNode owner, int column, RNodeType type, RNodeDirection direction) throws MbException {
+		String xpathExpression = ROWS + "/C" + column;
+		return new RNodeVariable(owner, "v" + column, type, direction, xpathExpression, new MbXPath(xpathExpression));
+	}
+	
+	/**
+	 * Create a data frame for the rows.
+	 * @param owner the R node that owns the data frame.
+	 * @param columns the number of columns.
+	 * @param type the type of the columns.
+	 * @param direction the direction of the columns.
+	 * @return the data frame.
+	 * @throws RNodeException if the data frame cannot be created.
+	 * @throws MbException if an XPath expression cannot be compiled.
+	 */
+	public static RNodeDataFrame createDataFrame(RNode owner, int columns, RNodeType type, RNodeDirection direction) throws RNodeException, MbException {
+		RNodeDataFrame dataFrame = new RNodeDataFrame(owner, "df", ROWS, new MbXPath(ROWS));
+		for (int i = 1; i <= columns; i++) {
+			dataFrame.addColumn("C" + i, type, direction, "C" + i, new MbXPath("C" + i));
+		}
+		return dataFrame;
+	}
+	
+	/**
+	 * Create the parameter table that configures an R node to convert a synthetic message, with a variable
+	 * for each scalar value and a data frame named df for the rows, all with the same direction.
+	 * @param scalars the number of scalar values.
+	 * @param columns the number of columns in each row, or 0 if the message has no rows.
+	 * @param type the type of the values.
+	 * @param direction the direction of the values.
+	 * @return the parameter table.
+	 */
+	public static MbTable createParameterTable(int scalars, int columns, RNodeType type, RNodeDirection direction) {
+		MbTable table = new MbTable();
+		for (int i = 1; i <= scalars; i++) {
+			addParameter(table, "", "s" + i, type, direction, "$InputRoot/Data/Scalar" + i);
+		}
+		if (columns > 0) {
+			addParameter(table, "", "df", RNodeType.DATA_FRAME, direction, ROWS);
+			for (int i = 1; i <= columns; i++) {
+				addParameter(table, "df", "C" + i, type, direction, "C" + i);
+			}
+		}
+		return table;
+	}
+	
+	/**
+	 * Add a parameter to a parameter table.
+	 * @param table the parameter table.
+	 * @param dataFrame the name of the data frame the parameter is a column of, or an empty string.
+	 * @param name the name of the parameter.
+	 * @param type the type of the parameter.
+	 * @param direction the direction of the parameter.
+	 * @param xpathExpression the XPath expression of the parameter.
+	 */
+	private static void addParameter(MbTable table, String dataFrame, String name, RNodeType type, RNodeDirection direction, String xpathExpression) {
+		table.addRow("parameterDataFrame", dataFrame, "parameterName", name, "parameterType", type.toString(),
+			"parameterDirection", direction.name(), "xpathExpression", xpathExpression);
+	}
+	
+	/**
+	 * Get the value of a cell, as a string.
+	 * @param type the type of the value.
+	 * @param row the row of the cell, starting from 0.
+	 * @param column the column of the cell, starting from 1.
+	 * @return the value.
+	 */
+	public static String value(RNodeType type, int row, int column) {
+		switch (type) {
+		case LOGICAL:
+			return (row + column) % 2 == 0 ? "true" : "false";
+		case INTEGER:
+			return Integer.toString(row * 31 + column);
+		case DOUBLE:
+			return Double.toString(row * 0.25 + column / 8.0);
+		default:
+			return "value-" + row + "-" + column;
+		}
+	}
+	
+}
@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+/**
+ * In-memory stand-in for exceptions raised by the broker runtime itself.
+ */
+public class MbBrokerException extends RuntimeException {
+	
+	/**
+	 * The serialization version.
+	 */
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Constructor.
+	 * @param message the message.
+	 */
+	public MbBrokerException(String message) {
+		super(message);
+	}
+	
+}
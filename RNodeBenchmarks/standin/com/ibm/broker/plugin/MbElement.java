@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory stand-in for a message tree element. Elements are held in a
+ * doubly linked sibling list under their parent, as in the broker.
+ */
+public class MbElement {
+	
+	/**
+	 * The type of an element that has a name but no value.
+	 */
+	public static final int TYPE_NAME = 0x01000000;
+	
+	/**
+	 * The type of an element that has a value but no name.
+	 */
+	public static final int TYPE_VALUE = 0x02000000;
+	
+	/**
+	 * The type of an element that has a name and a value.
+	 */
+	public static final int TYPE_NAME_VALUE = 0x03000000;
+	
+	/**
+	 * The type of this element.
+	 */
+	private int iType;
+	
+	/**
+	 * The name of this element.
+	 */
+	private String iName = "";
+	
+	/**
+	 * The namespace of this element.
+	 */
+	private String iNamespace = "";
+	
+	/**
+	 * The value of this element, or null.
+	 */
+	private Object iValue;
+	
+	/**
+	 * The parent of this element, or null.
+	 */
+	private MbElement iParent;
+	
+	/**
+	 * The first child of this element, or null.
+	 */
+	private MbElement iFirstChild;
+	
+	/**
+	 * The last child of this element, or null.
+	 */
+	private MbElement iLastChild;
+	
+	/**
+	 * The previous sibling of this element, or null.
+	 */
+	private MbElement iPreviousSibling;
+	
+	/**
+	 * The next sibling of this element, or null.
+	 */
+	private MbElement iNextSibling;
+	
+	/**
+	 * Constructor.
+	 * @param type the type of the element.
+	 * @param name the name of the element, or null.
+	 * @param value the value of the element, or null.
+	 */
+	MbElement(int type, String name, Object value) {
+		iType = type;
+		iName = name != null ? name : "";
+		iValue = value;
+	}
+	
+	/**
+	 * Get the name of this element.
+	 * @return the name.
+	 * @throws MbException never.
+	 */
+	public String getName() throws MbException {
+		return iName;
+	}
+	
+	/**
+	 * Set the name of this element.
+	 * @param name the name.
+	 * @throws MbException never.
+	 */
+	public void setName(String name) throws MbException {
+		iName = name;
+	}
+	
+	/**
+	 * Get the namespace of this element.
+	 * @return the namespace, or an empty string.
+	 * @throws MbException never.
+	 */
+	public String getNamespace() throws MbException {
+		return iNamespace;
+	}
+	
+	/**
+	 * Set the namespace of this element.
+	 * @param namespace the namespace, or null.
+	 * @throws MbException never.
+	 */
+	public void setNamespace(String namespace) throws MbException {
+		iNamespace = namespace != null ? namespace : "";
+	}
+	
+	/**
+	 * Get the value of this element.
+	 * @return the value, or null.
+	 * @throws MbException never.
+	 */
+	public Object getValue() throws MbException {
+		return iValue;
+	}
+	
+	/**
+	 * Get the value of this element as a string.
+	 * @return the value, or null.
+	 * @throws MbException never.
+	 */
+	public String getValueAsString() throws MbException {
+		return iValue != null ? iValue.toString() : null;
+	}
+	
+	/**
+	 * Set the value of this element.
+	 * @param value the value, or null.
+	 * @throws MbException never.
+	 */
+	public void setValue(Object value) throws MbException {
+		iValue = value;
+	}
+	
+	/**
+	 * Get the type of this element.
+	 * @return the type.
+	 * @throws MbException never.
+	 */
+	public int getType() throws MbException {
+		return iType;
+	}
+	
+	/**
+	 * Get the parser specific type of this element, which is the same as its type.
+	 * @return the type.
+	 * @throws MbException never.
+	 */
+	public int getSpecificType() throws MbException {
+		return iType;
+	}
+	
+	/**
+	 * Get the parent of this element.
+	 * @return the parent, or null.
+	 * @throws MbException never.
+	 */
+	public MbElement getParent() throws MbException {
+		return iParent;
+	}
+	
+	/**
+	 * Get the first child of this element.
+	 * @return the first child, or null.
+	 * @throws MbException never.
+	 */
+	public MbElement getFirstChild() throws MbException {
+		return iFirstChild;
+	}
+	
+	/**
+	 * Get the last child of this element.
+	 * @return the last child, or null.
+	 * @throws MbException never.
+	 */
+	public MbElement getLastChild() throws MbException {
+		return iLastChild;
+	}
+	
+	/**
+	 * Get the previous sibling of this element.
+	 * @return the previous sibling, or null.
+	 * @throws MbException never.
+	 */
+	public MbElement getPreviousSibling() throws MbException {
+		return iPreviousSibling;
+	}
+	
+	/**
+	 * Get the next sibling of this element.
+	 * @return the next sibling, or null.
+	 * @throws MbException never.
+	 */
+	public MbElement getNextSibling() throws MbException {
+		return iNextSibling;
+	}
+	
+	/**
+	 * Create an element with no name or value as the last child of this element.
+	 * @param type the type of the new element.
+	 * @return the new element.
+	 * @throws MbException never.
+	 */
+	public MbElement createElementAsLastChild(int type) throws MbException {
+		return createElementAsLastChild(type, "", null);
+	}
+	
+	/**
+	 * Create an element as the last child of this element.
+	 * @param type the type of the new element.
+	 * @param name the name of the new element.
+	 * @param value the value of the new element, or null.
+	 * @return the new element.
+	 * @throws MbException never.
+	 */
+	public MbElement createElementAsLastChild(int type, String name, Object value) throws MbException {
+		MbElement element = new MbElement(type, name, value);
+		element.iParent = this;
+		element.iPreviousSibling = iLastChild;
+		if (iLastChild != null) {
+			iLastChild.iNextSibling = element;
+		} else {
+			iFirstChild = element;
+		}
+		iLastChild = element;
+		return element;
+	}
+	
+	/**
+	 * Create an element with no name or value as the next sibling of this element.
+	 * @param type the type of the new element.
+	 * @return the new element.
+	 * @throws MbException never.
+	 */
+	public MbElement createElementAfter(int type) throws MbException {
+		return createElementAfter(type, "", null);
+	}
+	
+	/**
+	 * Create an element as the next sibling of this element.
+	 * @param type the type of the new element.
+	 * @param name the name of the new element.
+	 * @param value the value of the new element, or null.
+	 * @return the new element.
+	 * @throws MbException never.
+	 */
+	public MbElement createElementAfter(int type, String name, Object value) throws MbException {
+		MbElement element = new MbElement(type, name, value);
+		element.iParent = iParent;
+		element.iPreviousSibling = this;
+		element.iNextSibling = iNextSibling;
+		if (iNextSibling != null) {
+			iNextSibling.iPreviousSibling = element;
+		} else if (iParent != null) {
+			iParent.iLastChild = element;
+		}
+		iNextSibling = element;
+		return element;
+	}
+	
+	/**
+	 * Detach this element, and all of its children, from its parent and siblings.
+	 * @throws MbException never.
+	 */
+	public void detach() throws MbException {
+		if (iPreviousSibling != null) {
+			iPreviousSibling.iNextSibling = iNextSibling;
+		} else if (iParent != null) {
+			iParent.iFirstChild = iNextSibling;
+		}
+		if (iNextSibling != null) {
+			iNextSibling.iPreviousSibling = iPreviousSibling;
+		} else if (iParent != null) {
+			iParent.iLastChild = iPreviousSibling;
+		}
+		iParent = null;
+		iPreviousSibling = null;
+		iNextSibling = null;
+	}
+	
+	/**
+	 * Create a detached copy of this element and all of its children.
+	 * @return the copy.
+	 * @throws MbException never.
+	 */
+	public MbElement copy() throws MbException {
+		MbElement copy = new MbElement(iType, iName, iValue);
+		copy.iNamespace = iNamespace;
+		for (MbElement child = iFirstChild; child != null; child = child.iNextSibling) {
+			MbElement childCopy = child.copy();
+			childCopy.iParent = copy;
+			childCopy.iPreviousSibling = copy.iLastChild;
+			if (copy.iLastChild != null) {
+				copy.iLastChild.iNextSibling = childCopy;
+			} else {
+				copy.iFirstChild = childCopy;
+			}
+			copy.iLastChild = childCopy;
+		}
+		return copy;
+	}
+	
+	/**
+	 * Evaluate an XPath expression with this element as the context.
+	 * @param xpath the XPath expression.
+	 * @return the nodeset.
+	 * @throws MbException if the expression refers to an unbound variable.
+	 */
+	public Object evaluateXPath(String xpath) throws MbException {
+		return evaluateXPath(new MbXPath(xpath), null);
+	}
+	
+	/**
+	 * Evaluate a compiled XPath expression with this element as the context.
+	 * @param xpath the compiled XPath expression.
+	 * @return the nodeset.
+	 * @throws MbException if the expression refers to an unbound variable.
+	 */
+	public Object evaluateXPath(MbXPath xpath) throws MbException {
+		return evaluateXPath(xpath, null);
+	}
+	
+	/**
+	 * Evaluate a compiled XPath expression with this element as the context.
+	 * @param xpath the compiled XPath expression.
+	 * @param variables the XPath variable bindings, or null.
+	 * @return the nodeset.
+	 * @throws MbException if the expression refers to an unbound variable.
+	 */
+	public Object evaluateXPath(MbXPath xpath, MbXPathVariables variables) throws MbException {
+		return xpath.evaluate(this, variables);
+	}
+	
+	/**
+	 * Get the children of this element.
+	 * @return the children, in order.
+	 */
+	List<MbElement> children() {
+		List<MbElement> children = new ArrayList<>();
+		for (MbElement child = iFirstChild; child != null; child = child.iNextSibling) {
+			children.add(child);
+		}
+		return children;
+	}
+	
+	/**
+	 * Get the root of the tree that contains this element.
+	 * @return the root element.
+	 */
+	MbElement root() {
+		MbElement element = this;
+		while (element.iParent != null) {
+			element = element.iParent;
+		}
+		return element;
+	}
+	
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+/**
+ * In-memory stand-in for the Integration Bus exception base class.
+ */
+public class MbException extends Exception {
+	
+	/**
+	 * The serialization version.
+	 */
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The number of the message in the message catalog.
+	 */
+	private String iMessageKey;
+	
+	/**
+	 * The trace text.
+	 */
+	private String iTraceText;
+	
+	/**
+	 * The inserts for the message.
+	 */
+	private Object[] iInserts;
+	
+	/**
+	 * Constructor.
+	 * @param object the object throwing the exception.
+	 * @param methodName the name of the method throwing the exception.
+	 * @param catalog the message catalog.
+	 * @param messageKey the number of the message in the message catalog.
+	 * @param traceText the trace text.
+	 * @param inserts the inserts for the message.
+	 */
+	public MbException(Object object, String methodName, String catalog, String messageKey, String traceText, Object[] inserts) {
+		super(messageKey + ": " + traceText + (inserts != null ? " " + java.util.Arrays.toString(inserts) : ""));
+		iMessageKey = messageKey;
+		iTraceText = traceText;
+		iInserts = inserts;
+	}
+	
+	/**
+	 * Get the number of the message in the message catalog.
+	 * @return the message number.
+	 */
+	public String getMessageKey() {
+		return iMessageKey;
+	}
+	
+	/**
+	 * Get the trace text.
+	 * @return the trace text.
+	 */
+	public String getTraceText() {
+		return iTraceText;
+	}
+	
+	/**
+	 * Get the inserts for the message.
+	 * @return the inserts.
+	 */
+	public Object[] getInserts() {
+		return iInserts;
+	}
+	
+}
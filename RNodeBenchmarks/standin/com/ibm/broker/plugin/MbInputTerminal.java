@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+/**
+ * In-memory stand-in for a node input terminal.
+ */
+public class MbInputTerminal {
+	
+	/**
+	 * The name of this terminal.
+	 */
+	private String iName;
+	
+	/**
+	 * Constructor.
+	 * @param name the name of the terminal.
+	 */
+	MbInputTerminal(String name) {
+		iName = name;
+	}
+	
+	/**
+	 * Get the name of this terminal.
+	 * @return the name.
+	 */
+	public String getName() {
+		return iName;
+	}
+	
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+/**
+ * In-memory stand-in for a message tree.
+ */
+public class MbMessage {
+	
+	/**
+	 * The root element of this message.
+	 */
+	private MbElement iRoot;
+	
+	/**
+	 * Constructor - create an empty message.
+	 */
+	public MbMessage() {
+		iRoot = new MbElement(MbElement.TYPE_NAME, "Root", null);
+	}
+	
+	/**
+	 * Constructor - create a copy of a message.
+	 * @param message the message to copy.
+	 * @throws MbException never.
+	 */
+	public MbMessage(MbMessage message) throws MbException {
+		iRoot = message.iRoot.copy();
+	}
+	
+	/**
+	 * Get the root element of this message.
+	 * @return the root element.
+	 * @throws MbException never.
+	 */
+	public MbElement getRootElement() throws MbException {
+		return iRoot;
+	}
+	
+	/**
+	 * Evaluate an XPath expression with the root element of this message as the context.
+	 * @param xpath the XPath expression.
+	 * @return the nodeset.
+	 * @throws MbException if the expression refers to an unbound variable.
+	 */
+	public Object evaluateXPath(String xpath) throws MbException {
+		return evaluateXPath(new MbXPath(xpath), null);
+	}
+	
+	/**
+	 * Evaluate a compiled XPath expression with the root element of this message as the context.
+	 * @param xpath the compiled XPath expression.
+	 * @return the nodeset.
+	 * @throws MbException if the expression refers to an unbound variable.
+	 */
+	public Object evaluateXPath(MbXPath xpath) throws MbException {
+		return evaluateXPath(xpath, null);
+	}
+	
+	/**
+	 * Evaluate a compiled XPath expression with the root element of this message as the context.
+	 * @param xpath the compiled XPath expression.
+	 * @param variables the XPath variable bindings, or null.
+	 * @return the nodeset.
+	 * @throws MbException if the expression refers to an unbound variable.
+	 */
+	public Object evaluateXPath(MbXPath xpath, MbXPathVariables variables) throws MbException {
+		return xpath.evaluate(iRoot, variables);
+	}
+	
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+/**
+ * In-memory stand-in for a message assembly.
+ */
+public class MbMessageAssembly {
+	
+	/**
+	 * The message.
+	 */
+	private MbMessage iMessage;
+	
+	/**
+	 * The local environment.
+	 */
+	private MbMessage iLocalEnvironment;
+	
+	/**
+	 * The global environment.
+	 */
+	private MbMessage iGlobalEnvironment;
+	
+	/**
+	 * The exception list.
+	 */
+	private MbMessage iExceptionList;
+	
+	/**
+	 * Constructor - create an assembly with an empty local environment, global environment and exception list.
+	 * @param message the message.
+	 */
+	public MbMessageAssembly(MbMessage message) {
+		iMessage = message;
+		iLocalEnvironment = new MbMessage();
+		iGlobalEnvironment = new MbMessage();
+		iExceptionList = new MbMessage();
+	}
+	
+	/**
+	 * Constructor - create an assembly that shares the environments and exception list of another assembly.
+	 * @param assembly the other assembly.
+	 * @param message the message.
+	 * @throws MbException never.
+	 */
+	public MbMessageAssembly(MbMessageAssembly assembly, MbMessage message) throws MbException {
+		iMessage = message;
+		iLocalEnvironment = assembly.iLocalEnvironment;
+		iGlobalEnvironment = assembly.iGlobalEnvironment;
+		iExceptionList = assembly.iExceptionList;
+	}
+	
+	/**
+	 * Get the message.
+	 * @return the message.
+	 * @throws MbException never.
+	 */
+	public MbMessage getMessage() throws MbException {
+		return iMessage;
+	}
+	
+	/**
+	 * Get the local environment.
+	 * @return the local environment.
+	 * @throws MbException never.
+	 */
+	public MbMessage getLocalEnvironment() throws MbException {
+		return iLocalEnvironment;
+	}
+	
+	/**
+	 * Get the global environment.
+	 * @return the global environment.
+	 * @throws MbException never.
+	 */
+	public MbMessage getGlobalEnvironment() throws MbException {
+		return iGlobalEnvironment;
+	}
+	
+	/**
+	 * Get the exception list.
+	 * @return the exception list.
+	 * @throws MbException never.
+	 */
+	public MbMessage getExceptionList() throws MbException {
+		return iExceptionList;
+	}
+	
+}
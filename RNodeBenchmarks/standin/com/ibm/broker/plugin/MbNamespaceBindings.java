@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for a set of XPath namespace prefix bindings.
+ */
+public class MbNamespaceBindings {
+	
+	/**
+	 * The namespace URI bound to each prefix.
+	 */
+	private Map<String, String> iBindings = new HashMap<>();
+	
+	/**
+	 * Bind a prefix to a namespace URI.
+	 * @param prefix the prefix.
+	 * @param uri the namespace URI.
+	 */
+	public void addBinding(String prefix, String uri) {
+		iBindings.put(prefix, uri);
+	}
+	
+	/**
+	 * Get the namespace URI bound to a prefix.
+	 * @param prefix the prefix.
+	 * @return the namespace URI, or null if the prefix is not bound.
+	 */
+	public String getNamespace(String prefix) {
+		return iBindings.get(prefix);
+	}
+	
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for the message processing node base class.
+ */
+public abstract class MbNode {
+	
+	/**
+	 * The name of this node.
+	 */
+	private String iName = getClass().getSimpleName();
+	
+	/**
+	 * The input terminals of this node, by name.
+	 */
+	private Map<String, MbInputTerminal> iInputTerminals = new HashMap<>();
+	
+	/**
+	 * The output terminals of this node, by name.
+	 */
+	private Map<String, MbOutputTerminal> iOutputTerminals = new HashMap<>();
+	
+	/**
+	 * The user defined attributes of this node, by name.
+	 */
+	private Map<String, Object> iUserDefinedAttributes = new HashMap<>();
+	
+	/**
+	 * Create an input terminal.
+	 * @param name the name of the terminal.
+	 * @return the terminal.
+	 * @throws MbException never.
+	 */
+	public MbInputTerminal createInputTerminal(String name) throws MbException {
+		MbInputTerminal terminal = new MbInputTerminal(name);
+		iInputTerminals.put(name, terminal);
+		return terminal;
+	}
+	
+	/**
+	 * Create an output terminal.
+	 * @param name the name of the terminal.
+	 * @return the terminal.
+	 * @throws MbException never.
+	 */
+	public MbOutputTerminal createOutputTerminal(String name) throws MbException {
+		MbOutputTerminal terminal = new MbOutputTerminal(name);
+		iOutputTerminals.put(name, terminal);
+		return terminal;
+	}
+	
+	/**
+	 * Get an input terminal.
+	 * @param name the name of the terminal.
+	 * @return the terminal, or null.
+	 */
+	public MbInputTerminal getInputTerminal(String name) {
+		return iInputTerminals.get(name);
+	}
+	
+	/**
+	 * Get an output terminal.
+	 * @param name the name of the terminal.
+	 * @return the terminal, or null.
+	 */
+	public MbOutputTerminal getOutputTerminal(String name) {
+		return iOutputTerminals.get(name);
+	}
+	
+	/**
+	 * Get the message flow that contains this node.
+	 * @return the message flow.
+	 * @throws MbException never.
+	 */
+	public MbMessageFlow getMessageFlow() throws MbException {
+		return new MbMessageFlow("RFlow");
+	}
+	
+	/**
+	 * Get the name of this node.
+	 * @return the name.
+	 */
+	public String getName() {
+		return iName;
+	}
+	
+	/**
+	 * Set the name of this node.
+	 * @param name the name.
+	 */
+	public void setName(String name) {
+		iName = name;
+	}
+	
+	/**
+	 * Get a user defined attribute of this node.
+	 * @param name the name of the attribute.
+	 * @return the value of the attribute, or null.
+	 * @throws MbException never.
+	 */
+	public Object getUserDefinedAttribute(String name) throws MbException {
+		return iUserDefinedAttributes.get(name);
+	}
+	
+	/**
+	 * Set a user defined attribute of this node.
+	 * @param name the name of the attribute.
+	 * @param value the value of the attribute.
+	 */
+	public void setUserDefinedAttribute(String name, Object value) {
+		iUserDefinedAttributes.put(name, value);
+	}
+	
+	/**
+	 * Called when this node has been created and its properties have been set.
+	 * @throws MbException if the node cannot be initialized.
+	 */
+	public void onInitialize() throws MbException {
+	}
+	
+	/**
+	 * Called just before this node is deleted.
+	 */
+	public void onDelete() {
+	}
+	
+}
@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+/**
+ * In-memory stand-in for the interface implemented by message processing nodes.
+ */
+public interface MbNodeInterface {
+	
+	/**
+	 * Process a message.
+	 * @param assembly the input message.
+	 * @param inputTerminal the input terminal the input message arrived on.
+	 * @throws MbException if a problem occurs processing the input message.
+	 */
+	void evaluate(MbMessageAssembly assembly, MbInputTerminal inputTerminal) throws MbException;
+	
+}
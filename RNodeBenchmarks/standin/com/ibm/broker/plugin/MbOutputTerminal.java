@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+/**
+ * In-memory stand-in for a node output terminal. Propagated assemblies are
+ * passed to an optional listener, otherwise they are discarded.
+ */
+public class MbOutputTerminal {
+	
+	/**
+	 * A listener that receives the assemblies propagated to a terminal.
+	 */
+	public interface Listener {
+		/**
+		 * Called when an assembly is propagated to a terminal.
+		 * @param terminal the terminal.
+		 * @param assembly the assembly.
+		 * @throws MbException if a problem occurs processing the assembly.
+		 */
+		void propagated(MbOutputTerminal terminal, MbMessageAssembly assembly) throws MbException;
+	}
+	
+	/**
+	 * The name of this terminal.
+	 */
+	private String iName;
+	
+	/**
+	 * The listener that receives propagated assemblies, or null.
+	 */
+	private volatile Listener iListener;
+	
+	/**
+	 * Constructor.
+	 * @param name the name of the terminal.
+	 */
+	MbOutputTerminal(String name) {
+		iName = name;
+	}
+	
+	/**
+	 * Get the name of this terminal.
+	 * @return the name.
+	 */
+	public String getName() {
+		return iName;
+	}
+	
+	/**
+	 * Check whether this terminal has a listener.
+	 * @return true if this terminal has a listener.
+	 */
+	public boolean isAttached() {
+		return iListener != null;
+	}
+	
+	/**
+	 * Set the listener that receives propagated assemblies.
+	 * @param listener the listener, or null to discard them.
+	 */
+	public void setListener(Listener listener) {
+		iListener = listener;
+	}
+	
+	/**
+	 * Propagate an assembly to this terminal.
+	 * @param assembly the assembly.
+	 * @throws MbException if the listener throws an exception.
+	 */
+	public void propagate(MbMessageAssembly assembly) throws MbException {
+		Listener listener = iListener;
+		if (listener != null) {
+			listener.propagated(this, assembly);
+		}
+	}
+	
+}
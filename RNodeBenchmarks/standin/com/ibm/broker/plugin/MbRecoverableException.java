@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+/**
+ * In-memory stand-in for the Integration Bus recoverable exception.
+ */
+public class MbRecoverableException extends MbException {
+	
+	/**
+	 * The serialization version.
+	 */
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Constructor.
+	 * @param object the object throwing the exception.
+	 * @param methodName the name of the method throwing the exception.
+	 * @param catalog the message catalog.
+	 * @param messageKey the number of the message in the message catalog.
+	 * @param traceText the trace text.
+	 * @param inserts the inserts for the message.
+	 */
+	public MbRecoverableException(Object object, String methodName, String catalog, String messageKey, String traceText, Object[] inserts) {
+		super(object, methodName, catalog, messageKey, traceText, inserts);
+	}
+	
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+/**
+ * In-memory stand-in for the broker logging and trace services. Messages are
+ * discarded unless a system property enables printing them.
+ */
+public class MbService {
+	
+	/**
+	 * Whether messages are printed to standard error, set by the com.ibm.broker.plugin.print system property.
+	 */
+	private static final boolean PRINT = Boolean.getBoolean("com.ibm.broker.plugin.print");
+	
+	/**
+	 * The number of messages logged to user trace.
+	 */
+	private static volatile long iUserTraceCount = 0;
+	
+	/**
+	 * Log an informational message to the system log.
+	 * @param object the object making the call.
+	 * @param methodName the name of the method making the call.
+	 * @param catalog the message catalog.
+	 * @param key the number of the message.
+	 * @param traceText the trace text.
+	 * @param inserts the inserts for the message.
+	 * @throws MbException never.
+	 */
+	public static void logInformation(Object object, String methodName, String catalog, String key, String traceText, Object[] inserts) throws MbException {
+		print("I", key, traceText, inserts);
+	}
+	
+	/**
+	 * Log a warning message to the system log.
+	 * @param object the object making the call.
+	 * @param methodName the name of the method making the call.
+	 * @param catalog the message catalog.
+	 * @param key the number of the message.
+	 * @param traceText the trace text.
+	 * @param inserts the inserts for the message.
+	 * @throws MbException never.
+	 */
+	public static void logWarning(Object object, String methodName, String catalog, String key, String traceText, Object[] inserts) throws MbException {
+		print("W", key, traceText, inserts);
+	}
+	
+	/**
+	 * Log an error message to the system log.
+	 * @param object the object making the call.
+	 * @param methodName the name of the method making the call.
+	 * @param catalog the message catalog.
+	 * @param key the number of the message.
+	 * @param traceText the trace text.
+	 * @param inserts the inserts for the message.
+	 * @throws MbException never.
+	 */
+	public static void logError(Object object, String methodName, String catalog, String key, String traceText, Object[] inserts) throws MbException {
+		print("E", key, traceText, inserts);
+	}
+	
+	/**
+	 * Log a message to user trace.
+	 * @param object the object making the call.
+	 * @param methodName the name of the method making the call.
+	 * @param catalog the message catalog.
+	 * @param key the number of the message.
+	 * @param traceText the trace text.
+	 * @param inserts the inserts for the message.
+	 * @throws MbException never.
+	 */
+	public static void logUserTrace(Object object, String methodName, String catalog, String key, String traceText, String[] inserts) throws MbException {
+		iUserTraceCount++;
+		print("T", key, traceText, inserts);
+	}
+	
+	/**
+	 * Log a message to debug level user trace.
+	 * @param object the object making the call.
+	 * @param methodName the name of the method making the call.
+	 * @param catalog the message catalog.
+	 * @param key the number of the message.
+	 * @param traceText the trace text.
+	 * @param inserts the inserts for the message.
+	 * @throws MbException never.
+	 */
+	public static void logUserDebugTrace(Object object, String methodName, String catalog, String key, String traceText, String[] inserts) throws MbException {
+		iUserTraceCount++;
+		print("D", key, traceText, inserts);
+	}
+	
+	/**
+	 * Get the number of messages logged to user trace.
+	 * @return the number of messages.
+	 */
+	public static long getUserTraceCount() {
+		return iUserTraceCount;
+	}
+	
+	/**
+	 * Print a message to standard error, if printing is enabled.
+	 * @param severity the severity of the message.
+	 * @param key the number of the message.
+	 * @param traceText the trace text.
+	 * @param inserts the inserts for the message.
+	 */
+	private static void print(String severity, String key, String traceText, Object[] inserts) {
+		if (PRINT) {
+			System.err.println("BIP" + key + severity + ": " + traceText + " " + java.util.Arrays.toString(inserts));
+		}
+	}
+	
+}
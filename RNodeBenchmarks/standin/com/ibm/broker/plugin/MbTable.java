@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for a table-valued node property.
+ */
+public class MbTable {
+	
+	/**
+	 * The rows of this table.
+	 */
+	private List<Map<String, Object>> iRows = new ArrayList<>();
+	
+	/**
+	 * The index of the current row.
+	 */
+	private int iCursor = 0;
+	
+	/**
+	 * Whether the last move of the cursor found a row.
+	 */
+	private boolean iLastMove = false;
+	
+	/**
+	 * Add a row to this table.
+	 * @param namesAndValues the column names and values of the row, in pairs.
+	 * @return this table.
+	 */
+	public MbTable addRow(Object... namesAndValues) {
+		Map<String, Object> row = new HashMap<>();
+		for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+			row.put((String) namesAndValues[i], namesAndValues[i + 1]);
+		}
+		iRows.add(row);
+		return this;
+	}
+	
+	/**
+	 * Move the cursor to the first row.
+	 * @return true if there is a first row.
+	 * @throws MbException never.
+	 */
+	public boolean first() throws MbException {
+		iCursor = 0;
+		iLastMove = iCursor < iRows.size();
+		return iLastMove;
+	}
+	
+	/**
+	 * Move the cursor to the next row.
+	 * @return true if there is a next row.
+	 * @throws MbException never.
+	 */
+	public boolean next() throws MbException {
+		iCursor++;
+		iLastMove = iCursor < iRows.size();
+		return iLastMove;
+	}
+	
+	/**
+	 * Check whether the last move of the cursor found a row.
+	 * @return true if the last move found a row.
+	 * @throws MbException never.
+	 */
+	public boolean lastMove() throws MbException {
+		return iLastMove;
+	}
+	
+	/**
+	 * Get the value of a column in the current row.
+	 * @param column the name of the column.
+	 * @return the value, or null.
+	 * @throws MbException never.
+	 */
+	public Object getValue(String column) throws MbException {
+		return iRows.get(iCursor).get(column);
+	}
+	
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory stand-in for a compiled XPath expression. Only location paths are
+ * supported: an optional leading variable reference or slash, followed by
+ * slash separated steps that are either ".", "..", "*", "@name", "name" or
+ * "prefix:name". Every evaluation returns a nodeset.
+ */
+public class MbXPath {
+	
+	/**
+	 * The XPath expression.
+	 */
+	private String iExpression;
+	
+	/**
+	 * The namespace prefix bindings, or null.
+	 */
+	private MbNamespaceBindings iBindings;
+	
+	/**
+	 * The name of the variable the location path starts from, or null.
+	 */
+	private String iVariable;
+	
+	/**
+	 * Whether the location path starts from the root of the tree.
+	 */
+	private boolean iAbsolute;
+	
+	/**
+	 * The steps of the location path.
+	 */
+	private String[] iSteps;
+	
+	/**
+	 * Constructor.
+	 * @param expression the XPath expression.
+	 * @throws MbException never.
+	 */
+	public MbXPath(String expression) throws MbException {
+		this(expression, null);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param expression the XPath expression.
+	 * @param bindings the namespace prefix bindings, or null.
+	 * @throws MbException never.
+	 */
+	public MbXPath(String expression, MbNamespaceBindings bindings) throws MbException {
+		iExpression = expression;
+		iBindings = bindings;
+		String path = expression.trim();
+		if (path.startsWith("$")) {
+			int slash = path.indexOf('/');
+			iVariable = slash == -1 ? path.substring(1) : path.substring(1, slash);
+			path = slash == -1 ? "" : path.substring(slash + 1);
+		} else if (path.startsWith("/")) {
+			iAbsolute = true;
+			path = path.substring(1);
+		}
+		iSteps = path.isEmpty() ? new String[0] : path.split("/");
+	}
+	
+	/**
+	 * Get the XPath expression.
+	 * @return the XPath expression.
+	 */
+	public String getExpression() {
+		return iExpression;
+	}
+	
+	/**
+	 * Evaluate this expression.
+	 * @param context the context element.
+	 * @param variables the XPath variable bindings, or null.
+	 * @return the nodeset, as a list of elements.
+	 * @throws MbException if the expression refers to an unbound variable.
+	 */
+	Object evaluate(MbElement context, MbXPathVariables variables) throws MbException {
+		List<MbElement> current = new ArrayList<>();
+		if (iVariable != null) {
+			Object value = variables != null ? variables.get(iVariable) : null;
+			if (!(value instanceof MbElement)) {
+				throw new MbException(this, "evaluate", "", "0", "Unbound XPath variable", new Object[] { iVariable });
+			}
+			current.add((MbElement) value);
+		} else if (iAbsolute) {
+			current.add(context.root());
+		} else {
+			current.add(context);
+		}
+		for (String step : iSteps) {
+			List<MbElement> next = new ArrayList<>();
+			for (MbElement element : current) {
+				if (step.equals(".")) {
+					next.add(element);
+				} else if (step.equals("..")) {
+					if (element.getParent() != null) {
+						next.add(element.getParent());
+					}
+				} else {
+					String name = step.startsWith("@") ? step.substring(1) : step;
+					String namespace = "";
+					int colon = name.indexOf(':');
+					if (colon != -1) {
+						namespace = iBindings != null ? iBindings.getNamespace(name.substring(0, colon)) : null;
+						name = name.substring(colon + 1);
+					}
+					for (MbElement child : element.children()) {
+						if ((name.equals("*") || name.equals(child.getName())) && (namespace == null || name.equals("*") || namespace.equals(child.getNamespace()))) {
+							next.add(child);
+						}
+					}
+				}
+			}
+			current = next;
+		}
+		return current;
+	}
+	
+}
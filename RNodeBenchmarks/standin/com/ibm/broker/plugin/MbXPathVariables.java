@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.plugin;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for a set of XPath variable bindings.
+ */
+public class MbXPathVariables {
+	
+	/**
+	 * The value bound to each variable.
+	 */
+	private Map<String, Object> iVariables = new HashMap<>();
+	
+	/**
+	 * Bind a variable to an element.
+	 * @param name the name of the variable.
+	 * @param element the element.
+	 */
+	public void assign(String name, MbElement element) {
+		iVariables.put(name, element);
+	}
+	
+	/**
+	 * Bind a variable to a string.
+	 * @param name the name of the variable.
+	 * @param value the string.
+	 */
+	public void assign(String name, String value) {
+		iVariables.put(name, value);
+	}
+	
+	/**
+	 * Bind a variable to a number.
+	 * @param name the name of the variable.
+	 * @param value the number.
+	 */
+	public void assign(String name, double value) {
+		iVariables.put(name, value);
+	}
+	
+	/**
+	 * Bind a variable to a boolean.
+	 * @param name the name of the variable.
+	 * @param value the boolean.
+	 */
+	public void assign(String name, boolean value) {
+		iVariables.put(name, value);
+	}
+	
+	/**
+	 * Get the value bound to a variable.
+	 * @param name the name of the variable.
+	 * @return the value, or null if the variable is not bound.
+	 */
+	Object get(String name) {
+		return iVariables.get(name);
+	}
+	
+}
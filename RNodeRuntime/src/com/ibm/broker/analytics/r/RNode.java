@@ -14,21 +14,28 @@ package com.ibm.broker.analytics.r;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.pool2.BasePooledObjectFactory;
-import org.apache.commons.pool2.PooledObject;
-import org.apache.commons.pool2.impl.DefaultPooledObject;
-import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPGenericVector;
+import org.rosuda.REngine.REXPList;
+import org.rosuda.REngine.REXPRaw;
 import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPString;
 import org.rosuda.REngine.REngineException;
-import org.rosuda.REngine.Rserve.RConnection;
-import org.rosuda.REngine.Rserve.RserveException;
+import org.rosuda.REngine.RList;
 
 import com.ibm.broker.plugin.MbBrokerException;
+import com.ibm.broker.plugin.MbElement;
 import com.ibm.broker.plugin.MbException;
 import com.ibm.broker.plugin.MbInputTerminal;
 import com.ibm.broker.plugin.MbMessage;
@@ -57,19 +64,20 @@ public class RNode extends MbNode implements MbNodeInterface {
 	}
 	
 	/**
-	 * The output terminal (out) that this node propagates messages to.
+	 * The number of instances of this node created in this process.
 	 */
-	private MbOutputTerminal iOutputTerminal;
+	private static final AtomicLong sInstances = new AtomicLong();
 	
 	/**
-	 * The connection factory used by this node to create connections to Rserve.
+	 * The number of this instance of the node, which distinguishes its resident function from those of other
+	 * instances in engines whose sessions share one global environment.
 	 */
-	private BasePooledObjectFactory<Connection> iConnectionFactory = null;
+	private final long iInstance = sInstances.incrementAndGet();
 	
 	/**
-	 * The connection pool used by this node to manage connections to Rserve.
+	 * The output terminal (out) that this node propagates messages to.
 	 */
-	private GenericObjectPool<Connection> iConnectionPool = null;
+	private MbOutputTerminal iOutputTerminal;
 	
 	/**
 	 * The processed list of IN and INOUT variables used by this node to pass data to and from Rserve.
@@ -91,25 +99,56 @@ public class RNode extends MbNode implements MbNodeInterface {
 	 */
 	private Map<String, RNodeDataFrame> iOutDataFrames = new HashMap<>();
 	
+	/**
+	 * The names of the IN and INOUT variables and data frames, in the order they are packed into the input list.
+	 */
+	private String[] iInNames = new String[0];
+	
+	/**
+	 * An R character vector naming the INOUT and OUT variables and data frames returned after the evaluate script.
+	 */
+	private String iOutNames = "character(0)";
+	
+	/**
+	 * An R expression that collects the INOUT and OUT variables and data frames after the evaluate script.
+	 */
+	private String iOutExpression = null;
+	
+	/**
+	 * An R assignment that installs the resident function that evaluates the evaluate script for a message
+	 * (or batch of messages) and collects the INOUT and OUT values. It is run once on each new connection.
+	 */
+	private String iEvaluateFunction = null;
+	
+	/**
+	 * An R expression that calls the resident function installed by iEvaluateFunction on the input values.
+	 */
+	private String iEvaluateCall = null;
+	
 	/**
 	 * The set of namespace bindings in use by the XPath expressions in the parameters used by this node.
 	 */
 	private MbNamespaceBindings iNamespaceBindings = null;
 	
 	/**
-	 * The server configured on this node (in the format hostname[:port]).
+	 * The servers configured on this node (a comma separated list, each in the format hostname[:port][*weight]).
 	 */
 	private String iServerProperty = "";
 	
 	/**
-	 * The parsed server host name.
+	 * The parsed servers, each with the connection pool used by this node to manage connections to it.
+	 */
+	private List<RNodeEndpoint<RNodeSession>> iEndpoints = new ArrayList<>();
+	
+	/**
+	 * The R engine used by this node (rserve, jri, renjin, or the name of a class that extends RNodeEngine).
 	 */
-	private String iServerHostName = null;
+	private String iEngineProperty = RNodeEngine.RSERVE;
 	
 	/**
-	 * The parsed or defaulted server port.
+	 * The R engine that creates the sessions in the connection pools, or null if this node has not been initialized.
 	 */
-	private int iServerPort = 6311;
+	private RNodeEngine iEngine = null;
 	
 	/**
 	 * The path to the RData file that is loaded when this node establishes a connection to Rserve.
@@ -146,18 +185,23 @@ public class RNode extends MbNode implements MbNodeInterface {
 	 */
 	private String iDisconnectScriptProperty = "";	
 	
+	/**
+	 * The interval (in seconds) at which this node checks its scripts and RData file for updates, or 0 to watch them for updates.
+	 */
+	private long iFilePollingInterval = 0;
+	
 	/**
 	 * An object containing the parsed script that is called before this node closes a connection to Rserve.
 	 */
 	private RNodeScript iDisconnectScript = null;
 	
 	/**
-	 * The maximum number of established connections to Rserve that this node is allowed to make.
+	 * The maximum number of established connections to each Rserve server that this node is allowed to make.
 	 */
 	private int iMaximumConnections = 10;
 	
 	/**
-	 * The minimum number of established connections to Rserve that this node must keep available.
+	 * The minimum number of established connections to each Rserve server that this node must keep available.
 	 */
 	private int iMinimumConnections = 1;
 	
@@ -166,6 +210,117 @@ public class RNode extends MbNode implements MbNodeInterface {
 	 */
 	private long iIdleConnectionTimeout = 10;
 	
+	/**
+	 * The maximum period (in milliseconds) that a message waits for a connection to Rserve, or 0 to wait forever.
+	 */
+	private long iMaximumConnectionWait = 0;
+	
+	/**
+	 * The maximum number of messages that can wait for a connection to each Rserve server at once, or 0 for no limit.
+	 */
+	private int iMaximumWaitingMessages = 0;
+	
+	/**
+	 * The number of connections to Rserve that must be opened after this node is initialized before it processes messages.
+	 */
+	private int iReadyConnections = 0;
+	
+	/**
+	 * The warm-up that opens the minimum number of connections to Rserve in parallel when this node is initialized.
+	 */
+	private RNodeWarmUp iWarmUp = null;
+	
+	/**
+	 * The period (in seconds) after which an established connection to Rserve that has not been used or checked is checked before it is used.
+	 */
+	private long iConnectionValidationInterval = 5;
+	
+	/**
+	 * The maximum number of times that the evaluate script is retried on a new connection if its connection to Rserve is lost.
+	 */
+	private int iMaximumRetries = 0;
+	
+	/**
+	 * The maximum period (in milliseconds) that the evaluate script can run for before its connection to Rserve is closed, or 0.
+	 */
+	private long iEvaluationTimeout = 0;
+	
+	/**
+	 * The number of times that the evaluate script has run for longer than the evaluation timeout.
+	 */
+	private AtomicLong iEvaluationTimeouts = new AtomicLong();
+	
+	/**
+	 * The maximum number of messages that this node processes in a single evaluation of the evaluate script.
+	 */
+	private int iMaximumBatchSize = 1;
+	
+	/**
+	 * The maximum period (in milliseconds) that a message waits for other messages to join its batch.
+	 */
+	private long iMaximumBatchLingerTime = 10;
+	
+	/**
+	 * The level of user trace written while converting values between the message and R.
+	 */
+	private RNodeTraceLevel iConversionTraceLevel = RNodeTraceLevel.ALL;
+	
+	/**
+	 * The number of converted values for each value written to user trace when the level is sampled.
+	 */
+	private int iConversionTraceSampleRate = 100;
+	
+	/**
+	 * The number of converted values sampled for user trace so far, across all messages.
+	 */
+	private final AtomicLong iConversionTraceCount = new AtomicLong();
+	
+	/**
+	 * The file that this node writes its metrics to in the Prometheus text format, or null.
+	 */
+	private String iMetricsFile = null;
+	
+	/**
+	 * The metrics for this node, which record where it spends its time processing messages.
+	 */
+	private RNodeMetrics iMetrics = null;
+	
+	/**
+	 * The file that this node appends the input values of slow messages to, or null.
+	 */
+	private String iCaptureFile = null;
+	
+	/**
+	 * The minimum time (in milliseconds) spent in the R phase of processing a message for its input values to be captured.
+	 */
+	private long iCaptureThreshold = 1000;
+	
+	/**
+	 * The capture of the input values of slow messages for this node, or null if they are not being captured.
+	 */
+	private RNodeCapture iCapture = null;
+	
+	/**
+	 * The XPath expression for the key used to route each message to a server when sharding is enabled, or an empty string.
+	 */
+	private String iShardKeyProperty = "";
+	
+	/**
+	 * The compiled XPath expression for the key used to route each message to a server, or null if sharding is disabled.
+	 */
+	private MbXPath iShardKey = null;
+	
+	/**
+	 * The consistent hash ring used to route each message to a server by its key, or null if sharding is disabled.
+	 */
+	private RNodeShardRing iShardRing = null;
+	
+	/**
+	 * The batchers used by this node to collect messages into batches - one for each server if sharding is enabled,
+	 * as a batch must be processed on the server that owns all of its messages - or null if batching is disabled.
+	 */
+	private RNodeBatcher[] iBatchers = null;
+	
 	/**
 	 * Constructor for an RNode - creates the input and output terminals for this node.
 	 * @throws MbException if the input and output terminals cannot be created.
@@ -179,122 +334,46 @@ public class RNode extends MbNode implements MbNodeInterface {
 		iOutputTerminal = createOutputTerminal("out");
 		createOutputTerminal("failure");
 		
-		// Create the connection factory for this node.
-		iConnectionFactory = new BasePooledObjectFactory<Connection>() {
-
-			/**
-			 * Called when the connection pool requests a new connection to Rserve.
-			 * @return a new connection to Rserve.
-			 */
-			@Override
-			public Connection create() throws RNodeException, MbException {
-				final String methodName = "create";
-				
-				// Open a new connection to the specified Rserve server.
-				RNodeLog.logUserTrace(this, methodName, 7836, "Connecting to Rserve server", getName(), iServerHostName, iServerPort);
-				Connection connection = null;
-				try {
-					connection = new Connection(iServerHostName, iServerPort);
-				} catch (RserveException e) {
-					throw new RNodeException(this, methodName, 7839, "Failed to connect to Rserve server", getName(), iServerHostName, iServerPort, e.toString());
-				}
-				RNodeLog.logUserTrace(this, methodName, 7837, "Connected to Rserve server", getName(), iServerHostName, iServerPort);
-				
-				// If a RData file has been provided, load that now.
-				if (iRDataFile != null) {
-					try {
-					
-						// Check to see if the RData file has been updated.
-						iRDataFile.update();
-						
-						// Assign the RData file contents to an R variable.
-						String scriptVariable = ".iib_r_data_" + iRDataFile.getKey();
-						connection.assign(scriptVariable, iRDataFile.getContent());
-						
-						// Load the RData file contents on the Rserve server.
-						// We use try, as it also allows us to retrieve the error messages from the R runtime.
-						REXP result = connection.parseAndEval("try(load(rawConnection(" + scriptVariable + ")),silent=TRUE)");
-						if (result.inherits("try-error")) {
-							throw new RNodeException(this, methodName, 7867, "R runtime failed to load file contents", getName(), iRDataFile.getFileName(), result.asString());
-						}
-					
-					} catch (REngineException | REXPMismatchException e) {
-						throw new RNodeException(this, methodName, 7867, "R runtime failed to load file contents", getName(), iRDataFile.getFileName(), e.getMessage());
-					}
-				}
-				
-				// If a connect script has been provided, run that before returning the connection to the pool for use.
-				if (iConnectScript != null) {
-					runScript(connection, iConnectScript);
-				}
-				return connection;
-				
-			}
-
-			/**
-			 * Called by the connection pool to wrap a new connection.
-			 * @param the connection to wrap.
-			 * @return the wrapped connection.
-			 */
-			@Override
-			public PooledObject<Connection> wrap(Connection connection) {
-				return new DefaultPooledObject<Connection>(connection);
-			}
-			
-			/**
-			 * Called by the connection pool to close an established connection.
-			 * This occurs if the connection has remained idle for too long, or the node
-			 * is being deleted.
-			 * @param pooledConnection
-			 */
-			@Override
-			public void destroyObject(PooledObject<Connection> pooledConnection) throws MbException {
-				final String methodName = "destroyObject";
-				
-				// If a disconnect script has been provided, run that before closing the connection.
-				Connection connection = pooledConnection.getObject();
-				if (iDisconnectScript != null) {
-					try {
-						runScript(connection, iDisconnectScript);
-					} catch (MbException e) {
-						RNodeLog.logError(this, methodName, Long.valueOf(e.getMessageKey()), e.getTraceText(), e.getInserts());
-					}
-				}
-				
-				// Close the connection.
-				connection.close();
-				RNodeLog.logUserTrace(this, methodName, 7838, "Disconnected from Rserve server", getName(), iServerHostName, iServerPort);
-				
-			}
-			
-		};
-		
 	}
 	
 	/**
-	 * Get the server configured on this node (in the format hostname[:port]).
-	 * @return the server configured on this node.
+	 * Get the servers configured on this node (a comma separated list, each in the format hostname[:port][*weight]).
+	 * @return the servers configured on this node.
 	 */
 	public String getServer() {
 		return iServerProperty;
 	}
 	
 	/**
-	 * Set the server configured on this node (in the format hostname[:port]).
-	 * If no port is provided, then the node defaults to port 6311.
-	 * @param server the server to configure on this node (in the format hostname[:port])
+	 * Set the servers configured on this node (a comma separated list, each in the format hostname[:port][*weight]).
+	 * If no port is provided, then the node defaults to port 6311. If no weight is provided, then the node
+	 * defaults to a weight of 1. Each message is routed to one of the servers based on its weight, the number
+	 * of messages in flight on it and its recent latency.
+	 * @param server the servers to configure on this node.
 	 */
 	public void setServer(String server) {
 		iServerProperty = server;
-		int i = server.indexOf(":");
-		if (i == -1) {
-			iServerHostName = server;
-			iServerPort = 6311;
-		} else {
-			String[] comps = server.split(":");
-			iServerHostName = comps[0];
-			iServerPort = Integer.parseInt(comps[1]);
-		}
+		iEndpoints = RNodeEndpoint.parse(this, server);
+	}
+	
+	/**
+	 * Get the R engine used by this node.
+	 * @return the R engine (rserve, jri, renjin, or the name of a class that extends RNodeEngine).
+	 */
+	public String getEngine() {
+		return iEngineProperty;
+	}
+	
+	/**
+	 * Set the R engine used by this node. The default engine, rserve, evaluates scripts on the configured
+	 * Rserve servers; the jri engine evaluates scripts in R embedded in the integration server through JRI,
+	 * and the renjin engine evaluates scripts with the Renjin R interpreter written in Java.
+	 * Other engines are provided by classes that extend RNodeEngine, and create a session in place of each
+	 * connection to a server.
+	 * @param engine the R engine (rserve, jri, renjin, or the name of a class that extends RNodeEngine).
+	 */
+	public void setEngine(String engine) {
+		iEngineProperty = engine;
 	}
 	
 	/**
@@ -361,6 +440,22 @@ public class RNode extends MbNode implements MbNodeInterface {
 		iDisconnectScriptProperty = disconnectScript;
 	}
 	
+	/**
+	 * Get the interval (in seconds) at which this node checks its scripts and RData file for updates.
+	 * @return the interval (in seconds), or 0 if they are watched for updates.
+	 */
+	public String getFilePollingInterval() {
+		return String.valueOf(iFilePollingInterval);
+	}
+	
+	/**
+	 * Set the interval (in seconds) at which this node checks its scripts and RData file for updates.
+	 * @param filePollingInterval the interval (in seconds), or 0 to watch them for updates.
+	 */
+	public void setFilePollingInterval(String filePollingInterval) {
+		iFilePollingInterval = Long.parseLong(filePollingInterval);
+	}
+	
 	/**
 	 * Get the maximum number of established connections to Rserve that this node is allowed to make.
 	 * @return the maximum number of established connections.
@@ -409,6 +504,411 @@ public class RNode extends MbNode implements MbNodeInterface {
 		iIdleConnectionTimeout = Integer.parseInt(idleConnectionTimeout);
 	}
 	
+	/**
+	 * Get the maximum period (in milliseconds) that a message waits for a connection to Rserve.
+	 * @return the maximum period (in milliseconds).
+	 */
+	public String getMaximumConnectionWait() {
+		return String.valueOf(iMaximumConnectionWait);
+	}
+	
+	/**
+	 * Set the maximum period (in milliseconds) that a message waits for a connection to Rserve.
+	 * A message that waits for longer than this fails.
+	 * @param maximumConnectionWait the maximum period (in milliseconds), or 0 to wait forever.
+	 */
+	public void setMaximumConnectionWait(String maximumConnectionWait) {
+		iMaximumConnectionWait = Long.parseLong(maximumConnectionWait);
+	}
+	
+	/**
+	 * Get the maximum number of messages that can wait for a connection to each Rserve server at once.
+	 * @return the maximum number of messages.
+	 */
+	public String getMaximumWaitingMessages() {
+		return String.valueOf(iMaximumWaitingMessages);
+	}
+	
+	/**
+	 * Set the maximum number of messages that can wait for a connection to each Rserve server at once.
+	 * A message that arrives when this many messages are already waiting fails immediately.
+	 * @param maximumWaitingMessages the maximum number of messages, or 0 for no limit.
+	 */
+	public void setMaximumWaitingMessages(String maximumWaitingMessages) {
+		iMaximumWaitingMessages = Integer.parseInt(maximumWaitingMessages);
+	}
+	
+	/**
+	 * Get the number of connections to Rserve that must be opened after this node is initialized before it processes messages.
+	 * @return the number of connections.
+	 */
+	public String getReadyConnections() {
+		return String.valueOf(iReadyConnections);
+	}
+	
+	/**
+	 * Set the number of connections to Rserve that must be opened after this node is initialized before it processes messages.
+	 * Messages are held until this number of connections have been opened, or until every connection opened during warm-up
+	 * has either been opened or failed.
+	 * @param readyConnections the number of connections, or 0 to process messages immediately.
+	 */
+	public void setReadyConnections(String readyConnections) {
+		iReadyConnections = Integer.parseInt(readyConnections);
+	}
+	
+	/**
+	 * Get the period (in seconds) after which an established connection to Rserve that has not been used or checked is checked before it is used.
+	 * @return the period (in seconds).
+	 */
+	public String getConnectionValidationInterval() {
+		return String.valueOf(iConnectionValidationInterval);
+	}
+	
+	/**
+	 * Set the period (in seconds) after which an established connection to Rserve that has not been used or checked is checked before it is used.
+	 * Idle connections are also checked in the background at this interval.
+	 * @param connectionValidationInterval the period (in seconds), or 0 to never check connections.
+	 */
+	public void setConnectionValidationInterval(String connectionValidationInterval) {
+		iConnectionValidationInterval = Integer.parseInt(connectionValidationInterval);
+	}
+	
+	/**
+	 * Get the maximum number of times that the evaluate script is retried on a new connection if its connection to Rserve is lost.
+	 * @return the maximum number of retries.
+	 */
+	public String getMaximumRetries() {
+		return String.valueOf(iMaximumRetries);
+	}
+	
+	/**
+	 * Set the maximum number of times that the evaluate script is retried on a new connection if its connection to Rserve is lost.
+	 * This must only be set if the evaluate script is idempotent, as the lost connection may have evaluated the script already.
+	 * @param maximumRetries the maximum number of retries, or 0 to never retry.
+	 */
+	public void setMaximumRetries(String maximumRetries) {
+		iMaximumRetries = Integer.parseInt(maximumRetries);
+	}
+	
+	/**
+	 * Get the maximum period (in milliseconds) that the evaluate script can run for before its connection to Rserve is closed.
+	 * @return the maximum period (in milliseconds).
+	 */
+	public String getEvaluationTimeout() {
+		return String.valueOf(iEvaluationTimeout);
+	}
+	
+	/**
+	 * Set the maximum period (in milliseconds) that the evaluate script can run for before its connection to Rserve is closed.
+	 * When the evaluation timeout expires, the connection and its R session are closed and the message fails.
+	 * @param evaluationTimeout the maximum period (in milliseconds), or 0 to never time out.
+	 */
+	public void setEvaluationTimeout(String evaluationTimeout) {
+		iEvaluationTimeout = Long.parseLong(evaluationTimeout);
+	}
+	
+	/**
+	 * Get the number of times that the evaluate script has run for longer than the evaluation timeout.
+	 * @return the number of timeouts.
+	 */
+	long getEvaluationTimeouts() {
+		return iEvaluationTimeouts.get();
+	}
+	
+	/**
+	 * Get the maximum number of messages that this node processes in a single evaluation of the evaluate script.
+	 * @return the maximum number of messages.
+	 */
+	public String getMaximumBatchSize() {
+		return String.valueOf(iMaximumBatchSize);
+	}
+	
+	/**
+	 * Set the maximum number of messages that this node processes in a single evaluation of the evaluate script.
+	 * A value of 1 disables batching.
+	 * @param maximumBatchSize the maximum number of messages.
+	 */
+	public void setMaximumBatchSize(String maximumBatchSize) {
+		iMaximumBatchSize = Integer.parseInt(maximumBatchSize);
+	}
+	
+	/**
+	 * Get the maximum period (in milliseconds) that a message waits for other messages to join its batch.
+	 * @return the maximum period (in milliseconds).
+	 */
+	public String getMaximumBatchLingerTime() {
+		return String.valueOf(iMaximumBatchLingerTime);
+	}
+	
+	/**
+	 * Set the maximum period (in milliseconds) that a message waits for other messages to join its batch.
+	 * @param maximumBatchLingerTime the maximum period (in milliseconds).
+	 */
+	public void setMaximumBatchLingerTime(String maximumBatchLingerTime) {
+		iMaximumBatchLingerTime = Long.parseLong(maximumBatchLingerTime);
+	}
+	
+	/**
+	 * Get the level of user trace written while converting values between the message and R.
+	 * @return the level of user trace (all, sampled or none).
+	 */
+	public String getConversionTraceLevel() {
+		return iConversionTraceLevel.toString();
+	}
+	
+	/**
+	 * Set the level of user trace written while converting values between the message and R.
+	 * @param conversionTraceLevel the level of user trace (all, sampled or none).
+	 */
+	public void setConversionTraceLevel(String conversionTraceLevel) {
+		iConversionTraceLevel = RNodeTraceLevel.fromString(conversionTraceLevel);
+	}
+	
+	/**
+	 * Get the number of converted values for each value written to user trace when the level is sampled.
+	 * @return the number of converted values.
+	 */
+	public String getConversionTraceSampleRate() {
+		return String.valueOf(iConversionTraceSampleRate);
+	}
+	
+	/**
+	 * Set the number of converted values for each value written to user trace when the level is sampled.
+	 * @param conversionTraceSampleRate the number of converted values.
+	 */
+	public void setConversionTraceSampleRate(String conversionTraceSampleRate) {
+		iConversionTraceSampleRate = Integer.parseInt(conversionTraceSampleRate);
+	}
+	
+	/**
+	 * Get the file that this node writes its metrics to in the Prometheus text format.
+	 * @return the file, or null.
+	 */
+	public String getMetricsFile() {
+		return iMetricsFile;
+	}
+	
+	/**
+	 * Set the file that this node writes its metrics to in the Prometheus text format.
+	 * The metrics are also always published through JMX.
+	 * @param metricsFile the file, or null or an empty string to not write the metrics to a file.
+	 */
+	public void setMetricsFile(String metricsFile) {
+		iMetricsFile = metricsFile != null && !metricsFile.trim().isEmpty() ? metricsFile.trim() : null;
+	}
+	
+	/**
+	 * Get the file that this node appends the input values of slow messages to.
+	 * @return the file, or null.
+	 */
+	public String getCaptureFile() {
+		return iCaptureFile;
+	}
+	
+	/**
+	 * Set the file that this node appends the input values of slow messages to, so that they can be replayed
+	 * offline against an Rserve server with the RNodeReplay tool.
+	 * @param captureFile the file, or null or an empty string to not capture slow messages.
+	 */
+	public void setCaptureFile(String captureFile) {
+		iCaptureFile = captureFile != null && !captureFile.trim().isEmpty() ? captureFile.trim() : null;
+	}
+	
+	/**
+	 * Get the minimum time spent in the R phase of processing a message for its input values to be captured.
+	 * @return the minimum time (in milliseconds).
+	 */
+	public String getCaptureThreshold() {
+		return Long.toString(iCaptureThreshold);
+	}
+	
+	/**
+	 * Set the minimum time spent in the R phase of processing a message for its input values to be captured.
+	 * @param captureThreshold the minimum time (in milliseconds).
+	 */
+	public void setCaptureThreshold(String captureThreshold) {
+		iCaptureThreshold = Long.parseLong(captureThreshold);
+	}
+	
+	/**
+	 * Get the XPath expression for the key used to route each message to a server when sharding is enabled.
+	 * @return the XPath expression, or an empty string if sharding is disabled.
+	 */
+	public String getShardKey() {
+		return iShardKeyProperty;
+	}
+	
+	/**
+	 * Set the XPath expression for the key used to route each message to a server. When set, messages with
+	 * the same key are always routed to the same server (rather than the least loaded server), and the RData
+	 * file loaded by each server can be configured in the shard table.
+	 * @param shardKey the XPath expression, or an empty string to disable sharding.
+	 */
+	public void setShardKey(String shardKey) {
+		iShardKeyProperty = shardKey;
+	}
+	
+	/**
+	 * Create the factory used by the connection pool for the specified Rserve server to create connections.
+	 * @param endpoint the Rserve server.
+	 * @return the connection factory.
+	 */
+	private RNodeConnectionPool.Factory<RNodeSession> newConnectionFactory(final RNodeEndpoint<RNodeSession> endpoint) {
+		return new RNodeConnectionPool.Factory<RNodeSession>() {
+
+			/**
+			 * Called when the connection pool requests a new connection to Rserve.
+			 * @return a new connection to Rserve.
+			 */
+			@Override
+			public RNodeSession create() throws RNodeException, MbException {
+				final String methodName = "create";
+				Object event = RNodeEvents.CONNECTION_CREATE.begin();
+				
+				// Open a new connection to the specified Rserve server.
+				RNodeLog.logUserTrace(this, methodName, 7836, "Connecting to Rserve server", getName(), endpoint.getHostName(), endpoint.getPort());
+				RNodeSession connection = null;
+				try {
+					connection = iEngine.createSession(endpoint.getHostName(), endpoint.getPort());
+				} catch (REngineException e) {
+					throw new RNodeException(this, methodName, 7839, "Failed to connect to Rserve server", getName(), endpoint.getHostName(), endpoint.getPort(), e.toString());
+				}
+				RNodeLog.logUserTrace(this, methodName, 7837, "Connected to Rserve server", getName(), endpoint.getHostName(), endpoint.getPort());
+				
+				// Close the connection if it cannot be prepared for use.
+				boolean prepared = false;
+				try {
+				
+					// If a RData file has been provided for this server or this node, load that now.
+					RNodeFile rdataFile = endpoint.getRDataFile() != null ? endpoint.getRDataFile() : iRDataFile;
+					if (rdataFile != null) {
+						try {
+						
+							// Assign the currently loaded RData file contents to an R variable.
+							String scriptVariable = ".iib_r_data_" + rdataFile.getKey();
+							connection.assign(scriptVariable, new REXPRaw(rdataFile.getSnapshot().getContent()));
+							
+							// Load the RData file contents on the Rserve server.
+							// We use try, as it also allows us to retrieve the error messages from the R runtime.
+							REXP result = connection.evaluate("try(load(rawConnection(" + scriptVariable + ")),silent=TRUE)");
+							if (result.inherits("try-error")) {
+								throw new RNodeException(this, methodName, 7867, "R runtime failed to load file contents", getName(), rdataFile.getFileName(), result.asString());
+							}
+						
+						} catch (REngineException | REXPMismatchException e) {
+							throw new RNodeException(this, methodName, 7867, "R runtime failed to load file contents", getName(), rdataFile.getFileName(), e.getMessage());
+						}
+					}
+					
+					// If a connect script has been provided, run that before returning the connection to the pool for use.
+					if (iConnectScript != null) {
+						runScript(connection, iConnectScript);
+					}
+					
+					// Install the resident function that evaluates the evaluate script for each message.
+					try {
+						connection.voidEvaluate(iEvaluateFunction);
+					} catch (REngineException e) {
+						throw new RNodeException(this, methodName, 7811, "R runtime failed to evaluate file contents", getName(), iEvaluateScript.getFileName(), e.getMessage());
+					}
+					prepared = true;
+					return connection;
+					
+				} finally {
+					if (!prepared) {
+						connection.close();
+					}
+					if (event != null) {
+						RNodeEvents.CONNECTION_CREATE.commit(event, getName(), endpoint.toString(), prepared);
+					}
+				}
+				
+			}
+
+			/**
+			 * Called by the connection pool to close an established connection.
+			 * This occurs if the connection has remained idle for too long, has been lost,
+			 * or the node is being deleted.
+			 * @param connection the connection to close.
+			 */
+			@Override
+			public void destroy(RNodeSession connection) throws MbException {
+				final String methodName = "destroy";
+				Object event = RNodeEvents.CONNECTION_DESTROY.begin();
+				
+				// If a disconnect script has been provided, run that before closing the connection,
+				// unless the connection has been lost.
+				if (iDisconnectScript != null && !connection.isBroken()) {
+					try {
+						runScript(connection, iDisconnectScript);
+					} catch (MbException e) {
+						RNodeLog.logError(this, methodName, Long.valueOf(e.getMessageKey()), e.getTraceText(), e.getInserts());
+					}
+				}
+				
+				// Close the connection.
+				connection.close();
+				RNodeLog.logUserTrace(this, methodName, 7838, "Disconnected from Rserve server", getName(), endpoint.getHostName(), endpoint.getPort());
+				if (event != null) {
+					RNodeEvents.CONNECTION_DESTROY.commit(event, getName(), endpoint.toString());
+				}
+				
+			}
+			
+			/**
+			 * Called by the connection pool to check that an established connection can still be used.
+			 * This sends a trivial request, which fails if the Rserve server has closed the connection.
+			 * @param connection the connection to check.
+			 * @return true if the connection can still be used.
+			 */
+			@Override
+			public boolean validate(RNodeSession connection) {
+				return connection.validate();
+			}
+			
+		};
+	}
+	
+	/**
+	 * Create a batcher that processes each complete batch of messages on the specified server.
+	 * @param endpoint the server, or null to select the server for each batch.
+	 * @return the batcher.
+	 */
+	private RNodeBatcher newBatcher(final RNodeEndpoint<RNodeSession> endpoint) {
+		return new RNodeBatcher(iInNames, new RNodeBatcher.Processor() {
+			
+			/**
+			 * Called by the batcher to process a complete batch of messages.
+			 * @param inputs the stacked input values for the batch.
+			 * @param messages the number of messages in the batch.
+			 * @return the split output values for the batch.
+			 */
+			@Override
+			public RList[] process(REXP inputs, int messages) throws Exception {
+				return RNodeBatcher.split(runEvaluateScript(endpoint, inputs), messages);
+			}
+			
+		}, iMaximumBatchSize, iMaximumBatchLingerTime);
+	}
+	
+	/**
+	 * Find the server configured on this node with the same host name and port as the specified server.
+	 * @param server the server (in the format hostname[:port]).
+	 * @return the server configured on this node, or null if there is no such server.
+	 */
+	private RNodeEndpoint<RNodeSession> findEndpoint(String server) {
+		if (server == null || server.trim().isEmpty()) {
+			return null;
+		}
+		RNodeEndpoint<RNodeSession> match = RNodeEndpoint.<RNodeSession>parse(this, server).get(0);
+		for (RNodeEndpoint<RNodeSession> endpoint : iEndpoints) {
+			if (endpoint.getHostName().equals(match.getHostName()) && endpoint.getPort() == match.getPort()) {
+				return endpoint;
+			}
+		}
+		return null;
+	}
+	
 	/**
 	 * Called by Integration Bus after an instance of this node has been created and configured, but before it processes any messages.
 	 * @throws MbException if an exception occurs initializing this node.
@@ -416,20 +916,28 @@ public class RNode extends MbNode implements MbNodeInterface {
 	public void onInitialize() throws MbException {
 		final String methodName = "onInitialize";
 		
+		// Create the R engine that creates the sessions for each server.
+		try {
+			iEngine = RNodeEngine.forName(iEngineProperty);
+		} catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+			Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+			throw new RNodeException(this, methodName, 7886, "Unrecognised R engine", getName(), iEngineProperty, cause.toString());
+		}
+		
 		// Load the RData file if one has been provided.
-		iRDataFile = !iRDataFileProperty.isEmpty() ? new RNodeFile(this, iRDataFileProperty) : null;
+		iRDataFile = !iRDataFileProperty.isEmpty() ? new RNodeFile(this, iRDataFileProperty, iFilePollingInterval) : null;
 		
 		// Parse the connect script if one has been provided.
-		iConnectScript = !iConnectScriptProperty.isEmpty() ? new RNodeScript(this, iConnectScriptProperty) : null;
+		iConnectScript = !iConnectScriptProperty.isEmpty() ? new RNodeScript(this, iConnectScriptProperty, iFilePollingInterval) : null;
 		
 		// Parse the evaluate script, which must always be provided.
 		if (iEvaluateScriptProperty.isEmpty()) {
 			throw new RNodeException(this, methodName, 7868, "Unrecognised parameter type", getName());
 		}
-		iEvaluateScript = new RNodeScript(this, iEvaluateScriptProperty);
+		iEvaluateScript = new RNodeScript(this, iEvaluateScriptProperty, iFilePollingInterval);
 		
 		// Parse the disconnect script if one has been provided.
-		iDisconnectScript = !iDisconnectScriptProperty.isEmpty() ? new RNodeScript(this, iDisconnectScriptProperty) : null;
+		iDisconnectScript = !iDisconnectScriptProperty.isEmpty() ? new RNodeScript(this, iDisconnectScriptProperty, iFilePollingInterval) : null;
 		
 		// Parse the namespace bindings table if one has been provided.
 		iNamespaceBindings = new MbNamespaceBindings();
@@ -442,6 +950,29 @@ public class RNode extends MbNode implements MbNodeInterface {
 			}
 		}
 		
+		// Parse the shard table if one has been provided. Each row configures the RData file loaded by one of the
+		// servers configured on this node, so that each server only loads the partition of the data it owns.
+		MbTable shardTable = (MbTable) getUserDefinedAttribute("shardTable");
+		if (shardTable != null) {
+			for (shardTable.first(); shardTable.lastMove(); shardTable.next()) {
+				String server = (String) shardTable.getValue("shardServer");
+				String rdataFile = (String) shardTable.getValue("shardRDataFile");
+				RNodeEndpoint<RNodeSession> endpoint = findEndpoint(server);
+				if (endpoint == null) {
+					throw new RNodeException(this, methodName, 7875, "Shard server is not a configured server", getName(), server);
+				}
+				if (rdataFile != null && !rdataFile.isEmpty()) {
+					endpoint.setRDataFile(new RNodeFile(this, rdataFile, iFilePollingInterval));
+				}
+			}
+		}
+		
+		// If a shard key has been provided, parse it and place the servers on the hash ring used to route messages by key.
+		if (!iShardKeyProperty.isEmpty()) {
+			iShardKey = new MbXPath(iShardKeyProperty, iNamespaceBindings);
+			iShardRing = new RNodeShardRing(iEndpoints);
+		}
+		
 		// Mapping of variable and data frames to names.
 		Map<String, RNodeVariable> variables = new HashMap<>();
 		Map<String, RNodeDataFrame> dataFrames = new HashMap<>();
@@ -525,30 +1056,73 @@ public class RNode extends MbNode implements MbNodeInterface {
 			
 		}
 		
-		// Catch any exceptions - we must shutdown the pool if we fail to open a connecton.
+		// Record the order in which the IN and INOUT values are packed into the input list.
+		List<String> inNames = new ArrayList<>();
+		inNames.addAll(iInVariables.keySet());
+		inNames.addAll(iInDataFrames.keySet());
+		iInNames = inNames.toArray(new String[0]);
+		
+		// Build the R character vector naming the INOUT and OUT values to return. An empty c() is NULL in R,
+		// which mget() rejects, so a node without any INOUT or OUT values uses an empty character vector.
+		StringBuilder outNames = new StringBuilder("c(");
+		for (String name : iOutVariables.keySet()) {
+			outNames.append(outNames.length() > 2 ? "," : "").append(quote(name));
+		}
+		for (String name : iOutDataFrames.keySet()) {
+			outNames.append(outNames.length() > 2 ? "," : "").append(quote(name));
+		}
+		iOutNames = outNames.length() > 2 ? outNames.append(")").toString() : "character(0)";
+		iOutExpression = "mget(" + iOutNames + ",envir=.GlobalEnv,ifnotfound=list(NULL))";
+		
+		// Build the resident function that assigns the input values, evaluates the byte-compiled evaluate
+		// script and then collects the output values (split by message if batching is enabled), and the
+		// call to it made for each message. The function itself is byte-compiled if possible.
+		// If the sessions of the engine share one global environment, other nodes may evaluate the same script
+		// with different values or batch settings, so the name of the function also identifies this node.
+		String key = iEvaluateScript.getKey();
+		String outputs = iMaximumBatchSize > 1 ? RNodeBatcher.getSplitExpression(iOutNames) : iOutExpression;
+		String function = ".iib_r_evaluate_" + key + (iEngine.isSharedEnvironment() ? "_" + iInstance : "");
+		iEvaluateFunction = function + " <- local({f <- function(.iib_r_in) try({list2env(.iib_r_in,envir=.GlobalEnv);" +
+			"eval(.iib_r_compiled_script_" + key + ",envir=.GlobalEnv);" + outputs + "},silent=TRUE);" +
+			"tryCatch(compiler::cmpfun(f),error=function(e) f)})";
+		iEvaluateCall = function + "(.iib_r_in)";
+		
+		// If batching has been enabled, create the batcher for this node, or for each server if sharding is enabled.
+		if (iMaximumBatchSize > 1) {
+			iBatchers = new RNodeBatcher[iShardRing != null ? iEndpoints.size() : 1];
+			for (int i = 0; i < iBatchers.length; i++) {
+				iBatchers[i] = newBatcher(iShardRing != null ? iEndpoints.get(i) : null);
+			}
+		}
+		
+		// Create a new connection pool for each server configured on this node. Each pool keeps the minimum number of
+		// connections open in the background, and closes connections beyond the minimum once they have been idle too long.
+		// The minimum number of connections are opened in parallel now, rather than by the first messages.
+		iWarmUp = new RNodeWarmUp(this, iReadyConnections);
+		for (RNodeEndpoint<RNodeSession> endpoint : iEndpoints) {
+			endpoint.setEngine(iEngine);
+			endpoint.setPool(new RNodeConnectionPool<RNodeSession>(newConnectionFactory(endpoint), iMaximumConnections, iMinimumConnections, iIdleConnectionTimeout, iConnectionValidationInterval));
+			endpoint.getPool().setWaitLimits(iMaximumConnectionWait, iMaximumWaitingMessages);
+			iWarmUp.add(endpoint.getPool().warmUp(iWarmUp));
+		}
+		iWarmUp.start();
+		
+		// Publish the metrics for this node through JMX, and write them to a file if one has been provided.
+		String flowName = "";
 		try {
-
-			// Create a new connection pool for this node.
-			iConnectionPool = new GenericObjectPool<Connection>(iConnectionFactory);
-			
-			// Configure the connection pool.
-			iConnectionPool.setMaxTotal(iMaximumConnections);
-			iConnectionPool.setMaxIdle(Integer.MAX_VALUE);
-			iConnectionPool.setMinIdle(iMinimumConnections);
-			iConnectionPool.setMinEvictableIdleTimeMillis(Long.MAX_VALUE);
-			iConnectionPool.setSoftMinEvictableIdleTimeMillis(iIdleConnectionTimeout * 1000);
-			iConnectionPool.setNumTestsPerEvictionRun(iMaximumConnections);
-			iConnectionPool.setTimeBetweenEvictionRunsMillis(100);
-			
+			flowName = getMessageFlow().getName();
 		} catch (Exception e) {
-			
-			// Shutdown the pool and rethrow the exception.
-			if (iConnectionPool != null) {
-				iConnectionPool.close();
-				iConnectionPool = null;
-			}
-			throw e;
-			
+			// Ignore - the metrics are published without the message flow name.
+		}
+		iMetrics = new RNodeMetrics(this, flowName, iEndpoints);
+		iMetrics.register();
+		if (iMetricsFile != null) {
+			iMetrics.startWriting(iMetricsFile);
+		}
+		
+		// Capture the input values of slow messages if a capture file has been provided.
+		if (iCaptureFile != null) {
+			iCapture = new RNodeCapture(this, iCaptureFile, iCaptureThreshold, iOutExpression);
 		}
 		
 	}
@@ -585,38 +1159,70 @@ public class RNode extends MbNode implements MbNodeInterface {
 		xpathVariables.assign("OutputExceptionList", outAssembly.getExceptionList().getRootElement());
 		xpathVariables.assign("Environment", outAssembly.getGlobalEnvironment().getRootElement());
 		
-		Connection connection = null;
+		// Resolve the user trace for the converted values of this message once, rather than for each value.
+		RNodeTrace trace = RNodeTrace.forMessage(iConversionTraceLevel, iConversionTraceSampleRate, iConversionTraceCount);
+		
+		// Run the R phase of processing the message. Any connection to Rserve used by this node
+		// has been returned to the connection pool by the time this completes. If it is being
+		// recorded, a Flight Recorder event covers the R phase and counts the data frame rows.
+		// If it takes longer than the capture threshold, the converted input values are captured.
+		Object event = RNodeEvents.EVALUATE.begin();
+		long rows = 0;
+		long messageStart = System.nanoTime();
+		REXP[] capturedValues = null;
 		try {
 			
-			// Request a connection from the connection pool.
-			// This will block until a connection becomes available.
-			connection = iConnectionPool.borrowObject();
-			
-			// Process any IN and INOUT variables.
+			// Convert any IN and INOUT variables and data frames into R values.
+			// This happens before a connection is requested, as it does not need one.
+			long phaseStart = messageStart;
+			REXP[] inValues = new REXP[iInNames.length];
+			int i = 0;
 			for (RNodeVariable variable : iInVariables.values()) {
-				variable.toR(connection, inMessage, xpathVariables);
+				inValues[i++] = variable.toR(inMessage, xpathVariables, trace);
 			}
-			
-			// Process any IN and INOUT data frames.
 			for (RNodeDataFrame dataFrame : iInDataFrames.values()) {
-				dataFrame.toR(connection, inMessage, xpathVariables);
+				inValues[i] = dataFrame.toR(inMessage, xpathVariables, trace);
+				if (event != null) {
+					rows += countRows(inValues[i]);
+				}
+				i++;
 			}
+			iMetrics.record(RNodeMetrics.TO_R, System.nanoTime() - phaseStart);
+			capturedValues = inValues;
+			
+			// Hold this message until enough connections have been opened by the warm-up.
+			iWarmUp.await();
 			
-			// Run the evaluate script.
-			runScript(connection, iEvaluateScript);
+			// If sharding is enabled, find the server that owns the key of this message.
+			int shard = iShardRing != null ? iShardRing.get(getShardKey(inMessage, xpathVariables)) : -1;
+			
+			// If batching is enabled, wait for the batch containing this message to be processed.
+			// Otherwise, send all of the IN and INOUT values, run the evaluate script and get back
+			// all of the INOUT and OUT values in a single request.
+			RList outValues;
+			if (iBatchers != null) {
+				outValues = iBatchers[shard != -1 ? shard : 0].submit(inValues);
+			} else {
+				// The resident function always reads .iib_r_in, so it is assigned even when it is an empty list.
+				REXP inList = createList(iInNames, inValues);
+				outValues = runEvaluateScript(shard != -1 ? iEndpoints.get(shard) : null, inList).asList();
+			}
 			
 			// Process any INOUT and OUT data frames.
+			phaseStart = System.nanoTime();
 			for (RNodeDataFrame dataFrame : iOutDataFrames.values()) {
-				dataFrame.fromR(connection, outMessage, xpathVariables);
+				REXP value = outValues.at(dataFrame.getName());
+				dataFrame.fromR(value, outMessage, xpathVariables, trace);
+				if (event != null) {
+					rows += countRows(value);
+				}
 			}
 			
 			// Process any INOUT and OUT variables.
 			for (RNodeVariable variable : iOutVariables.values()) {
-				variable.fromR(connection, outMessage, xpathVariables);
+				variable.fromR(outValues.at(variable.getName()), outMessage, xpathVariables, trace);
 			}
-						
-			// Propagate the output message to the output terminal.
-			iOutputTerminal.propagate(outAssembly);
+			iMetrics.record(RNodeMetrics.FROM_R, System.nanoTime() - phaseStart);
 			
 		} catch (RNodeException e) {
 			throw e;
@@ -628,12 +1234,158 @@ public class RNode extends MbNode implements MbNodeInterface {
 			e.printStackTrace(pw);
 			throw new RNodeException(this, methodName, 7866, "Unknown exception caught", e.toString(), sw.toString());
 		} finally {
+			if (event != null) {
+				RNodeEvents.EVALUATE.commit(event, getName(), rows);
+			}
+			if (iCapture != null && capturedValues != null) {
+				iCapture.capture(System.nanoTime() - messageStart, iInNames, capturedValues, iEvaluateScript);
+			}
+		}
+		
+		// Propagate the output message to the output terminal.
+		// Any exceptions thrown by the downstream flow are passed back unchanged.
+		long propagateStart = System.nanoTime();
+		try {
+			iOutputTerminal.propagate(outAssembly);
+		} finally {
+			iMetrics.record(RNodeMetrics.PROPAGATE, System.nanoTime() - propagateStart);
+		}
+		
+	}
+	
+	/**
+	 * Count the rows in a data frame value, which is a list of columns of the same length.
+	 * @param value the data frame value, or null.
+	 * @return the number of rows, or 0 if the value is not a list.
+	 */
+	private static long countRows(REXP value) {
+		try {
+			if (value != null && value.isList()) {
+				RList columns = value.asList();
+				return columns.size() > 0 ? columns.at(0).length() : 0;
+			}
+		} catch (REXPMismatchException e) {
+			// Ignore - the value does not have rows.
+		}
+		return 0;
+	}
+	
+	/**
+	 * Evaluate the shard key XPath expression against the specified input message.
+	 * @param message the input message.
+	 * @param xpathVariables the set of XPath variables to use.
+	 * @return the key of the message.
+	 * @throws RNodeException if the XPath expression returns an empty nodeset.
+	 * @throws MbException if a problem occurs accessing the input message.
+	 */
+	private String getShardKey(MbMessage message, MbXPathVariables xpathVariables) throws RNodeException, MbException {
+		final String methodName = "getShardKey";
+		Object value = message.evaluateXPath(iShardKey, xpathVariables);
+		if (value instanceof List<?>) {
+			List<?> nodeset = (List<?>) value;
+			if (nodeset.isEmpty()) {
+				throw new RNodeException(this, methodName, 7876, "Shard key XPath result is empty nodeset", getName(), iShardKeyProperty);
+			}
+			String key = ((MbElement) nodeset.get(0)).getValueAsString();
+			return key != null ? key : "";
+		}
+		return String.valueOf(value);
+	}
+	
+	/**
+	 * Run the evaluate script on a connection from the connection pool for the specified server. If the
+	 * connection is lost and retries are enabled, the evaluate script is run again on a new connection,
+	 * selecting the server again unless a server was specified.
+	 * @param endpoint the server to run the evaluate script on, or null to select the server.
+	 * @param inputs a named list of values to assign to R variables before the script is evaluated.
+	 * @return the INOUT and OUT values collected after the script is evaluated.
+	 * @throws Exception if a problem occurs requesting a connection or evaluating the script.
+	 */
+	private REXP runEvaluateScript(RNodeEndpoint<RNodeSession> endpoint, REXP inputs) throws Exception {
+		final String methodName = "runEvaluateScript";
+		for (int retries = 0; ; retries++) {
+			RNodeEndpoint<RNodeSession> selected = endpoint != null ? endpoint : RNodeEndpoint.select(iEndpoints);
+			REXP result = runEvaluateScript(selected, inputs, retries < iMaximumRetries);
+			if (result != null) {
+				return result;
+			}
+			RNodeLog.logUserTrace(this, methodName, 7879, "Retrying evaluate script on a new connection", getName(), selected.getHostName(), selected.getPort(), retries + 1);
+		}
+	}
+	
+	/**
+	 * Run the evaluate script on a connection from the connection pool for the specified server, which is
+	 * returned to the connection pool before this method returns. A connection that has been lost is
+	 * closed rather than returned, and counts as a failure of the server. A connection that is closed
+	 * because the evaluate script ran for longer than the evaluation timeout is not returned either, but
+	 * does not count as a failure of the server, as the problem lies with the script or its inputs.
+	 * A message that cannot get a connection within the wait limits fails without counting against the server.
+	 * @param endpoint the server to run the evaluate script on.
+	 * @param inputs a named list of values to assign to R variables before the script is evaluated.
+	 * @param retry true if the evaluate script can be retried if the connection is lost.
+	 * @return the INOUT and OUT values collected after the script is evaluated, or null if the connection was lost and the evaluate script can be retried.
+	 * @throws Exception if a problem occurs requesting a connection or evaluating the script.
+	 */
+	private REXP runEvaluateScript(RNodeEndpoint<RNodeSession> endpoint, REXP inputs, boolean retry) throws Exception {
+		final String methodName = "runEvaluateScript";
+		RNodeConnectionPool<RNodeSession> pool = endpoint.getPool();
+		long startTime = endpoint.begin();
+		boolean reachable = false;
+		boolean overloaded = false;
+		try {
 			
-			// Ensure that the connection is returned to the connection pool.
-			if (connection != null) {
-				iConnectionPool.returnObject(connection);
+			// Request a connection from the connection pool.
+			// This will block until a connection becomes available, within the wait limits.
+			RNodeConnectionPool.Entry<RNodeSession> entry;
+			long borrowStart = System.nanoTime();
+			try {
+				entry = pool.borrow();
+				iMetrics.record(RNodeMetrics.BORROW_WAIT, System.nanoTime() - borrowStart);
+			} catch (TimeoutException e) {
+				overloaded = true;
+				throw new RNodeException(this, methodName, 7881, "Timed out waiting for connection to Rserve server", getName(), endpoint.getHostName(), endpoint.getPort(), iMaximumConnectionWait);
+			} catch (RejectedExecutionException e) {
+				overloaded = true;
+				throw new RNodeException(this, methodName, 7882, "Too many messages waiting for connection to Rserve server", getName(), endpoint.getHostName(), endpoint.getPort(), iMaximumWaitingMessages);
 			}
+			RNodeSession connection = entry.getConnection();
 			
+			// If an evaluation timeout has been set, close the connection if the script is still running when it expires.
+			ScheduledFuture<?> deadline = iEvaluationTimeout > 0 ? connection.startDeadline(iEvaluationTimeout) : null;
+			long evaluateStart = System.nanoTime();
+			try {
+				return runScript(connection, iEvaluateScript, inputs, iEvaluateCall);
+			} catch (RNodeException e) {
+				if (connection.isTimedOut()) {
+					long timeouts = iEvaluationTimeouts.incrementAndGet();
+					throw new RNodeException(this, methodName, 7880, "R runtime exceeded evaluation timeout", getName(), iEvaluateScript.getFileName(), iEvaluationTimeout, timeouts);
+				} else if (retry && connection.isBroken()) {
+					return null;
+				}
+				throw e;
+			} finally {
+				
+				// Ensure that the connection is returned to the connection pool, or closed if it has been lost or timed out.
+				iMetrics.record(RNodeMetrics.EVALUATE, System.nanoTime() - evaluateStart);
+				if (deadline != null) {
+					connection.stopDeadline(deadline);
+				}
+				boolean broken = connection.isBroken();
+				reachable = !broken || connection.isTimedOut();
+				if (!broken) {
+					pool.release(entry);
+				} else {
+					pool.invalidate(entry);
+				}
+				
+			}
+			
+		} finally {
+			if (overloaded) {
+				endpoint.cancel();
+			} else {
+				endpoint.end(startTime, reachable);
+			}
 		}
 	}
 	
@@ -642,106 +1394,132 @@ public class RNode extends MbNode implements MbNodeInterface {
 	 */
 	public void onDelete() {
 		
+		// Stop publishing the metrics for this node.
+		if (iMetrics != null) {
+			iMetrics.close();
+		}
+		
+		// Stop capturing the input values of slow messages.
+		if (iCapture != null) {
+			iCapture.close();
+		}
+		
 		// Close all active connections to Rserve.
-		if (iConnectionPool != null) {
-			iConnectionPool.close();
-			iConnectionPool = null;
+		for (RNodeEndpoint<RNodeSession> endpoint : iEndpoints) {
+			endpoint.close();
+		}
+		
+		// Stop watching the scripts and RData file for updates.
+		for (RNodeScript script : new RNodeScript[] { iConnectScript, iEvaluateScript, iDisconnectScript }) {
+			if (script != null) {
+				script.close();
+			}
+		}
+		if (iRDataFile != null) {
+			iRDataFile.close();
 		}
 		
 	}
 	
 	/**
 	 * Parse and evaluate the specified script on the provided Rserve connection.
-	 * The script will be checked to see if has been updated before it is parsed and evaluated.
+	 * The script will be reparsed if it has been updated since this connection last parsed it.
+	 * @param connection the established Rserve connection to use.
+	 * @param script the script to parse and evaluate.
+	 * @throws RNodeException if a problem occurs parsing or evaluating the specified script.
+	 * @throws MbException if a problem occurs during user trace processing.
+	 */
+	private void runScript(RNodeSession connection, RNodeScript script) throws RNodeException, MbException {
+		runScript(connection, script, null, "try(eval(.iib_r_compiled_script_" + script.getKey() + ",envir=.GlobalEnv),silent=TRUE)");
+	}
+	
+	/**
+	 * Parse and evaluate the specified script on the provided Rserve connection, passing in and returning values.
+	 * The script will be reparsed and byte-compiled if it has been updated since this connection last parsed it.
+	 * The input values are assigned in one request, and the script is evaluated by the specified call in a
+	 * second request - regardless of the number of input and output values.
 	 * @param connection the established Rserve connection to use.
 	 * @param script the script to parse and evaluate.
+	 * @param inputs a named list of values to assign to the R variable .iib_r_in before the call, or null.
+	 * @param call an R expression that evaluates the byte-compiled script inside try, and returns the result.
+	 * @return the result of the call.
 	 * @throws RNodeException if a problem occurs parsing or evaluating the specified script.
 	 * @throws MbException if a problem occurs during user trace processing.
 	 */
-	private void runScript(Connection connection, RNodeScript script) throws RNodeException, MbException {
+	private REXP runScript(RNodeSession connection, RNodeScript script, REXP inputs, String call) throws RNodeException, MbException {
 		final String methodName = "runScript";
 		RNodeLog.logUserTrace(this, methodName, 7826, "About to evaluate file using R runtime", getName(), script.getFileName());
+		Object event = RNodeEvents.RUN_SCRIPT.begin();
+		RNodeScript.Snapshot snapshot = script.getSnapshot();
+		boolean parsed = false;
 		try {
 			
-			// Check to see if the script has been updated.
-			script.update();
-			
 			// Check to see if we need to update the parsed script.
-			// The file may have been updated since we last parsed it.
-			String parsedScriptVariable = ".iib_r_parsed_script_" + script.getKey();
-			Lock readLock = script.getReadLock();
-			readLock.lock();
-			try {
-				if (connection.checkScriptVersion(script.getKey(), script.getVersion())) {
-					
-					// Assign the script contents to an R variable.
-					String scriptVariable = ".iib_r_script_" + script.getKey();
-					connection.assign(scriptVariable, script.getContent());
-					
-					// Parse the script contents on the Rserve server into an R language object.
-					// We use try, as it also allows us to retrieve the error messages from the R runtime.
-					REXP result = connection.parseAndEval("try(" + parsedScriptVariable + " <- parse(text=" + scriptVariable + "),silent=TRUE)");
-					if (result.inherits("try-error")) {
-						throw new RNodeException(this, methodName, 7810, "R runtime failed to parse file contents", getName(), script.getFileName(), result.asString());
-					}
-					
+			// The file may have been updated since we last parsed it. The contents and version
+			// are read from the same snapshot, which cannot change while we are using it.
+			if (connection.checkScriptVersion(script.getKey(), snapshot.getVersion())) {
+				parsed = true;
+				
+				// Parse the script contents in the R session, leaving the parsed script in the R variable that
+				// the evaluate function and runScript() evaluate.
+				REXP result = connection.parseScript(script.getKey(), snapshot.getContent());
+				if (result.inherits("try-error")) {
+					throw new RNodeException(this, methodName, 7810, "R runtime failed to parse file contents", getName(), script.getFileName(), result.asString());
 				}
-			} finally {
-				readLock.unlock();
+				
+			}
+			
+			// Assign all of the input values to a single R variable on the Rserve server.
+			if (inputs != null) {
+				connection.assign(".iib_r_in", inputs);
 			}
 			
-			// Evaluate the R script on the Rserve server.
-			// We use try, as it also allows us to retrieve the error messages from the R runtime.
-			REXP result = connection.parseAndEval("try(eval(" + parsedScriptVariable + "),silent=TRUE)");
+			// Evaluate the R script on the Rserve server, which also collects all of the output values.
+			REXP result = connection.evaluate(call);
 			
 			// Check to see if an error occurred - if so, throw an exception containing the error messages.
 			if (result.inherits("try-error")) {
 				throw new RNodeException(this, methodName, 7811, "R runtime failed to evaluate file contents", getName(), script.getFileName(), result.asString());
 			}
 			RNodeLog.logUserTrace(this, methodName, 7827, "R runtime successfully evaluated file", getName(), script.getFileName());
+			return result;
 			
 		} catch (REngineException | REXPMismatchException e) {
+			
+			// The session records whether the request failed because the session has been lost.
 			throw new RNodeException(this, methodName, 7811, "R runtime failed to evaluate file contents", getName(), script.getFileName(), e.getMessage());
+			
+		} finally {
+			if (event != null) {
+				long bytes = 0;
+				if (parsed) {
+					for (String line : snapshot.getContent()) {
+						bytes += line.getBytes(StandardCharsets.UTF_8).length + 1;
+					}
+				}
+				RNodeEvents.RUN_SCRIPT.commit(event, getName(), connection.toString(), script.getKey(), snapshot.getVersion(), parsed, bytes);
+			}
 		}
 	}
 	
 	/**
-	 * A small class built on top of an Rserve connection that maintains a per-connection
-	 * mapping of parsed scripts and the versions of those parsed scripts.
+	 * Create a named R list from the specified names and values.
+	 * @param names the names of the list elements.
+	 * @param values the values of the list elements.
+	 * @return the named R list.
 	 */
-	private class Connection extends RConnection {
-		
-		/**
-		 * The mapping of parsed scripts and their current versions.
-		 */
-		private Map<String, Long> iScriptVersions;
-		
-		/**
-		 * Constructor for a connection - connect to an Rserve server.
-		 * @param hostname the Rserve server hostname.
-		 * @param port the Rserve server port.
-		 * @throws RserveException if an exception occurs connecting to the Rserve server.
-		 */
-		public Connection(String hostname, int port) throws RserveException {
-			super(hostname, port);
-			iScriptVersions = new HashMap<>();
-		}
-		
-		/**
-		 * Check to see if the specified script has been parsed by this connection, and
-		 * if it has whether the parsed version is the current version.
-		 * @param key the key used to identify this script.
-		 * @param currentVersion the current version of this script.
-		 * @return true if the specified script has not been parsed or is out of date.
-		 */
-		public boolean checkScriptVersion(String key, long currentVersion) {
-			Long parsedVersion = iScriptVersions.get(key);
-			boolean result = parsedVersion == null || !parsedVersion.equals(currentVersion);
-			if (result)
-				iScriptVersions.put(key, currentVersion);
-			return result;
-		}
-		
+	static REXP createList(String[] names, REXP[] values) {
+		REXPList attributes = new REXPList(new RList(new REXP[] { new REXPString(names) }, new String[] { "names" }));
+		return new REXPGenericVector(new RList(values, names), attributes);
+	}
+	
+	/**
+	 * Quote the specified string for use as a string literal in an R expression.
+	 * @param value the string to quote.
+	 * @return the quoted string.
+	 */
+	static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
 	}
 	
 }
@@ -0,0 +1,436 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPLogical;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPNull;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.RList;
+
+/**
+ * A class that collects the converted input values of messages arriving on several threads of an
+ * instance of an R node, so that they can be processed by a single evaluation of the evaluate script.
+ * The first thread to arrive leads a batch and waits for it to fill up or for the linger time to
+ * expire before processing it; the other threads wait for the results of the batch they joined.
+ *
+ * Input values are stacked into a single R value per name. Vectors are concatenated, and the message
+ * number (starting from 1) of each element is recorded in the R variable .iib_r_index; data frames are
+ * combined by row, and the message number of each row is recorded in the .iib_r_message column. The
+ * number of messages in the batch is recorded in the R variable .iib_r_messages.
+ *
+ * Output values are split back into messages only by these records: a data frame by its .iib_r_message
+ * column, and a vector by the entry in .iib_r_index with its name, if that has the same length. A script
+ * that creates an output value for each message records its message numbers in the same way, and a value
+ * that applies to the whole batch is named in the R variable .iib_r_batch_wide (which is empty at the start
+ * of each batch) so that it is returned whole to every message. Any other output value fails the batch.
+ */
+public class RNodeBatcher {
+	
+	/**
+	 * The name of the R variable containing the number of messages in the batch.
+	 */
+	public static final String MESSAGES_VARIABLE = ".iib_r_messages";
+	
+	/**
+	 * The name of the R variable containing the message numbers of the elements of each stacked vector.
+	 */
+	public static final String INDEX_VARIABLE = ".iib_r_index";
+	
+	/**
+	 * The name of the data frame column containing the message numbers of each stacked row.
+	 */
+	public static final String MESSAGE_COLUMN = ".iib_r_message";
+	
+	/**
+	 * The name of the R variable in which the evaluate script names the output values that apply to the whole batch.
+	 */
+	public static final String BATCH_WIDE_VARIABLE = ".iib_r_batch_wide";
+	
+	/**
+	 * An R function that splits the output values of a batch back into one named list per message.
+	 * Data frames are split by their message column, and vectors by the index with the same name if it
+	 * has the same length. NULL values and values named as batch wide are returned whole to every message.
+	 * If any other value is found, the function fails before splitting anything.
+	 */
+	private static final String SPLIT_FUNCTION =
+		"function(out) {" +
+			"k <- mapply(function(x, n) {" +
+				"if (is.null(x)) 0L " +
+				"else if (is.data.frame(x) && \"" + MESSAGE_COLUMN + "\" %in% names(x)) 1L " +
+				"else if (!is.data.frame(x) && !is.null(" + INDEX_VARIABLE + "[[n]]) && length(x) == length(" + INDEX_VARIABLE + "[[n]])) 2L " +
+				"else if (n %in% " + BATCH_WIDE_VARIABLE + ") 0L " +
+				"else stop(\"cannot split output value \", n, \" by message - it has no " + MESSAGE_COLUMN + " column or matching " +
+					INDEX_VARIABLE + " entry, and is not named in " + BATCH_WIDE_VARIABLE + "\", call.=FALSE)" +
+			"}, out, names(out), SIMPLIFY=FALSE);" +
+			"lapply(seq_len(" + MESSAGES_VARIABLE + "), function(m) mapply(function(x, n, k) {" +
+				"if (k == 1L) x[x$" + MESSAGE_COLUMN + " == m, setdiff(names(x), \"" + MESSAGE_COLUMN + "\"), drop=FALSE] " +
+				"else if (k == 2L) x[" + INDEX_VARIABLE + "[[n]] == m] else x" +
+			"}, out, names(out), k, SIMPLIFY=FALSE))" +
+		"}";
+		
+	/**
+	 * An interface implemented by the owner of a batcher to process a complete batch.
+	 */
+	public interface Processor {
+		
+		/**
+		 * Process a complete batch of messages.
+		 * @param inputs the stacked input values for the batch, as returned by {@link RNodeBatcher#stack(String[], List)}.
+		 * @param messages the number of messages in the batch.
+		 * @return the split output values for the batch, as returned by {@link RNodeBatcher#split(REXP, int)}.
+		 * @throws Exception if a problem occurs processing the batch.
+		 */
+		public RList[] process(REXP inputs, int messages) throws Exception;
+		
+	}
+	
+	/**
+	 * A class that represents a batch of messages being collected or processed.
+	 */
+	private class Batch {
+		
+		/**
+		 * The converted input values of each message in this batch.
+		 */
+		private List<REXP[]> iInputs = new ArrayList<>();
+		
+		/**
+		 * Signalled when this batch is full.
+		 */
+		private Condition iFull = iLock.newCondition();
+		
+		/**
+		 * Signalled when this batch has been processed.
+		 */
+		private Condition iProcessed = iLock.newCondition();
+		
+		/**
+		 * Whether this batch has been processed.
+		 */
+		private boolean iDone = false;
+		
+		/**
+		 * The output values of each message in this batch, once processed.
+		 */
+		private RList[] iOutputs = null;
+		
+		/**
+		 * The exception thrown processing this batch, if any.
+		 */
+		private Exception iException = null;
+		
+	}
+	
+	/**
+	 * The names of the input values, in the order they are provided for each message.
+	 */
+	private String[] iNames;
+	
+	/**
+	 * The processor used to process each complete batch.
+	 */
+	private Processor iProcessor;
+	
+	/**
+	 * The maximum number of messages in a batch.
+	 */
+	private int iMaximumBatchSize;
+	
+	/**
+	 * The maximum time (in nanoseconds) that the first message in a batch waits for the batch to fill up.
+	 */
+	private long iLingerTime;
+	
+	/**
+	 * A lock protecting the batch currently being collected.
+	 */
+	private Lock iLock = new ReentrantLock();
+	
+	/**
+	 * The batch currently being collected, or null if no batch is being collected.
+	 */
+	private Batch iCurrent = null;
+	
+	/**
+	 * Constructor.
+	 * @param names the names of the input values, in the order they are provided for each message.
+	 * @param processor the processor used to process each complete batch.
+	 * @param maximumBatchSize the maximum number of messages in a batch.
+	 * @param lingerTime the maximum time (in milliseconds) that the first message in a batch waits for the batch to fill up.
+	 */
+	public RNodeBatcher(String[] names, Processor processor, int maximumBatchSize, long lingerTime) {
+		iNames = names;
+		iProcessor = processor;
+		iMaximumBatchSize = maximumBatchSize;
+		iLingerTime = TimeUnit.MILLISECONDS.toNanos(lingerTime);
+	}
+	
+	/**
+	 * Get an R expression that collects the named output values after the evaluate script has run
+	 * on a batch, and splits them into one named list per message.
+	 * @param outputs an R character vector naming the output values.
+	 * @return the R expression.
+	 */
+	public static String getSplitExpression(String outputs) {
+		return "(" + SPLIT_FUNCTION + ")(mget(" + outputs + ",envir=.GlobalEnv,ifnotfound=list(NULL)))";
+	}
+	
+	/**
+	 * Add the converted input values for a message to a batch, and wait until that batch has been processed.
+	 * @param inputs the converted input values for the message, in the order of the names provided at construction.
+	 * @return the output values for the message.
+	 * @throws Exception if a problem occurs processing the batch.
+	 */
+	public RList submit(REXP[] inputs) throws Exception {
+		
+		// Join the batch currently being collected, or start a new one.
+		Batch batch;
+		int index;
+		boolean leader;
+		iLock.lock();
+		try {
+			leader = iCurrent == null;
+			if (leader) {
+				iCurrent = new Batch();
+			}
+			batch = iCurrent;
+			index = batch.iInputs.size();
+			batch.iInputs.add(inputs);
+			
+			// If the batch is now full, stop collecting it and wake up its leader.
+			if (batch.iInputs.size() >= iMaximumBatchSize) {
+				iCurrent = null;
+				batch.iFull.signal();
+			}
+		} finally {
+			iLock.unlock();
+		}
+		
+		// The leader waits for the batch to fill up, or the linger time to expire, and then processes it.
+		if (leader) {
+			iLock.lock();
+			try {
+				long remaining = iLingerTime;
+				while (iCurrent == batch && remaining > 0) {
+					remaining = batch.iFull.awaitNanos(remaining);
+				}
+				if (iCurrent == batch) {
+					iCurrent = null;
+				}
+			} catch (InterruptedException e) {
+				if (iCurrent == batch) {
+					iCurrent = null;
+				}
+				Thread.currentThread().interrupt();
+			} finally {
+				iLock.unlock();
+			}
+			
+			// No more messages can join the batch, so it can be processed without holding the lock.
+			RList[] outputs = null;
+			Exception exception = null;
+			try {
+				outputs = iProcessor.process(stack(iNames, batch.iInputs), batch.iInputs.size());
+			} catch (Exception e) {
+				exception = e;
+			}
+			
+			// Wake up the other messages in the batch.
+			iLock.lock();
+			try {
+				batch.iOutputs = outputs;
+				batch.iException = exception;
+				batch.iDone = true;
+				batch.iProcessed.signalAll();
+			} finally {
+				iLock.unlock();
+			}
+			
+		// The other messages wait for the leader to process the batch.
+		} else {
+			iLock.lock();
+			try {
+				while (!batch.iDone) {
+					batch.iProcessed.awaitUninterruptibly();
+				}
+			} finally {
+				iLock.unlock();
+			}
+		}
+		
+		// Return the output values for this message, or the exception thrown processing the batch.
+		if (batch.iException != null) {
+			throw batch.iException;
+		}
+		return batch.iOutputs[index];
+		
+	}
+	
+	/**
+	 * Stack the converted input values for a batch of messages into a single named R list, which
+	 * includes the message index variables described above and an empty list of batch wide values.
+	 * @param names the names of the input values.
+	 * @param inputs the converted input values for each message in the batch.
+	 * @return the named R list.
+	 * @throws REXPMismatchException if an input value is not a vector or data frame.
+	 */
+	public static REXP stack(String[] names, List<REXP[]> inputs) throws REXPMismatchException {
+		int messages = inputs.size();
+		REXP[] values = new REXP[names.length];
+		REXP[] indexes = new REXP[names.length];
+		for (int i = 0; i < names.length; i++) {
+			REXP[] parts = new REXP[messages];
+			for (int j = 0; j < messages; j++) {
+				parts[j] = inputs.get(j)[i];
+			}
+			
+			// Data frames are combined column by column, with an additional message column.
+			if (parts[0].isList() && parts[0].inherits("data.frame")) {
+				String[] columnNames = parts[0].asList().keys();
+				REXP[] columnValues = new REXP[columnNames.length + 1];
+				for (int k = 0; k < columnNames.length; k++) {
+					REXP[] columnParts = new REXP[messages];
+					for (int j = 0; j < messages; j++) {
+						columnParts[j] = parts[j].asList().at(k);
+					}
+					columnValues[k] = concatenate(columnParts);
+				}
+				columnValues[columnNames.length] = new REXPInteger(createIndex(parts));
+				String[] allColumnNames = new String[columnNames.length + 1];
+				System.arraycopy(columnNames, 0, allColumnNames, 0, columnNames.length);
+				allColumnNames[columnNames.length] = MESSAGE_COLUMN;
+				values[i] = REXP.createDataFrame(new RList(columnValues, allColumnNames));
+				indexes[i] = new REXPNull();
+				
+			// Vectors are concatenated, with the message numbers recorded in the index.
+			} else {
+				values[i] = concatenate(parts);
+				indexes[i] = new REXPInteger(createIndex(parts));
+			}
+			
+		}
+		
+		// Build the named list of stacked values and the message index variables.
+		String[] allNames = new String[names.length + 3];
+		REXP[] allValues = new REXP[names.length + 3];
+		System.arraycopy(names, 0, allNames, 0, names.length);
+		System.arraycopy(values, 0, allValues, 0, names.length);
+		allNames[names.length] = INDEX_VARIABLE;
+		allValues[names.length] = RNode.createList(names, indexes);
+		allNames[names.length + 1] = MESSAGES_VARIABLE;
+		allValues[names.length + 1] = new REXPInteger(messages);
+		allNames[names.length + 2] = BATCH_WIDE_VARIABLE;
+		allValues[names.length + 2] = new REXPString(new String[0]);
+		return RNode.createList(allNames, allValues);
+	}
+	
+	/**
+	 * Split the result of the R expression returned by {@link #getSplitExpression(String)} into the
+	 * output values for each message.
+	 * @param result the result of the R expression.
+	 * @param messages the number of messages in the batch.
+	 * @return the output values for each message.
+	 * @throws REXPMismatchException if the result is not a list with one named list per message.
+	 */
+	public static RList[] split(REXP result, int messages) throws REXPMismatchException {
+		RList results = result.asList();
+		RList[] outputs = new RList[messages];
+		for (int i = 0; i < messages; i++) {
+			outputs[i] = results.at(i).asList();
+		}
+		return outputs;
+	}
+	
+	/**
+	 * Create an array containing the message number (starting from 1) of each element of the specified values.
+	 * @param parts the values for each message.
+	 * @return the message numbers.
+	 * @throws REXPMismatchException if a value has no length.
+	 */
+	private static int[] createIndex(REXP[] parts) throws REXPMismatchException {
+		int total = 0;
+		int[] lengths = new int[parts.length];
+		for (int j = 0; j < parts.length; j++) {
+			lengths[j] = parts[j].isList() ? parts[j].asList().at(0).length() : parts[j].length();
+			total += lengths[j];
+		}
+		int[] index = new int[total];
+		int offset = 0;
+		for (int j = 0; j < parts.length; j++) {
+			for (int k = 0; k < lengths[j]; k++) {
+				index[offset++] = j + 1;
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * Concatenate the specified vectors, which must all be of the same type.
+	 * @param parts the vectors to concatenate.
+	 * @return the concatenated vector.
+	 * @throws REXPMismatchException if the vectors are not logical, integer, double or character vectors.
+	 */
+	private static REXP concatenate(REXP[] parts) throws REXPMismatchException {
+		int total = 0;
+		for (REXP part : parts) {
+			total += part.length();
+		}
+		int offset = 0;
+		if (parts[0] instanceof REXPLogical) {
+			byte[] values = new byte[total];
+			for (REXP part : parts) {
+				byte[] partValues = part.asBytes();
+				System.arraycopy(partValues, 0, values, offset, partValues.length);
+				offset += partValues.length;
+			}
+			return new REXPLogical(values);
+		} else if (parts[0] instanceof REXPInteger) {
+			int[] values = new int[total];
+			for (REXP part : parts) {
+				int[] partValues = part.asIntegers();
+				System.arraycopy(partValues, 0, values, offset, partValues.length);
+				offset += partValues.length;
+			}
+			return new REXPInteger(values);
+		} else if (parts[0] instanceof REXPDouble) {
+			double[] values = new double[total];
+			for (REXP part : parts) {
+				double[] partValues = part.asDoubles();
+				System.arraycopy(partValues, 0, values, offset, partValues.length);
+				offset += partValues.length;
+			}
+			return new REXPDouble(values);
+		} else if (parts[0] instanceof REXPString) {
+			String[] values = new String[total];
+			for (REXP part : parts) {
+				String[] partValues = part.asStrings();
+				System.arraycopy(partValues, 0, values, offset, partValues.length);
+				offset += partValues.length;
+			}
+			return new REXPString(values);
+		}
+		throw new REXPMismatchException(parts[0], "vector");
+	}
+	
+}
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+
+import com.ibm.broker.plugin.MbException;
+
+/**
+ * A class that captures the converted input values of messages that an instance of the R node took longer
+ * than a threshold to process, so that they can be replayed offline against an Rserve server with the
+ * RNodeReplay tool in RNodeBenchmarks.
+ *
+ * The input values are appended to a binary file in the same QAP1 encoding that is sent to Rserve, along
+ * with the key and version of the evaluate script that processed them. The contents of each version of the
+ * evaluate script are written to the file before the first message processed by that version, so the file
+ * can be replayed without access to the original scripts. The file starts with the CAPTURE_MAGIC and
+ * CAPTURE_VERSION integers, followed by any number of records, each of which starts with a record type:
+ *
+ * <pre>
+ * SCRIPT_RECORD:  byte type, UTF key, long version, UTF file name, UTF output expression, int length, byte[length] UTF-8 script
+ * MESSAGE_RECORD: byte type, long time (ms since epoch), long duration (ns), UTF key, long version, int length, byte[length] QAP1 input list
+ * </pre>
+ *
+ * Messages are only checked against the threshold on the thread that processed them. Encoding and writing
+ * a captured message happens on a shared worker thread, and captured messages are discarded rather than
+ * queued without limit if the file cannot be written as fast as messages are captured.
+ */
+public class RNodeCapture {
+	
+	/**
+	 * The integer at the start of a capture file.
+	 */
+	public static final int CAPTURE_MAGIC = 0x524E4341;
+	
+	/**
+	 * The version of the capture file format.
+	 */
+	public static final int CAPTURE_VERSION = 1;
+	
+	/**
+	 * The type of a record containing the contents of a version of the evaluate script.
+	 */
+	public static final byte SCRIPT_RECORD = 1;
+	
+	/**
+	 * The type of a record containing the input values of a captured message.
+	 */
+	public static final byte MESSAGE_RECORD = 2;
+	
+	/**
+	 * The maximum number of captured messages waiting to be written to the file.
+	 */
+	private static final int MAXIMUM_PENDING = 64;
+	
+	/**
+	 * The R node that owns this capture.
+	 */
+	private RNode iOwner;
+	
+	/**
+	 * The file that captured messages are appended to.
+	 */
+	private Path iFile;
+	
+	/**
+	 * The minimum time (in nanoseconds) spent processing a message for it to be captured.
+	 */
+	private long iThreshold;
+	
+	/**
+	 * The R expression that collects the output values after the evaluate script has been run.
+	 */
+	private String iOutExpression;
+	
+	/**
+	 * The number of captured messages waiting to be written to the file.
+	 */
+	private AtomicInteger iPending = new AtomicInteger();
+	
+	/**
+	 * The stream that appends records to the file, or null if the file has not been opened.
+	 */
+	private DataOutputStream iStream = null;
+	
+	/**
+	 * The version of each evaluate script most recently written to the file, by script key.
+	 */
+	private Map<String, Long> iWrittenVersions = new HashMap<>();
+	
+	/**
+	 * Whether the last attempt to write a captured message to the file failed, so that the failure is only logged once.
+	 */
+	private boolean iWriteFailed = false;
+	
+	/**
+	 * Whether this capture has been closed.
+	 */
+	private boolean iClosed = false;
+	
+	/**
+	 * Constructor.
+	 * @param owner the R node that owns this capture.
+	 * @param file the file to append captured messages to.
+	 * @param threshold the minimum time (in milliseconds) spent processing a message for it to be captured.
+	 * @param outExpression the R expression that collects the output values after the evaluate script has been run.
+	 */
+	public RNodeCapture(RNode owner, String file, long threshold, String outExpression) {
+		iOwner = owner;
+		iFile = Paths.get(file);
+		iThreshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+		iOutExpression = outExpression;
+	}
+	
+	/**
+	 * Capture the input values of a message if it took longer than the threshold to process.
+	 * @param duration the time (in nanoseconds) spent processing the message.
+	 * @param names the names of the input values.
+	 * @param values the input values, converted into R values.
+	 * @param script the evaluate script that processed the message.
+	 */
+	public void capture(long duration, String[] names, REXP[] values, RNodeScript script) {
+		if (duration < iThreshold) {
+			return;
+		} else if (iPending.incrementAndGet() > MAXIMUM_PENDING) {
+			iPending.decrementAndGet();
+			return;
+		}
+		final long time = System.currentTimeMillis();
+		final long messageDuration = duration;
+		final REXP inputs = RNode.createList(names, values);
+		final String key = script.getKey();
+		final String fileName = script.getFileName();
+		final RNodeScript.Snapshot snapshot = script.getSnapshot();
+		try {
+			RNodeScheduler.getWorkers().execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						write(time, messageDuration, inputs, key, fileName, snapshot);
+					} finally {
+						iPending.decrementAndGet();
+					}
+				}
+				
+			});
+		} catch (RejectedExecutionException e) {
+			iPending.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Stop capturing messages, and close the file.
+	 */
+	public synchronized void close() {
+		iClosed = true;
+		if (iStream != null) {
+			try {
+				iStream.close();
+			} catch (IOException e) {
+				// Ignore - any captured messages have already been flushed.
+			}
+			iStream = null;
+		}
+	}
+	
+	/**
+	 * Append a captured message to the file, preceded by the evaluate script if this version of it has not been
+	 * written yet. The file is opened, and the header written if the file is empty, when the first message is captured.
+	 * @param time the time (in milliseconds since the epoch) that the message was captured.
+	 * @param duration the time (in nanoseconds) spent processing the message.
+	 * @param inputs the named list of input values.
+	 * @param key the key of the evaluate script.
+	 * @param fileName the file name of the evaluate script.
+	 * @param snapshot the contents and version of the evaluate script.
+	 */
+	private synchronized void write(long time, long duration, REXP inputs, String key, String fileName, RNodeScript.Snapshot snapshot) {
+		final String methodName = "write";
+		if (iClosed) {
+			return;
+		}
+		try {
+			
+			// Encode the input values exactly as they are sent to Rserve.
+			REXPFactory factory = new REXPFactory(inputs);
+			byte[] encoded = new byte[factory.getBinaryLength()];
+			factory.getBinaryRepresentation(encoded, 0);
+			
+			// Open the file, writing the header if it is new.
+			if (iStream == null) {
+				boolean empty = !Files.exists(iFile) || Files.size(iFile) == 0;
+				iStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(iFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+				if (empty) {
+					iStream.writeInt(CAPTURE_MAGIC);
+					iStream.writeInt(CAPTURE_VERSION);
+				}
+			}
+			
+			// Write the evaluate script, if this version has not been written yet.
+			Long writtenVersion = iWrittenVersions.get(key);
+			if (writtenVersion == null || writtenVersion.longValue() != snapshot.getVersion()) {
+				StringBuilder content = new StringBuilder();
+				for (String line : snapshot.getContent()) {
+					content.append(line).append('\n');
+				}
+				byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+				iStream.writeByte(SCRIPT_RECORD);
+				iStream.writeUTF(key);
+				iStream.writeLong(snapshot.getVersion());
+				iStream.writeUTF(fileName);
+				iStream.writeUTF(iOutExpression);
+				iStream.writeInt(bytes.length);
+				iStream.write(bytes);
+				iWrittenVersions.put(key, snapshot.getVersion());
+			}
+			
+			// Write the message, and flush it so that the file can be copied at any time.
+			iStream.writeByte(MESSAGE_RECORD);
+			iStream.writeLong(time);
+			iStream.writeLong(duration);
+			iStream.writeUTF(key);
+			iStream.writeLong(snapshot.getVersion());
+			iStream.writeInt(encoded.length);
+			iStream.write(encoded);
+			iStream.flush();
+			iWriteFailed = false;
+			
+		} catch (IOException | REXPMismatchException e) {
+			
+			// Close the file, so that it is reopened (and the evaluate script written again) for the next message.
+			if (iStream != null) {
+				try {
+					iStream.close();
+				} catch (IOException ioe) {
+					// Ignore - the file is reopened for the next message.
+				}
+				iStream = null;
+			}
+			iWrittenVersions.clear();
+			if (!iWriteFailed) {
+				iWriteFailed = true;
+				try {
+					RNodeLog.logWarning(this, methodName, 7885, "Failed to write capture file", iOwner.getName(), iFile.toString(), e.toString());
+				} catch (MbException mbe) {
+					// Ignore any problems logging the warning.
+				}
+			}
+			
+		}
+	}
+	
+}
@@ -0,0 +1,958 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A class that represents a pool of connections to Rserve for a single instance of the R node.
+ *
+ * Borrowing and returning a connection does not take any locks unless a borrower is waiting. A thread
+ * first tries to reuse the connection it used last, which in the common case of each broker thread
+ * processing its own messages means that it keeps the same Rserve session; otherwise it pops an idle
+ * connection from a lock-free stack, and only creates a new connection if no idle connection is available. The number
+ * of connections borrowed at once is limited by a semaphore, so a borrower blocks when the maximum
+ * number of connections are in use, and a borrower that holds a permit but finds every connection busy
+ * (for example, while connections are being checked) waits to be signalled when one becomes idle or is
+ * closed. The time a borrower waits, and the number of borrowers that can wait at once, can both be
+ * limited so that an overloaded pool fails borrowers quickly rather than queueing them without bound;
+ * the number of waiting borrowers and the time they wait are recorded.
+ *
+ * Idle connections are closed, and the minimum number of connections is restored, by a task that
+ * runs once a second on the scheduler shared by all instances of the R node, rather than by an
+ * evictor thread for each pool. When a pool is created, warmUp() can be used to open the minimum
+ * number of connections in parallel, rather than one at a time.
+ *
+ * A connection that has not been used or checked for longer than the validation interval is checked
+ * before it is borrowed, and idle connections are checked by the housekeeping task, so that connections
+ * to an Rserve server that has been restarted are closed rather than handed out. When a borrowed
+ * connection is found to have been lost, every idle connection is checked before it is next borrowed.
+ * @param <T> the type of the connections in this pool.
+ */
+public class RNodeConnectionPool<T> {
+	
+	/**
+	 * The interval (in milliseconds) between runs of the housekeeping task.
+	 */
+	private static final long HOUSEKEEPING_INTERVAL = 1000;
+	
+	/**
+	 * The state of an entry that is in the pool and can be borrowed.
+	 */
+	private static final int IDLE = 0;
+	
+	/**
+	 * The state of an entry that has been borrowed.
+	 */
+	private static final int IN_USE = 1;
+	
+	/**
+	 * The state of an entry that has been removed from the pool and closed.
+	 */
+	private static final int CLOSED = 2;
+	
+	/**
+	 * An interface for creating and closing the connections in a pool.
+	 * @param <T> the type of the connections in the pool.
+	 */
+	public interface Factory<T> {
+		
+		/**
+		 * Called by the pool when it requires a new connection.
+		 * @return the new connection.
+		 * @throws Exception if the connection cannot be created.
+		 */
+		public T create() throws Exception;
+		
+		/**
+		 * Called by the pool when it closes a connection. Any exception thrown is ignored.
+		 * @param connection the connection to close.
+		 * @throws Exception if a problem occurs closing the connection.
+		 */
+		public void destroy(T connection) throws Exception;
+		
+		/**
+		 * Called by the pool to check that a connection can still be used. This should be cheap, as it is
+		 * called before borrowing a connection that has not been used for longer than the validation interval.
+		 * @param connection the connection to check.
+		 * @return true if the connection can still be used.
+		 * @throws Exception if the connection cannot be used.
+		 */
+		public boolean validate(T connection) throws Exception;
+		
+	}
+	
+	/**
+	 * An interface for receiving the outcome of each connection opened by warmUp().
+	 */
+	public interface WarmUpListener {
+		
+		/**
+		 * Called on a shared worker thread when a connection opened by warmUp() has been created, or has failed to be created.
+		 * @param failure the exception thrown by the factory, or null if the connection was created.
+		 */
+		public void connectionWarmed(Exception failure);
+		
+	}
+	
+	/**
+	 * A class that represents a connection in a pool, which is returned by borrow() and must be passed back to release().
+	 * @param <T> the type of the connection.
+	 */
+	public static class Entry<T> {
+		
+		/**
+		 * The connection.
+		 */
+		private T iConnection;
+		
+		/**
+		 * The state of this entry (IDLE, IN_USE or CLOSED).
+		 */
+		private AtomicInteger iState = new AtomicInteger(IN_USE);
+		
+		/**
+		 * Whether this entry is on the idle stack, so that it is never on the idle stack more than once.
+		 */
+		private AtomicBoolean iOnStack = new AtomicBoolean(false);
+		
+		/**
+		 * The time (from System.nanoTime()) that this entry was last released.
+		 */
+		private volatile long iLastReleased = System.nanoTime();
+		
+		/**
+		 * The time (from System.nanoTime()) that this entry was last released or checked by the factory.
+		 */
+		private volatile long iLastValidated = iLastReleased;
+		
+		/**
+		 * Constructor.
+		 * @param connection the connection.
+		 */
+		private Entry(T connection) {
+			iConnection = connection;
+		}
+		
+		/**
+		 * Get the connection.
+		 * @return the connection.
+		 */
+		public T getConnection() {
+			return iConnection;
+		}
+		
+		/**
+		 * Attempt to move this entry from one state to another.
+		 * @param expected the state this entry must be in.
+		 * @param state the new state.
+		 * @return true if this entry was moved to the new state.
+		 */
+		private boolean transition(int expected, int state) {
+			return iState.get() == expected && iState.compareAndSet(expected, state);
+		}
+		
+	}
+	
+	/**
+	 * A class that represents a node in the idle stack. Nodes are never reused, so the stack is not
+	 * subject to the ABA problem.
+	 * @param <T> the type of the connection.
+	 */
+	private static class Node<T> {
+		
+		/**
+		 * The entry held by this node.
+		 */
+		private final Entry<T> iEntry;
+		
+		/**
+		 * The next node in the stack.
+		 */
+		private Node<T> iNext;
+		
+		/**
+		 * Constructor.
+		 * @param entry the entry held by this node.
+		 */
+		private Node(Entry<T> entry) {
+			iEntry = entry;
+		}
+		
+	}
+	
+	/**
+	 * The factory used to create and close connections.
+	 */
+	private Factory<T> iFactory;
+	
+	/**
+	 * The maximum number of connections.
+	 */
+	private int iMaximumConnections;
+	
+	/**
+	 * The minimum number of connections to keep open.
+	 */
+	private int iMinimumConnections;
+	
+	/**
+	 * The period (in nanoseconds) that a connection can remain idle before it is closed, if there are more than the minimum.
+	 */
+	private long iIdleTimeout;
+	
+	/**
+	 * The period (in nanoseconds) after which a connection that has not been used or checked is checked again, or 0.
+	 */
+	private long iValidationInterval;
+	
+	/**
+	 * The time (from System.nanoTime()) that a borrowed connection was last found to have been lost. Idle
+	 * connections that have not been used or checked since this time are checked before they are borrowed.
+	 */
+	private volatile long iSuspectSince;
+	
+	/**
+	 * The maximum period (in nanoseconds) that a borrower waits for a connection, or 0 to wait forever.
+	 */
+	private long iMaximumWait = 0;
+	
+	/**
+	 * The maximum number of borrowers that can wait for a connection at once, or 0 for no limit.
+	 */
+	private int iMaximumWaiters = 0;
+	
+	/**
+	 * The number of borrowers waiting for a connection.
+	 */
+	private AtomicInteger iWaiters = new AtomicInteger();
+	
+	/**
+	 * The number of times a borrower has waited for a connection.
+	 */
+	private AtomicLong iWaits = new AtomicLong();
+	
+	/**
+	 * The total period (in nanoseconds) that borrowers have waited for a connection.
+	 */
+	private AtomicLong iWaitTime = new AtomicLong();
+	
+	/**
+	 * The number of borrowers that gave up waiting for a connection after the maximum wait.
+	 */
+	private AtomicLong iWaitTimeouts = new AtomicLong();
+	
+	/**
+	 * The number of borrowers rejected because the maximum number of borrowers were already waiting.
+	 */
+	private AtomicLong iRejections = new AtomicLong();
+	
+	/**
+	 * The number of connections created.
+	 */
+	private AtomicLong iCreations = new AtomicLong();
+	
+	/**
+	 * The number of connections that could not be created.
+	 */
+	private AtomicLong iCreationFailures = new AtomicLong();
+	
+	/**
+	 * The number of connections closed.
+	 */
+	private AtomicLong iDestructions = new AtomicLong();
+	
+	/**
+	 * The permits for borrowing connections, one for each of the maximum number of connections.
+	 */
+	private Semaphore iPermits;
+	
+	/**
+	 * The lock held by borrowers that hold a permit while they wait for a connection, and by threads that signal them.
+	 */
+	private ReentrantLock iLock = new ReentrantLock();
+	
+	/**
+	 * The condition signalled when a connection becomes idle or is closed, or this pool is closed.
+	 */
+	private Condition iAvailable = iLock.newCondition();
+	
+	/**
+	 * The top of the idle stack.
+	 */
+	private AtomicReference<Node<T>> iIdleStack = new AtomicReference<>();
+	
+	/**
+	 * The entry last borrowed by each thread.
+	 */
+	private ThreadLocal<Entry<T>> iAffinity = new ThreadLocal<>();
+	
+	/**
+	 * All of the open entries, for housekeeping and closing the pool.
+	 */
+	private List<Entry<T>> iEntries = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * The number of open connections, including connections that are being created.
+	 */
+	private AtomicInteger iTotal = new AtomicInteger();
+	
+	/**
+	 * Whether a background task is creating connections to restore the minimum number of connections.
+	 */
+	private AtomicBoolean iReplenishing = new AtomicBoolean(false);
+	
+	/**
+	 * Whether a background task is checking idle connections.
+	 */
+	private AtomicBoolean iValidating = new AtomicBoolean(false);
+	
+	/**
+	 * Whether this pool has been closed.
+	 */
+	private volatile boolean iClosed = false;
+	
+	/**
+	 * The housekeeping task for this pool.
+	 */
+	private ScheduledFuture<?> iHousekeeping;
+	
+	/**
+	 * Constructor.
+	 * @param factory the factory used to create and close connections.
+	 * @param maximumConnections the maximum number of connections.
+	 * @param minimumConnections the minimum number of connections to keep open.
+	 * @param idleTimeout the period (in seconds) that a connection can remain idle before it is closed, if there are more than the minimum.
+	 * @param validationInterval the period (in seconds) after which a connection that has not been used or checked is checked again, or 0 to never check connections.
+	 */
+	public RNodeConnectionPool(Factory<T> factory, int maximumConnections, int minimumConnections, long idleTimeout, long validationInterval) {
+		iFactory = factory;
+		iMaximumConnections = Math.max(maximumConnections, 1);
+		iMinimumConnections = Math.min(Math.max(minimumConnections, 0), iMaximumConnections);
+		iIdleTimeout = TimeUnit.SECONDS.toNanos(idleTimeout);
+		iValidationInterval = TimeUnit.SECONDS.toNanos(Math.max(validationInterval, 0));
+		iSuspectSince = System.nanoTime() - 1;
+		iPermits = new Semaphore(iMaximumConnections);
+		iHousekeeping = RNodeScheduler.get().scheduleWithFixedDelay(new Runnable() {
+			
+			@Override
+			public void run() {
+				housekeeping();
+			}
+			
+		}, HOUSEKEEPING_INTERVAL, HOUSEKEEPING_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Limit the time that borrowers wait for a connection, and the number of borrowers that can wait at once.
+	 * This must be called before the pool is used.
+	 * @param maximumWait the maximum period (in milliseconds) that a borrower waits for a connection, or 0 to wait forever.
+	 * @param maximumWaiters the maximum number of borrowers that can wait for a connection at once, or 0 for no limit.
+	 */
+	public void setWaitLimits(long maximumWait, int maximumWaiters) {
+		iMaximumWait = TimeUnit.MILLISECONDS.toNanos(Math.max(maximumWait, 0));
+		iMaximumWaiters = Math.max(maximumWaiters, 0);
+	}
+	
+	/**
+	 * Start opening connections until there are at least the minimum number of connections, each on its own
+	 * shared worker thread so that they are opened in parallel. The space for the connections is reserved
+	 * before this method returns, so the housekeeping task does not open them a second time.
+	 * @param listener the listener to notify of the outcome of each connection.
+	 * @return the number of connections being opened, which is the number of times the listener will be notified.
+	 */
+	public int warmUp(final WarmUpListener listener) {
+		int count = 0;
+		while (!iClosed && iTotal.get() < iMinimumConnections && reserve()) {
+			count++;
+		}
+		for (int i = 0; i < count; i++) {
+			RNodeScheduler.getWorkers().execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					Exception failure = null;
+					try {
+						idle(create());
+					} catch (Exception e) {
+						failure = e;
+					}
+					listener.connectionWarmed(failure);
+				}
+				
+			});
+		}
+		return count;
+	}
+	
+	/**
+	 * Borrow a connection from this pool, blocking until one is available. The connection that the
+	 * calling thread borrowed last is reused if it is idle; otherwise an idle connection is taken
+	 * from the idle stack, or a new connection is created. An idle connection that is due to be
+	 * checked, and fails the check, is closed and another connection is used instead. The maximum wait
+	 * applies to the whole of the call, including any time spent waiting after a permit has been acquired.
+	 * @return the entry for the borrowed connection, which must be passed back to release().
+	 * @throws TimeoutException if no connection became available within the maximum wait.
+	 * @throws RejectedExecutionException if the maximum number of borrowers are already waiting for a connection.
+	 * @throws Exception if the thread is interrupted, or a new connection cannot be created.
+	 */
+	public Entry<T> borrow() throws Exception {
+		if (iClosed) {
+			throw new IllegalStateException("Pool closed");
+		}
+		long deadline = System.nanoTime() + iMaximumWait;
+		if (!iPermits.tryAcquire()) {
+			await(deadline);
+		}
+		try {
+			
+			// Reuse the connection this thread borrowed last, if it is still idle.
+			Entry<T> entry = iAffinity.get();
+			if (entry != null && entry.transition(IDLE, IN_USE) && validate(entry)) {
+				return entry;
+			}
+			
+			// Otherwise, take an idle connection or create a new one. The permit guarantees that fewer than the
+			// maximum number of connections are in use (or being checked), so if the pool is full one is about
+			// to become idle, and the borrower waits for it.
+			while (true) {
+				entry = pop();
+				if (entry == null && reserve()) {
+					entry = create();
+					break;
+				} else if (entry == null) {
+					entry = awaitEntry(deadline);
+				}
+				if (validate(entry)) {
+					break;
+				}
+			}
+			iAffinity.set(entry);
+			return entry;
+			
+		} catch (Exception | Error e) {
+			iPermits.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Wait for a permit to borrow a connection, within the wait limits, and record the time spent waiting.
+	 * @param deadline the time (from System.nanoTime()) at which the maximum wait for this borrower ends.
+	 * @throws TimeoutException if no permit became available within the maximum wait.
+	 * @throws RejectedExecutionException if the maximum number of borrowers are already waiting.
+	 * @throws InterruptedException if the thread is interrupted.
+	 */
+	private void await(long deadline) throws TimeoutException, InterruptedException {
+		int waiters = iWaiters.incrementAndGet();
+		try {
+			if (iMaximumWaiters > 0 && waiters > iMaximumWaiters) {
+				iRejections.incrementAndGet();
+				throw new RejectedExecutionException("Too many borrowers waiting");
+			}
+			long startTime = System.nanoTime();
+			boolean acquired = false;
+			try {
+				if (iMaximumWait > 0) {
+					acquired = iPermits.tryAcquire(deadline - startTime, TimeUnit.NANOSECONDS);
+				} else {
+					iPermits.acquire();
+					acquired = true;
+				}
+			} finally {
+				iWaits.incrementAndGet();
+				iWaitTime.addAndGet(System.nanoTime() - startTime);
+			}
+			if (!acquired) {
+				iWaitTimeouts.incrementAndGet();
+				throw new TimeoutException("Timed out waiting for a connection");
+			}
+		} finally {
+			iWaiters.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Wait, while holding a permit, for a connection to become idle or for space to create a new one, within the
+	 * wait limits, and record the time spent waiting. The borrower is counted as waiting, so that it is subject
+	 * to the maximum number of waiting borrowers. The state of the pool is checked again while holding the lock
+	 * before waiting, and every thread that makes a connection available signals after changing the state, so
+	 * a signal cannot be missed.
+	 * @param deadline the time (from System.nanoTime()) at which the maximum wait for this borrower ends.
+	 * @return the entry for the borrowed connection, which is in use but has not been checked.
+	 * @throws TimeoutException if no connection became available within the maximum wait.
+	 * @throws RejectedExecutionException if the maximum number of borrowers are already waiting.
+	 * @throws Exception if the thread is interrupted, or a new connection cannot be created.
+	 */
+	private Entry<T> awaitEntry(long deadline) throws Exception {
+		int waiters = iWaiters.incrementAndGet();
+		try {
+			if (iMaximumWaiters > 0 && waiters > iMaximumWaiters) {
+				iRejections.incrementAndGet();
+				throw new RejectedExecutionException("Too many borrowers waiting");
+			}
+			long startTime = System.nanoTime();
+			try {
+				while (true) {
+					Entry<T> entry = pop();
+					if (entry != null) {
+						return entry;
+					} else if (reserve()) {
+						return create();
+					} else if (iClosed) {
+						throw new IllegalStateException("Pool closed");
+					}
+					iLock.lock();
+					try {
+						if (iIdleStack.get() == null && iTotal.get() >= iMaximumConnections && !iClosed) {
+							if (iMaximumWait <= 0) {
+								iAvailable.await();
+							} else if (iAvailable.awaitNanos(deadline - System.nanoTime()) <= 0) {
+								iWaitTimeouts.incrementAndGet();
+								throw new TimeoutException("Timed out waiting for a connection");
+							}
+						}
+					} finally {
+						iLock.unlock();
+					}
+				}
+			} finally {
+				iWaits.incrementAndGet();
+				iWaitTime.addAndGet(System.nanoTime() - startTime);
+			}
+		} finally {
+			iWaiters.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Wake every borrower that is waiting for a connection while holding a permit, if any borrowers are waiting.
+	 * This must be called after the change to the state of the pool that made a connection available. All of
+	 * the waiting borrowers are woken, as there are never more of them than the maximum number of connections.
+	 */
+	private void signal() {
+		if (iWaiters.get() > 0) {
+			iLock.lock();
+			try {
+				iAvailable.signalAll();
+			} finally {
+				iLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Return a borrowed connection to this pool.
+	 * @param entry the entry for the borrowed connection.
+	 */
+	public void release(Entry<T> entry) {
+		idle(entry);
+		iPermits.release();
+	}
+	
+	/**
+	 * Close a borrowed connection that has been lost, rather than returning it to this pool. The connection
+	 * is closed on a shared worker thread, and every idle connection is checked before it is next borrowed,
+	 * as the other connections to the same Rserve server have probably been lost as well.
+	 * @param entry the entry for the borrowed connection.
+	 */
+	public void invalidate(Entry<T> entry) {
+		iSuspectSince = System.nanoTime();
+		destroy(entry, IN_USE, true);
+		iPermits.release();
+	}
+	
+	/**
+	 * Get the number of open connections, including connections that are being created.
+	 * @return the number of open connections.
+	 */
+	public int getTotal() {
+		return iTotal.get();
+	}
+	
+	/**
+	 * Get the number of open connections that are borrowed, or are being checked.
+	 * @return the number of active connections.
+	 */
+	public int getActive() {
+		int active = 0;
+		for (Entry<T> entry : iEntries) {
+			if (entry.iState.get() == IN_USE) {
+				active++;
+			}
+		}
+		return active;
+	}
+	
+	/**
+	 * Get the number of open connections that are idle.
+	 * @return the number of idle connections.
+	 */
+	public int getIdle() {
+		int idle = 0;
+		for (Entry<T> entry : iEntries) {
+			if (entry.iState.get() == IDLE) {
+				idle++;
+			}
+		}
+		return idle;
+	}
+	
+	/**
+	 * Get the number of connections created.
+	 * @return the number of connections created.
+	 */
+	public long getCreations() {
+		return iCreations.get();
+	}
+	
+	/**
+	 * Get the number of connections that could not be created.
+	 * @return the number of failed creations.
+	 */
+	public long getCreationFailures() {
+		return iCreationFailures.get();
+	}
+	
+	/**
+	 * Get the number of connections closed.
+	 * @return the number of connections closed.
+	 */
+	public long getDestructions() {
+		return iDestructions.get();
+	}
+	
+	/**
+	 * Get the number of borrowers waiting for a connection.
+	 * @return the number of waiting borrowers.
+	 */
+	public int getWaiters() {
+		return iWaiters.get();
+	}
+	
+	/**
+	 * Get the number of times a borrower has waited for a connection.
+	 * @return the number of waits.
+	 */
+	public long getWaits() {
+		return iWaits.get();
+	}
+	
+	/**
+	 * Get the total period that borrowers have waited for a connection.
+	 * @return the total period (in nanoseconds).
+	 */
+	public long getWaitTime() {
+		return iWaitTime.get();
+	}
+	
+	/**
+	 * Get the number of borrowers that gave up waiting for a connection after the maximum wait.
+	 * @return the number of timeouts.
+	 */
+	public long getWaitTimeouts() {
+		return iWaitTimeouts.get();
+	}
+	
+	/**
+	 * Get the number of borrowers rejected because the maximum number of borrowers were already waiting.
+	 * @return the number of rejections.
+	 */
+	public long getRejections() {
+		return iRejections.get();
+	}
+	
+	/**
+	 * Close this pool. Idle connections are closed immediately, and borrowed connections are closed when they are released.
+	 */
+	public void close() {
+		iClosed = true;
+		iHousekeeping.cancel(false);
+		for (Entry<T> entry : iEntries) {
+			destroy(entry, IDLE, false);
+		}
+		signal();
+	}
+	
+	/**
+	 * Mark an entry that is in use as idle, and push it onto the idle stack if it is not already on it.
+	 * If this pool has been closed, the connection is closed instead.
+	 * @param entry the entry.
+	 */
+	private void idle(Entry<T> entry) {
+		long now = System.nanoTime();
+		entry.iLastReleased = now;
+		entry.iLastValidated = now;
+		restore(entry);
+	}
+	
+	/**
+	 * Mark an entry that is in use as idle without updating the time it was last released, and push it onto
+	 * the idle stack if it is not already on it. If this pool has been closed, the connection is closed instead.
+	 * @param entry the entry.
+	 */
+	private void restore(Entry<T> entry) {
+		entry.iState.set(IDLE);
+		if (iClosed) {
+			destroy(entry, IDLE, false);
+		} else if (entry.iOnStack.compareAndSet(false, true)) {
+			push(entry);
+			signal();
+		}
+	}
+	
+	/**
+	 * Check whether an entry is due to be checked by the factory, because it has not been used or checked for
+	 * longer than the validation interval, or since a borrowed connection was last found to have been lost.
+	 * @param entry the entry.
+	 * @param now the current time (from System.nanoTime()).
+	 * @return true if the entry is due to be checked.
+	 */
+	private boolean isValidationDue(Entry<T> entry, long now) {
+		long lastValidated = entry.iLastValidated;
+		return iValidationInterval > 0 && (now - lastValidated > iValidationInterval || lastValidated - iSuspectSince <= 0);
+	}
+	
+	/**
+	 * Check that an entry that is in use can still be used, if it is due to be checked. If the check fails, the
+	 * connection is closed on a shared worker thread.
+	 * @param entry the entry.
+	 * @return true if the entry can still be used.
+	 */
+	private boolean validate(Entry<T> entry) {
+		long now = System.nanoTime();
+		if (!isValidationDue(entry, now)) {
+			return true;
+		}
+		boolean valid;
+		try {
+			valid = iFactory.validate(entry.iConnection);
+		} catch (Exception e) {
+			valid = false;
+		}
+		if (valid) {
+			entry.iLastValidated = now;
+		} else {
+			destroy(entry, IN_USE, true);
+		}
+		return valid;
+	}
+	
+	/**
+	 * Push an entry onto the idle stack.
+	 * @param entry the entry.
+	 */
+	private void push(Entry<T> entry) {
+		Node<T> node = new Node<>(entry);
+		do {
+			node.iNext = iIdleStack.get();
+		} while (!iIdleStack.compareAndSet(node.iNext, node));
+	}
+	
+	/**
+	 * Pop entries from the idle stack until one can be borrowed. Entries that are in use (because they were
+	 * reused by the thread that borrowed them last) or closed are discarded, and are pushed again when released.
+	 * @return the borrowed entry, or null if there are no idle entries on the stack.
+	 */
+	private Entry<T> pop() {
+		while (true) {
+			Node<T> node = iIdleStack.get();
+			if (node == null) {
+				return null;
+			} else if (iIdleStack.compareAndSet(node, node.iNext)) {
+				Entry<T> entry = node.iEntry;
+				entry.iOnStack.set(false);
+				if (entry.transition(IDLE, IN_USE)) {
+					return entry;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reserve space for a new connection, if there are fewer than the maximum number of connections.
+	 * @return true if space was reserved.
+	 */
+	private boolean reserve() {
+		while (true) {
+			int total = iTotal.get();
+			if (total >= iMaximumConnections) {
+				return false;
+			} else if (iTotal.compareAndSet(total, total + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Create a new connection in space that has already been reserved.
+	 * @return the entry for the new connection, which is in use.
+	 * @throws Exception if the connection cannot be created.
+	 */
+	private Entry<T> create() throws Exception {
+		Entry<T> entry;
+		try {
+			entry = new Entry<>(iFactory.create());
+		} catch (Exception | Error e) {
+			iTotal.decrementAndGet();
+			iCreationFailures.incrementAndGet();
+			signal();
+			throw e;
+		}
+		iCreations.incrementAndGet();
+		iEntries.add(entry);
+		if (iClosed) {
+			destroy(entry, IN_USE, false);
+			throw new IllegalStateException("Pool closed");
+		}
+		return entry;
+	}
+	
+	/**
+	 * Close the connection for an entry, if it is in the expected state.
+	 * @param entry the entry.
+	 * @param expected the state the entry must be in (IDLE or IN_USE).
+	 * @param background true to close the connection on a shared worker thread.
+	 * @return true if the connection was closed.
+	 */
+	private boolean destroy(final Entry<T> entry, int expected, boolean background) {
+		if (!entry.transition(expected, CLOSED)) {
+			return false;
+		}
+		iEntries.remove(entry);
+		iTotal.decrementAndGet();
+		iDestructions.incrementAndGet();
+		signal();
+		Runnable destroy = new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					iFactory.destroy(entry.iConnection);
+				} catch (Exception e) {
+					// Ignore - the connection is no longer used.
+				}
+			}
+			
+		};
+		if (background) {
+			RNodeScheduler.getWorkers().execute(destroy);
+		} else {
+			destroy.run();
+		}
+		return true;
+	}
+	
+	/**
+	 * Close connections that have been idle for longer than the idle timeout while there are more than the
+	 * minimum number of connections, start checking idle connections that are due to be checked, and then
+	 * start creating connections if there are fewer than the minimum. This runs on the shared scheduler, so
+	 * connections are closed, checked and created by a shared worker thread.
+	 */
+	private void housekeeping() {
+		long now = System.nanoTime();
+		for (Entry<T> entry : iEntries) {
+			if (iTotal.get() <= iMinimumConnections) {
+				break;
+			} else if (entry.iState.get() == IDLE && now - entry.iLastReleased > iIdleTimeout) {
+				destroy(entry, IDLE, true);
+			}
+		}
+		boolean validationDue = false;
+		for (Entry<T> entry : iEntries) {
+			if (entry.iState.get() == IDLE && isValidationDue(entry, now)) {
+				validationDue = true;
+				break;
+			}
+		}
+		if (validationDue && iValidating.compareAndSet(false, true)) {
+			RNodeScheduler.getWorkers().execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						validateIdle();
+					} finally {
+						iValidating.set(false);
+					}
+				}
+				
+			});
+		}
+		if (iTotal.get() < iMinimumConnections && iReplenishing.compareAndSet(false, true)) {
+			RNodeScheduler.getWorkers().execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						replenish();
+					} finally {
+						iReplenishing.set(false);
+					}
+				}
+				
+			});
+		}
+	}
+	
+	/**
+	 * Check each idle connection that is due to be checked. Each connection is marked as in use while it is
+	 * checked, so that it cannot be borrowed at the same time, and connections that fail the check are closed.
+	 * A permit is held while each connection is checked, so that a borrower holding a permit can always find
+	 * or create a connection, and connections that are due when no permit is free are left for the next run.
+	 */
+	private void validateIdle() {
+		for (Entry<T> entry : iEntries) {
+			if (iClosed) {
+				return;
+			} else if (isValidationDue(entry, System.nanoTime()) && iPermits.tryAcquire()) {
+				try {
+					if (entry.transition(IDLE, IN_USE) && validate(entry)) {
+						restore(entry);
+					}
+				} finally {
+					iPermits.release();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Create idle connections until there are at least the minimum number of connections. If a connection
+	 * cannot be created, the next housekeeping run tries again.
+	 */
+	private void replenish() {
+		while (!iClosed && iTotal.get() < iMinimumConnections && reserve()) {
+			Entry<T> entry;
+			try {
+				entry = create();
+			} catch (Exception e) {
+				return;
+			}
+			idle(entry);
+		}
+	}
+	
+}
@@ -0,0 +1,503 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPLogical;
+import org.rosuda.REngine.REXPString;
+
+/**
+ * A class that converts message element values into the values of an R vector of a single type.
+ * Variables and data frame columns get the converter for their R variable type when the node is
+ * initialized, and then use it to write each value straight into the primitive array for the vector.
+ *
+ * String values are parsed using the lexical rules of the XML schema boolean, int and double types,
+ * the same as the DatatypeConverter methods previously used. The parsers report values that cannot
+ * be parsed by returning false rather than by throwing an exception, as messages with a large number
+ * of bad values would otherwise spend most of their time creating exceptions.
+ */
+public abstract class RNodeConverter {
+	
+	/**
+	 * The converter for the R logical type.
+	 */
+	private static final RNodeConverter LOGICAL = new RNodeConverter(RNodeType.LOGICAL, "logical") {
+		
+		@Override
+		public Object newValues(int length) {
+			return new byte[length];
+		}
+		
+		@Override
+		public void setNA(Object values, int index) {
+			((byte[]) values)[index] = REXPLogical.NA;
+		}
+		
+		@Override
+		public boolean convert(Object value, Object values, int index) {
+			if (value instanceof Boolean) {
+				((byte[]) values)[index] = ((Boolean) value).booleanValue() ? REXPLogical.TRUE : REXPLogical.FALSE;
+				return true;
+			} else if (value instanceof String) {
+				return parseBoolean((String) value, (byte[]) values, index);
+			}
+			return false;
+		}
+		
+		@Override
+		public REXP toR(Object values) {
+			return new REXPLogical((byte[]) values);
+		}
+		
+	};
+	
+	/**
+	 * The converter for the R integer type.
+	 */
+	private static final RNodeConverter INTEGER = new RNodeConverter(RNodeType.INTEGER, "integer") {
+		
+		@Override
+		public Object newValues(int length) {
+			return new int[length];
+		}
+		
+		@Override
+		public void setNA(Object values, int index) {
+			((int[]) values)[index] = REXPInteger.NA;
+		}
+		
+		@Override
+		public boolean convert(Object value, Object values, int index) {
+			if (value instanceof Boolean) {
+				((int[]) values)[index] = ((Boolean) value).booleanValue() ? 1 : 0;
+				return true;
+			} else if (value instanceof Number) {
+				((int[]) values)[index] = ((Number) value).intValue();
+				return true;
+			} else if (value instanceof String) {
+				return parseInt((String) value, (int[]) values, index);
+			}
+			return false;
+		}
+		
+		@Override
+		public REXP toR(Object values) {
+			return new REXPInteger((int[]) values);
+		}
+		
+	};
+	
+	/**
+	 * The converter for the R double type.
+	 */
+	private static final RNodeConverter DOUBLE = new RNodeConverter(RNodeType.DOUBLE, "double") {
+		
+		@Override
+		public Object newValues(int length) {
+			return new double[length];
+		}
+		
+		@Override
+		public void setNA(Object values, int index) {
+			((double[]) values)[index] = REXPDouble.NA;
+		}
+		
+		@Override
+		public boolean convert(Object value, Object values, int index) {
+			if (value instanceof Boolean) {
+				((double[]) values)[index] = ((Boolean) value).booleanValue() ? 1 : 0;
+				return true;
+			} else if (value instanceof Number) {
+				((double[]) values)[index] = ((Number) value).doubleValue();
+				return true;
+			} else if (value instanceof String) {
+				return parseDouble((String) value, (double[]) values, index);
+			}
+			return false;
+		}
+		
+		@Override
+		public REXP toR(Object values) {
+			return new REXPDouble((double[]) values);
+		}
+		
+	};
+	
+	/**
+	 * The converter for the R character type.
+	 */
+	private static final RNodeConverter CHARACTER = new RNodeConverter(RNodeType.CHARACTER, "character") {
+		
+		@Override
+		public Object newValues(int length) {
+			return new String[length];
+		}
+		
+		@Override
+		public void setNA(Object values, int index) {
+			((String[]) values)[index] = null;
+		}
+		
+		@Override
+		public boolean convert(Object value, Object values, int index) {
+			if (value instanceof String) {
+				((String[]) values)[index] = (String) value;
+				return true;
+			}
+			return false;
+		}
+		
+		@Override
+		public REXP toR(Object values) {
+			return new REXPString((String[]) values);
+		}
+		
+	};
+	
+	/**
+	 * The powers of ten that can be represented exactly as a double.
+	 */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	
+	/**
+	 * The largest integer such that all integers up to it can be represented exactly as a double.
+	 */
+	private static final long MAXIMUM_EXACT_MANTISSA = 1L << 53;
+	
+	/**
+	 * The R variable type of the values produced by this converter.
+	 */
+	private RNodeType iType;
+	
+	/**
+	 * The text used in user trace when a value has been converted.
+	 */
+	private String iTraceText;
+	
+	/**
+	 * The text used in exceptions when an element value could not be converted.
+	 */
+	private String iElementErrorText;
+	
+	/**
+	 * The text used in exceptions when an XPath result could not be converted.
+	 */
+	private String iXPathErrorText;
+	
+	/**
+	 * Constructor.
+	 * @param type the R variable type of the values produced by this converter.
+	 * @param typeName the name of the R variable type used in user trace and exceptions.
+	 */
+	private RNodeConverter(RNodeType type, String typeName) {
+		iType = type;
+		iTraceText = "Assigning R " + typeName + " value";
+		iElementErrorText = "Could not convert element value to R " + typeName + " variable";
+		iXPathErrorText = "Could not convert XPath result to R " + typeName + " variable";
+	}
+	
+	/**
+	 * Get the converter for the specified R variable type.
+	 * @param type the R variable type.
+	 * @return the converter for the R variable type, or null if the R variable type is not a vector type.
+	 */
+	public static RNodeConverter forType(RNodeType type) {
+		switch (type) {
+		case LOGICAL:
+			return LOGICAL;
+		case INTEGER:
+			return INTEGER;
+		case DOUBLE:
+			return DOUBLE;
+		case CHARACTER:
+			return CHARACTER;
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 * Get the R variable type of the values produced by this converter.
+	 * @return the R variable type of the values produced by this converter.
+	 */
+	public RNodeType getType() {
+		return iType;
+	}
+	
+	/**
+	 * Get the text used in user trace when a value has been converted.
+	 * @return the text used in user trace when a value has been converted.
+	 */
+	public String getTraceText() {
+		return iTraceText;
+	}
+	
+	/**
+	 * Get the text used in exceptions when an element value could not be converted.
+	 * @return the text used in exceptions when an element value could not be converted.
+	 */
+	public String getElementErrorText() {
+		return iElementErrorText;
+	}
+	
+	/**
+	 * Get the text used in exceptions when an XPath result could not be converted.
+	 * @return the text used in exceptions when an XPath result could not be converted.
+	 */
+	public String getXPathErrorText() {
+		return iXPathErrorText;
+	}
+	
+	/**
+	 * Create the primitive array that holds the values of an R vector.
+	 * @param length the length of the R vector.
+	 * @return the primitive array.
+	 */
+	public abstract Object newValues(int length);
+	
+	/**
+	 * Set the specified value of an R vector to NA.
+	 * @param values the primitive array created by newValues.
+	 * @param index the index of the value.
+	 */
+	public abstract void setNA(Object values, int index);
+	
+	/**
+	 * Convert the specified element value, and set it as the specified value of an R vector.
+	 * @param value the element value, which must not be null.
+	 * @param values the primitive array created by newValues.
+	 * @param index the index of the value.
+	 * @return true if the element value was converted, or false if it cannot be converted.
+	 */
+	public abstract boolean convert(Object value, Object values, int index);
+	
+	/**
+	 * Create the R vector from the specified values.
+	 * @param values the primitive array created by newValues.
+	 * @return the R vector.
+	 */
+	public abstract REXP toR(Object values);
+	
+	/**
+	 * Find the index of the first character of the specified string that is not whitespace.
+	 * @param value the string.
+	 * @return the index of the first character that is not whitespace.
+	 */
+	private static int trimStart(String value) {
+		int start = 0;
+		while (start < value.length() && isWhitespace(value.charAt(start))) {
+			start++;
+		}
+		return start;
+	}
+	
+	/**
+	 * Find the index after the last character of the specified string that is not whitespace.
+	 * @param value the string.
+	 * @param start the index of the first character that is not whitespace.
+	 * @return the index after the last character that is not whitespace.
+	 */
+	private static int trimEnd(String value, int start) {
+		int end = value.length();
+		while (end > start && isWhitespace(value.charAt(end - 1))) {
+			end--;
+		}
+		return end;
+	}
+	
+	/**
+	 * Check whether the specified character is XML schema whitespace.
+	 * @param c the character.
+	 * @return true if the character is whitespace.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+	
+	/**
+	 * Check whether the specified region of a string matches the specified token.
+	 * @param value the string.
+	 * @param start the start of the region.
+	 * @param end the end of the region.
+	 * @param token the token.
+	 * @return true if the region matches the token.
+	 */
+	private static boolean matches(String value, int start, int end, String token) {
+		return end - start == token.length() && value.startsWith(token, start);
+	}
+	
+	/**
+	 * Parse an XML schema boolean ("true", "false", "1" or "0") into an R logical value.
+	 * @param value the string to parse.
+	 * @param values the array to store the parsed value in.
+	 * @param index the index to store the parsed value at.
+	 * @return true if the string was parsed, or false if it is not a valid boolean.
+	 */
+	static boolean parseBoolean(String value, byte[] values, int index) {
+		int start = trimStart(value);
+		int end = trimEnd(value, start);
+		if (matches(value, start, end, "true") || matches(value, start, end, "1")) {
+			values[index] = REXPLogical.TRUE;
+			return true;
+		} else if (matches(value, start, end, "false") || matches(value, start, end, "0")) {
+			values[index] = REXPLogical.FALSE;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Parse an XML schema int (an optional sign followed by decimal digits) into an R integer value.
+	 * @param value the string to parse.
+	 * @param values the array to store the parsed value in.
+	 * @param index the index to store the parsed value at.
+	 * @return true if the string was parsed, or false if it is not a valid int or is out of range.
+	 */
+	static boolean parseInt(String value, int[] values, int index) {
+		int start = trimStart(value);
+		int end = trimEnd(value, start);
+		boolean negative = false;
+		if (start < end && (value.charAt(start) == '-' || value.charAt(start) == '+')) {
+			negative = value.charAt(start) == '-';
+			start++;
+		}
+		if (start == end) {
+			return false;
+		}
+		long result = 0;
+		for (int i = start; i < end; i++) {
+			int digit = value.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return false;
+			}
+			result = result * 10 + digit;
+			if (result > (long) Integer.MAX_VALUE + 1) {
+				return false;
+			}
+		}
+		result = negative ? -result : result;
+		if (result > Integer.MAX_VALUE || result == REXPInteger.NA) {
+			return false;
+		}
+		values[index] = (int) result;
+		return true;
+	}
+	
+	/**
+	 * Parse an XML schema double (a decimal number with an optional exponent, "NaN", "INF" or "-INF")
+	 * into an R double value. Numbers with at most 15 significant digits and a small exponent are
+	 * computed exactly from a long and a power of ten; any other valid number is passed to
+	 * Double.parseDouble, which cannot then fail.
+	 * @param value the string to parse.
+	 * @param values the array to store the parsed value in.
+	 * @param index the index to store the parsed value at.
+	 * @return true if the string was parsed, or false if it is not a valid double.
+	 */
+	static boolean parseDouble(String value, double[] values, int index) {
+		int start = trimStart(value);
+		int end = trimEnd(value, start);
+		if (matches(value, start, end, "NaN")) {
+			values[index] = Double.NaN;
+			return true;
+		} else if (matches(value, start, end, "INF")) {
+			values[index] = Double.POSITIVE_INFINITY;
+			return true;
+		} else if (matches(value, start, end, "-INF")) {
+			values[index] = Double.NEGATIVE_INFINITY;
+			return true;
+		}
+		
+		// Parse the sign.
+		int i = start;
+		boolean negative = false;
+		if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+			negative = value.charAt(i) == '-';
+			i++;
+		}
+		
+		// Parse the integer and fraction digits, accumulating up to 18 significant digits.
+		long mantissa = 0;
+		int digits = 0;
+		int significantDigits = 0;
+		int exponent = 0;
+		boolean fraction = false;
+		for (; i < end; i++) {
+			char c = value.charAt(i);
+			if (c >= '0' && c <= '9') {
+				digits++;
+				if (significantDigits < 18) {
+					if (mantissa != 0 || c != '0') {
+						mantissa = mantissa * 10 + (c - '0');
+						significantDigits++;
+					}
+					if (fraction) {
+						exponent--;
+					}
+				} else if (!fraction) {
+					exponent++;
+				}
+			} else if (c == '.' && !fraction) {
+				fraction = true;
+			} else {
+				break;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+		
+		// Parse the exponent.
+		if (i < end && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+				negativeExponent = value.charAt(i) == '-';
+				i++;
+			}
+			if (i == end) {
+				return false;
+			}
+			int explicitExponent = 0;
+			for (; i < end; i++) {
+				int digit = value.charAt(i) - '0';
+				if (digit < 0 || digit > 9) {
+					return false;
+				}
+				if (explicitExponent < 100000) {
+					explicitExponent = explicitExponent * 10 + digit;
+				}
+			}
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+		if (i != end) {
+			return false;
+		}
+		
+		// Use the exact fast path where possible, otherwise fall back to the full algorithm.
+		double result;
+		if (mantissa < MAXIMUM_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+			result = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+			result = negative ? -result : result;
+		} else {
+			result = Double.parseDouble(value.substring(start, end));
+		}
+		values[index] = result;
+		return true;
+	}
+	
+}
@@ -17,18 +17,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.xml.bind.DatatypeConverter;
-
 import org.rosuda.REngine.REXP;
-import org.rosuda.REngine.REXPDouble;
-import org.rosuda.REngine.REXPInteger;
-import org.rosuda.REngine.REXPLogical;
 import org.rosuda.REngine.REXPMismatchException;
-import org.rosuda.REngine.REXPString;
-import org.rosuda.REngine.REngineException;
 import org.rosuda.REngine.RList;
-import org.rosuda.REngine.Rserve.RConnection;
-import org.rosuda.REngine.Rserve.RserveException;
 
 import com.ibm.broker.plugin.MbElement;
 import com.ibm.broker.plugin.MbException;
@@ -79,6 +70,21 @@ public class RNodeDataFrame {
 	 */
 	private List<Column> iOutColumns = new ArrayList<>();
 	
+	/**
+	 * The user trace message numbers for converted values, indexed by the ordinal of the R variable type.
+	 */
+	private static final long[] TRACE_MESSAGES = { 7858, 7859, 7860, 7861 };
+	
+	/**
+	 * The message numbers for element values that cannot be converted, indexed by the ordinal of the R variable type.
+	 */
+	private static final long[] ELEMENT_ERROR_MESSAGES = { 7854, 7855, 7856, 7857 };
+	
+	/**
+	 * The message numbers for XPath results that cannot be converted, indexed by the ordinal of the R variable type.
+	 */
+	private static final long[] XPATH_ERROR_MESSAGES = { 7850, 7851, 7852, 7853 };
+	
 	/**
 	 * A class that represents a column configured within a data frame on an
 	 * instance of an R node. The column can either be for passing data to R
@@ -111,12 +117,24 @@ public class RNodeDataFrame {
 		 */
 		private MbXPath iXPath = null;
 		
+		/**
+		 * The compiled path for this column, or null if the XPath expression is not made up of simple child steps.
+		 */
+		private RNodePath iPath = null;
+		
+		/**
+		 * The converter for the R variable type of this column, or null if the type is not a vector type.
+		 */
+		private RNodeConverter iConverter;
+		
 		private Column(String name, RNodeType type, RNodeDirection direction, String xpathExpression, MbXPath xpath) {
 			iName = name;
 			iType = type;
 			iDirection = direction;
 			iXPathExpression = xpathExpression;
 			iXPath = xpath;
+			iPath = RNodePath.compile(xpathExpression);
+			iConverter = RNodeConverter.forType(type);
 		}
 		
 		/**
@@ -159,6 +177,27 @@ public class RNodeDataFrame {
 			return iXPath;
 		}
 		
+		/**
+		 * Create a matcher for resolving the XPath expression for this column against the rows of a single message.
+		 * @param xpathVariables the set of XPath variables to use.
+		 * @return the matcher, or null if the XPath expression must always be evaluated.
+		 */
+		private RNodePath.Matcher matcher(MbXPathVariables xpathVariables) {
+			return iPath != null ? iPath.matcher(iXPath, xpathVariables) : null;
+		}
+		
+		/**
+		 * Resolve the XPath expression for this column against the specified row element.
+		 * @param rowElement the row element.
+		 * @param matcher the matcher for this column, or null if the XPath expression must always be evaluated.
+		 * @param xpathVariables the set of XPath variables to use.
+		 * @return the matching element, or the result of evaluating the XPath expression.
+		 * @throws MbException if a problem occurs accessing the row element.
+		 */
+		private Object evaluate(MbElement rowElement, RNodePath.Matcher matcher, MbXPathVariables xpathVariables) throws MbException {
+			return matcher != null ? matcher.evaluate(rowElement) : rowElement.evaluateXPath(iXPath, xpathVariables);
+		}
+		
 	}
 	
 	/**
@@ -224,18 +263,19 @@ public class RNodeDataFrame {
 	}
 	
 	/**
-	 * Using the specified connection to an Rserve server and input message, resolve the tree elements specified by the
-	 * XPath expression for this data frame and its columns and convert them into an R variable on the Rserve server. 
-	 * @param connection the Rserve server connection to use.
+	 * Using the specified input message, resolve the tree elements specified by the XPath expression for this
+	 * data frame and its columns and convert them into an R data frame. The R data frame is not sent to the
+	 * Rserve server; the caller packs the values for all variables and data frames into a single request.
 	 * @param message the input message.
 	 * @param xpathVariables the set of XPath variables to use.
+	 * @param trace the user trace for the converted values of this message.
+	 * @return the R data frame for this data frame.
 	 * @throws RNodeException if a known problem occurs during processing.
 	 * @throws MbException if a problem occurs during logging or accessing the input message.
-	 * @throws RserveException if an unknown problem occurs interacting with the Rserve server.
-	 * @throws REXPMismatchException if an unknown problem occurs interacting with the Rserve server.
+	 * @throws REXPMismatchException if an unknown problem occurs creating the R data frame.
 	 */
 	@SuppressWarnings("unchecked")
-	public void toR(RConnection connection, MbMessage message, MbXPathVariables xpathVariables) throws RNodeException, MbException, RserveException, REXPMismatchException {
+	public REXP toR(MbMessage message, MbXPathVariables xpathVariables, RNodeTrace trace) throws RNodeException, MbException, REXPMismatchException {
 		final String methodName = "toR";
 		
 		// Evaluate the XPath expression.
@@ -252,47 +292,37 @@ public class RNodeDataFrame {
 			throw new RNodeException(this, methodName, 7841, "XPath result is not a nodeset", iName, iOwner.getName(), iXPathExpression);
 		}
 		
-		// Build an array of the column names and values.
+		// Build an array of the column names, the empty column values, and the matchers used to resolve the
+		// column XPath expressions against each row.
+		int rows = nodeset.size();
 		String[] columnNames = new String[iInColumns.size()];
-		REXP[] columnValues = new REXP[iInColumns.size()];
-		
-		// Loop over each column in this data frame.
+		Object[] values = new Object[iInColumns.size()];
+		RNodePath.Matcher[] matchers = new RNodePath.Matcher[iInColumns.size()];
 		for (int i = 0; i < iInColumns.size(); i++) {
-			
-			// Save the column name.
 			Column column = iInColumns.get(i);
 			columnNames[i] = column.getName();
-			
-			// Generate the empty column value.
-			byte[] booleanValues = null;
-			int[] intValues = null;
-			double[] doubleValues = null;
-			String[] stringValues = null;
-			switch (column.getType()) {
-			case LOGICAL:
-				booleanValues = new byte[nodeset.size()];
-				break;
-			case INTEGER:
-				intValues = new int[nodeset.size()];
-				break;
-			case DOUBLE:
-				doubleValues = new double[nodeset.size()];
-				break;
-			case CHARACTER:
-				stringValues = new String[nodeset.size()];
-				break;
-			default:
+			if (column.iConverter == null) {
 				throw new RNodeException(this, methodName, 2111, "Unrecognised R node data frame column type", "Unrecognised R node data frame column type");
 			}
+			values[i] = column.iConverter.newValues(rows);
+			matchers[i] = column.matcher(xpathVariables);
+		}
+		
+		// Loop over each element in the nodeset, filling in the values for all the columns in a single pass.
+		for (int j = 0; j < rows; j++) {
 			
-			// Loop over each element in the nodeset.
-			for (int j = 0; j < nodeset.size(); j++) {
+			// Loop over each column in this data frame.
+			MbElement rowElement = nodeset.get(j);
+			for (int i = 0; i < iInColumns.size(); i++) {
 				
-				// Evaluate the XPath expression for this column.
-				MbElement rowElement = nodeset.get(j);
+				// Resolve the XPath expression for this column.
+				Column column = iInColumns.get(i);
 				MbElement columnElement = null;
-				Object columnValue = rowElement.evaluateXPath(column.getXPath(), xpathVariables);
-				if (columnValue instanceof List<?>) {
+				Object columnValue = column.evaluate(rowElement, matchers[i], xpathVariables);
+				if (columnValue instanceof MbElement) {
+					columnElement = (MbElement) columnValue;
+					columnValue = columnElement.getValue();
+				} else if (columnValue instanceof List<?>) {
 					List<MbElement> columnNodeset = (List<MbElement>) columnValue;
 					if (columnNodeset.size() == 1) {
 						columnElement = columnNodeset.get(0);
@@ -305,181 +335,71 @@ public class RNodeDataFrame {
 				}
 				
 				// Convert the element value into the expected type for this column.
-				switch (column.getType()) {
-				case LOGICAL:
-					if (columnValue instanceof Boolean) {
-						booleanValues[j] = ((Boolean) columnValue).booleanValue() ? REXPLogical.TRUE : REXPLogical.FALSE;
-						RNodeLog.logUserTrace(this, methodName, 7858, "Assigning R logical value", iOwner.getName(), columnValue.toString(), column.getName(), j + 1, nodeset.size(), iName);
-					} else {
-						// Attempt to automatically cast from string to boolean.
-						if (columnValue instanceof String) {
-							String strValue = (String) columnValue;
-							try {
-								booleanValues[j] = DatatypeConverter.parseBoolean(strValue) ? REXPLogical.TRUE : REXPLogical.FALSE;
-								RNodeLog.logUserTrace(this, methodName, 7858, "Assigning R logical value", iOwner.getName(), columnValue.toString(), column.getName(), j + 1, nodeset.size(), iName);
-								continue;
-							} catch (Exception e) {
-								// Fall through to exceptions below.
-							}
-						} else if (columnValue == null) {
-							booleanValues[j] = REXPLogical.NA;
-							continue;
-						}
-						if (columnElement != null) {
-							throw new RNodeException(this, methodName, 7854, "Could not convert element value to R logical variable", iName, iOwner.getName(), columnElement, column.getName());
-						} else {
-							throw new RNodeException(this, methodName, 7850, "Could not convert XPath result to R logical variable", iName, iOwner.getName(), iXPathExpression, column.getName());
-						}
-					}
-					break;
-				case INTEGER:
-					if (columnValue instanceof Boolean) {
-						intValues[j] = ((Boolean) columnValue).booleanValue() ? 1 : 0;
-						RNodeLog.logUserTrace(this, methodName, 7859, "Assigning R integer value", iOwner.getName(), columnValue.toString(), column.getName(), j + 1, nodeset.size(), iName);
-					} else if (columnValue instanceof Integer) {
-						intValues[j] = ((Integer) columnValue).intValue();
-						RNodeLog.logUserTrace(this, methodName, 7859, "Assigning R integer value", iOwner.getName(), columnValue.toString(), column.getName(), j + 1, nodeset.size(), iName);
-					} else if (columnValue instanceof Double) {
-						intValues[j] = (int) ((Double) columnValue).doubleValue();
-						RNodeLog.logUserTrace(this, methodName, 7859, "Assigning R integer value", iOwner.getName(), columnValue.toString(), column.getName(), j + 1, nodeset.size(), iName);
-					} else {
-						// Attempt to automatically cast from string to integer.
-						if (columnValue instanceof String) {
-							String strValue = (String) columnValue;
-							try {
-								intValues[j] = DatatypeConverter.parseInt(strValue);
-								RNodeLog.logUserTrace(this, methodName, 7859, "Assigning R integer value", iOwner.getName(), columnValue.toString(), column.getName(), j + 1, nodeset.size(), iName);
-								continue;
-							} catch (Exception e) {
-								// Fall through to exceptions below.
-							}
-						} else if (columnValue == null) {
-							intValues[j] = REXPInteger.NA;
-							continue;
-						}
-						if (columnElement != null) {
-							throw new RNodeException(this, methodName, 7855, "Could not convert element value to R integer variable", iName, iOwner.getName(), columnElement, column.getName());
-						} else {
-							throw new RNodeException(this, methodName, 7851, "Could not convert XPath result to R integer variable", iName, iOwner.getName(), iXPathExpression, column.getName());
-						}
-					}
-					break;
-				case DOUBLE:
-					if (columnValue instanceof Boolean) {
-						doubleValues[j] = ((Boolean) columnValue).booleanValue() ? 1 : 0;
-						RNodeLog.logUserTrace(this, methodName, 7860, "Assigning R double value", iOwner.getName(), columnValue.toString(), column.getName(), j + 1, nodeset.size(), iName);
-					} else if (columnValue instanceof Integer) {
-						doubleValues[j] = ((Integer) columnValue).intValue();
-						RNodeLog.logUserTrace(this, methodName, 7860, "Assigning R double value", iOwner.getName(), columnValue.toString(), column.getName(), j + 1, nodeset.size(), iName);
-					} else if (columnValue instanceof Double) {
-						doubleValues[j] = (int) ((Double) columnValue).doubleValue();
-						RNodeLog.logUserTrace(this, methodName, 7860, "Assigning R double value", iOwner.getName(), columnValue.toString(), column.getName(), j + 1, nodeset.size(), iName);
-					} else {
-						// Attempt to automatically cast from string to double.
-						if (columnValue instanceof String) {
-							String strValue = (String) columnValue;
-							try {
-								doubleValues[j] = DatatypeConverter.parseDouble(strValue);
-								RNodeLog.logUserTrace(this, methodName, 7860, "Assigning R double value", iOwner.getName(), columnValue.toString(), column.getName(), j + 1, nodeset.size(), iName);
-								continue;
-							} catch (Exception e) {
-								// Fall through to exceptions below.
-							}
-						} else if (columnValue == null) {
-							doubleValues[j] = REXPDouble.NA;
-							continue;
-						}
-						if (columnElement != null) {
-							throw new RNodeException(this, methodName, 7856, "Could not convert element value to R double variable", iName, iOwner.getName(), columnElement, column.getName());
-						} else {
-							throw new RNodeException(this, methodName, 7852, "Could not convert XPath result to R double variable", iName, iOwner.getName(), iXPathExpression, column.getName());
-						}
-					}
-					break;
-				case CHARACTER:
-					if (columnValue instanceof String) {
-						stringValues[j] = (String) columnValue;
-						RNodeLog.logUserTrace(this, methodName, 7861, "Assigning R character value", iOwner.getName(), columnValue.toString(), column.getName(), j + 1, nodeset.size(), iName);
-					} else if (columnValue == null) {
-						stringValues[j] = null;
-						continue;
-					} else if (columnElement != null) {
-						throw new RNodeException(this, methodName, 7857, "Could not convert element value to R character variable", iName, iOwner.getName(), columnElement, column.getName());
-					} else {
-						throw new RNodeException(this, methodName, 7853, "Could not convert XPath result to R character variable", iName, iOwner.getName(), iXPathExpression, column.getName());
+				RNodeConverter converter = column.iConverter;
+				if (columnValue == null) {
+					converter.setNA(values[i], j);
+				} else if (converter.convert(columnValue, values[i], j)) {
+					if (trace.sample()) {
+						int type = converter.getType().ordinal();
+						trace.logUserTrace(this, methodName, TRACE_MESSAGES[type], converter.getTraceText(), iOwner.getName(), columnValue, column.getName(), j + 1, rows, iName);
 					}
-					break;
-				default:
-					throw new RNodeException(this, methodName, 2111, "Unrecognised R node data frame column type", "Unrecognised R node data frame column type");
+				} else if (columnElement != null) {
+					throw new RNodeException(this, methodName, ELEMENT_ERROR_MESSAGES[converter.getType().ordinal()], converter.getElementErrorText(), iName, iOwner.getName(), columnElement, column.getName(), columnValue, j + 1);
+				} else {
+					throw new RNodeException(this, methodName, XPATH_ERROR_MESSAGES[converter.getType().ordinal()], converter.getXPathErrorText(), iName, iOwner.getName(), iXPathExpression, column.getName(), columnValue, j + 1);
 				}
 				
 			}
 			
-			// Now the column values are known, we can generate the R value.
-			switch (column.getType()) {
-			case LOGICAL:
-				columnValues[i] = new REXPLogical(booleanValues);
-				break;
-			case INTEGER:
-				columnValues[i] = new REXPInteger(intValues);
-				break;
-			case DOUBLE:
-				columnValues[i] = new REXPDouble(doubleValues);
-				break;
-			case CHARACTER:
-				columnValues[i] = new REXPString(stringValues);
-				break;
-			default:
-				throw new RNodeException(this, methodName, 2111, "Unrecognised R node data frame column type", "Unrecognised R node data frame column type");
-			}
-					
 		}
 		
-		// Create the R data frame object.
-		REXP dataFrame = REXP.createDataFrame(new RList(columnValues, columnNames));
+		// Now the column values are known, we can generate the R values.
+		REXP[] columnValues = new REXP[iInColumns.size()];
+		for (int i = 0; i < iInColumns.size(); i++) {
+			columnValues[i] = iInColumns.get(i).iConverter.toR(values[i]);
+		}
 		
-		// Assign the data frame to an R variable on the Rserve server.
-		connection.assign(iName, dataFrame);
+		// Create the R data frame object.
+		return REXP.createDataFrame(new RList(columnValues, columnNames));
 		
 	}
 	
 	/**
-	 * Using the specified connection to an Rserve server and output message, get the R variable for this data frame
-	 * and set it on all nodes returned by the XPath expression for this data frame and its columns.
-	 * @param connection the Rserve server connection to use.
+	 * Using the specified R value retrieved from the Rserve server and output message, set the R data frame on all
+	 * nodes returned by the XPath expression for this data frame and its columns.
+	 * @param dataFrame the R value for this data frame, or null if the R variable does not exist.
 	 * @param message the output message.
 	 * @param xpathVariables the set of XPath variables to use.
+	 * @param trace the user trace for the converted values of this message.
 	 * @throws RNodeException if a known problem occurs during processing.
 	 * @throws MbException if a problem occurs during logging or accessing the output message.
-	 * @throws RserveException if an unknown problem occurs interacting with the Rserve server.
+	 * @throws REXPMismatchException if an unknown problem occurs accessing the R value.
 	 */
 	@SuppressWarnings("unchecked")
-	public void fromR(RConnection connection, MbMessage message, MbXPathVariables xpathVariables) throws RNodeException, MbException, REXPMismatchException {
+	public void fromR(REXP dataFrame, MbMessage message, MbXPathVariables xpathVariables, RNodeTrace trace) throws RNodeException, MbException, REXPMismatchException {
 		final String methodName = "fromR";
 		
-		// It is a data frame - retrieve the R data frame variable from the Rserve server.
-		REXP dataFrame = null;
-		try {
-			dataFrame = connection.get(iName, null, true);
-			if (dataFrame == null) {
-				throw new RNodeException(this, methodName, 7833, "R data frame does not exist", iName, iOwner.getName());
-			}
-		} catch (REngineException e) {
+		// Check that the R data frame variable existed on the Rserve server.
+		if (dataFrame == null || dataFrame.isNull()) {
 			throw new RNodeException(this, methodName, 7833, "R data frame does not exist", iName, iOwner.getName());
 		}
 		
-		// Build an array of the column names and values.
-		REXP[] columnValues = new REXP[iOutColumns.size()];
+		// Build an array of the column values, decoding each column once rather than once for each row.
+		RNodeVector[] columnValues = new RNodeVector[iOutColumns.size()];
 		
 		// Check that it is a data frame variable, and retrieve the required columns from the data frame.
 		if (dataFrame.isList() && dataFrame.inherits("data.frame")) {
 			RList contents = dataFrame.asList();
 			for (int i = 0; i < iOutColumns.size(); i++) {
 				Column column = iOutColumns.get(i);
-				columnValues[i] = contents.at(column.getName());
-				if (columnValues[i] == null) {
+				REXP columnValue = contents.at(column.getName());
+				if (columnValue == null) {
 					throw new RNodeException(this, methodName, 7834, "R data frame does not contain the specified column", iName, iOwner.getName(), column.getName());
 				}
+				columnValues[i] = RNodeVector.decode(columnValue);
+				if (columnValues[i] == null) {
+					throw new RNodeException(this, methodName, 7849, "R column type is not supported (not logical/integer/double/character)", iName, iOwner.getName(), column.getName());
+				}
 			}
 		} else {
 			throw new RNodeException(this, methodName, 7835, "R variable is not a data frame", iName, iOwner.getName());
@@ -508,6 +428,12 @@ public class RNodeDataFrame {
 			nodeset.add(element);
 		}
 		
+		// Build an array of the matchers used to resolve the column XPath expressions against each row.
+		RNodePath.Matcher[] matchers = new RNodePath.Matcher[iOutColumns.size()];
+		for (int j = 0; j < iOutColumns.size(); j++) {
+			matchers[j] = iOutColumns.get(j).matcher(xpathVariables);
+		}
+		
 		// Loop over all the elements.
 		int currentRow = 0;
 		for (int i = 0; i < nodeset.size(); i++) {
@@ -516,11 +442,13 @@ public class RNodeDataFrame {
 			MbElement rowElement = nodeset.get(i);
 			for (int j = 0; j < iOutColumns.size(); j++) {
 			
-				// Evaluate the XPath expression for this column.
+				// Resolve the XPath expression for this column.
 				Column column = iOutColumns.get(j);
 				MbElement columnElement = null;
-				Object columnValue = rowElement.evaluateXPath(column.getXPath(), xpathVariables);
-				if (columnValue instanceof List<?>) {
+				Object columnValue = column.evaluate(rowElement, matchers[j], xpathVariables);
+				if (columnValue instanceof MbElement) {
+					columnElement = (MbElement) columnValue;
+				} else if (columnValue instanceof List<?>) {
 					List<MbElement> columnNodeset = (List<MbElement>) columnValue;
 					if (columnNodeset.size() == 1) {
 						columnElement = columnNodeset.get(0);
@@ -534,41 +462,44 @@ public class RNodeDataFrame {
 				}
 				
 				// Set the value on the element.
-				REXP value = columnValues[j];
-				if (value.isLogical()) {
-					if (!value.isNA()[currentRow]) {
-						boolean actualValue = value.asBytes()[currentRow] == REXPLogical.TRUE;
-						RNodeLog.logUserTrace(this, methodName, 7862, "Assigning R logical value", iOwner.getName(), actualValue, column.getName(), columnElement, currentRow + 1, expectedRows, i + 1, iName);
-						columnElement.setValue(actualValue);
-					} else {
-						columnElement.setValue(null);
+				RNodeVector value = columnValues[j];
+				if (value.isNA(currentRow)) {
+					columnElement.setValue(null);
+					continue;
+				}
+				switch (value.getType()) {
+				case LOGICAL: {
+					boolean actualValue = value.getLogical(currentRow);
+					if (trace.sample()) {
+						trace.logUserTrace(this, methodName, 7862, "Assigning R logical value", iOwner.getName(), actualValue, column.getName(), columnElement, currentRow + 1, expectedRows, i + 1, iName);
 					}
-				} else if (value.isInteger()) {
-					if (!value.isNA()[currentRow]) {
-						int actualValue = value.asIntegers()[currentRow];
-						RNodeLog.logUserTrace(this, methodName, 7863, "Assigning R integer value", iOwner.getName(), actualValue, column.getName(), columnElement, currentRow + 1, expectedRows, i + 1, iName);
-						columnElement.setValue(actualValue);
-					} else {
-						columnElement.setValue(null);
+					columnElement.setValue(actualValue);
+					break;
+				}
+				case INTEGER: {
+					int actualValue = value.getInteger(currentRow);
+					if (trace.sample()) {
+						trace.logUserTrace(this, methodName, 7863, "Assigning R integer value", iOwner.getName(), actualValue, column.getName(), columnElement, currentRow + 1, expectedRows, i + 1, iName);
 					}
-				} else if (value.isNumeric()) {
-					if (!value.isNA()[currentRow]) {
-						double actualValue = value.asDoubles()[currentRow];
-						RNodeLog.logUserTrace(this, methodName, 7864, "Assigning R double value", iOwner.getName(), actualValue, column.getName(), columnElement, currentRow + 1, expectedRows, i + 1, iName);
-						columnElement.setValue(actualValue);
-					} else {
-						columnElement.setValue(null);
+					columnElement.setValue(actualValue);
+					break;
+				}
+				case DOUBLE: {
+					double actualValue = value.getDouble(currentRow);
+					if (trace.sample()) {
+						trace.logUserTrace(this, methodName, 7864, "Assigning R double value", iOwner.getName(), actualValue, column.getName(), columnElement, currentRow + 1, expectedRows, i + 1, iName);
 					}
-				} else if (value.isString()) {
-					if (!value.isNA()[currentRow]) {
-						String actualValue = value.asStrings()[currentRow];
-						RNodeLog.logUserTrace(this, methodName, 7865, "Assigning R character value", iOwner.getName(), actualValue, column.getName(), columnElement, currentRow + 1, expectedRows, i + 1, iName);
-						columnElement.setValue(actualValue);
-					} else {
-						columnElement.setValue(null);
+					columnElement.setValue(actualValue);
+					break;
+				}
+				default: {
+					String actualValue = value.getCharacter(currentRow);
+					if (trace.sample()) {
+						trace.logUserTrace(this, methodName, 7865, "Assigning R character value", iOwner.getName(), actualValue, column.getName(), columnElement, currentRow + 1, expectedRows, i + 1, iName);
 					}
-				} else {
-					throw new RNodeException(this, methodName, 7849, "R column type is not supported (not logical/integer/double/character)", iName, iOwner.getName(), column.getName());
+					columnElement.setValue(actualValue);
+					break;
+				}
 				}
 				
 			}
@@ -0,0 +1,403 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.rosuda.REngine.REngineException;
+
+import com.ibm.broker.plugin.MbException;
+
+/**
+ * A class that represents one of the Rserve servers configured on an instance of the R node, along
+ * with its pool of connections and the statistics used to route messages to it.
+ *
+ * Each message is routed to the healthy endpoint with the lowest score, which is the number of
+ * messages in flight on the endpoint (including the new message) multiplied by the exponentially
+ * weighted moving average of its latency, divided by its weight. An endpoint that fails to connect
+ * or loses its connection several times in a row is ejected, and is not used again until a
+ * background probe can connect to it.
+ * @param <T> the type of the connections to the endpoint.
+ */
+public class RNodeEndpoint<T> {
+	
+	/**
+	 * The default Rserve server port.
+	 */
+	public static final int DEFAULT_PORT = 6311;
+	
+	/**
+	 * The number of consecutive failures after which an endpoint is ejected.
+	 */
+	private static final int EJECT_THRESHOLD = 3;
+	
+	/**
+	 * The interval (in seconds) at which an ejected endpoint is probed.
+	 */
+	private static final long PROBE_INTERVAL = 5;
+	
+	/**
+	 * The weight given to each new latency sample in the moving average, as a power of two (1/4).
+	 */
+	private static final int EWMA_SHIFT = 2;
+	
+	/**
+	 * The R node that owns this endpoint.
+	 */
+	private RNode iOwner;
+	
+	/**
+	 * The Rserve server host name.
+	 */
+	private String iHostName;
+	
+	/**
+	 * The Rserve server port.
+	 */
+	private int iPort;
+	
+	/**
+	 * The relative share of messages to route to this endpoint.
+	 */
+	private int iWeight;
+	
+	/**
+	 * The pool of connections to this endpoint, or null if it has not been created yet.
+	 */
+	private RNodeConnectionPool<T> iPool = null;
+	
+	/**
+	 * The R engine used to probe this endpoint once it has been ejected, or null if it has not been set yet.
+	 */
+	private RNodeEngine iEngine = null;
+	
+	/**
+	 * The RData file loaded by connections to this endpoint instead of the RData file configured on the node, or null.
+	 */
+	private RNodeFile iRDataFile = null;
+	
+	/**
+	 * The number of messages in flight on this endpoint, including messages waiting for a connection.
+	 */
+	private AtomicInteger iInFlight = new AtomicInteger();
+	
+	/**
+	 * The moving average of the latency (in nanoseconds) of this endpoint, or 0 if it has not been used yet.
+	 * Concurrent updates can overwrite each other, which only loses a sample.
+	 */
+	private volatile long iLatency = 0;
+	
+	/**
+	 * The number of consecutive failures on this endpoint.
+	 */
+	private AtomicInteger iFailures = new AtomicInteger();
+	
+	/**
+	 * Whether this endpoint has been ejected.
+	 */
+	private AtomicBoolean iEjected = new AtomicBoolean(false);
+	
+	/**
+	 * The scheduled probe of this endpoint, or null if it is not ejected.
+	 */
+	private ScheduledFuture<?> iProbe = null;
+	
+	/**
+	 * Whether this endpoint has been closed.
+	 */
+	private volatile boolean iClosed = false;
+	
+	/**
+	 * Constructor.
+	 * @param owner the R node that owns this endpoint.
+	 * @param hostName the Rserve server host name.
+	 * @param port the Rserve server port.
+	 * @param weight the relative share of messages to route to this endpoint.
+	 */
+	public RNodeEndpoint(RNode owner, String hostName, int port, int weight) {
+		iOwner = owner;
+		iHostName = hostName;
+		iPort = port;
+		iWeight = Math.max(weight, 1);
+	}
+	
+	/**
+	 * Parse a list of Rserve servers, separated by commas, each in the format hostname[:port][*weight].
+	 * If no port is provided, the port defaults to 6311; if no weight is provided, the weight defaults to 1.
+	 * @param owner the R node that owns the endpoints.
+	 * @param servers the list of Rserve servers.
+	 * @param <T> the type of the connections to the endpoints.
+	 * @return the endpoints.
+	 * @throws IllegalArgumentException if the list is empty, or a port or weight is not a number.
+	 */
+	public static <T> List<RNodeEndpoint<T>> parse(RNode owner, String servers) {
+		List<RNodeEndpoint<T>> endpoints = new ArrayList<>();
+		for (String server : servers.split(",")) {
+			server = server.trim();
+			if (server.isEmpty()) {
+				continue;
+			}
+			int weight = 1;
+			int i = server.indexOf("*");
+			if (i != -1) {
+				weight = Integer.parseInt(server.substring(i + 1).trim());
+				server = server.substring(0, i).trim();
+			}
+			int port = DEFAULT_PORT;
+			i = server.indexOf(":");
+			if (i != -1) {
+				port = Integer.parseInt(server.substring(i + 1).trim());
+				server = server.substring(0, i).trim();
+			}
+			endpoints.add(new RNodeEndpoint<T>(owner, server, port, weight));
+		}
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("No Rserve servers specified");
+		}
+		return endpoints;
+	}
+	
+	/**
+	 * Select the endpoint to route a message to. If all of the endpoints have been ejected, the
+	 * best of them is selected anyway, so that the message fails with the underlying problem.
+	 * @param endpoints the endpoints.
+	 * @param <T> the type of the connections to the endpoints.
+	 * @return the selected endpoint.
+	 */
+	public static <T> RNodeEndpoint<T> select(List<RNodeEndpoint<T>> endpoints) {
+		if (endpoints.size() == 1) {
+			return endpoints.get(0);
+		}
+		RNodeEndpoint<T> best = null;
+		double bestScore = Double.MAX_VALUE;
+		boolean bestEjected = true;
+		for (int i = 0; i < endpoints.size(); i++) {
+			RNodeEndpoint<T> endpoint = endpoints.get(i);
+			boolean ejected = endpoint.iEjected.get();
+			double score = endpoint.score();
+			if (best == null || (bestEjected && !ejected) || (bestEjected == ejected && score < bestScore)) {
+				best = endpoint;
+				bestScore = score;
+				bestEjected = ejected;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Calculate the routing score of this endpoint. Endpoints that have not been used yet are
+	 * assumed to have a latency of one microsecond, so that they are tried early.
+	 * @return the routing score.
+	 */
+	private double score() {
+		return (iInFlight.get() + 1) * (double) Math.max(iLatency, 1000) / iWeight;
+	}
+	
+	/**
+	 * Get the Rserve server host name.
+	 * @return the Rserve server host name.
+	 */
+	public String getHostName() {
+		return iHostName;
+	}
+	
+	/**
+	 * Get the Rserve server port.
+	 * @return the Rserve server port.
+	 */
+	public int getPort() {
+		return iPort;
+	}
+	
+	/**
+	 * Get the relative share of messages to route to this endpoint.
+	 * @return the weight.
+	 */
+	public int getWeight() {
+		return iWeight;
+	}
+	
+	/**
+	 * Get the pool of connections to this endpoint.
+	 * @return the pool of connections, or null if it has not been created yet.
+	 */
+	public RNodeConnectionPool<T> getPool() {
+		return iPool;
+	}
+	
+	/**
+	 * Set the pool of connections to this endpoint.
+	 * @param pool the pool of connections.
+	 */
+	public void setPool(RNodeConnectionPool<T> pool) {
+		iPool = pool;
+	}
+	
+	/**
+	 * Set the R engine used to probe this endpoint once it has been ejected.
+	 * @param engine the R engine.
+	 */
+	public void setEngine(RNodeEngine engine) {
+		iEngine = engine;
+	}
+	
+	/**
+	 * Get the RData file loaded by connections to this endpoint instead of the RData file configured on the node.
+	 * @return the RData file, or null if connections load the RData file configured on the node.
+	 */
+	public RNodeFile getRDataFile() {
+		return iRDataFile;
+	}
+	
+	/**
+	 * Set the RData file loaded by connections to this endpoint instead of the RData file configured on the node.
+	 * @param rdataFile the RData file.
+	 */
+	public void setRDataFile(RNodeFile rdataFile) {
+		iRDataFile = rdataFile;
+	}
+	
+	/**
+	 * Check whether this endpoint has been ejected.
+	 * @return true if this endpoint has been ejected.
+	 */
+	public boolean isEjected() {
+		return iEjected.get();
+	}
+	
+	/**
+	 * Record that a message has been routed to this endpoint.
+	 * @return the start time to pass to end().
+	 */
+	public long begin() {
+		iInFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+	
+	/**
+	 * Record that a message routed to this endpoint has completed.
+	 * @param startTime the start time returned by begin().
+	 * @param reachable false if the message failed because the endpoint could not be reached.
+	 */
+	public void end(long startTime, boolean reachable) {
+		iInFlight.decrementAndGet();
+		if (reachable) {
+			long latency = System.nanoTime() - startTime;
+			long average = iLatency;
+			iLatency = average == 0 ? latency : average + ((latency - average) >> EWMA_SHIFT);
+			if (iFailures.get() != 0) {
+				iFailures.set(0);
+			}
+		} else if (iFailures.incrementAndGet() >= EJECT_THRESHOLD) {
+			eject();
+		}
+	}
+	
+	/**
+	 * Record that a message routed to this endpoint was not processed because the endpoint is overloaded.
+	 * This is neither a latency sample nor a failure of the endpoint.
+	 */
+	public void cancel() {
+		iInFlight.decrementAndGet();
+	}
+	
+	/**
+	 * Eject this endpoint, if it is not already ejected, and start probing it in the background.
+	 */
+	private void eject() {
+		final String methodName = "eject";
+		if (!iEjected.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			RNodeLog.logWarning(this, methodName, 7873, "Rserve server ejected", iOwner.getName(), iHostName, iPort, iFailures.get());
+		} catch (MbException e) {
+			// Ignore any problems logging the warning.
+		}
+		scheduleProbe();
+	}
+	
+	/**
+	 * Schedule a probe of this endpoint on the shared scheduler. The probe itself blocks, so it runs on a shared worker thread.
+	 */
+	private synchronized void scheduleProbe() {
+		if (iClosed) {
+			return;
+		}
+		iProbe = RNodeScheduler.get().schedule(new Runnable() {
+			
+			@Override
+			public void run() {
+				RNodeScheduler.getWorkers().execute(new Runnable() {
+					
+					@Override
+					public void run() {
+						probe();
+					}
+					
+				});
+			}
+			
+		}, PROBE_INTERVAL, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Attempt to connect to this ejected endpoint with the R engine. If the connection succeeds, the endpoint is restored,
+	 * otherwise another probe is scheduled.
+	 */
+	private void probe() {
+		final String methodName = "probe";
+		try {
+			iEngine.probe(iHostName, iPort);
+		} catch (REngineException e) {
+			scheduleProbe();
+			return;
+		}
+		iFailures.set(0);
+		iEjected.set(false);
+		try {
+			RNodeLog.logInformation(this, methodName, 7874, "Rserve server restored", iOwner.getName(), iHostName, iPort);
+		} catch (MbException e) {
+			// Ignore any problems logging the information.
+		}
+	}
+	
+	/**
+	 * Close the pool of connections to this endpoint, stop probing it, and stop watching its RData file for updates.
+	 */
+	public void close() {
+		synchronized (this) {
+			iClosed = true;
+			if (iProbe != null) {
+				iProbe.cancel(false);
+			}
+		}
+		if (iPool != null) {
+			iPool.close();
+		}
+		if (iRDataFile != null) {
+			iRDataFile.close();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return iHostName + ":" + iPort;
+	}
+	
+}
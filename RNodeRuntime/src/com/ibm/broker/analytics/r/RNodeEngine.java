@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import org.rosuda.REngine.REngineException;
+
+/**
+ * A class that represents the R engine used by an instance of the R node to evaluate its scripts.
+ * The engine creates the sessions held in the connection pool for each server configured on the node;
+ * engines that run R in this JVM, or do not run R at all, can ignore the host name and port.
+ *
+ * The engine is selected by the engine property of the node, which is either the name of one of the
+ * engines provided with the node, or the fully qualified name of a subclass of this class with a public
+ * constructor that takes no arguments, loaded with the class loader of the node.
+ */
+public abstract class RNodeEngine {
+	
+	/**
+	 * The name of the engine that connects to Rserve servers, which is the default engine.
+	 */
+	public static final String RSERVE = "rserve";
+	
+	/**
+	 * Create the engine with the specified name.
+	 * @param name the name of one of the engines provided with the node, or the name of a subclass of this class.
+	 * @return the engine.
+	 * @throws ReflectiveOperationException if there is no such engine, or it cannot be created (including an
+	 * InvocationTargetException wrapping any exception thrown by its constructor).
+	 * @throws ClassCastException if the class is not a subclass of this class.
+	 */
+	public static RNodeEngine forName(String name) throws ReflectiveOperationException {
+		if (name == null || name.trim().isEmpty() || name.trim().equalsIgnoreCase(RSERVE)) {
+			return new RNodeRserveEngine();
+		} else if (name.trim().equalsIgnoreCase(RNodeJRIEngine.JRI)) {
+			return new RNodeJRIEngine();
+		} else if (name.trim().equalsIgnoreCase(RNodeRenjinEngine.RENJIN)) {
+			return new RNodeRenjinEngine();
+		}
+		return Class.forName(name.trim(), true, RNodeEngine.class.getClassLoader()).asSubclass(RNodeEngine.class).getDeclaredConstructor().newInstance();
+	}
+	
+	/**
+	 * Get the name of this engine, as used in user trace and events.
+	 * @return the name of this engine.
+	 */
+	public abstract String getName();
+	
+	/**
+	 * Create a new session.
+	 * @param hostName the host name of the server configured on the node.
+	 * @param port the port of the server configured on the node.
+	 * @return the new session.
+	 * @throws REngineException if a problem occurs creating the session.
+	 */
+	public abstract RNodeSession createSession(String hostName, int port) throws REngineException;
+	
+	/**
+	 * Check whether a server that has been ejected can be used again. By default, this creates a session
+	 * and closes it again.
+	 * @param hostName the host name of the server configured on the node.
+	 * @param port the port of the server configured on the node.
+	 * @throws REngineException if the server still cannot be used.
+	 */
+	public void probe(String hostName, int port) throws REngineException {
+		createSession(hostName, port).close();
+	}
+	
+	/**
+	 * Check whether the sessions of this engine share one global environment, so that the R variables and
+	 * functions installed by each instance of the node must have names that cannot clash. By default, each
+	 * session has its own global environment.
+	 * @return true if every session shares the same global environment.
+	 */
+	public boolean isSharedEnvironment() {
+		return false;
+	}
+	
+	@Override
+	public String toString() {
+		return getName();
+	}
+	
+}
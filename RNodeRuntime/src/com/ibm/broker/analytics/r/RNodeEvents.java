@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class that represents a type of Java Flight Recorder event emitted by the R node, so that individual
+ * slow messages can be correlated with garbage collection pauses, safepoints and other JVM activity.
+ *
+ * The R node runs on Java 7, so the event types are defined at runtime with jdk.jfr.EventFactory,
+ * which is found by reflection and invoked through method handles. If Flight Recorder is not available,
+ * or the event type is not enabled in any recording, begin() returns null without allocating anything,
+ * so callers only pay for an event when it is being recorded:
+ *
+ * <pre>
+ * Object event = RNodeEvents.EVALUATE.begin();
+ * ...
+ * if (event != null) {
+ *     RNodeEvents.EVALUATE.commit(event, getName(), rows);
+ * }
+ * </pre>
+ */
+public class RNodeEvents {
+	
+	/**
+	 * The prefix of the names of the event types.
+	 */
+	private static final String NAME_PREFIX = "com.ibm.broker.analytics.r.";
+	
+	/**
+	 * The category of the event types.
+	 */
+	private static final String[] CATEGORY = { "IBM Integration Bus", "R Node" };
+	
+	/**
+	 * The method handle that checks whether an event type is enabled, or null if Flight Recorder is not available.
+	 */
+	private static final MethodHandle IS_ENABLED;
+	
+	/**
+	 * The method handle that creates a new event from an event factory.
+	 */
+	private static final MethodHandle NEW_EVENT;
+	
+	/**
+	 * The method handle that starts the timing of an event.
+	 */
+	private static final MethodHandle BEGIN;
+	
+	/**
+	 * The method handle that sets a field of an event.
+	 */
+	private static final MethodHandle SET;
+	
+	/**
+	 * The method handle that ends the timing of an event and records it.
+	 */
+	private static final MethodHandle COMMIT;
+	
+	// Find the Flight Recorder classes, which are only available on Java 9 and later (and some updates of Java 8),
+	// and bind method handles for recording events. These are static final, so the JIT compiler can inline them.
+	static {
+		MethodHandle isEnabled = null, newEvent = null, begin = null, set = null, commit = null;
+		try {
+			ClassLoader loader = ClassLoader.getSystemClassLoader();
+			Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory", true, loader);
+			Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType", true, loader);
+			Class<?> eventClass = Class.forName("jdk.jfr.Event", true, loader);
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			MethodType objectType = MethodType.methodType(void.class, Object.class);
+			newEvent = lookup.findVirtual(eventFactoryClass, "newEvent", MethodType.methodType(eventClass)).asType(MethodType.methodType(Object.class, Object.class));
+			begin = lookup.findVirtual(eventClass, "begin", MethodType.methodType(void.class)).asType(objectType);
+			set = lookup.findVirtual(eventClass, "set", MethodType.methodType(void.class, int.class, Object.class)).asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+			commit = lookup.findVirtual(eventClass, "commit", MethodType.methodType(void.class)).asType(objectType);
+			isEnabled = lookup.findVirtual(eventTypeClass, "isEnabled", MethodType.methodType(boolean.class)).asType(MethodType.methodType(boolean.class, Object.class));
+		} catch (ReflectiveOperationException e) {
+			// Ignore - Flight Recorder is not available, so events are never recorded.
+			isEnabled = null;
+		}
+		IS_ENABLED = isEnabled;
+		NEW_EVENT = newEvent;
+		BEGIN = begin;
+		SET = set;
+		COMMIT = commit;
+	}
+	
+	/**
+	 * The processing of a message by the R node.
+	 */
+	public static final RNodeEvents EVALUATE = new RNodeEvents("Evaluate", "R Node Evaluate",
+		new String[] { "node", "rows" }, new Class<?>[] { String.class, long.class });
+		
+	/**
+	 * The evaluation of a script on a connection to Rserve.
+	 */
+	public static final RNodeEvents RUN_SCRIPT = new RNodeEvents("RunScript", "R Node Run Script",
+		new String[] { "node", "server", "scriptKey", "scriptVersion", "parsed", "bytes" },
+		new Class<?>[] { String.class, String.class, String.class, long.class, boolean.class, long.class });
+		
+	/**
+	 * The creation of a connection to Rserve, including loading the RData file and running the connect script.
+	 */
+	public static final RNodeEvents CONNECTION_CREATE = new RNodeEvents("ConnectionCreate", "R Node Connection Create",
+		new String[] { "node", "server", "success" }, new Class<?>[] { String.class, String.class, boolean.class });
+		
+	/**
+	 * The closing of a connection to Rserve, including running the disconnect script.
+	 */
+	public static final RNodeEvents CONNECTION_DESTROY = new RNodeEvents("ConnectionDestroy", "R Node Connection Destroy",
+		new String[] { "node", "server" }, new Class<?>[] { String.class, String.class });
+		
+	/**
+	 * The reloading of an updated R script.
+	 */
+	public static final RNodeEvents SCRIPT_UPDATE = new RNodeEvents("ScriptUpdate", "R Node Script Update",
+		new String[] { "node", "file", "scriptKey", "scriptVersion", "bytes" },
+		new Class<?>[] { String.class, String.class, String.class, long.class, long.class });
+		
+	/**
+	 * The reloading of an updated RData file.
+	 */
+	public static final RNodeEvents FILE_UPDATE = new RNodeEvents("FileUpdate", "R Node File Update",
+		new String[] { "node", "file", "fileKey", "fileVersion", "bytes" },
+		new Class<?>[] { String.class, String.class, String.class, long.class, long.class });
+		
+	/**
+	 * The factory for events of this type, or null if Flight Recorder is not available.
+	 */
+	private Object iFactory = null;
+	
+	/**
+	 * The Flight Recorder event type, or null if Flight Recorder is not available.
+	 */
+	private Object iEventType = null;
+	
+	/**
+	 * Constructor - define the event type, if Flight Recorder is available.
+	 * @param name the name of the event type, without the prefix.
+	 * @param label the label of the event type.
+	 * @param fieldNames the names of the fields of the event type.
+	 * @param fieldTypes the types of the fields of the event type.
+	 */
+	private RNodeEvents(String name, String label, String[] fieldNames, Class<?>[] fieldTypes) {
+		if (IS_ENABLED == null) {
+			return;
+		}
+		try {
+			
+			// Describe the event type and its fields, and create a factory for events of that type.
+			ClassLoader loader = ClassLoader.getSystemClassLoader();
+			Constructor<?> newAnnotationElement = Class.forName("jdk.jfr.AnnotationElement", true, loader).getConstructor(Class.class, Object.class);
+			Constructor<?> newValueDescriptor = Class.forName("jdk.jfr.ValueDescriptor", true, loader).getConstructor(Class.class, String.class);
+			List<Object> annotations = new ArrayList<>();
+			annotations.add(newAnnotationElement.newInstance(annotation("jdk.jfr.Name", loader), NAME_PREFIX + name));
+			annotations.add(newAnnotationElement.newInstance(annotation("jdk.jfr.Label", loader), label));
+			annotations.add(newAnnotationElement.newInstance(annotation("jdk.jfr.Category", loader), CATEGORY));
+			List<Object> fields = new ArrayList<>();
+			for (int i = 0; i < fieldNames.length; i++) {
+				fields.add(newValueDescriptor.newInstance(fieldTypes[i], fieldNames[i]));
+			}
+			Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory", true, loader);
+			Object factory = eventFactoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+			iEventType = eventFactoryClass.getMethod("getEventType").invoke(factory);
+			iFactory = factory;
+			
+		} catch (Exception e) {
+			// Ignore - events of this type are never recorded.
+			iEventType = null;
+		}
+	}
+	
+	/**
+	 * Find a Flight Recorder annotation type.
+	 * @param name the name of the annotation type.
+	 * @param loader the class loader to find it with.
+	 * @return the annotation type.
+	 * @throws ClassNotFoundException if the annotation type cannot be found.
+	 */
+	private static Class<? extends Annotation> annotation(String name, ClassLoader loader) throws ClassNotFoundException {
+		return Class.forName(name, true, loader).asSubclass(Annotation.class);
+	}
+	
+	/**
+	 * Check whether events of this type are being recorded.
+	 * @return true if events of this type are being recorded.
+	 */
+	public boolean isEnabled() {
+		if (iEventType == null) {
+			return false;
+		}
+		try {
+			return (boolean) IS_ENABLED.invokeExact(iEventType);
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Create a new event of this type and start timing it, if events of this type are being recorded.
+	 * @return the event, which must be passed to commit(), or null if events of this type are not being recorded.
+	 */
+	public Object begin() {
+		if (!isEnabled()) {
+			return null;
+		}
+		try {
+			Object event = (Object) NEW_EVENT.invokeExact(iFactory);
+			BEGIN.invokeExact(event);
+			return event;
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Set the fields of an event, end timing it and record it.
+	 * @param event the event returned by begin(), which must not be null.
+	 * @param values the values of the fields, in the order they were defined.
+	 */
+	public void commit(Object event, Object... values) {
+		try {
+			for (int i = 0; i < values.length; i++) {
+				SET.invokeExact(event, i, values[i]);
+			}
+			COMMIT.invokeExact(event);
+		} catch (Throwable t) {
+			// Ignore - the event is not recorded.
+		}
+	}
+	
+}
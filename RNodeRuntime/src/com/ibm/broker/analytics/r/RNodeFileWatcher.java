@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A class that notifies listeners when files used by instances of the R node may have changed.
+ * By default, the directories containing the files are watched by a single WatchService shared
+ * by all instances of the R node, with one daemon thread waiting for events. If a polling interval
+ * is specified, or the file system does not support watching, the listener is instead called
+ * periodically on the shared scheduler. Either way, listeners must check the file themselves to
+ * see whether it has actually changed.
+ */
+public class RNodeFileWatcher {
+	
+	/**
+	 * The polling interval (in seconds) used if the file system does not support watching.
+	 */
+	public static final long DEFAULT_POLLING_INTERVAL = 5;
+	
+	/**
+	 * An interface implemented by the owners of files to reload them.
+	 */
+	public interface Listener {
+		
+		/**
+		 * Called on a background thread when the file may have changed.
+		 */
+		public void fileChanged();
+		
+	}
+	
+	/**
+	 * A class that represents the registration of a listener for a file.
+	 */
+	public static class Registration {
+		
+		/**
+		 * The absolute path of the file, or null if the file is polled.
+		 */
+		private Path iPath;
+		
+		/**
+		 * The listener for the file.
+		 */
+		private Listener iListener;
+		
+		/**
+		 * The scheduled polling task, or null if the file is watched.
+		 */
+		private ScheduledFuture<?> iPollingTask = null;
+		
+		/**
+		 * Constructor.
+		 * @param path the absolute path of the file, or null if the file is polled.
+		 * @param listener the listener for the file.
+		 */
+		private Registration(Path path, Listener listener) {
+			iPath = path;
+			iListener = listener;
+		}
+		
+		/**
+		 * Stop notifying the listener for the file.
+		 */
+		public void cancel() {
+			if (iPollingTask != null) {
+				iPollingTask.cancel(false);
+			} else {
+				unwatch(this);
+			}
+		}
+		
+	}
+	
+	/**
+	 * The shared watch service, or null if no files are being watched.
+	 */
+	private static WatchService sWatchService = null;
+	
+	/**
+	 * The watch keys for each directory being watched.
+	 */
+	private static Map<Path, WatchKey> sWatchKeys = new HashMap<>();
+	
+	/**
+	 * The registrations for each file being watched.
+	 */
+	private static Map<Path, List<Registration>> sRegistrations = new HashMap<>();
+	
+	/**
+	 * Private constructor - this class only has static methods.
+	 */
+	private RNodeFileWatcher() {
+	}
+	
+	/**
+	 * Start notifying the specified listener when the specified file may have changed.
+	 * @param path the path of the file.
+	 * @param pollingInterval the polling interval (in seconds), or 0 to watch the file for changes.
+	 * @param listener the listener for the file.
+	 * @return the registration, which must be cancelled when the file is no longer used.
+	 */
+	public static Registration watch(Path path, long pollingInterval, final Listener listener) {
+		if (pollingInterval <= 0) {
+			Path absolutePath = path.toAbsolutePath().normalize();
+			Registration registration = new Registration(absolutePath, listener);
+			if (watch(registration)) {
+				return registration;
+			}
+			pollingInterval = DEFAULT_POLLING_INTERVAL;
+		}
+		Registration registration = new Registration(null, listener);
+		registration.iPollingTask = RNodeScheduler.get().scheduleWithFixedDelay(new Runnable() {
+			
+			@Override
+			public void run() {
+				fireFileChanged(listener);
+			}
+			
+		}, pollingInterval, pollingInterval, TimeUnit.SECONDS);
+		return registration;
+	}
+	
+	/**
+	 * Watch the directory containing the file for the specified registration.
+	 * @param registration the registration.
+	 * @return true if the directory is being watched, or false if it cannot be watched.
+	 */
+	private static synchronized boolean watch(Registration registration) {
+		Path directory = registration.iPath.getParent();
+		try {
+			if (sWatchService == null) {
+				final WatchService watchService = FileSystems.getDefault().newWatchService();
+				sWatchService = watchService;
+				Thread thread = RNodeScheduler.newThreadFactory("RNodeFileWatcher").newThread(new Runnable() {
+					
+					@Override
+					public void run() {
+						processEvents(watchService);
+					}
+					
+				});
+				thread.start();
+			}
+			if (!sWatchKeys.containsKey(directory)) {
+				WatchKey key = directory.register(sWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				sWatchKeys.put(directory, key);
+			}
+		} catch (IOException | UnsupportedOperationException e) {
+			closeIfUnused();
+			return false;
+		}
+		List<Registration> registrations = sRegistrations.get(registration.iPath);
+		if (registrations == null) {
+			registrations = new ArrayList<>();
+			sRegistrations.put(registration.iPath, registrations);
+		}
+		registrations.add(registration);
+		return true;
+	}
+	
+	/**
+	 * Stop watching the file for the specified registration, and the directory containing it if
+	 * no other files in that directory are being watched.
+	 * @param registration the registration.
+	 */
+	private static synchronized void unwatch(Registration registration) {
+		List<Registration> registrations = sRegistrations.get(registration.iPath);
+		if (registrations == null || !registrations.remove(registration)) {
+			return;
+		}
+		if (registrations.isEmpty()) {
+			sRegistrations.remove(registration.iPath);
+		}
+		Path directory = registration.iPath.getParent();
+		for (Path path : sRegistrations.keySet()) {
+			if (path.getParent().equals(directory)) {
+				return;
+			}
+		}
+		WatchKey key = sWatchKeys.remove(directory);
+		if (key != null) {
+			key.cancel();
+		}
+		closeIfUnused();
+	}
+	
+	/**
+	 * Close the shared watch service if no directories are being watched, which also stops the thread
+	 * waiting for events.
+	 */
+	private static void closeIfUnused() {
+		if (sWatchKeys.isEmpty() && sWatchService != null) {
+			try {
+				sWatchService.close();
+			} catch (IOException e) {
+				// Ignore any problems closing the watch service.
+			}
+			sWatchService = null;
+		}
+	}
+	
+	/**
+	 * Wait for events from the specified watch service, and notify the listeners for the files that
+	 * have changed, until the watch service is closed.
+	 * @param watchService the watch service.
+	 */
+	private static void processEvents(WatchService watchService) {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (ClosedWatchServiceException | InterruptedException e) {
+				return;
+			}
+			Path directory = (Path) key.watchable();
+			Set<Listener> listeners = new LinkedHashSet<>();
+			synchronized (RNodeFileWatcher.class) {
+				for (WatchEvent<?> event : key.pollEvents()) {
+					for (Map.Entry<Path, List<Registration>> entry : sRegistrations.entrySet()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW ? entry.getKey().getParent().equals(directory) : entry.getKey().equals(directory.resolve((Path) event.context()))) {
+							for (Registration registration : entry.getValue()) {
+								listeners.add(registration.iListener);
+							}
+						}
+					}
+				}
+				key.reset();
+			}
+			for (Listener listener : listeners) {
+				fireFileChanged(listener);
+			}
+		}
+	}
+	
+	/**
+	 * Notify the specified listener that its file may have changed, ignoring any problems so that
+	 * they do not stop the notification of other listeners.
+	 * @param listener the listener.
+	 */
+	private static void fireFileChanged(Listener listener) {
+		try {
+			listener.fileChanged();
+		} catch (RuntimeException e) {
+			// The listener is responsible for reporting any problems.
+		}
+	}
+	
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A class that represents a histogram of durations, in the style of HdrHistogram. Each power of two
+ * is divided into a fixed number of linear sub-buckets, so every recorded value is counted in a bucket
+ * no wider than about 3% of the value, across the whole range from nanoseconds to hours. Recording a
+ * value does not take any locks or allocate any memory.
+ */
+public class RNodeHistogram {
+	
+	/**
+	 * The number of bits used to select a sub-bucket within each power of two.
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+	
+	/**
+	 * The number of sub-buckets within each power of two.
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	/**
+	 * The total number of buckets, which covers every positive long value.
+	 */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	/**
+	 * The count of values recorded in each bucket.
+	 */
+	private AtomicLongArray iCounts = new AtomicLongArray(BUCKETS);
+	
+	/**
+	 * The number of values recorded.
+	 */
+	private AtomicLong iCount = new AtomicLong();
+	
+	/**
+	 * The sum of the values recorded.
+	 */
+	private AtomicLong iSum = new AtomicLong();
+	
+	/**
+	 * The largest value recorded.
+	 */
+	private AtomicLong iMax = new AtomicLong();
+	
+	/**
+	 * Record a value.
+	 * @param value the value (in nanoseconds). Negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		value = Math.max(value, 0);
+		iCounts.incrementAndGet(index(value));
+		iCount.incrementAndGet();
+		iSum.addAndGet(value);
+		long max = iMax.get();
+		while (value > max && !iMax.compareAndSet(max, value)) {
+			max = iMax.get();
+		}
+	}
+	
+	/**
+	 * Get the number of values recorded.
+	 * @return the number of values.
+	 */
+	public long getCount() {
+		return iCount.get();
+	}
+	
+	/**
+	 * Get the sum of the values recorded.
+	 * @return the sum (in nanoseconds).
+	 */
+	public long getSum() {
+		return iSum.get();
+	}
+	
+	/**
+	 * Get the largest value recorded.
+	 * @return the largest value (in nanoseconds), or 0 if no values have been recorded.
+	 */
+	public long getMax() {
+		return iMax.get();
+	}
+	
+	/**
+	 * Get the mean of the values recorded.
+	 * @return the mean (in nanoseconds), or 0 if no values have been recorded.
+	 */
+	public double getMean() {
+		long count = iCount.get();
+		return count > 0 ? (double) iSum.get() / count : 0;
+	}
+	
+	/**
+	 * Get the values at the specified quantiles. Each result is the upper bound of the bucket containing
+	 * the quantile, limited to the largest value recorded, so it is never less than the true value.
+	 * @param quantiles the quantiles, each between 0 and 1, in ascending order.
+	 * @return the values (in nanoseconds), which are 0 if no values have been recorded.
+	 */
+	public long[] getQuantiles(double... quantiles) {
+		long[] results = new long[quantiles.length];
+		long count = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = iCounts.get(i);
+			count += counts[i];
+		}
+		if (count == 0) {
+			return results;
+		}
+		long max = iMax.get();
+		long seen = 0;
+		int bucket = -1;
+		for (int q = 0; q < quantiles.length; q++) {
+			long rank = Math.max((long) Math.ceil(quantiles[q] * count), 1);
+			while (seen < rank && bucket < BUCKETS - 1) {
+				seen += counts[++bucket];
+			}
+			results[q] = Math.min(upperBound(Math.max(bucket, 0)), max);
+		}
+		return results;
+	}
+	
+	/**
+	 * Calculate the bucket for a value. Values below the number of sub-buckets each have their own bucket,
+	 * and each power of two above that is divided into the same number of buckets.
+	 * @param value the value, which must not be negative.
+	 * @return the index of the bucket.
+	 */
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+	
+	/**
+	 * Calculate the largest value counted in a bucket.
+	 * @param index the index of the bucket.
+	 * @return the largest value.
+	 */
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lowerBound + (1L << shift) - 1;
+	}
+	
+}
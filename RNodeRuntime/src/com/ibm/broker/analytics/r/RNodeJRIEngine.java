@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REngine;
+import org.rosuda.REngine.REngineException;
+
+/**
+ * An R engine that runs R in this JVM through JRI, so that values are passed to R through JNI rather
+ * than being serialized over a connection to an Rserve server. JRI.jar and JRIEngine.jar (from the rJava
+ * package) must be on the class path of the node, the jri native library must be on java.library.path,
+ * and R_HOME must be set in the environment of the integration server.
+ *
+ * Only one R can run in a process, so every instance of the node that uses this engine shares the same R,
+ * and the same global environment. R is started by the first session, and keeps running until the process
+ * ends. R must be called from one thread, so every request runs on a dedicated R thread, in the order the
+ * requests are queued; sessions do not evaluate scripts in parallel, but the node converts the values for
+ * other messages while R is busy. The values assigned by a session are held until its next evaluation, and
+ * then assigned by the same request, so that no other session can run between them.
+ *
+ * The host name and port of the servers configured on the node are ignored. The evaluation timeout includes
+ * the time a request waits for R; when it expires, the waiting message fails at once, and R is asked to
+ * interrupt the script if it has started.
+ */
+public class RNodeJRIEngine extends RNodeEngine {
+	
+	/**
+	 * The name of this engine.
+	 */
+	public static final String JRI = "jri";
+	
+	/**
+	 * The name of the JRI implementation of REngine.
+	 */
+	private static final String ENGINE_CLASS = "org.rosuda.REngine.JRI.JRIEngine";
+	
+	/**
+	 * The arguments R is started with.
+	 */
+	private static final String[] R_ARGUMENTS = { "--no-save", "--no-restore", "--slave" };
+	
+	/**
+	 * The dedicated R thread, or null if it has not been created yet.
+	 */
+	private static ExecutorService sRThread = null;
+	
+	/**
+	 * The embedded R, or null if it has not been started yet. It is only used on the R thread.
+	 */
+	private static volatile REngine sEngine = null;
+	
+	/**
+	 * The lock held while the request running on the R thread changes, and while it is interrupted, so that
+	 * an interrupt cannot reach a request other than the one it was meant for.
+	 */
+	private static final Object sRunningLock = new Object();
+	
+	/**
+	 * The request running on the R thread, or null if R is idle. It is guarded by sRunningLock.
+	 */
+	private static Request sRunning = null;
+	
+	@Override
+	public String getName() {
+		return JRI;
+	}
+	
+	/**
+	 * Every session runs in the one embedded R, so they share its global environment.
+	 */
+	@Override
+	public boolean isSharedEnvironment() {
+		return true;
+	}
+	
+	@Override
+	public RNodeSession createSession(String hostName, int port) throws REngineException {
+		start();
+		return new Session();
+	}
+	
+	/**
+	 * Start R on the dedicated R thread, unless it has already been started.
+	 * @throws REngineException if JRI is not available, or R fails to start.
+	 */
+	private static synchronized void start() throws REngineException {
+		if (sRThread == null) {
+			sRThread = Executors.newSingleThreadExecutor(RNodeScheduler.newThreadFactory("RNodeR"));
+		}
+		if (sEngine != null) {
+			return;
+		}
+		Future<REngine> future = sRThread.submit(new Callable<REngine>() {
+			
+			@Override
+			public REngine call() throws Exception {
+				return REngine.engineForClass(ENGINE_CLASS, R_ARGUMENTS, null, false);
+			}
+			
+		});
+		try {
+			sEngine = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new REngineException(null, "Interrupted while starting R");
+		} catch (ExecutionException e) {
+			throw new REngineException(null, "Failed to start R through JRI: " + e.getCause());
+		}
+	}
+	
+	/**
+	 * Ask R to interrupt the running script. JRI does not provide this through REngine, so the
+	 * underlying Rengine is found by reflection; if that fails, the script runs to completion.
+	 */
+	private static void interrupt() {
+		try {
+			Object rni = sEngine.getClass().getMethod("getRni").invoke(sEngine);
+			rni.getClass().getMethod("rniStop", int.class).invoke(rni, 0);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Ignore - the R thread is busy until the script completes.
+		}
+	}
+	
+	/**
+	 * A request queued on the R thread, which records itself as the running request while it runs.
+	 */
+	private static class Request extends FutureTask<REXP> {
+		
+		/**
+		 * Constructor for a request.
+		 * @param callable the work to do on the R thread.
+		 */
+		public Request(Callable<REXP> callable) {
+			super(callable);
+		}
+		
+		@Override
+		public void run() {
+			synchronized (sRunningLock) {
+				sRunning = this;
+			}
+			try {
+				super.run();
+			} finally {
+				synchronized (sRunningLock) {
+					sRunning = null;
+				}
+			}
+		}
+		
+		/**
+		 * Cancel this request, and ask R to interrupt it if it is running. The check and the interrupt are
+		 * made under the lock that the R thread takes before it moves on to the next request.
+		 */
+		public void abort() {
+			if (cancel(false)) {
+				synchronized (sRunningLock) {
+					if (sRunning == this) {
+						interrupt();
+					}
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * A session in the embedded R, which queues its requests on the R thread.
+	 */
+	private static class Session extends RNodeSession {
+		
+		/**
+		 * The names of the values to assign with the next evaluation.
+		 */
+		private List<String> iNames = new ArrayList<>();
+		
+		/**
+		 * The values to assign with the next evaluation.
+		 */
+		private List<REXP> iValues = new ArrayList<>();
+		
+		/**
+		 * The request this session is waiting for, or null if it is not waiting.
+		 */
+		private volatile Request iRequest = null;
+		
+		@Override
+		public void assign(String name, REXP value) throws REngineException {
+			iNames.add(name);
+			iValues.add(value);
+		}
+		
+		@Override
+		public REXP evaluate(String expression) throws REngineException {
+			return run(expression, true);
+		}
+		
+		@Override
+		public void voidEvaluate(String expression) throws REngineException {
+			run(expression, false);
+		}
+		
+		/**
+		 * Queue a request on the R thread that assigns the pending values and then evaluates the expression,
+		 * and wait for it to complete.
+		 * @param expression the R expression.
+		 * @param resolve true to return the result, or false to discard it.
+		 * @return the result of the expression, or null if it is discarded.
+		 * @throws REngineException if this session has been closed, or the request fails or is aborted.
+		 */
+		private REXP run(final String expression, final boolean resolve) throws REngineException {
+			if (isBroken()) {
+				throw new REngineException(null, "R session has been closed");
+			}
+			final String[] names = iNames.toArray(new String[0]);
+			final REXP[] values = iValues.toArray(new REXP[0]);
+			iNames.clear();
+			iValues.clear();
+			Request request = new Request(new Callable<REXP>() {
+				
+				@Override
+				public REXP call() throws Exception {
+					for (int i = 0; i < names.length; i++) {
+						sEngine.assign(names[i], values[i]);
+					}
+					REXP result = sEngine.parseAndEval(expression, null, resolve);
+					if (resolve && result == null) {
+						throw new REngineException(sEngine, "R failed to evaluate expression");
+					}
+					return resolve ? result : null;
+				}
+				
+			});
+			iRequest = request;
+			sRThread.execute(request);
+			try {
+				return request.get();
+			} catch (CancellationException e) {
+				throw new REngineException(null, "R session was aborted");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				setBroken();
+				throw new REngineException(null, "Interrupted while waiting for R");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof REngineException) {
+					throw (REngineException) e.getCause();
+				}
+				throw new REngineException(null, String.valueOf(e.getCause()));
+			} finally {
+				iRequest = null;
+			}
+		}
+		
+		@Override
+		public void close() {
+			setBroken();
+		}
+		
+		/**
+		 * Stop waiting for the request, so that the message fails at once. If the request is still queued it
+		 * does not run at all, otherwise R is asked to interrupt it.
+		 */
+		@Override
+		protected void abort() {
+			Request request = iRequest;
+			if (request != null) {
+				request.abort();
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return JRI;
+		}
+		
+	}
+	
+}
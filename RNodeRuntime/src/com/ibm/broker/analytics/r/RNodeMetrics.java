@@ -0,0 +1,476 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.ibm.broker.plugin.MbException;
+
+/**
+ * A class that records where an instance of the R node spends its time processing messages, and the
+ * state of its connection pools, and publishes them through JMX and to a file in the Prometheus text
+ * format.
+ *
+ * The time spent in each phase of processing a message is recorded in a histogram, which costs two
+ * calls to System.nanoTime() and a few atomic increments per phase. The connection pool statistics
+ * are read from the pools when they are published, so they cost nothing while processing messages.
+ */
+public class RNodeMetrics implements DynamicMBean {
+	
+	/**
+	 * The phase that waits for a connection to Rserve.
+	 */
+	public static final int BORROW_WAIT = 0;
+	
+	/**
+	 * The phase that converts the input values from the message into R values.
+	 */
+	public static final int TO_R = 1;
+	
+	/**
+	 * The phase that runs the evaluate script on Rserve, including sending the input values and receiving the output values.
+	 */
+	public static final int EVALUATE = 2;
+	
+	/**
+	 * The phase that converts the output values from R values into the message.
+	 */
+	public static final int FROM_R = 3;
+	
+	/**
+	 * The phase that propagates the output message to the output terminal.
+	 */
+	public static final int PROPAGATE = 4;
+	
+	/**
+	 * The names of the phases.
+	 */
+	private static final String[] PHASE_NAMES = { "borrowWait", "toR", "evaluate", "fromR", "propagate" };
+	
+	/**
+	 * The quantiles published for each phase.
+	 */
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	
+	/**
+	 * The names of the quantiles published for each phase, as JMX attribute suffixes.
+	 */
+	private static final String[] QUANTILE_NAMES = { "P50", "P90", "P99", "P999" };
+	
+	/**
+	 * The name, type and description of each connection pool statistic written to the metrics file, in the order returned by poolStatistics().
+	 */
+	private static final String[][] POOL_METRICS = {
+		{ "rnode_waiting_messages", "gauge", "Messages waiting for a connection to the Rserve server." },
+		{ "rnode_connection_creations_total", "counter", "Connections opened to the Rserve server." },
+		{ "rnode_connection_creation_failures_total", "counter", "Connections to the Rserve server that could not be opened." },
+		{ "rnode_connection_destructions_total", "counter", "Connections to the Rserve server that were closed." },
+		{ "rnode_connection_waits_total", "counter", "Messages that waited for a connection to the Rserve server." },
+		{ "rnode_connection_wait_seconds_total", "counter", "Time messages spent waiting for a connection to the Rserve server." },
+		{ "rnode_connection_wait_timeouts_total", "counter", "Messages that timed out waiting for a connection to the Rserve server." },
+		{ "rnode_rejected_messages_total", "counter", "Messages rejected because too many messages were waiting for a connection to the Rserve server." },
+		{ "rnode_server_ejected", "gauge", "Whether the Rserve server has been ejected after repeated failures." }
+	};
+	
+	/**
+	 * The interval (in seconds) between writes of the metrics file.
+	 */
+	private static final long WRITE_INTERVAL = 10;
+	
+	/**
+	 * The R node that owns these metrics.
+	 */
+	private RNode iOwner;
+	
+	/**
+	 * The name of the message flow that contains the R node, or an empty string if it is not known.
+	 */
+	private String iFlowName;
+	
+	/**
+	 * The Rserve servers configured on the R node.
+	 */
+	private List<? extends RNodeEndpoint<?>> iEndpoints;
+	
+	/**
+	 * The histogram of the time spent in each phase.
+	 */
+	private RNodeHistogram[] iHistograms = new RNodeHistogram[PHASE_NAMES.length];
+	
+	/**
+	 * The name these metrics are registered with in the platform MBean server, or null if they are not registered.
+	 */
+	private ObjectName iObjectName = null;
+	
+	/**
+	 * The file these metrics are written to, or null if they are not written to a file.
+	 */
+	private Path iFile = null;
+	
+	/**
+	 * The scheduled task that writes these metrics to the file, or null.
+	 */
+	private ScheduledFuture<?> iWriter = null;
+	
+	/**
+	 * Whether a shared worker thread is writing these metrics to the file.
+	 */
+	private AtomicBoolean iWriting = new AtomicBoolean(false);
+	
+	/**
+	 * Whether the last attempt to write these metrics to the file failed, so that the failure is only logged once.
+	 */
+	private boolean iWriteFailed = false;
+	
+	/**
+	 * Constructor.
+	 * @param owner the R node that owns these metrics.
+	 * @param flowName the name of the message flow that contains the R node, or an empty string if it is not known.
+	 * @param endpoints the Rserve servers configured on the R node.
+	 */
+	public RNodeMetrics(RNode owner, String flowName, List<? extends RNodeEndpoint<?>> endpoints) {
+		iOwner = owner;
+		iFlowName = flowName;
+		iEndpoints = endpoints;
+		for (int i = 0; i < iHistograms.length; i++) {
+			iHistograms[i] = new RNodeHistogram();
+		}
+	}
+	
+	/**
+	 * Record the time spent in a phase of processing a message.
+	 * @param phase the phase (BORROW_WAIT, TO_R, EVALUATE, FROM_R or PROPAGATE).
+	 * @param duration the time spent (in nanoseconds).
+	 */
+	public void record(int phase, long duration) {
+		iHistograms[phase].record(duration);
+	}
+	
+	/**
+	 * Register these metrics with the platform MBean server. If they cannot be registered, a warning is logged
+	 * and the R node continues without them.
+	 */
+	public void register() {
+		final String methodName = "register";
+		try {
+			ObjectName objectName = new ObjectName("com.ibm.broker.analytics.r:type=RNode,flow=" + ObjectName.quote(iFlowName) + ",name=" + ObjectName.quote(iOwner.getName()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			iObjectName = objectName;
+		} catch (JMException e) {
+			try {
+				RNodeLog.logWarning(this, methodName, 7883, "Failed to register metrics", iOwner.getName(), e.toString());
+			} catch (MbException mbe) {
+				// Ignore any problems logging the warning.
+			}
+		}
+	}
+	
+	/**
+	 * Start writing these metrics to the specified file periodically, in the Prometheus text format.
+	 * The file is replaced atomically, so it can be read by the node exporter textfile collector.
+	 * @param file the file.
+	 */
+	public synchronized void startWriting(String file) {
+		iFile = Paths.get(file);
+		iWriter = RNodeScheduler.get().scheduleWithFixedDelay(new Runnable() {
+			
+			@Override
+			public void run() {
+				if (iWriting.compareAndSet(false, true)) {
+					RNodeScheduler.getWorkers().execute(new Runnable() {
+						
+						@Override
+						public void run() {
+							try {
+								write();
+							} finally {
+								iWriting.set(false);
+							}
+						}
+						
+					});
+				}
+			}
+			
+		}, WRITE_INTERVAL, WRITE_INTERVAL, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Stop writing these metrics to the file, and unregister them from the platform MBean server.
+	 */
+	public synchronized void close() {
+		if (iWriter != null) {
+			iWriter.cancel(false);
+			iWriter = null;
+		}
+		if (iObjectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(iObjectName);
+			} catch (JMException e) {
+				// Ignore - the metrics are no longer published.
+			}
+			iObjectName = null;
+		}
+	}
+	
+	/**
+	 * Write these metrics to the file, through a temporary file that then replaces it.
+	 */
+	private void write() {
+		final String methodName = "write";
+		Path file = iFile;
+		Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			Files.write(temporaryFile, toPrometheus().getBytes(StandardCharsets.UTF_8));
+			Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			iWriteFailed = false;
+		} catch (IOException e) {
+			if (!iWriteFailed) {
+				iWriteFailed = true;
+				try {
+					RNodeLog.logWarning(this, methodName, 7884, "Failed to write metrics file", iOwner.getName(), file.toString(), e.toString());
+				} catch (MbException mbe) {
+					// Ignore any problems logging the warning.
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get the current values of these metrics, keyed by JMX attribute name. Times are in milliseconds, and
+	 * the connection pool statistics are the totals for all of the Rserve servers.
+	 * @return the current values.
+	 */
+	public Map<String, Number> getValues() {
+		Map<String, Number> values = new LinkedHashMap<>();
+		for (int i = 0; i < PHASE_NAMES.length; i++) {
+			String prefix = Character.toUpperCase(PHASE_NAMES[i].charAt(0)) + PHASE_NAMES[i].substring(1);
+			RNodeHistogram histogram = iHistograms[i];
+			long[] quantiles = histogram.getQuantiles(QUANTILES);
+			values.put(prefix + "Count", histogram.getCount());
+			values.put(prefix + "Mean", histogram.getMean() / 1e6);
+			for (int q = 0; q < QUANTILES.length; q++) {
+				values.put(prefix + QUANTILE_NAMES[q], quantiles[q] / 1e6);
+			}
+			values.put(prefix + "Max", histogram.getMax() / 1e6);
+		}
+		int active = 0, idle = 0, waiting = 0, ejected = 0;
+		long creations = 0, creationFailures = 0, destructions = 0, waits = 0, waitTime = 0, waitTimeouts = 0, rejections = 0;
+		for (RNodeEndpoint<?> endpoint : iEndpoints) {
+			RNodeConnectionPool<?> pool = endpoint.getPool();
+			if (pool != null) {
+				active += pool.getActive();
+				idle += pool.getIdle();
+				waiting += pool.getWaiters();
+				creations += pool.getCreations();
+				creationFailures += pool.getCreationFailures();
+				destructions += pool.getDestructions();
+				waits += pool.getWaits();
+				waitTime += pool.getWaitTime();
+				waitTimeouts += pool.getWaitTimeouts();
+				rejections += pool.getRejections();
+			}
+			if (endpoint.isEjected()) {
+				ejected++;
+			}
+		}
+		values.put("ActiveConnections", active);
+		values.put("IdleConnections", idle);
+		values.put("WaitingMessages", waiting);
+		values.put("ConnectionCreations", creations);
+		values.put("ConnectionCreationFailures", creationFailures);
+		values.put("ConnectionDestructions", destructions);
+		values.put("ConnectionWaits", waits);
+		values.put("ConnectionWaitTime", waitTime / 1e6);
+		values.put("ConnectionWaitTimeouts", waitTimeouts);
+		values.put("RejectedMessages", rejections);
+		values.put("EvaluationTimeouts", iOwner.getEvaluationTimeouts());
+		values.put("EjectedServers", ejected);
+		return values;
+	}
+	
+	/**
+	 * Format these metrics in the Prometheus text format. Times are in seconds, and the connection pool
+	 * statistics are labelled with the Rserve server they belong to.
+	 * @return the formatted metrics.
+	 */
+	public String toPrometheus() {
+		StringBuilder builder = new StringBuilder();
+		String labels = "flow=\"" + escape(iFlowName) + "\",node=\"" + escape(iOwner.getName()) + "\"";
+		
+		// Write a summary of the time spent in each phase.
+		header(builder, "rnode_phase_seconds", "summary", "Time spent in each phase of processing a message.");
+		for (int i = 0; i < PHASE_NAMES.length; i++) {
+			String phaseLabels = labels + ",phase=\"" + PHASE_NAMES[i] + "\"";
+			RNodeHistogram histogram = iHistograms[i];
+			long[] quantiles = histogram.getQuantiles(QUANTILES);
+			for (int q = 0; q < QUANTILES.length; q++) {
+				sample(builder, "rnode_phase_seconds", phaseLabels + ",quantile=\"" + QUANTILES[q] + "\"", quantiles[q] / 1e9);
+			}
+			sample(builder, "rnode_phase_seconds_sum", phaseLabels, histogram.getSum() / 1e9);
+			sample(builder, "rnode_phase_seconds_count", phaseLabels, histogram.getCount());
+		}
+		
+		// Write the statistics for the connection pool of each Rserve server.
+		header(builder, "rnode_connections", "gauge", "Open connections to the Rserve server, by state.");
+		for (RNodeEndpoint<?> endpoint : iEndpoints) {
+			RNodeConnectionPool<?> pool = endpoint.getPool();
+			if (pool != null) {
+				String serverLabels = labels + ",server=\"" + escape(endpoint.toString()) + "\"";
+				sample(builder, "rnode_connections", serverLabels + ",state=\"active\"", pool.getActive());
+				sample(builder, "rnode_connections", serverLabels + ",state=\"idle\"", pool.getIdle());
+			}
+		}
+		for (int m = 0; m < POOL_METRICS.length; m++) {
+			header(builder, POOL_METRICS[m][0], POOL_METRICS[m][1], POOL_METRICS[m][2]);
+			for (RNodeEndpoint<?> endpoint : iEndpoints) {
+				if (endpoint.getPool() != null) {
+					sample(builder, POOL_METRICS[m][0], labels + ",server=\"" + escape(endpoint.toString()) + "\"", poolStatistics(endpoint)[m]);
+				}
+			}
+		}
+		
+		// Write the statistics for the node.
+		header(builder, "rnode_evaluation_timeouts_total", "counter", "Evaluations that exceeded the evaluation timeout.");
+		sample(builder, "rnode_evaluation_timeouts_total", labels, iOwner.getEvaluationTimeouts());
+		return builder.toString();
+	}
+	
+	/**
+	 * Get the statistics for the connection pool of an Rserve server, in the order of POOL_METRICS.
+	 * @param endpoint the Rserve server, which must have a connection pool.
+	 * @return the statistics, with times in seconds.
+	 */
+	private static double[] poolStatistics(RNodeEndpoint<?> endpoint) {
+		RNodeConnectionPool<?> pool = endpoint.getPool();
+		return new double[] {
+			pool.getWaiters(),
+			pool.getCreations(),
+			pool.getCreationFailures(),
+			pool.getDestructions(),
+			pool.getWaits(),
+			pool.getWaitTime() / 1e9,
+			pool.getWaitTimeouts(),
+			pool.getRejections(),
+			endpoint.isEjected() ? 1 : 0
+		};
+	}
+	
+	/**
+	 * Write the HELP and TYPE lines for a metric in the Prometheus text format.
+	 * @param builder the builder to write to.
+	 * @param name the name of the metric.
+	 * @param type the type of the metric.
+	 * @param help the description of the metric.
+	 */
+	private static void header(StringBuilder builder, String name, String type, String help) {
+		builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+	
+	/**
+	 * Write a sample for a metric in the Prometheus text format.
+	 * @param builder the builder to write to.
+	 * @param name the name of the metric.
+	 * @param labels the labels of the sample.
+	 * @param value the value of the sample.
+	 */
+	private static void sample(StringBuilder builder, String name, String labels, double value) {
+		builder.append(name).append('{').append(labels).append("} ");
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			builder.append((long) value);
+		} else {
+			builder.append(value);
+		}
+		builder.append('\n');
+	}
+	
+	/**
+	 * Escape a label value for the Prometheus text format.
+	 * @param value the label value.
+	 * @return the escaped label value.
+	 */
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+	
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number value = getValues().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+	
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> values = getValues();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			if (values.containsKey(attribute)) {
+				list.add(new Attribute(attribute, values.get(attribute)));
+			}
+		}
+		return list;
+	}
+	
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read only");
+	}
+	
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+	
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+	
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		Map<String, Number> values = getValues();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+		int i = 0;
+		for (Map.Entry<String, Number> value : values.entrySet()) {
+			attributes[i++] = new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(), value.getKey(), true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "R node metrics", attributes, null, null, null);
+	}
+	
+}
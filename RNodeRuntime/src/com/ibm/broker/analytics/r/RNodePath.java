@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.ibm.broker.plugin.MbElement;
+import com.ibm.broker.plugin.MbException;
+import com.ibm.broker.plugin.MbXPath;
+import com.ibm.broker.plugin.MbXPathVariables;
+
+/**
+ * A class that represents a data frame column XPath expression that only consists of simple
+ * relative child steps, such as "a" or "./a/b". These expressions can be resolved against a row
+ * element by walking its children directly, which is much cheaper than evaluating the XPath
+ * expression once for every cell in the data frame.
+ *
+ * Whether a child element matches a step depends on its name, but also on its namespace and on
+ * the parser specific element type (for example, an attribute and a child element can have the
+ * same name). A matcher therefore evaluates the XPath expression until it finds a row with exactly
+ * one matching element, and then only accepts children with the same name, namespace and type as
+ * the elements on that path. Any row it cannot resolve with certainty is evaluated with the XPath
+ * expression, so the result is always the same as evaluating the XPath expression.
+ */
+public class RNodePath {
+	
+	/**
+	 * The names of the child elements at each step of this path.
+	 */
+	private String[] iSteps;
+	
+	/**
+	 * A class that resolves a path against the row elements of a single message. It is not thread safe.
+	 */
+	public class Matcher {
+		
+		/**
+		 * The compiled XPath expression to use for rows that cannot be resolved directly.
+		 */
+		private MbXPath iXPath;
+		
+		/**
+		 * The set of XPath variables to use.
+		 */
+		private MbXPathVariables iXPathVariables;
+		
+		/**
+		 * The namespaces of the elements at each step, or null if they are not yet known.
+		 */
+		private String[] iNamespaces = null;
+		
+		/**
+		 * The types of the elements at each step, or null if they are not yet known.
+		 */
+		private int[] iTypes = null;
+		
+		/**
+		 * Constructor.
+		 * @param xpath the compiled XPath expression to use for rows that cannot be resolved directly.
+		 * @param xpathVariables the set of XPath variables to use.
+		 */
+		private Matcher(MbXPath xpath, MbXPathVariables xpathVariables) {
+			iXPath = xpath;
+			iXPathVariables = xpathVariables;
+		}
+		
+		/**
+		 * Resolve the path against the specified row element.
+		 * @param rowElement the row element.
+		 * @return the matching element if exactly one element matches, an empty list if no elements match,
+		 * or the result of evaluating the XPath expression if the row could not be resolved directly.
+		 * @throws MbException if a problem occurs accessing the row element.
+		 */
+		public Object evaluate(MbElement rowElement) throws MbException {
+			if (iTypes != null) {
+				MbElement current = rowElement;
+				boolean resolved = true;
+				for (int i = 0; resolved && i < iSteps.length; i++) {
+					MbElement match = null;
+					for (MbElement child = current.getFirstChild(); child != null; child = child.getNextSibling()) {
+						if (!iSteps[i].equals(child.getName())) {
+							continue;
+						} else if (match != null || child.getType() != iTypes[i] || !iNamespaces[i].equals(child.getNamespace())) {
+							resolved = false;
+							break;
+						}
+						match = child;
+					}
+					if (resolved && match == null) {
+						return Collections.emptyList();
+					}
+					current = match;
+				}
+				if (resolved) {
+					return current;
+				}
+			}
+			Object value = rowElement.evaluateXPath(iXPath, iXPathVariables);
+			if (iTypes == null && value instanceof List<?> && ((List<?>) value).size() == 1) {
+				learn(((List<?>) value).get(0));
+			}
+			return value;
+		}
+		
+		/**
+		 * Record the namespace and type of the elements at each step between the row element and the
+		 * element returned by evaluating the XPath expression against it.
+		 * @param value the element returned by evaluating the XPath expression.
+		 * @throws MbException if a problem occurs accessing the elements.
+		 */
+		private void learn(Object value) throws MbException {
+			if (!(value instanceof MbElement)) {
+				return;
+			}
+			String[] namespaces = new String[iSteps.length];
+			int[] types = new int[iSteps.length];
+			MbElement current = (MbElement) value;
+			for (int i = iSteps.length - 1; i >= 0; i--) {
+				if (current == null || !iSteps[i].equals(current.getName())) {
+					return;
+				}
+				namespaces[i] = current.getNamespace() != null ? current.getNamespace() : "";
+				types[i] = current.getType();
+				current = current.getParent();
+			}
+			iNamespaces = namespaces;
+			iTypes = types;
+		}
+		
+	}
+	
+	/**
+	 * Constructor.
+	 * @param steps the names of the child elements at each step of this path.
+	 */
+	private RNodePath(String[] steps) {
+		iSteps = steps;
+	}
+	
+	/**
+	 * Compile the specified XPath expression into a path.
+	 * @param xpathExpression the XPath expression.
+	 * @return the compiled path, or null if the XPath expression is not made up of simple relative child steps.
+	 */
+	public static RNodePath compile(String xpathExpression) {
+		String expression = xpathExpression.trim();
+		if (expression.startsWith("./")) {
+			expression = expression.substring(2);
+		}
+		String[] steps = expression.split("/", -1);
+		for (String step : steps) {
+			if (!isName(step)) {
+				return null;
+			}
+		}
+		return new RNodePath(steps);
+	}
+	
+	/**
+	 * Check whether the specified step is an unprefixed element name with no axis or predicates.
+	 * @param step the step.
+	 * @return true if the step is an unprefixed element name.
+	 */
+	private static boolean isName(String step) {
+		if (step.isEmpty() || !(Character.isLetter(step.charAt(0)) || step.charAt(0) == '_')) {
+			return false;
+		}
+		for (int i = 1; i < step.length(); i++) {
+			char c = step.charAt(i);
+			if (!(Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.')) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Create a matcher for resolving this path against the row elements of a single message.
+	 * @param xpath the compiled XPath expression to use for rows that cannot be resolved directly.
+	 * @param xpathVariables the set of XPath variables to use.
+	 * @return the matcher.
+	 */
+	public Matcher matcher(MbXPath xpath, MbXPathVariables xpathVariables) {
+		return new Matcher(xpath, xpathVariables);
+	}
+	
+}
@@ -0,0 +1,602 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPFactor;
+import org.rosuda.REngine.REXPGenericVector;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPList;
+import org.rosuda.REngine.REXPLogical;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPNull;
+import org.rosuda.REngine.REXPRaw;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.REngineException;
+import org.rosuda.REngine.RList;
+
+/**
+ * An R engine that evaluates scripts with Renjin, an R interpreter written in Java, so that neither GNU R
+ * nor an Rserve server is needed. The Renjin script engine jar (renjin-script-engine with its dependencies)
+ * must be on the class path of the node; Renjin is reached through javax.script and reflection, so it is not
+ * needed to build the node. Renjin supports the base language and many CRAN packages, but not packages that
+ * contain native code, so this engine suits lightweight scripts and models.
+ *
+ * Each session is a separate Renjin script engine with its own global environment, and evaluates on the
+ * thread of the message, so sessions evaluate scripts in parallel without leaving the JVM. Each script is
+ * parsed once by the engine, and the parsed script is shared by every session, so Renjin can optimise the
+ * same code for every thread. Values are passed between the node and Renjin as a description of their
+ * structure and attributes plus their atomic vectors, which Renjin converts directly from Java arrays, and
+ * which are copied back out of Renjin as whole Java arrays rather than one element at a time.
+ *
+ * The host name and port of the servers configured on the node are ignored. When the evaluation timeout
+ * expires, the message fails and the thread evaluating the script is interrupted; Renjin stops the script
+ * when it next checks for interrupts, which may not be until the script completes.
+ */
+public class RNodeRenjinEngine extends RNodeEngine {
+	
+	/**
+	 * The name of this engine.
+	 */
+	public static final String RENJIN = "renjin";
+	
+	/**
+	 * The name of the Renjin implementation of ScriptEngineFactory.
+	 */
+	private static final String FACTORY_CLASS = "org.renjin.script.RenjinScriptEngineFactory";
+	
+	/**
+	 * The name of the Renjin package containing the R value classes.
+	 */
+	private static final String SEXP_PACKAGE = "org.renjin.sexp.";
+	
+	/**
+	 * The R functions installed in each session to convert values to and from a description of their
+	 * structure and attributes, written in preorder as the type, length and number of attributes of each
+	 * value, followed by its elements if it is a list, and then the name and value of each attribute. The
+	 * atomic vectors are passed separately, with logical and raw vectors passed as integer vectors.
+	 */
+	private static final String HELPERS =
+		".iib_r_flatten <- function(x) {\n" +
+		"  desc <- character(0); leaves <- list()\n" +
+		"  walk <- function(x) {\n" +
+		"    a <- attributes(x)\n" +
+		"    if (is.null(x)) t <- \"NULL\"\n" +
+		"    else if (is.list(x)) t <- \"list\"\n" +
+		"    else if (is.logical(x)) t <- \"logical\"\n" +
+		"    else if (is.integer(x)) t <- \"integer\"\n" +
+		"    else if (is.double(x)) t <- \"double\"\n" +
+		"    else if (is.character(x)) t <- \"character\"\n" +
+		"    else if (is.raw(x)) t <- \"raw\"\n" +
+		"    else { x <- deparse(x); a <- NULL; t <- \"character\" }\n" +
+		"    attributes(x) <- NULL\n" +
+		"    desc <<- c(desc, t, length(x), length(a))\n" +
+		"    if (t == \"list\") for (e in x) walk(e)\n" +
+		"    else if (t == \"logical\" || t == \"raw\") leaves[[length(leaves) + 1L]] <<- as.integer(x)\n" +
+		"    else if (t != \"NULL\") leaves[[length(leaves) + 1L]] <<- x\n" +
+		"    for (n in names(a)) { desc <<- c(desc, n); walk(a[[n]]) }\n" +
+		"  }\n" +
+		"  walk(x)\n" +
+		"  list(desc, leaves)\n" +
+		"}\n" +
+		".iib_r_unflatten <- function() {\n" +
+		"  desc <- .iib_r_desc; i <- 0L; k <- 0L\n" +
+		"  walk <- function() {\n" +
+		"    t <- desc[i + 1L]; n <- as.integer(desc[i + 2L]); m <- as.integer(desc[i + 3L]); i <<- i + 3L\n" +
+		"    if (t == \"list\") { x <- vector(\"list\", n); for (j in seq_len(n)) { v <- walk(); if (!is.null(v)) x[[j]] <- v } }\n" +
+		"    else if (t == \"NULL\") x <- NULL\n" +
+		"    else {\n" +
+		"      k <<- k + 1L; leaf <- paste0(\".iib_r_leaf_\", k)\n" +
+		"      x <- get(leaf, envir=.GlobalEnv); rm(list=leaf, envir=.GlobalEnv)\n" +
+		"      if (t == \"logical\") x <- as.logical(x) else if (t == \"raw\") x <- as.raw(x)\n" +
+		"    }\n" +
+		"    for (j in seq_len(m)) { name <- desc[i + 1L]; i <<- i + 1L; v <- walk(); if (!is.null(x)) attr(x, name) <- v }\n" +
+		"    x\n" +
+		"  }\n" +
+		"  rm(.iib_r_desc, envir=.GlobalEnv)\n" +
+		"  walk()\n" +
+		"}\n";
+	
+	/**
+	 * The factory for Renjin script engines, or null if it has not been created yet.
+	 */
+	private ScriptEngineFactory iFactory = null;
+	
+	/**
+	 * The Renjin method Vector.getElementAsSEXP(int), adapted to take and return an Object.
+	 */
+	private MethodHandle iElement = null;
+	
+	/**
+	 * The Renjin method IntVector.toIntArray(), adapted to take an Object.
+	 */
+	private MethodHandle iToIntArray = null;
+	
+	/**
+	 * The Renjin method DoubleVector.toDoubleArray(), adapted to take an Object.
+	 */
+	private MethodHandle iToDoubleArray = null;
+	
+	/**
+	 * The Renjin method StringVector.toArray(), adapted to take an Object.
+	 */
+	private MethodHandle iToStringArray = null;
+	
+	/**
+	 * The mapping of script keys and the scripts parsed by this engine.
+	 */
+	private ConcurrentMap<String, ParsedScript> iParsedScripts = new ConcurrentHashMap<>();
+	
+	@Override
+	public String getName() {
+		return RENJIN;
+	}
+	
+	@Override
+	public RNodeSession createSession(String hostName, int port) throws REngineException {
+		return new Session(this, getFactory().getScriptEngine());
+	}
+	
+	/**
+	 * Get the factory for Renjin script engines, loading Renjin if this is the first session.
+	 * @return the factory.
+	 * @throws REngineException if Renjin is not available.
+	 */
+	private synchronized ScriptEngineFactory getFactory() throws REngineException {
+		if (iFactory == null) {
+			try {
+				ClassLoader classLoader = RNodeRenjinEngine.class.getClassLoader();
+				ScriptEngineFactory factory = Class.forName(FACTORY_CLASS, true, classLoader).asSubclass(ScriptEngineFactory.class).getDeclaredConstructor().newInstance();
+				ClassLoader renjinClassLoader = factory.getClass().getClassLoader();
+				Class<?> vector = Class.forName(SEXP_PACKAGE + "Vector", true, renjinClassLoader);
+				Class<?> sexp = Class.forName(SEXP_PACKAGE + "SEXP", true, renjinClassLoader);
+				Class<?> intVector = Class.forName(SEXP_PACKAGE + "IntVector", true, renjinClassLoader);
+				Class<?> doubleVector = Class.forName(SEXP_PACKAGE + "DoubleVector", true, renjinClassLoader);
+				Class<?> stringVector = Class.forName(SEXP_PACKAGE + "StringVector", true, renjinClassLoader);
+				MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+				iElement = lookup.findVirtual(vector, "getElementAsSEXP", MethodType.methodType(sexp, int.class))
+					.asType(MethodType.methodType(Object.class, Object.class, int.class));
+				iToIntArray = lookup.findVirtual(intVector, "toIntArray", MethodType.methodType(int[].class))
+					.asType(MethodType.methodType(int[].class, Object.class));
+				iToDoubleArray = lookup.findVirtual(doubleVector, "toDoubleArray", MethodType.methodType(double[].class))
+					.asType(MethodType.methodType(double[].class, Object.class));
+				iToStringArray = lookup.findVirtual(stringVector, "toArray", MethodType.methodType(String[].class))
+					.asType(MethodType.methodType(String[].class, Object.class));
+				iFactory = factory;
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				throw new REngineException(null, "Renjin is not available: " + e);
+			}
+		}
+		return iFactory;
+	}
+	
+	/**
+	 * A script parsed by this engine.
+	 */
+	private static class ParsedScript {
+		
+		/**
+		 * The lines of the script.
+		 */
+		private final String[] iContent;
+		
+		/**
+		 * The parsed script, which is a Renjin expression vector.
+		 */
+		private final Object iExpression;
+		
+		/**
+		 * Constructor for a parsed script.
+		 * @param content the lines of the script.
+		 * @param expression the parsed script.
+		 */
+		public ParsedScript(String[] content, Object expression) {
+			iContent = content;
+			iExpression = expression;
+		}
+		
+	}
+	
+	/**
+	 * A session in its own Renjin script engine.
+	 */
+	private static class Session extends RNodeSession {
+		
+		/**
+		 * The engine that created this session.
+		 */
+		private RNodeRenjinEngine iEngine;
+		
+		/**
+		 * The Renjin script engine.
+		 */
+		private ScriptEngine iScriptEngine;
+		
+		/**
+		 * The thread evaluating an expression in this session, or null if it is idle.
+		 */
+		private Thread iThread = null;
+		
+		/**
+		 * Constructor for a session - install the helper functions in the script engine.
+		 * @param engine the engine that created this session.
+		 * @param scriptEngine the Renjin script engine.
+		 * @throws REngineException if the helper functions cannot be installed.
+		 */
+		public Session(RNodeRenjinEngine engine, ScriptEngine scriptEngine) throws REngineException {
+			iEngine = engine;
+			iScriptEngine = scriptEngine;
+			run(HELPERS);
+		}
+		
+		@Override
+		public void assign(String name, REXP value) throws REngineException {
+			if (isBroken()) {
+				throw new REngineException(null, "Renjin session has been closed");
+			}
+			
+			// Plain vectors, which are most values, are converted by Renjin directly.
+			if (value._attr() == null && (value instanceof REXPDouble || value instanceof REXPInteger || value instanceof REXPString)) {
+				iScriptEngine.put(name, leaf(value));
+				return;
+			}
+			
+			// Other values are rebuilt in R from their description and atomic vectors.
+			List<String> desc = new ArrayList<>();
+			List<Object> leaves = new ArrayList<>();
+			flatten(value, desc, leaves);
+			for (int i = 0; i < leaves.size(); i++) {
+				iScriptEngine.put(".iib_r_leaf_" + (i + 1), leaves.get(i));
+			}
+			iScriptEngine.put(".iib_r_desc", desc.toArray(new String[0]));
+			run("assign(" + RNode.quote(name) + ",.iib_r_unflatten(),envir=.GlobalEnv)");
+		}
+		
+		@Override
+		public REXP evaluate(String expression) throws REngineException {
+			Object result = run(".iib_r_flatten({\n" + expression + "\n})");
+			Object desc = element(result, 0);
+			Object leaves = element(result, 1);
+			return unflatten(toStringArray(desc), new int[2], leaves);
+		}
+		
+		@Override
+		public void voidEvaluate(String expression) throws REngineException {
+			run(expression);
+		}
+		
+		/**
+		 * Parse the script once for every session of the engine, and assign the parsed script to
+		 * .iib_r_compiled_script_&lt;key&gt; in this session. Renjin does not use the byte-code compiler.
+		 */
+		@Override
+		public REXP parseScript(String key, String[] content) throws REngineException {
+			String compiledScriptVariable = ".iib_r_compiled_script_" + key;
+			ParsedScript parsed = iEngine.iParsedScripts.get(key);
+			if (parsed != null && Arrays.equals(parsed.iContent, content)) {
+				iScriptEngine.put(compiledScriptVariable, parsed.iExpression);
+				return new REXPNull();
+			}
+			String scriptVariable = ".iib_r_script_" + key;
+			iScriptEngine.put(scriptVariable, content.clone());
+			REXP result = evaluate("try({" + compiledScriptVariable + " <- parse(text=" + scriptVariable + ");NULL},silent=TRUE)");
+			if (!result.inherits("try-error")) {
+				iEngine.iParsedScripts.put(key, new ParsedScript(content.clone(), iScriptEngine.get(compiledScriptVariable)));
+			}
+			return result;
+		}
+		
+		/**
+		 * Remove every variable from the global environment, and install the helper functions again.
+		 */
+		@Override
+		public void reset() throws REngineException {
+			super.reset();
+			run(HELPERS);
+		}
+		
+		/**
+		 * Evaluate an R expression in the script engine on this thread, so that abort() can interrupt it.
+		 * @param expression the R expression.
+		 * @return the result of the expression, which is a Renjin SEXP.
+		 * @throws REngineException if this session has been closed, or the expression fails.
+		 */
+		private Object run(String expression) throws REngineException {
+			synchronized (this) {
+				if (isBroken()) {
+					throw new REngineException(null, "Renjin session has been closed");
+				}
+				iThread = Thread.currentThread();
+			}
+			try {
+				return iScriptEngine.eval(expression);
+			} catch (ScriptException | RuntimeException e) {
+				throw new REngineException(null, "Renjin failed to evaluate expression: " + e.getMessage());
+			} finally {
+				synchronized (this) {
+					iThread = null;
+					if (isTimedOut()) {
+						// Clear the interrupt from abort(), so that it does not affect the rest of the flow.
+						Thread.interrupted();
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Add the description and atomic vectors of a value, as read by .iib_r_unflatten.
+		 * @param value the value.
+		 * @param desc the description, to which the value is added.
+		 * @param leaves the atomic vectors, to which those of the value are added.
+		 * @throws REngineException if the value cannot be passed to Renjin.
+		 */
+		private void flatten(REXP value, List<String> desc, List<Object> leaves) throws REngineException {
+			// Gather the attributes, including the names of a list created without a names attribute.
+			List<String> names = new ArrayList<>();
+			List<REXP> values = new ArrayList<>();
+			REXPList attributes = value._attr();
+			if (attributes != null) {
+				RList list = attributes.asList();
+				for (int i = 0; i < list.size(); i++) {
+					names.add(list.keyAt(i));
+					values.add(list.at(i));
+				}
+			}
+			
+			if (value instanceof REXPGenericVector) {
+				RList list = ((REXPGenericVector) value).asList();
+				if (list.isNamed() && !names.contains("names")) {
+					names.add("names");
+					values.add(new REXPString(list.keys()));
+				}
+				desc.addAll(Arrays.asList("list", String.valueOf(list.size()), String.valueOf(names.size())));
+				for (int i = 0; i < list.size(); i++) {
+					flatten(list.at(i), desc, leaves);
+				}
+			} else if (value == null || value instanceof REXPNull) {
+				desc.addAll(Arrays.asList("NULL", "0", String.valueOf(names.size())));
+			} else {
+				String type = value instanceof REXPLogical ? "logical" : value instanceof REXPRaw ? "raw" :
+					value instanceof REXPInteger ? "integer" : value instanceof REXPDouble ? "double" : "character";
+				Object leaf = leaf(value);
+				desc.addAll(Arrays.asList(type, String.valueOf(Array.getLength(leaf)), String.valueOf(names.size())));
+				leaves.add(leaf);
+			}
+			
+			for (int i = 0; i < names.size(); i++) {
+				desc.add(names.get(i));
+				flatten(values.get(i), desc, leaves);
+			}
+		}
+		
+		/**
+		 * Get the Java array that Renjin converts to the atomic vector of a value.
+		 * @param value the value.
+		 * @return an array of int, double or String.
+		 * @throws REngineException if the value is not an atomic vector supported by this engine.
+		 */
+		private static Object leaf(REXP value) throws REngineException {
+			try {
+				if (value instanceof REXPLogical) {
+					byte[] bytes = value.asBytes();
+					int[] ints = new int[bytes.length];
+					for (int i = 0; i < bytes.length; i++) {
+						ints[i] = REXPLogical.isNA(bytes[i]) ? REXPInteger.NA : bytes[i];
+					}
+					return ints;
+				} else if (value instanceof REXPRaw) {
+					byte[] bytes = value.asBytes();
+					int[] ints = new int[bytes.length];
+					for (int i = 0; i < bytes.length; i++) {
+						ints[i] = bytes[i] & 0xFF;
+					}
+					return ints;
+				} else if (value instanceof REXPInteger) {
+					return value.asIntegers();
+				} else if (value instanceof REXPDouble) {
+					return value.asDoubles();
+				} else if (value instanceof REXPString) {
+					return value.asStrings();
+				}
+			} catch (REXPMismatchException e) {
+				// Fall through to report the value as unsupported.
+			}
+			throw new REngineException(null, "Values of type " + value.getClass().getSimpleName() + " cannot be passed to Renjin");
+		}
+		
+		/**
+		 * Rebuild a value from its description, as written by .iib_r_flatten, and its atomic vectors.
+		 * @param desc the description.
+		 * @param position the next position in the description and the number of atomic vectors read, which are updated.
+		 * @param leaves the Renjin list of atomic vectors.
+		 * @return the value.
+		 * @throws REngineException if the description cannot be read.
+		 */
+		private REXP unflatten(String[] desc, int[] position, Object leaves) throws REngineException {
+			String type = desc[position[0]];
+			int length = Integer.parseInt(desc[position[0] + 1]);
+			int attributeCount = Integer.parseInt(desc[position[0] + 2]);
+			position[0] += 3;
+			
+			// Read the elements of a list, or the atomic vector.
+			REXP[] elements = null;
+			Object leaf = null;
+			if (type.equals("list")) {
+				elements = new REXP[length];
+				for (int i = 0; i < length; i++) {
+					elements[i] = unflatten(desc, position, leaves);
+				}
+			} else if (!type.equals("NULL")) {
+				leaf = element(leaves, position[1]++);
+			}
+			
+			// Read the attributes.
+			REXPList attributes = null;
+			String[] names = null;
+			String[] levels = null;
+			boolean factor = false;
+			if (attributeCount > 0) {
+				String[] attributeNames = new String[attributeCount];
+				REXP[] attributeValues = new REXP[attributeCount];
+				for (int i = 0; i < attributeCount; i++) {
+					attributeNames[i] = desc[position[0]++];
+					attributeValues[i] = unflatten(desc, position, leaves);
+					if (attributeValues[i] instanceof REXPString) {
+						String[] strings = ((REXPString) attributeValues[i]).asStrings();
+						if (attributeNames[i].equals("names")) {
+							names = strings;
+						} else if (attributeNames[i].equals("levels")) {
+							levels = strings;
+						} else if (attributeNames[i].equals("class")) {
+							factor = Arrays.asList(strings).contains("factor");
+						}
+					}
+				}
+				attributes = new REXPList(new RList(attributeValues, attributeNames));
+			}
+			
+			switch (type) {
+			case "list":
+				return new REXPGenericVector(names != null ? new RList(elements, names) : new RList(elements), attributes);
+			case "NULL":
+				return new REXPNull(attributes);
+			case "logical": {
+				int[] ints = toIntArray(leaf);
+				byte[] bytes = new byte[ints.length];
+				for (int i = 0; i < ints.length; i++) {
+					bytes[i] = ints[i] == REXPInteger.NA ? REXPLogical.NA : ints[i] != 0 ? REXPLogical.TRUE : REXPLogical.FALSE;
+				}
+				return new REXPLogical(bytes, attributes);
+			}
+			case "raw": {
+				int[] ints = toIntArray(leaf);
+				byte[] bytes = new byte[ints.length];
+				for (int i = 0; i < ints.length; i++) {
+					bytes[i] = (byte) ints[i];
+				}
+				return new REXPRaw(bytes, attributes);
+			}
+			case "integer": {
+				int[] ints = toIntArray(leaf);
+				return factor && levels != null ? new REXPFactor(ints, levels, attributes) : new REXPInteger(ints, attributes);
+			}
+			case "double":
+				return new REXPDouble(toDoubleArray(leaf), attributes);
+			default:
+				return new REXPString(toStringArray(leaf), attributes);
+			}
+		}
+		
+		/**
+		 * Get an element of a Renjin list.
+		 * @param list the list.
+		 * @param index the index of the element.
+		 * @return the element.
+		 * @throws REngineException if the element cannot be read.
+		 */
+		private Object element(Object list, int index) throws REngineException {
+			try {
+				return iEngine.iElement.invokeExact(list, index);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new REngineException(null, "Failed to read Renjin value: " + e);
+			}
+		}
+		
+		/**
+		 * Copy a Renjin integer vector into a Java array.
+		 * @param vector the vector.
+		 * @return the elements of the vector.
+		 * @throws REngineException if the vector cannot be read.
+		 */
+		private int[] toIntArray(Object vector) throws REngineException {
+			try {
+				return (int[]) iEngine.iToIntArray.invokeExact(vector);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new REngineException(null, "Failed to read Renjin value: " + e);
+			}
+		}
+		
+		/**
+		 * Copy a Renjin double vector into a Java array.
+		 * @param vector the vector.
+		 * @return the elements of the vector.
+		 * @throws REngineException if the vector cannot be read.
+		 */
+		private double[] toDoubleArray(Object vector) throws REngineException {
+			try {
+				return (double[]) iEngine.iToDoubleArray.invokeExact(vector);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new REngineException(null, "Failed to read Renjin value: " + e);
+			}
+		}
+		
+		/**
+		 * Copy a Renjin character vector into a Java array.
+		 * @param vector the vector.
+		 * @return the elements of the vector.
+		 * @throws REngineException if the vector cannot be read.
+		 */
+		private String[] toStringArray(Object vector) throws REngineException {
+			try {
+				return (String[]) iEngine.iToStringArray.invokeExact(vector);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new REngineException(null, "Failed to read Renjin value: " + e);
+			}
+		}
+		
+		@Override
+		public void close() {
+			setBroken();
+		}
+		
+		/**
+		 * Interrupt the thread evaluating an expression in this session.
+		 */
+		@Override
+		protected synchronized void abort() {
+			if (iThread != null) {
+				iThread.interrupt();
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return RENJIN;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REngineException;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * The default R engine, which evaluates scripts on Rserve servers. Each session is a connection
+ * to an Rserve server, which runs in its own R process unless the server is running on Windows.
+ */
+public class RNodeRserveEngine extends RNodeEngine {
+	
+	@Override
+	public String getName() {
+		return RSERVE;
+	}
+	
+	@Override
+	public RNodeSession createSession(String hostName, int port) throws REngineException {
+		return new Session(hostName, port);
+	}
+	
+	@Override
+	public void probe(String hostName, int port) throws REngineException {
+		new RConnection(hostName, port).close();
+	}
+	
+	/**
+	 * A session on an Rserve server, which is a connection to the server.
+	 */
+	private static class Session extends RNodeSession {
+		
+		/**
+		 * The connection to the Rserve server.
+		 */
+		private RConnection iConnection;
+		
+		/**
+		 * The Rserve server hostname.
+		 */
+		private String iHostName;
+		
+		/**
+		 * The Rserve server port.
+		 */
+		private int iPort;
+		
+		/**
+		 * The process ID of the R session on the Rserve server for this connection, or 0 if it is not known.
+		 */
+		private int iPid = 0;
+		
+		/**
+		 * Constructor for a session - connect to an Rserve server.
+		 * @param hostname the Rserve server hostname.
+		 * @param port the Rserve server port.
+		 * @throws RserveException if an exception occurs connecting to the Rserve server.
+		 */
+		public Session(String hostname, int port) throws RserveException {
+			iConnection = new RConnection(hostname, port);
+			iHostName = hostname;
+			iPort = port;
+			
+			// Find the process ID of the R session, so it can be killed if a script runs for too long.
+			// If the request fails, close the connection rather than leaving the socket open.
+			try {
+				iPid = iConnection.eval("Sys.getpid()").asInteger();
+			} catch (REXPMismatchException e) {
+				// Ignore - the R session cannot be killed.
+			} catch (RserveException e) {
+				iConnection.close();
+				throw e;
+			}
+			
+		}
+		
+		@Override
+		public void assign(String name, REXP value) throws REngineException {
+			try {
+				iConnection.assign(name, value);
+			} catch (RserveException e) {
+				throw checkBroken(e);
+			}
+		}
+		
+		@Override
+		public REXP evaluate(String expression) throws REngineException {
+			try {
+				return iConnection.eval(expression);
+			} catch (RserveException e) {
+				throw checkBroken(e);
+			}
+		}
+		
+		@Override
+		public void voidEvaluate(String expression) throws REngineException {
+			try {
+				iConnection.voidEval(expression);
+			} catch (RserveException e) {
+				throw checkBroken(e);
+			}
+		}
+		
+		/**
+		 * Record that this connection has been lost if the specified exception is for a request that
+		 * failed without a response from the Rserve server.
+		 * @param e the exception.
+		 * @return the exception, to be thrown by the caller.
+		 */
+		private RserveException checkBroken(RserveException e) {
+			if (e.getRequestReturnCode() == -1) {
+				setBroken();
+			}
+			return e;
+		}
+		
+		@Override
+		public boolean isBroken() {
+			return super.isBroken() || !iConnection.isConnected();
+		}
+		
+		@Override
+		public void close() {
+			iConnection.close();
+		}
+		
+		/**
+		 * Close this connection, which makes the running request fail, and kill the R session on the
+		 * Rserve server from a shared worker thread.
+		 */
+		@Override
+		protected void abort() {
+			iConnection.close();
+			RNodeScheduler.getWorkers().execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					kill();
+				}
+				
+			});
+		}
+		
+		/**
+		 * Kill the R session for this connection, which keeps running the script after the connection has been
+		 * closed, from a new connection to the same Rserve server. The R session is not killed if the new connection
+		 * uses the same process, as then the Rserve server does not create a process for each connection.
+		 */
+		private void kill() {
+			if (iPid == 0) {
+				return;
+			}
+			try {
+				RConnection connection = new RConnection(iHostName, iPort);
+				try {
+					connection.voidEval("if (Sys.getpid() != " + iPid + ") tools::pskill(" + iPid + ")");
+				} finally {
+					connection.close();
+				}
+			} catch (RserveException e) {
+				// Ignore - the R session ends when it next writes to the closed connection.
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return iHostName + ":" + iPort;
+		}
+		
+	}
+	
+}
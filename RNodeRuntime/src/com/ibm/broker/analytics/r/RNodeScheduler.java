@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A class that provides the scheduler shared by all instances of the R node for background
+ * work, such as checking files for updates. The scheduler uses a single daemon thread, so
+ * tasks must be short and must not block. Scheduled tasks that need to block, such as opening
+ * connections to Rserve, hand that work off to the shared pool of worker threads.
+ */
+public class RNodeScheduler {
+	
+	/**
+	 * The shared scheduler, or null if it has not been created yet.
+	 */
+	private static ScheduledThreadPoolExecutor sExecutor = null;
+	
+	/**
+	 * The shared pool of worker threads, or null if it has not been created yet.
+	 */
+	private static ThreadPoolExecutor sWorkers = null;
+	
+	/**
+	 * Private constructor - this class only has static methods.
+	 */
+	private RNodeScheduler() {
+	}
+	
+	/**
+	 * Get the shared scheduler, creating it if required.
+	 * @return the shared scheduler.
+	 */
+	public static synchronized ScheduledExecutorService get() {
+		if (sExecutor == null) {
+			sExecutor = new ScheduledThreadPoolExecutor(1, newThreadFactory("RNodeScheduler"));
+			sExecutor.setRemoveOnCancelPolicy(true);
+		}
+		return sExecutor;
+	}
+	
+	/**
+	 * Get the shared pool of worker threads for background work that blocks, creating it if required.
+	 * Threads are created on demand and exit after they have been idle for a minute.
+	 * @return the shared pool of worker threads.
+	 */
+	public static synchronized ExecutorService getWorkers() {
+		if (sWorkers == null) {
+			sWorkers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), newThreadFactory("RNodeWorker"));
+		}
+		return sWorkers;
+	}
+	
+	/**
+	 * Create a thread factory that creates daemon threads with the specified name prefix.
+	 * @param name the name prefix for the threads.
+	 * @return the thread factory.
+	 */
+	public static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			
+			/**
+			 * The number of threads created by this thread factory.
+			 */
+			private AtomicInteger iCount = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + iCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+			
+		};
+	}
+	
+}
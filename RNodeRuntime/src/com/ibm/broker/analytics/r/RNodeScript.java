@@ -13,6 +13,7 @@
 package com.ibm.broker.analytics.r;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -20,19 +21,66 @@ import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import javax.xml.bind.DatatypeConverter;
+import com.ibm.broker.plugin.MbException;
 
 /**
  * A class that can load the contents of an R script from the file system and
- * check for updates to that file.
+ * reload them when that file is updated. The loaded contents are published as an
+ * immutable snapshot, so they can be read by any number of threads without locking.
  */
 public class RNodeScript {
 	
+	/**
+	 * A class that represents the contents of this R script loaded at a point in time.
+	 */
+	public static class Snapshot {
+		
+		/**
+		 * The loaded contents of this R script.
+		 */
+		private final String[] iContent;
+		
+		/**
+		 * The version of this R script, incremented each time it is reloaded.
+		 */
+		private final long iVersion;
+		
+		/**
+		 * The last modified time of this R script before the contents were loaded.
+		 */
+		private final FileTime iLastModified;
+		
+		/**
+		 * Constructor.
+		 * @param content the loaded contents of this R script.
+		 * @param version the version of this R script.
+		 * @param lastModified the last modified time of this R script before the contents were loaded.
+		 */
+		private Snapshot(String[] content, long version, FileTime lastModified) {
+			iContent = content;
+			iVersion = version;
+			iLastModified = lastModified;
+		}
+		
+		/**
+		 * Get the loaded contents of this R script.
+		 * @return the loaded contents of this R script.
+		 */
+		public String[] getContent() {
+			return iContent;
+		}
+		
+		/**
+		 * Get the version of this R script.
+		 * @return the version of this R script.
+		 */
+		public long getVersion() {
+			return iVersion;
+		}
+		
+	}
+	
 	/**
 	 * The R node that owns this R script.
 	 */
@@ -48,38 +96,29 @@ public class RNodeScript {
 	 */
 	private Path iPath;
 	
-	/**
-	 * The last modified time for the currently loaded contents of this R script.
-	 */
-	private FileTime iLastModified;
-	
-	/**
-	 * The currently loaded contents of this R script.
-	 */
-	private String[] iContent;
-	
 	/**
 	 * A unique key for this R script - safe for use in R variable names.
 	 */
 	private String iKey;
 	
 	/**
-	 * The currently loaded version of this R script.
+	 * The currently loaded snapshot of this R script.
 	 */
-	private long iVersion = 0;
+	private volatile Snapshot iSnapshot;
 	
 	/**
-	 * A read-write lock to ensure that the file contents can be replaced safely.
+	 * The registration with the file watcher that reloads this R script when it is updated.
 	 */
-	private ReadWriteLock iReadWriteLock = new ReentrantReadWriteLock();
+	private RNodeFileWatcher.Registration iRegistration;
 	
 	/**
-	 * Constructor - load the specified R script from the file system.
+	 * Constructor - load the specified R script from the file system, and start watching it for updates.
 	 * @param owner the R node that owns this R script.
 	 * @param fileName the file name of this R script.
+	 * @param pollingInterval the interval (in seconds) at which to check for updates, or 0 to watch for updates.
 	 * @throws RNodeException if the R script cannot be loaded.
 	 */
-	public RNodeScript(RNode owner, String fileName) throws RNodeException {
+	public RNodeScript(RNode owner, String fileName, long pollingInterval) throws RNodeException {
 		final String methodName = "RNodeScript";
 		try {
 			
@@ -88,21 +127,28 @@ public class RNodeScript {
 			iFileName = fileName;
 			iPath = Paths.get(iFileName);
 			
-			// Get the last modified time of the file before we load it.
-			iLastModified = Files.getLastModifiedTime(iPath);
-			
-			// Load the file line by line into a string array.
-			List<String> content = Files.readAllLines(iPath, StandardCharsets.UTF_8);
-			iContent = content.toArray(new String[0]);
+			// Load the file, getting the last modified time of the file before we load it.
+			FileTime lastModified = Files.getLastModifiedTime(iPath);
+			iSnapshot = new Snapshot(Files.readAllLines(iPath, StandardCharsets.UTF_8).toArray(new String[0]), 0, lastModified);
 			
 			// Get the SHA-1 digest for the file name to use as a unique key for this R script.
 			MessageDigest sha1digest = MessageDigest.getInstance("SHA-1");
-			iKey = DatatypeConverter.printHexBinary(sha1digest.digest(iFileName.getBytes(StandardCharsets.UTF_8))).toLowerCase();
+			iKey = String.format("%040x", new BigInteger(1, sha1digest.digest(iFileName.getBytes(StandardCharsets.UTF_8))));
 			
 		} catch (NoSuchAlgorithmException nsae) {
 		} catch (IOException ioe) {
 			throw new RNodeException(this, methodName, 7804, "Specified file could not open or could not be accessed", iOwner.getName(), fileName);
 		}
+		
+		// Reload the file whenever it may have been updated.
+		iRegistration = RNodeFileWatcher.watch(iPath, pollingInterval, new RNodeFileWatcher.Listener() {
+			
+			@Override
+			public void fileChanged() {
+				reload();
+			}
+			
+		});
 	}
 	
 	/**
@@ -114,11 +160,12 @@ public class RNodeScript {
 	}
 	
 	/**
-	 * Get the currently loaded contents of this R script.
-	 * @return the currently loaded contents of this R script.
+	 * Get the currently loaded snapshot of this R script. The contents and version must both be
+	 * read from the same snapshot.
+	 * @return the currently loaded snapshot of this R script.
 	 */
-	public String[] getContent() {
-		return iContent;
+	public Snapshot getSnapshot() {
+		return iSnapshot;
 	}
 	
 	/**
@@ -130,59 +177,42 @@ public class RNodeScript {
 	}
 	
 	/**
-	 * Get the currently loaded version of this R script.
-	 * @return the currently loaded version of this R script.
+	 * Stop watching this R script for updates.
 	 */
-	public long getVersion() {
-		return iVersion;
+	public void close() {
+		iRegistration.cancel();
 	}
 	
 	/**
-	 * Get a read lock to ensure that the file contents can be replaced safely.
-	 */
-	public Lock getReadLock() {
-		return iReadWriteLock.readLock();
-	}
-
-	/**
-	 * Check to see if this R script has been updated on the file system, and if so
-	 * reload the contents from the updated R script.
-	 * @throws RNodeException if the R script cannot be loaded.
+	 * Check to see if this R script has been updated on the file system, and if so reload
+	 * the contents from the updated R script and publish them as a new snapshot. If the
+	 * R script cannot be reloaded, the current snapshot continues to be used.
 	 */
-	public void update() throws RNodeException {
-		final String methodName = "update";
+	private synchronized void reload() {
+		final String methodName = "reload";
 		try {
 			
-			// Compare the current last modified time with our saved last modified time.
+			// Compare the current last modified time with the last modified time of the current snapshot.
+			Snapshot snapshot = iSnapshot;
 			FileTime lastModified = Files.getLastModifiedTime(iPath);
-			if (lastModified.compareTo(iLastModified) > 0) {
-				
-				// Ensure we're the only ones able to reload the contents.
-				Lock writeLock = iReadWriteLock.writeLock();
-				writeLock.lock();
-				try {
-					
-					// Check to see if somebody else updated the file first.
-					if (lastModified.compareTo(iLastModified) > 0) {
-						
-						// Load the updated file contents from the file system.
-						iLastModified = Files.getLastModifiedTime(iPath);
-						List<String> content = Files.readAllLines(iPath, StandardCharsets.UTF_8);
-						iContent = content.toArray(new String[0]);
-						
-						// Increment the version number to force it to be reparsed.
-						iVersion++;
-						
-					}
+			if (!lastModified.equals(snapshot.iLastModified)) {
 				
-				} finally {
-					writeLock.unlock();
+				// Load the updated file contents from the file system, and increment the
+				// version number to force it to be reloaded by each connection.
+				Object event = RNodeEvents.SCRIPT_UPDATE.begin();
+				iSnapshot = new Snapshot(Files.readAllLines(iPath, StandardCharsets.UTF_8).toArray(new String[0]), snapshot.iVersion + 1, lastModified);
+				if (event != null) {
+					RNodeEvents.SCRIPT_UPDATE.commit(event, iOwner.getName(), iFileName, iKey, iSnapshot.iVersion, Files.size(iPath));
 				}
 				
 			}
 			
 		} catch (IOException ioe) {
-			throw new RNodeException(this, methodName, 7804, "Specified file could not open or could not be accessed", iOwner.getName(), iFileName);
+			try {
+				RNodeLog.logWarning(this, methodName, 7872, "Specified file could not be reloaded", iOwner.getName(), iFileName, ioe.toString());
+			} catch (MbException e) {
+				// Ignore any problems logging the warning.
+			}
 		}
 	}
 	
@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.REngineException;
+
+/**
+ * A class that represents one R session created by an RNodeEngine, such as a connection to an Rserve
+ * server. The R node holds sessions in its connection pools, and only uses them from one thread at a
+ * time. Values are passed in and out of the session as REXP objects, so RNodeVariable and RNodeDataFrame
+ * do not depend on the engine.
+ *
+ * This class also maintains the state the R node keeps for each session: the versions of the scripts
+ * parsed in the session, whether the session has been lost, and the deadline for the running script.
+ * Engines must mark a session as broken when a request fails because the session has been lost.
+ */
+public abstract class RNodeSession {
+	
+	/**
+	 * The deadline state of a session that is not running a script with a deadline.
+	 */
+	private static final int NO_DEADLINE = 0;
+	
+	/**
+	 * The deadline state of a session that is running a script with a deadline that has not expired.
+	 */
+	private static final int RUNNING = 1;
+	
+	/**
+	 * The deadline state of a session that was aborted because the deadline expired.
+	 */
+	private static final int TIMED_OUT = 2;
+	
+	/**
+	 * The mapping of parsed scripts and their current versions.
+	 */
+	private Map<String, Long> iScriptVersions = new HashMap<>();
+	
+	/**
+	 * Whether this session has been lost.
+	 */
+	private volatile boolean iBroken = false;
+	
+	/**
+	 * The state of the deadline for the script running in this session (NO_DEADLINE, RUNNING or TIMED_OUT).
+	 */
+	private AtomicInteger iDeadlineState = new AtomicInteger(NO_DEADLINE);
+	
+	/**
+	 * Assign a value to a variable in the global environment of this session.
+	 * @param name the name of the variable.
+	 * @param value the value.
+	 * @throws REngineException if a problem occurs assigning the value.
+	 */
+	public abstract void assign(String name, REXP value) throws REngineException;
+	
+	/**
+	 * Parse and evaluate an R expression in the global environment of this session, and return the result.
+	 * @param expression the R expression.
+	 * @return the result of the expression.
+	 * @throws REngineException if a problem occurs parsing or evaluating the expression.
+	 */
+	public abstract REXP evaluate(String expression) throws REngineException;
+	
+	/**
+	 * Parse and evaluate an R expression in the global environment of this session, discarding the result.
+	 * @param expression the R expression.
+	 * @throws REngineException if a problem occurs parsing or evaluating the expression.
+	 */
+	public abstract void voidEvaluate(String expression) throws REngineException;
+	
+	/**
+	 * Get the value of a variable in the global environment of this session.
+	 * @param name the name of the variable.
+	 * @return the value, or null if there is no such variable.
+	 * @throws REngineException if a problem occurs getting the value.
+	 */
+	public REXP fetch(String name) throws REngineException {
+		REXP value = evaluate("mget(" + RNode.quote(name) + ",envir=.GlobalEnv,ifnotfound=list(NULL))[[1]]");
+		return value == null || value.isNull() ? null : value;
+	}
+	
+	/**
+	 * Parse the contents of a script into the R variable .iib_r_compiled_script_&lt;key&gt;, which is evaluated each
+	 * time the script is run. By default, the contents are assigned to an R variable and parsed in this session
+	 * into an R language object, which is then byte-compiled if the compiler package is available. The parse
+	 * is wrapped in try, as that also allows the error messages to be retrieved from the R runtime.
+	 * @param key the key used to identify the script.
+	 * @param content the lines of the script.
+	 * @return NULL, or an object that inherits from try-error if the script could not be parsed.
+	 * @throws REngineException if a problem occurs assigning or parsing the script.
+	 */
+	public REXP parseScript(String key, String[] content) throws REngineException {
+		String scriptVariable = ".iib_r_script_" + key;
+		assign(scriptVariable, new REXPString(content));
+		String parsedScriptVariable = ".iib_r_parsed_script_" + key;
+		String compiledScriptVariable = ".iib_r_compiled_script_" + key;
+		return evaluate("try({" + parsedScriptVariable + " <- parse(text=" + scriptVariable + ");" +
+			compiledScriptVariable + " <- tryCatch(compiler::compile(as.call(c(as.name(\"{\"),as.list(" + parsedScriptVariable + "))),options=list(suppressAll=TRUE))," +
+			"error=function(e) " + parsedScriptVariable + ");NULL},silent=TRUE)");
+	}
+	
+	/**
+	 * Remove every variable from the global environment of this session, and forget the scripts parsed
+	 * in it, so that the session can be reused as if it had just been created.
+	 * @throws REngineException if a problem occurs removing the variables.
+	 */
+	public void reset() throws REngineException {
+		iScriptVersions.clear();
+		voidEvaluate("rm(list=ls(envir=.GlobalEnv,all.names=TRUE),envir=.GlobalEnv)");
+	}
+	
+	/**
+	 * Close this session, releasing its resources. This can be called from any thread, including while
+	 * another thread is using the session.
+	 */
+	public abstract void close();
+	
+	/**
+	 * Stop the script running in this session after its deadline has expired. This is called from the shared
+	 * scheduler thread, so it must not block; the session has already been marked as broken, and is not used again.
+	 */
+	protected abstract void abort();
+	
+	/**
+	 * Check to see if the specified script has been parsed in this session, and
+	 * if it has whether the parsed version is the current version.
+	 * @param key the key used to identify this script.
+	 * @param currentVersion the current version of this script.
+	 * @return true if the specified script has not been parsed or is out of date.
+	 */
+	public boolean checkScriptVersion(String key, long currentVersion) {
+		Long parsedVersion = iScriptVersions.get(key);
+		boolean result = parsedVersion == null || !parsedVersion.equals(currentVersion);
+		if (result)
+			iScriptVersions.put(key, currentVersion);
+		return result;
+	}
+	
+	/**
+	 * Record that this session has been lost.
+	 */
+	public void setBroken() {
+		iBroken = true;
+	}
+	
+	/**
+	 * Check whether this session has been lost, and can no longer be used.
+	 * @return true if this session has been lost.
+	 */
+	public boolean isBroken() {
+		return iBroken;
+	}
+	
+	/**
+	 * Check that this session can still be used by sending it a trivial request.
+	 * A session that fails the request is marked as broken.
+	 * @return true if this session can still be used.
+	 */
+	public boolean validate() {
+		if (isBroken()) {
+			return false;
+		}
+		try {
+			voidEvaluate("NULL");
+			return true;
+		} catch (REngineException e) {
+			setBroken();
+			return false;
+		}
+	}
+	
+	/**
+	 * Start the deadline for a script about to run in this session. If the deadline expires before
+	 * stopDeadline() is called, the shared scheduler marks this session as broken and aborts it.
+	 * @param timeout the period (in milliseconds) before the deadline expires.
+	 * @return the scheduled deadline, which must be passed to stopDeadline().
+	 */
+	public ScheduledFuture<?> startDeadline(long timeout) {
+		iDeadlineState.set(RUNNING);
+		return RNodeScheduler.get().schedule(new Runnable() {
+			
+			@Override
+			public void run() {
+				if (iDeadlineState.compareAndSet(RUNNING, TIMED_OUT)) {
+					setBroken();
+					abort();
+				}
+			}
+			
+		}, timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stop the deadline for the script that has finished running in this session.
+	 * @param deadline the scheduled deadline returned by startDeadline().
+	 */
+	public void stopDeadline(ScheduledFuture<?> deadline) {
+		deadline.cancel(false);
+		iDeadlineState.compareAndSet(RUNNING, NO_DEADLINE);
+	}
+	
+	/**
+	 * Check whether this session was aborted because a script ran for longer than its deadline.
+	 * @return true if this session timed out.
+	 */
+	public boolean isTimedOut() {
+		return iDeadlineState.get() == TIMED_OUT;
+	}
+	
+}
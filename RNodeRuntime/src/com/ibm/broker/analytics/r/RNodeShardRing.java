@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A class that represents a consistent hash ring, which maps message keys to one of the Rserve servers
+ * configured on an instance of the R node. Each server is placed on the ring at a number of points in
+ * proportion to its weight, and a key maps to the server at the first point at or after the hash of the
+ * key. The same key always maps to the same server, and adding or removing a server only moves the keys
+ * on either side of its points.
+ */
+public class RNodeShardRing {
+	
+	/**
+	 * The number of points on the ring for each unit of weight of a server.
+	 */
+	private static final int POINTS_PER_WEIGHT = 160;
+	
+	/**
+	 * The hashes of the points on the ring, in ascending order.
+	 */
+	private long[] iHashes;
+	
+	/**
+	 * The index of the server at each point on the ring.
+	 */
+	private int[] iServers;
+	
+	/**
+	 * Constructor.
+	 * @param endpoints the servers to place on the ring, identified by their host name and port.
+	 */
+	public RNodeShardRing(List<? extends RNodeEndpoint<?>> endpoints) {
+		
+		// Work out the points on the ring for each server.
+		int total = 0;
+		for (RNodeEndpoint<?> endpoint : endpoints) {
+			total += endpoint.getWeight() * POINTS_PER_WEIGHT;
+		}
+		long[] points = new long[total];
+		int[] servers = new int[total];
+		int n = 0;
+		for (int i = 0; i < endpoints.size(); i++) {
+			RNodeEndpoint<?> endpoint = endpoints.get(i);
+			for (int j = 0; j < endpoint.getWeight() * POINTS_PER_WEIGHT; j++) {
+				points[n] = hash(endpoint.toString() + "#" + j);
+				servers[n] = i;
+				n++;
+			}
+		}
+		
+		// Sort the points by hash, keeping the server for each point alongside it.
+		Integer[] order = new Integer[total];
+		for (int i = 0; i < total; i++) {
+			order[i] = i;
+		}
+		final long[] unsorted = points;
+		Arrays.sort(order, new Comparator<Integer>() {
+			
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(unsorted[a], unsorted[b]);
+			}
+			
+		});
+		iHashes = new long[total];
+		iServers = new int[total];
+		for (int i = 0; i < total; i++) {
+			iHashes[i] = points[order[i]];
+			iServers[i] = servers[order[i]];
+		}
+		
+	}
+	
+	/**
+	 * Get the server that the specified key maps to.
+	 * @param key the message key.
+	 * @return the index of the server.
+	 */
+	public int get(String key) {
+		int i = Arrays.binarySearch(iHashes, hash(key));
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return iServers[i < iHashes.length ? i : 0];
+	}
+	
+	/**
+	 * Calculate a 64 bit hash of the specified string, using FNV-1a over its UTF-8 encoding followed by
+	 * the MurmurHash3 finalizer so that similar strings are spread evenly around the ring.
+	 * @param value the string.
+	 * @return the hash.
+	 */
+	static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+	
+}
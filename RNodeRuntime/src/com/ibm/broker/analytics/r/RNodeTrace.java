@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ibm.broker.plugin.MbException;
+
+/**
+ * A class that controls the user trace written while converting the values of a single message
+ * between the message and R. Each converted value is traced with a call such as:
+ * 
+ * if (trace.sample()) {
+ *     trace.logUserTrace(this, methodName, ...);
+ * }
+ * 
+ * so the inserts for the message (including boxed values and element paths) are only built if
+ * the value is actually traced. When the trace level is NONE, a shared instance is used and
+ * nothing is allocated for the message at all. When the level is SAMPLED, the values are counted
+ * across every message processed by the node, so the sample rate holds however small the messages are.
+ */
+public class RNodeTrace {
+	
+	/**
+	 * The shared instance used when no converted values are traced.
+	 */
+	private static final RNodeTrace DISABLED = new RNodeTrace(RNodeTraceLevel.NONE, 1, null);
+	
+	/**
+	 * The level of user trace for converted values.
+	 */
+	private RNodeTraceLevel iLevel;
+	
+	/**
+	 * The number of converted values for each value traced when the level is SAMPLED.
+	 */
+	private int iSampleRate;
+	
+	/**
+	 * The number of converted values sampled so far by the node, across all of its messages.
+	 */
+	private AtomicLong iCount;
+	
+	/**
+	 * Constructor.
+	 * @param level the level of user trace for converted values.
+	 * @param sampleRate the number of converted values for each value traced when the level is SAMPLED.
+	 * @param count the number of converted values sampled so far by the node.
+	 */
+	private RNodeTrace(RNodeTraceLevel level, int sampleRate, AtomicLong count) {
+		iLevel = level;
+		iSampleRate = sampleRate;
+		iCount = count;
+	}
+	
+	/**
+	 * Get the user trace for the converted values of a single message.
+	 * @param level the level of user trace for converted values.
+	 * @param sampleRate the number of converted values for each value traced when the level is SAMPLED.
+	 * @param count the number of converted values sampled so far by the node, which is shared by all of its messages (unused if the level is NONE).
+	 * @return the user trace for the converted values of a single message.
+	 */
+	public static RNodeTrace forMessage(RNodeTraceLevel level, int sampleRate, AtomicLong count) {
+		if (level == RNodeTraceLevel.NONE || (level == RNodeTraceLevel.SAMPLED && sampleRate <= 0)) {
+			return DISABLED;
+		}
+		return new RNodeTrace(level, sampleRate, count);
+	}
+	
+	/**
+	 * Check whether the next converted value should be traced.
+	 * @return true if the next converted value should be traced.
+	 */
+	public boolean sample() {
+		switch (iLevel) {
+		case ALL:
+			return true;
+		case SAMPLED:
+			return iCount.getAndIncrement() % iSampleRate == 0;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Log a message about a converted value to user trace.
+	 * @param object object making the call.
+	 * @param methodName name of method making the call.
+	 * @param messageNumber number of the message to log.
+	 * @param traceText trace text to insert.
+	 * @param inserts inserts for the message.
+	 * @throws MbException if a problem occurs logging the message.
+	 */
+	public void logUserTrace(Object object, String methodName, long messageNumber, String traceText, Object... inserts) throws MbException {
+		RNodeLog.logUserTrace(object, methodName, messageNumber, traceText, inserts);
+	}
+	
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+/**
+ * An enumeration listing the possible levels of user trace
+ * written while converting variable and data frame values
+ * between the message and R.
+ */
+public enum RNodeTraceLevel {
+	
+	/**
+	 * Every converted value is written to user trace.
+	 */
+	ALL("all"),
+	
+	/**
+	 * One in every N converted values is written to user trace.
+	 */
+	SAMPLED("sampled"),
+	
+	/**
+	 * No converted values are written to user trace.
+	 */
+	NONE("none");
+	
+	/**
+	 * The message flow value for this enumeration value.
+	 */
+	private String iValue;
+	
+	/**
+	 * Constructor.
+	 * @param value the message flow value for this enumeration value.
+	 */
+	private RNodeTraceLevel(String value) {
+		iValue = value;
+	}
+	
+	/**
+	 * Get the enumeration value for the specified message flow value. 
+	 * @param value the specified message flow value.
+	 * @return the enumeration value for the specified message flow value.
+	 */
+	public static RNodeTraceLevel fromString(String value) {
+		for (RNodeTraceLevel level : values()) {
+			if (level.iValue.equalsIgnoreCase(value)) {
+				return level;
+			}
+		}
+		throw new IllegalArgumentException();
+	}
+	
+	/**
+	 * Get the message flow value for the specified enumeration value. 
+	 * @param value the specified enumeration value.
+	 * @return the message flow value for the specified enumeration value.
+	 */
+	@Override
+	public String toString() {
+		return iValue;
+	}
+	
+}
@@ -16,17 +16,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
 
-import javax.xml.bind.DatatypeConverter;
-
 import org.rosuda.REngine.REXP;
-import org.rosuda.REngine.REXPDouble;
-import org.rosuda.REngine.REXPInteger;
-import org.rosuda.REngine.REXPLogical;
 import org.rosuda.REngine.REXPMismatchException;
-import org.rosuda.REngine.REXPString;
-import org.rosuda.REngine.REngineException;
-import org.rosuda.REngine.Rserve.RConnection;
-import org.rosuda.REngine.Rserve.RserveException;
 
 import com.ibm.broker.plugin.MbElement;
 import com.ibm.broker.plugin.MbException;
@@ -71,6 +62,26 @@ public class RNodeVariable {
 	 */
 	private MbXPath iXPath = null;
 	
+	/**
+	 * The converter for the R variable type of this variable, or null if the type is not a vector type.
+	 */
+	private RNodeConverter iConverter;
+	
+	/**
+	 * The user trace message numbers for converted values, indexed by the ordinal of the R variable type.
+	 */
+	private static final long[] TRACE_MESSAGES = { 7817, 7818, 7819, 7820 };
+	
+	/**
+	 * The message numbers for element values that cannot be converted, indexed by the ordinal of the R variable type.
+	 */
+	private static final long[] ELEMENT_ERROR_MESSAGES = { 7828, 7829, 7830, 7831 };
+	
+	/**
+	 * The message numbers for XPath results that cannot be converted, indexed by the ordinal of the R variable type.
+	 */
+	private static final long[] XPATH_ERROR_MESSAGES = { 7805, 7806, 7807, 7808 };
+	
 	/**
 	 * Constructor.
 	 * @param owner the R node that owns this variable.
@@ -88,6 +99,7 @@ public class RNodeVariable {
 		iDirection = direction;
 		iXPathExpression = xpathExpression;
 		iXPath = xpath;
+		iConverter = RNodeConverter.forType(type);
 	}
 	
 	/**
@@ -131,18 +143,18 @@ public class RNodeVariable {
 	}
 	
 	/**
-	 * Using the specified connection to an Rserve server and input message, resolve the tree elements specified by the
-	 * XPath expression for this variable and convert them into R variables on the Rserve server. 
-	 * @param connection the Rserve server connection to use.
+	 * Using the specified input message, resolve the tree elements specified by the XPath expression for this
+	 * variable and convert them into an R value. The R value is not sent to the Rserve server; the caller packs
+	 * the values for all variables and data frames into a single request.
 	 * @param message the input message.
 	 * @param xpathVariables the set of XPath variables to use.
-	 * @return
+	 * @param trace the user trace for the converted values of this message.
+	 * @return the R value for this variable.
 	 * @throws RNodeException if a known problem occurs during processing.
 	 * @throws MbException if a problem occurs during logging or accessing the input message.
-	 * @throws RserveException if an unknown problem occurs interacting with the Rserve server.
 	 */
 	@SuppressWarnings("unchecked")
-	public void toR(RConnection connection, MbMessage message, MbXPathVariables xpathVariables) throws RNodeException, MbException, RserveException {
+	public REXP toR(MbMessage message, MbXPathVariables xpathVariables, RNodeTrace trace) throws RNodeException, MbException {
 		final String methodName = "toR";
 		
 		// Evaluate the XPath expression.
@@ -165,166 +177,45 @@ public class RNodeVariable {
 		}
 		
 		// Convert all of the values returned from the XPath expression into the R variable type set on this variable.
-		REXP value;
-		switch (iType) {
-		case LOGICAL: {
-			byte[] actualValues = new byte[xpathValues.length];
-			for (int i = 0; i < xpathValues.length; i++) {
-				Object actualValue = xpathValues[i];
-				if (actualValue instanceof Boolean) {
-					actualValues[i] = ((Boolean) actualValue).booleanValue() ? REXPLogical.TRUE : REXPLogical.FALSE;
-					RNodeLog.logUserTrace(this, methodName, 7817, "Assigning R logical value", iOwner.getName(), actualValue.toString(), iName, i + 1, xpathValues.length);
-				} else {
-					// Attempt to automatically cast from string to boolean.
-					if (actualValue instanceof String) {
-						String strValue = (String) actualValue;
-						try {
-							actualValues[i] = DatatypeConverter.parseBoolean(strValue) ? REXPLogical.TRUE : REXPLogical.FALSE;
-							RNodeLog.logUserTrace(this, methodName, 7817, "Assigning R logical value", iOwner.getName(), strValue, iName, i + 1, xpathValues.length);
-							continue;
-						} catch (Exception e) {
-							// Fall through to exceptions below.
-						}
-					} else if (actualValue == null) {
-						actualValues[i] = REXPLogical.NA;
-						continue;
-					}
-					if (nodeset != null) {
-						throw new RNodeException(this, methodName, 7828, "Could not convert element value to R logical variable", iName, iOwner.getName(), nodeset.get(i));
-					} else {
-						throw new RNodeException(this, methodName, 7805, "Could not convert XPath result to R logical variable", iName, iOwner.getName(), iXPathExpression);
-					}
-				}
-			}
-			value = new REXPLogical(actualValues);
-			break;
-		}
-		case INTEGER: {
-			int[] actualValues = new int[xpathValues.length];
-			for (int i = 0; i < xpathValues.length; i++) {
-				Object actualValue = xpathValues[i];
-				if (actualValue instanceof Boolean) {
-					actualValues[i] = ((Boolean) actualValue).booleanValue() ? 1 : 0;
-					RNodeLog.logUserTrace(this, methodName, 7818, "Assigning R integer value", iOwner.getName(), actualValue.toString(), iName, i + 1, xpathValues.length);
-				} else if (actualValue instanceof Integer) {
-					actualValues[i] = ((Integer) actualValue).intValue();
-					RNodeLog.logUserTrace(this, methodName, 7818, "Assigning R integer value", iOwner.getName(), actualValue.toString(), iName, i + 1, xpathValues.length);
-				} else if (actualValue instanceof Double) {
-					actualValues[i] = (int) ((Double) actualValue).doubleValue();
-					RNodeLog.logUserTrace(this, methodName, 7818, "Assigning R integer value", iOwner.getName(), actualValue.toString(), iName, i + 1, xpathValues.length);
-				} else {
-					// Attempt to automatically cast from string to integer.
-					if (actualValue instanceof String) {
-						String strValue = (String) actualValue;
-						try {
-							actualValues[i] = DatatypeConverter.parseInt(strValue);
-							RNodeLog.logUserTrace(this, methodName, 7818, "Assigning R integer value", iOwner.getName(), strValue, iName, i + 1, xpathValues.length);
-							continue;
-						} catch (Exception e) {
-							// Fall through to exceptions below.
-						}
-					} else if (actualValue == null) {
-						actualValues[i] = REXPInteger.NA;
-						continue;
-					}
-					if (nodeset != null) {
-						throw new RNodeException(this, methodName, 7829, "Could not convert element value to R integer variable", iName, iOwner.getName(), nodeset.get(i));
-					} else {
-						throw new RNodeException(this, methodName, 7806, "Could not convert XPath result to R integer variable", iName, iOwner.getName(), iXPathExpression);
-					}
-				}
-			}
-			value = new REXPInteger(actualValues);
-			break;
-		}
-		case DOUBLE: {
-			double[] actualValues = new double[xpathValues.length];
-			for (int i = 0; i < xpathValues.length; i++) {
-				Object actualValue = xpathValues[i];
-				if (actualValue instanceof Boolean) {
-					actualValues[i] = ((Boolean) actualValue).booleanValue() ? 1 : 0;
-					RNodeLog.logUserTrace(this, methodName, 7819, "Assigning R double value", iOwner.getName(), actualValue.toString(), iName, i + 1, xpathValues.length);
-				} else if (actualValue instanceof Integer) {
-					actualValues[i] = ((Integer) actualValue).intValue();
-					RNodeLog.logUserTrace(this, methodName, 7819, "Assigning R double value", iOwner.getName(), actualValue.toString(), iName, i + 1, xpathValues.length);
-				} else if (actualValue instanceof Double) {
-					actualValues[i] = (int) ((Double) actualValue).doubleValue();
-					RNodeLog.logUserTrace(this, methodName, 7819, "Assigning R double value", iOwner.getName(), actualValue.toString(), iName, i + 1, xpathValues.length);
-				} else {
-					// Attempt to automatically cast from string to double.
-					if (actualValue instanceof String) {
-						String strValue = (String) actualValue;
-						try {
-							actualValues[i] = DatatypeConverter.parseDouble(strValue);
-							RNodeLog.logUserTrace(this, methodName, 7819, "Assigning R double value", iOwner.getName(), strValue, iName, i + 1, xpathValues.length);
-							continue;
-						} catch (Exception e) {
-							// Fall through to exceptions below.
-						}
-					} else if (actualValue == null) {
-						actualValues[i] = REXPDouble.NA;
-						continue;
-					}
-					if (nodeset != null) {
-						throw new RNodeException(this, methodName, 7830, "Could not convert element value to R double variable", iName, iOwner.getName(), nodeset.get(i));
-					} else {
-						throw new RNodeException(this, methodName, 7807, "Could not convert XPath result to R double variable", iName, iOwner.getName(), iXPathExpression);
-					}
-				}
-			}
-			value = new REXPDouble(actualValues);
-			break;
+		if (iConverter == null) {
+			throw new RNodeException(this, methodName, 2111, "Unrecognised R node variable type", "Unrecognised R node variable type");
 		}
-		case CHARACTER: {
-			String[] actualValues = new String[xpathValues.length];
-			for (int i = 0; i < xpathValues.length; i++) {
-				Object actualValue = xpathValues[i];
-				if (actualValue instanceof String) {
-					actualValues[i] = (String) actualValue;
-					RNodeLog.logUserTrace(this, methodName, 7820, "Assigning R character value", iOwner.getName(), actualValue.toString(), iName, i + 1, xpathValues.length);
-				} else if (actualValue == null) {
-					actualValues[i] = null;
-					continue;
-				} else if (nodeset != null) {
-					throw new RNodeException(this, methodName, 7831, "Could not convert element value to R character variable", iName, iOwner.getName(), nodeset.get(i));
-				} else {
-					throw new RNodeException(this, methodName, 7808, "Could not convert XPath result to R character variable", iName, iOwner.getName(), iXPathExpression);
+		int type = iConverter.getType().ordinal();
+		Object values = iConverter.newValues(xpathValues.length);
+		for (int i = 0; i < xpathValues.length; i++) {
+			Object actualValue = xpathValues[i];
+			if (actualValue == null) {
+				iConverter.setNA(values, i);
+			} else if (iConverter.convert(actualValue, values, i)) {
+				if (trace.sample()) {
+					trace.logUserTrace(this, methodName, TRACE_MESSAGES[type], iConverter.getTraceText(), iOwner.getName(), actualValue, iName, i + 1, xpathValues.length);
 				}
+			} else if (nodeset != null) {
+				throw new RNodeException(this, methodName, ELEMENT_ERROR_MESSAGES[type], iConverter.getElementErrorText(), iName, iOwner.getName(), nodeset.get(i), actualValue, i + 1);
+			} else {
+				throw new RNodeException(this, methodName, XPATH_ERROR_MESSAGES[type], iConverter.getXPathErrorText(), iName, iOwner.getName(), iXPathExpression, actualValue, i + 1);
 			}
-			value = new REXPString(actualValues);
-			break;
-		}
-		default:
-			throw new RNodeException(this, methodName, 2111, "Unrecognised R node variable type", "Unrecognised R node variable type");
 		}
-		
-		// Assign the values to an R variable on the Rserve server.
-		connection.assign(iName, value);
+		return iConverter.toR(values);
 		
 	}
 	
 	/**
-	 * Using the specified connection to an Rserve server and output message, get the R variable for this variable
-	 * and set it on all nodes returned by the XPath expression for this variable.
-	 * @param connection the Rserve server connection to use.
+	 * Using the specified R value retrieved from the Rserve server and output message, set the R value on all
+	 * nodes returned by the XPath expression for this variable.
+	 * @param value the R value for this variable, or null if the R variable does not exist.
 	 * @param message the output message.
 	 * @param xpathVariables the set of XPath variables to use.
-	 * @return
+	 * @param trace the user trace for the converted values of this message.
 	 * @throws RNodeException if a known problem occurs during processing.
 	 * @throws MbException if a problem occurs during logging or accessing the output message.
-	 * @throws RserveException if an unknown problem occurs interacting with the Rserve server.
+	 * @throws REXPMismatchException if an unknown problem occurs accessing the R value.
 	 */
-	public void fromR(RConnection connection, MbMessage message, MbXPathVariables xpathVariables) throws RNodeException, MbException, REXPMismatchException {
+	public void fromR(REXP value, MbMessage message, MbXPathVariables xpathVariables, RNodeTrace trace) throws RNodeException, MbException, REXPMismatchException {
 		final String methodName = "fromR";
-		REXP value;
 		
-		// Retrieve the R variable value from the Rserve server.
-		try {
-			value = connection.get(iName, null, true);
-			if (value == null) {
-				throw new RNodeException(this, methodName, 7832, "R variable does not exist", iName, iOwner.getName());
-			}
-		} catch (REngineException e) {
+		// Check that the R variable existed on the Rserve server.
+		if (value == null || value.isNull()) {
 			throw new RNodeException(this, methodName, 7832, "R variable does not exist", iName, iOwner.getName());
 		}
 		
@@ -341,8 +232,14 @@ public class RNodeVariable {
 			throw new RNodeException(this, methodName, 7802, "XPath result is an empty nodeset", iName, iOwner.getName(), iXPathExpression);
 		}
 		
+		// Decode the R variable value once, rather than once for each element.
+		RNodeVector vector = RNodeVector.decode(value);
+		if (vector == null) {
+			throw new RNodeException(this, methodName, 7803, "R variable type is not supported (not logical/integer/double/character)", iName, iOwner.getName());
+		}
+		
 		// Go through each value stored in the R variable and assign it to the next node in the nodeset. 
-		int numValues = value.length();
+		int numValues = vector.length();
 		int i;
 		for (i = 0; i < numValues; i++) {
 			
@@ -350,7 +247,9 @@ public class RNodeVariable {
 			MbElement element;
 			if (!it.hasNext()) {
 				MbElement last = it.previous();
-				RNodeLog.logUserTrace(this, methodName, 7825, "Creating new element", iOwner.getName(), last);
+				if (trace.sample()) {
+					trace.logUserTrace(this, methodName, 7825, "Creating new element", iOwner.getName(), last);
+				}
 				element = last.createElementAfter(last.getType());
 				element.setName(last.getName());
 				element.setNamespace(last.getNamespace());
@@ -361,41 +260,7 @@ public class RNodeVariable {
 			}
 			
 			// Assign the value of the R variable to the node.
-			if (value.isLogical()) {
-				if (!value.isNA()[i]) {
-					boolean actualValue = value.asBytes()[i] == REXPLogical.TRUE;
-					RNodeLog.logUserTrace(this, methodName, 7821, "Assigning R logical value", iOwner.getName(), actualValue, iName, element, i + 1, numValues, i + 1);
-					element.setValue(actualValue);
-				} else {
-					element.setValue(null);
-				}
-			} else if (value.isInteger()) {
-				if (!value.isNA()[i]) {
-					int actualValue = value.asIntegers()[i];
-					RNodeLog.logUserTrace(this, methodName, 7822, "Assigning R integer value", iOwner.getName(), actualValue, iName, element, i + 1, numValues, i + 1);
-					element.setValue(actualValue);
-				} else {
-					element.setValue(null);
-				}
-			} else if (value.isNumeric()) {
-				if (!value.isNA()[i]) {
-					double actualValue = value.asDoubles()[i];
-					RNodeLog.logUserTrace(this, methodName, 7823, "Assigning R double value", iOwner.getName(), actualValue, iName, element, i + 1, numValues, i + 1);
-					element.setValue(actualValue);
-				} else {
-					element.setValue(null);
-				}
-			} else if (value.isString()) {
-				if (!value.isNA()[i]) {
-					String actualValue = value.asStrings()[i];
-					RNodeLog.logUserTrace(this, methodName, 7824, "Assigning R character value", iOwner.getName(), actualValue, iName, element, i + 1, numValues, i + 1);
-					element.setValue(actualValue);
-				} else {
-					element.setValue(null);
-				}
-			} else {
-				throw new RNodeException(this, methodName, 7803, "R variable type is not supported (not logical/integer/double/character)", iName, iOwner.getName());
-			}
+			setElementValue(element, vector, i, trace, i + 1);
 			
 		}
 		
@@ -405,44 +270,61 @@ public class RNodeVariable {
 		i--;
 		while (it.hasNext()) {
 			MbElement element = it.next();
-			if (value.isLogical()) {
-				if (!value.isNA()[i]) {
-					boolean actualValue = ((REXPLogical) value).isTRUE()[i];
-					RNodeLog.logUserTrace(this, methodName, 7821, "Assigning R logical value", iOwner.getName(), actualValue, iName, element, i + 1, numValues, elem + 1);
-					element.setValue(actualValue);
-				} else {
-					element.setValue(null);
-				}
-			} else if (value.isInteger()) {
-				if (!value.isNA()[i]) {
-					int actualValue = value.asIntegers()[i];
-					RNodeLog.logUserTrace(this, methodName, 7822, "Assigning R integer value", iOwner.getName(), actualValue, iName, element, i + 1, numValues, elem + 1);
-					element.setValue(actualValue);
-				} else {
-					element.setValue(null);
-				}
-			} else if (value.isNumeric()) {
-				if (!value.isNA()[i]) {
-					double actualValue = value.asDoubles()[i];
-					RNodeLog.logUserTrace(this, methodName, 7823, "Assigning R double value", iOwner.getName(), actualValue, iName, element, i + 1, numValues, elem + 1);
-					element.setValue(actualValue);
-				} else {
-					element.setValue(null);
-				}
-			} else if (value.isString()) {
-				if (!value.isNA()[i]) {
-					String actualValue = value.asStrings()[i];
-					RNodeLog.logUserTrace(this, methodName, 7824, "Assigning R character value", iOwner.getName(), actualValue, iName, element, i + 1, numValues, elem + 1);
-					element.setValue(actualValue);
-				} else {
-					element.setValue(null);
-				}
-			} else {
-				throw new RNodeException(this, methodName, 7803, "R variable type is not supported (not logical/integer/double/character)", iName, iOwner.getName());
-			}
+			setElementValue(element, vector, i, trace, elem + 1);
 			elem++;
 		}
 		
 	}
 	
+	/**
+	 * Assign the specified value of the decoded R variable to the specified node.
+	 * @param element the node to assign the value to.
+	 * @param vector the decoded R variable.
+	 * @param index the index of the value in the R variable.
+	 * @param trace the user trace for the converted values of this message.
+	 * @param elementNumber the number of the node in the nodeset (starting from 1), for user trace.
+	 * @throws MbException if a problem occurs during logging or accessing the output message.
+	 */
+	private void setElementValue(MbElement element, RNodeVector vector, int index, RNodeTrace trace, int elementNumber) throws MbException {
+		final String methodName = "fromR";
+		if (vector.isNA(index)) {
+			element.setValue(null);
+			return;
+		}
+		switch (vector.getType()) {
+		case LOGICAL: {
+			boolean actualValue = vector.getLogical(index);
+			if (trace.sample()) {
+				trace.logUserTrace(this, methodName, 7821, "Assigning R logical value", iOwner.getName(), actualValue, iName, element, index + 1, vector.length(), elementNumber);
+			}
+			element.setValue(actualValue);
+			break;
+		}
+		case INTEGER: {
+			int actualValue = vector.getInteger(index);
+			if (trace.sample()) {
+				trace.logUserTrace(this, methodName, 7822, "Assigning R integer value", iOwner.getName(), actualValue, iName, element, index + 1, vector.length(), elementNumber);
+			}
+			element.setValue(actualValue);
+			break;
+		}
+		case DOUBLE: {
+			double actualValue = vector.getDouble(index);
+			if (trace.sample()) {
+				trace.logUserTrace(this, methodName, 7823, "Assigning R double value", iOwner.getName(), actualValue, iName, element, index + 1, vector.length(), elementNumber);
+			}
+			element.setValue(actualValue);
+			break;
+		}
+		default: {
+			String actualValue = vector.getCharacter(index);
+			if (trace.sample()) {
+				trace.logUserTrace(this, methodName, 7824, "Assigning R character value", iOwner.getName(), actualValue, iName, element, index + 1, vector.length(), elementNumber);
+			}
+			element.setValue(actualValue);
+			break;
+		}
+		}
+	}
+	
 }
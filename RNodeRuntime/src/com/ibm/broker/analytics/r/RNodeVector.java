@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPLogical;
+import org.rosuda.REngine.REXPMismatchException;
+
+/**
+ * A class that represents an R vector returned from the Rserve server, decoded once into a primitive
+ * array and an array of NA flags. Each call to REXP.isNA() or REXP.asXxx() allocates and fills a new
+ * array, so values must be read from this class rather than from the REXP when writing them to the
+ * output message element by element.
+ */
+public class RNodeVector {
+	
+	/**
+	 * The R variable type of this vector.
+	 */
+	private RNodeType iType;
+	
+	/**
+	 * The number of elements in this vector.
+	 */
+	private int iLength;
+	
+	/**
+	 * The NA flags for each element in this vector.
+	 */
+	private boolean[] iNA;
+	
+	/**
+	 * The values of this vector if it is a logical vector.
+	 */
+	private byte[] iLogicalValues = null;
+	
+	/**
+	 * The values of this vector if it is an integer vector.
+	 */
+	private int[] iIntegerValues = null;
+	
+	/**
+	 * The values of this vector if it is a double vector.
+	 */
+	private double[] iDoubleValues = null;
+	
+	/**
+	 * The values of this vector if it is a character vector.
+	 */
+	private String[] iCharacterValues = null;
+	
+	/**
+	 * Constructor.
+	 * @param type the R variable type of this vector.
+	 * @param value the R value to decode.
+	 * @throws REXPMismatchException if the R value cannot be decoded as the specified type.
+	 */
+	private RNodeVector(RNodeType type, REXP value) throws REXPMismatchException {
+		iType = type;
+		iLength = value.length();
+		iNA = value.isNA();
+		switch (type) {
+		case LOGICAL:
+			iLogicalValues = value.asBytes();
+			break;
+		case INTEGER:
+			iIntegerValues = value.asIntegers();
+			break;
+		case DOUBLE:
+			iDoubleValues = value.asDoubles();
+			break;
+		default:
+			iCharacterValues = value.asStrings();
+			break;
+		}
+	}
+	
+	/**
+	 * Decode the specified R value into a vector.
+	 * @param value the R value to decode.
+	 * @return the decoded vector, or null if the R value is not a logical, integer, double or character vector.
+	 * @throws REXPMismatchException if the R value cannot be decoded.
+	 */
+	public static RNodeVector decode(REXP value) throws REXPMismatchException {
+		if (value.isLogical()) {
+			return new RNodeVector(RNodeType.LOGICAL, value);
+		} else if (value.isInteger()) {
+			return new RNodeVector(RNodeType.INTEGER, value);
+		} else if (value.isNumeric()) {
+			return new RNodeVector(RNodeType.DOUBLE, value);
+		} else if (value.isString()) {
+			return new RNodeVector(RNodeType.CHARACTER, value);
+		}
+		return null;
+	}
+	
+	/**
+	 * Get the R variable type of this vector.
+	 * @return the R variable type of this vector.
+	 */
+	public RNodeType getType() {
+		return iType;
+	}
+	
+	/**
+	 * Get the number of elements in this vector.
+	 * @return the number of elements in this vector.
+	 */
+	public int length() {
+		return iLength;
+	}
+	
+	/**
+	 * Check whether the specified element of this vector is NA.
+	 * @param index the index of the element.
+	 * @return true if the element is NA.
+	 */
+	public boolean isNA(int index) {
+		return iNA[index];
+	}
+	
+	/**
+	 * Get the specified element of this logical vector.
+	 * @param index the index of the element.
+	 * @return the value of the element.
+	 */
+	public boolean getLogical(int index) {
+		return iLogicalValues[index] == REXPLogical.TRUE;
+	}
+	
+	/**
+	 * Get the specified element of this integer vector.
+	 * @param index the index of the element.
+	 * @return the value of the element.
+	 */
+	public int getInteger(int index) {
+		return iIntegerValues[index];
+	}
+	
+	/**
+	 * Get the specified element of this double vector.
+	 * @param index the index of the element.
+	 * @return the value of the element.
+	 */
+	public double getDouble(int index) {
+		return iDoubleValues[index];
+	}
+	
+	/**
+	 * Get the specified element of this character vector.
+	 * @param index the index of the element.
+	 * @return the value of the element.
+	 */
+	public String getCharacter(int index) {
+		return iCharacterValues[index];
+	}
+	
+}
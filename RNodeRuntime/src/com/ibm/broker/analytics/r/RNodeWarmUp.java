@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and other Contributors
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - initial implementation
+ *******************************************************************************/
+
+package com.ibm.broker.analytics.r;
+
+import java.util.concurrent.TimeUnit;
+
+import com.ibm.broker.plugin.MbException;
+
+/**
+ * A class that tracks the connections opened in parallel by the connection pools of an instance of the
+ * R node when it is initialized, and holds messages until enough of them are ready.
+ *
+ * Messages are held until the configured number of connections have been opened (each of which has loaded
+ * the RData file and run the connect script), or until every connection has either been opened or failed,
+ * so that messages are never held forever when an Rserve server cannot be reached. The duration of the
+ * warm-up is logged when every connection has been opened or failed.
+ */
+public class RNodeWarmUp implements RNodeConnectionPool.WarmUpListener {
+	
+	/**
+	 * The R node that owns this warm-up.
+	 */
+	private RNode iOwner;
+	
+	/**
+	 * The number of connections that must be opened before messages are processed.
+	 */
+	private int iReadyConnections;
+	
+	/**
+	 * The time (from System.nanoTime()) that this warm-up started.
+	 */
+	private long iStartTime = System.nanoTime();
+	
+	/**
+	 * The number of connections being opened, once all of the connection pools have started opening them, or -1.
+	 */
+	private int iExpected = -1;
+	
+	/**
+	 * The number of connections being opened by the connection pools that have started opening them so far.
+	 */
+	private int iStarted = 0;
+	
+	/**
+	 * The number of connections that have been opened.
+	 */
+	private int iOpened = 0;
+	
+	/**
+	 * The number of connections that failed to be opened.
+	 */
+	private int iFailed = 0;
+	
+	/**
+	 * Whether messages can be processed.
+	 */
+	private volatile boolean iReady = false;
+	
+	/**
+	 * Constructor.
+	 * @param owner the R node that owns this warm-up.
+	 * @param readyConnections the number of connections that must be opened before messages are processed.
+	 */
+	public RNodeWarmUp(RNode owner, int readyConnections) {
+		iOwner = owner;
+		iReadyConnections = readyConnections;
+		iReady = readyConnections <= 0;
+	}
+	
+	/**
+	 * Record that a connection pool has started opening connections.
+	 * @param count the number of connections being opened, as returned by RNodeConnectionPool.warmUp().
+	 */
+	public synchronized void add(int count) {
+		iStarted += count;
+	}
+	
+	/**
+	 * Record that all of the connection pools have started opening connections.
+	 */
+	public synchronized void start() {
+		iExpected = iStarted;
+		update();
+	}
+	
+	/**
+	 * Called on a shared worker thread when a connection has been opened, or has failed to be opened.
+	 * @param failure the exception thrown opening the connection, or null if the connection was opened.
+	 */
+	@Override
+	public synchronized void connectionWarmed(Exception failure) {
+		final String methodName = "connectionWarmed";
+		if (failure == null) {
+			iOpened++;
+		} else {
+			iFailed++;
+			try {
+				if (failure instanceof MbException) {
+					MbException e = (MbException) failure;
+					RNodeLog.logWarning(this, methodName, Long.valueOf(e.getMessageKey()), e.getTraceText(), e.getInserts());
+				} else {
+					RNodeLog.logWarning(this, methodName, 7878, "Failed to open connection during warm-up", iOwner.getName(), failure.toString());
+				}
+			} catch (MbException e) {
+				// Ignore any problems logging the warning.
+			}
+		}
+		update();
+	}
+	
+	/**
+	 * Release any held messages if enough connections have been opened or every connection has completed,
+	 * and log the duration of the warm-up once every connection has completed.
+	 */
+	private void update() {
+		final String methodName = "update";
+		boolean complete = iExpected != -1 && iOpened + iFailed == iExpected;
+		if (!iReady && (iOpened >= iReadyConnections || complete)) {
+			iReady = true;
+			notifyAll();
+		}
+		if (complete && iExpected > 0) {
+			try {
+				long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - iStartTime);
+				RNodeLog.logInformation(this, methodName, 7877, "Connection warm-up complete", iOwner.getName(), iOpened, iFailed, duration);
+			} catch (MbException e) {
+				// Ignore any problems logging the information.
+			}
+		}
+	}
+	
+	/**
+	 * Wait until messages can be processed. This returns immediately once the warm-up is ready.
+	 */
+	public void await() {
+		if (iReady) {
+			return;
+		}
+		synchronized (this) {
+			while (!iReady) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+	
+}